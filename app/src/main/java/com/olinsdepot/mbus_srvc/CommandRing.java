@@ -0,0 +1,150 @@
+package com.olinsdepot.mbus_srvc;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer, single consumer ring of service commands, for a client
+ * running in the service's own process. The client thread puts commands in
+ * and the service's thread takes them out, without a lock or a Message per
+ * command. The slots are allocated with the ring and reused.
+ *
+ * Each slot holds the same fields as a service command Message, (what, arg1,
+ * arg2 and obj). The producer fills a slot and then publishes it by moving the
+ * tail, the consumer reads the slot and then frees it by moving the head, so
+ * each slot is only ever touched by one thread at a time.
+ *
+ * The consumer parks once the ring is empty, and offer tells the producer when
+ * the command it just put in has to wake it. Only the first command after the
+ * consumer parks wakes it, a burst of slider moves costs one wake up.
+ *
+ * Only one thread may call offer and only one thread may call drain and park.
+ *
+ * @author mhughes
+ *
+ */
+public class CommandRing {
+
+	/**
+	 * Receives the commands taken from the ring.
+	 */
+	public interface Consumer {
+		void command(int what, int arg1, int arg2, Object obj);
+	}
+
+	private final int mask;
+	private final int[] what;
+	private final int[] arg1;
+	private final int[] arg2;
+	private final Object[] obj;
+
+	/* Next slot to take and next slot to fill, they only go up. */
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	/* The producer's copy of head, only read again when the ring looks full. */
+	private long headCache = 0;
+
+	/* True while the consumer is waiting to be woken. */
+	private final AtomicBoolean parked = new AtomicBoolean(true);
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity - number of slots, rounded up to a power of two.
+	 */
+	public CommandRing(int capacity) {
+		int size = 2;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.what = new int[size];
+		this.arg1 = new int[size];
+		this.arg2 = new int[size];
+		this.obj = new Object[size];
+	}
+
+	/**
+	 * Put a command in the ring. Producer thread only.
+	 *
+	 * @return 1 if the consumer must be woken, 0 if it will see the command
+	 *         anyway, -1 if the ring is full and the command was not added.
+	 */
+	public int offer(int what, int arg1, int arg2, Object obj) {
+		long t = tail.get();
+		if (t - headCache > mask) {
+			headCache = head.get();
+			if (t - headCache > mask) {
+				return -1;
+			}
+		}
+		int i = (int) t & mask;
+		this.what[i] = what;
+		this.arg1[i] = arg1;
+		this.arg2[i] = arg2;
+		this.obj[i] = obj;
+
+		/* A full write, park() reads tail after setting parked and must see it. */
+		tail.set(t + 1);
+
+		return parked.compareAndSet(true, false) ? 1 : 0;
+	}
+
+	/**
+	 * Pass every command in the ring to the consumer. Consumer thread only.
+	 *
+	 * @return the number of commands taken.
+	 */
+	public int drain(Consumer consumer) {
+		long h = head.get();
+		long t = tail.get();
+		int n = 0;
+
+		while (h != t) {
+			int i = (int) h & mask;
+			Object o = obj[i];
+			obj[i] = null;
+			consumer.command(what[i], arg1[i], arg2[i], o);
+
+			/* Free each slot as it's done with, so a full ring drains while the producer waits. */
+			head.lazySet(++h);
+			n++;
+			if (h == t) {
+				t = tail.get();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Park the consumer once it has drained the ring. Consumer thread only.
+	 *
+	 * @return true if the consumer is parked and will be woken for the next
+	 *         command, false if a command arrived meanwhile and it must drain again.
+	 */
+	public boolean park() {
+		parked.set(true);
+
+		/* A command published before parked was set didn't wake anyone, take it back. */
+		if (!isEmpty() && parked.compareAndSet(true, false)) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Return true if there are no commands waiting.
+	 */
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+
+	/**
+	 * Return the number of slots.
+	 */
+	public int capacity() {
+		return mask + 1;
+	}
+}
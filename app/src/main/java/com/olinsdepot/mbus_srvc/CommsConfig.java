@@ -0,0 +1,249 @@
+package com.olinsdepot.mbus_srvc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Connection settings for the Comms transports. The service fills it in from
+ * the connect request, anything not set keeps its default.
+ *
+ * @author mhughes
+ *
+ */
+public class CommsConfig {
+
+	public static final int DEFAULT_TX_WINDOW = 4;
+	public static final int MAX_TX_WINDOW = 32;
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT_MS = 3000;
+	public static final int DEFAULT_RETRY_MIN_MS = 250;
+	public static final int DEFAULT_RETRY_MAX_MS = 30000;
+	public static final int DEFAULT_HEARTBEAT_MS = 2000;
+	public static final int DEFAULT_LIVENESS_MS = 6000;
+
+	private int txWindow = DEFAULT_TX_WINDOW;
+	private boolean tcpNoDelay = true;
+	private long flushWindowUs = 0;
+	private boolean nioTransport = false;
+	private int connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+	private int handshakeTimeoutMs = DEFAULT_HANDSHAKE_TIMEOUT_MS;
+	private int retryMinMs = DEFAULT_RETRY_MIN_MS;
+	private int retryMaxMs = DEFAULT_RETRY_MAX_MS;
+	private int heartbeatMs = DEFAULT_HEARTBEAT_MS;
+	private int livenessMs = DEFAULT_LIVENESS_MS;
+	private MetricsRegistry metrics;
+	private File captureDir;
+
+
+	/**
+	 * Return the max number of frames sent ahead of their PONG.
+	 */
+	public int getTxWindow() {
+		return txWindow;
+	}
+
+	/**
+	 * Set the max number of frames sent ahead of their PONG, limited to 1 to MAX_TX_WINDOW.
+	 * A window of 1 is the original stop-and-wait behavior.
+	 */
+	public CommsConfig setTxWindow(int window) {
+		this.txWindow = Math.max(1, Math.min(MAX_TX_WINDOW, window));
+		return this;
+	}
+
+	/**
+	 * Return true if Nagle's algorithm is turned off on the socket.
+	 */
+	public boolean getTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	/**
+	 * Turn Nagle's algorithm off, (true, the default), or leave it on.
+	 */
+	public CommsConfig setTcpNoDelay(boolean noDelay) {
+		this.tcpNoDelay = noDelay;
+		return this;
+	}
+
+	/**
+	 * Return the flush window in microseconds, 0 = flush every batch at once.
+	 */
+	public long getFlushWindowUs() {
+		return flushWindowUs;
+	}
+
+	/**
+	 * Set how long frames may wait to be written with later ones, see TxQueue.setFlushWindow.
+	 *
+	 * @param us - flush window in microseconds, 0 to write each batch as soon as it's built.
+	 */
+	public CommsConfig setFlushWindowUs(long us) {
+		this.flushWindowUs = Math.max(0, us);
+		return this;
+	}
+
+	/**
+	 * Return true to use the single threaded NIO transport instead of the Comms thread.
+	 */
+	public boolean getNioTransport() {
+		return nioTransport;
+	}
+
+	/**
+	 * Select the single threaded NIO transport, (true), or the Comms thread, (false, the default).
+	 */
+	public CommsConfig setNioTransport(boolean nio) {
+		this.nioTransport = nio;
+		return this;
+	}
+
+	/**
+	 * Return how long a TCP connect may take, in milliseconds.
+	 */
+	public int getConnectTimeoutMs() {
+		return connectTimeoutMs;
+	}
+
+	/**
+	 * Set how long a TCP connect may take before the attempt fails, at least 1 ms.
+	 */
+	public CommsConfig setConnectTimeoutMs(int ms) {
+		this.connectTimeoutMs = Math.max(1, ms);
+		return this;
+	}
+
+	/**
+	 * Return how long the server may take to send its ID once connected, in milliseconds.
+	 */
+	public int getHandshakeTimeoutMs() {
+		return handshakeTimeoutMs;
+	}
+
+	/**
+	 * Set how long the server may take to send its ID before the attempt fails, at least 1 ms.
+	 */
+	public CommsConfig setHandshakeTimeoutMs(int ms) {
+		this.handshakeTimeoutMs = Math.max(1, ms);
+		return this;
+	}
+
+	/**
+	 * Return the delay before the first retry of a failed connection, in milliseconds.
+	 */
+	public int getRetryMinMs() {
+		return retryMinMs;
+	}
+
+	/**
+	 * Return the longest delay between retries, in milliseconds.
+	 */
+	public int getRetryMaxMs() {
+		return retryMaxMs;
+	}
+
+	/**
+	 * Set the retry delays. The delay doubles after each failed attempt from min
+	 * up to max, and each delay is jittered, see ConnectionManager.
+	 *
+	 * @param minMs - delay before the first retry, at least 1 ms.
+	 * @param maxMs - longest delay, at least minMs.
+	 */
+	public CommsConfig setRetryMs(int minMs, int maxMs) {
+		this.retryMinMs = Math.max(1, minMs);
+		this.retryMaxMs = Math.max(this.retryMinMs, maxMs);
+		return this;
+	}
+
+	/**
+	 * Return how long the link may be quiet before a keep alive is sent, in milliseconds.
+	 */
+	public int getHeartbeatMs() {
+		return heartbeatMs;
+	}
+
+	/**
+	 * Return how long the server may send nothing while a PING waits before the
+	 * connection is taken as dead, in milliseconds.
+	 */
+	public int getLivenessMs() {
+		return livenessMs;
+	}
+
+	/**
+	 * Set the heartbeat and the liveness deadline, see LinkMonitor. The heartbeat
+	 * is limited to half the deadline so a quiet link still has a PING out.
+	 *
+	 * @param heartbeatMs - quiet time before a keep alive, at least 1 ms.
+	 * @param livenessMs - time without a response before the link is dead, at least 1 ms.
+	 */
+	public CommsConfig setHeartbeatMs(int heartbeatMs, int livenessMs) {
+		this.heartbeatMs = Math.max(1, heartbeatMs);
+		this.livenessMs = Math.max(1, livenessMs);
+		return this;
+	}
+
+	/**
+	 * Return the registry the transport reports to, null for none.
+	 */
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set the metrics registry the transport's queue and link monitor report to.
+	 * The same registry is passed on to every transport after a reconnect.
+	 */
+	public CommsConfig setMetrics(MetricsRegistry metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Return the directory session captures are written to, null if the session isn't captured.
+	 */
+	public File getCaptureDir() {
+		return captureDir;
+	}
+
+	/**
+	 * Capture every byte each connection sends and receives to a new file in a
+	 * directory, see SessionCapture.
+	 *
+	 * @param dir - directory for the capture files, null to not capture, (the default).
+	 */
+	public CommsConfig setCaptureDir(File dir) {
+		this.captureDir = dir;
+		return this;
+	}
+
+	/**
+	 * Return a new session capture for a connection, or null if the session isn't captured.
+	 *
+	 * @throws IOException if the capture file can't be created.
+	 */
+	public SessionCapture newCapture() throws IOException {
+		if (captureDir == null) {
+			return null;
+		}
+		File file = new File(captureDir, "mbus-capture-" + System.currentTimeMillis() + ".bin");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			return new SessionCapture(out);
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Return a new link monitor with these settings.
+	 */
+	public LinkMonitor newLinkMonitor() {
+		LinkMonitor link = new LinkMonitor(heartbeatMs, livenessMs);
+		link.setMetrics(metrics);
+		return link;
+	}
+}
@@ -1,5 +1,6 @@
 package com.olinsdepot.mbus_srvc;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -7,20 +8,20 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 
-import java.util.Arrays;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 import android.util.Log;
-import android.util.SparseArray;
 
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.os.Messenger;
 import android.os.Process;
 
+import com.olinsdepot.mbus_proto.EmCanFramer;
+import com.olinsdepot.mbus_proto.EmCanParser;
+import com.olinsdepot.mbus_proto.EmCan.*;
+
 
 /**
  * CommsThread opens a socket on the remote MorBus server and sets up receive and transmit
@@ -31,18 +32,16 @@ import android.os.Process;
  * @author mhughes
  *
  */
-public class CommsThread extends Thread {
+public class CommsThread extends Thread implements ConnectionManager.Transport {
 	private final String TAG = getClass().getSimpleName();
 	private static final boolean L = true;
 
 	/**
-	 * Commands supported by Comms thread
+	 * Commands run on the Comms send thread
 	 */
 	public static enum CommsCmd {
-		SND_STREAM,
-		SND_BCST,
-		SND_PORT,
 		CLOSE,
+		FLUSH,
 		UNKNOWN;
 		
 		/* Returns the code for this Comms command. */
@@ -92,20 +91,39 @@ public class CommsThread extends Thread {
 	private final OutputStream outputStream;
 	
 	/*
-	 * Thread to handle commands from the Morbus Service. It receives
-	 * messages from the MorBus service and sends packets to the remote server
-	 * via the LAN.
+	 * Send thread. Writes held batches when their flush window is up, checks
+	 * the link and closes the socket. Commands from the MorBus service are
+	 * queued on the service's thread, see sendStream.
 	 */
 	private HandlerThread mCommsSendThread;
 	private Looper mCommsSendLooper;
 	private Handler mCommsSendHandler;
-	private Messenger mCommsFmSrvcMsgr;
 
 	/* 
-	 * Keep alive thread
+	 * Link monitor. Keep alives are sent only when the link is quiet, and a
+	 * connection that stops answering is closed.
+	 */
+	private final LinkMonitor mLink;
+	private static final byte[] KEEPALIVE = {EmCanCmd.KEEPALIVE.toCode()};
+
+	/*
+	 * Transmit window. Number of frames that may be sent to the server before
+	 * the PONG for the oldest one is received. A window of 1 is the original
+	 * stop-and-wait behavior.
 	 */
-	private static final int UPDATE_INTERVAL = 50000;
-	private Timer keepLiveTimer = new Timer();
+	public static final int DEFAULT_TX_WINDOW = CommsConfig.DEFAULT_TX_WINDOW;
+	public static final int MAX_TX_WINDOW = CommsConfig.MAX_TX_WINDOW;
+
+	/*
+	 * Outbound frames waiting for the transmit window, by priority lane.
+	 */
+	private final TxQueue mTxQueue;
+	
+	/* Builds the broadcast frames that carry DCC commands. */
+	private final EmCanFramer mFramer = new EmCanFramer();
+	
+	/* Every byte sent and received, if the session is being captured. */
+	private final SessionCapture mCapture;
 
 	/*
 	 *  Server state shared with the send and receive threads
@@ -113,7 +131,6 @@ public class CommsThread extends Thread {
 	private static enum SrvrStates {
 		INIT,	/* Not connected to server yet */
 		READY,	/* Connected, accepting commands. */
-		BUSY,	/* Connected, waiting for a command to complete. */
 		STOP	/* In process of shutting down. */
 	}
 	
@@ -144,194 +161,43 @@ public class CommsThread extends Thread {
 				return (test == this.myState);
 			}
 		}
-		
-		/* COMMS is busy */
-		private void setBusy() throws InterruptedException {
-			synchronized (lock) {
-				while (this.myState != SrvrStates.READY) {
-					lock.wait();
-				}
-				
-				this.myState = SrvrStates.BUSY;
-			}
-		}
 	}
 	
 	private SrvrState mSrvrState;
 	
-	/*
-	 * Various EmCAN commands and responses.
-	 */
-	
-	/**
-	 * EMCAN stream op codes.
-	 */
-	private static enum EmCanCmd {
-		NOP 		(0),
-		PING 		(1),
-		ID 			(2),
-		FWINFO		(3),
-		CMDS		(4),
-		RESET		(5),
-		SENDS		(6),
-		SENDE		(7),
-		SENDSR		(8),
-		SENDER		(9),
-		ENUM		(10),
-		KEEPALIVE	(11),
-		STROUT		(12);
-		
-		/* Constructor */
-		private final int opcode;		
-		private EmCanCmd(int op) {
-			this.opcode = op;
-		}
-		
-		/* Returns the code for this EmCAN command */
-		public byte toCode() {
-			return (byte) this.opcode;
-		}
-	}
-
-	/**
-	 * EMCAN Stream response codes
-	 */
-	private static enum EmCanRsp {
-		EOF			(-1),
-		NOP			(0),
-		PONG		(1),
-		ID			(2),
-		FWINFO		(3),
-		CMDS		(4),
-		CANFR		(5),
-		RESET		(6),
-		ADR			(7),
-		UNADR		(8),
-		STROUT		(9),
-		STRINRES	(10),
-		STRIN		(11),
-		UNKNOWN		(255);
-		
-		/* Constructor */
-		private final int rspcode;
-		private EmCanRsp(int rsp) {
-			this.rspcode = rsp;
-		}
-
-		/* Create map of values to Enum */
-		private static final SparseArray<EmCanRsp> codeToEnum = new SparseArray<EmCanRsp>();
-		static {
-			for (EmCanRsp rsp : values()) {
-				codeToEnum.put(rsp.toCode(), rsp);				
-			}
-		}
-		
-		/* Returns the code for this EmCAN response. */
-		public int toCode() {
-			return this.rspcode;
-		}
-		
-		/* Returns EmCAN response for the code passed, or UNKNOWN if code is invalid */
-		public static EmCanRsp fromCode(int rsp) {
-			EmCanRsp retval = codeToEnum.get(rsp);
-			if(retval != null) {
-				return retval;
-			} else {
-				return EmCanRsp.UNKNOWN;
-			}
-		}
-	}
-	
-	/**
-	 * Standard Frame Opcodes
-	 */
-	private static enum StndFrmOp {
-		RESET		(0),
-		ADRASSIGN	(8),
-		SYNC		(12),
-		ADRELEASE	(13),
-		ADRREQ		(14),
-		ADRREQRES	(15);
-		
-		/* Constructor */
-		private final int stdidop;
-		private StndFrmOp(int op) {
-			this.stdidop = op;
-		}
-		
-		/* Returns the op code for this EmCAN extended frame operation */
-		public int toCode() {
-			return this.stdidop;
-		}
-	}
-	
 	/**
-	 * Extended Frame Opcodes
+	 * Comms Thread constructor: Opens stream and starts transmit thread
+	 * with the default transmit window.
+	 * 
+	 * @param sock - socket of target server.
 	 */
-	private static enum ExtdFrmOp {
-		PORTWR		(992),
-		PORTRD		(993),
-		FWINFO		(1008),
-		APPROLE		(1009),
-		CONFIG		(1011),
-		NPORTS		(1012),
-		PORTYPE		(1013),
-		PORTSCALE	(1014),
-		PORTOFS		(1015),
-		SETROLE		(1018),
-		PORTINIT	(1019),
-		PORTCFG		(1020),
-		PORTROLE	(1021),
-		STROUT		(1022),
-		STRIN		(1023);
-		
-		/* Constructor */
-		private final int extidop;
-		private ExtdFrmOp(int op) {
-			this.extidop = op;
-		}
-		
-		/* Returns the op code for this EmCAN  extended operation */
-		public int toCode() {
-			return this.extidop;
-		}
+	public CommsThread(Socket sock) {
+		this(sock, DEFAULT_TX_WINDOW);
 	}
 	
-	
 	/**
-	 * EmCAN ID field bit definitions
+	 * Comms Thread constructor: Opens stream and starts transmit thread
+	 * 
+	 * @param sock - socket of target server.
+	 * @param txWindow - max number of frames sent ahead of their PONG, (1 to MAX_TX_WINDOW).
 	 */
-	private static enum ExtdFrmFlg {
-		NEW_DATA			(1 << 16),
-		UNSOLICITED			(1 << 15),
-		ACK_REQSTD			(1 << 14),
-		CONTINUATION		(1 << 13),
-		TO_BE_CONTINUED		(1 << 12);
-		
-		/* Constructor */
-		private final int idflgs;
-		private ExtdFrmFlg(int flg) {
-			this.idflgs = flg;
-		}
-		
-		/* Returns the flag */
-		public int toCode() {
-			return this.idflgs;
-		}
+	public CommsThread(Socket sock, int txWindow) {
+		this(sock, new CommsConfig().setTxWindow(txWindow));
 	}
 	
-	
 	/**
 	 * Comms Thread constructor: Opens stream and starts transmit thread
 	 * 
 	 * @param sock - socket of target server.
+	 * @param config - transmit window, TCP_NODELAY and flush window settings.
 	 */
-	public CommsThread(Socket sock) {
-		if (L) Log.i(TAG,"Starting Comms Receive Thread");
+	public CommsThread(Socket sock, CommsConfig config) {
+		if (L) Log.i(TAG,"Starting Comms Receive Thread, window = " + config.getTxWindow() +
+				", no delay = " + config.getTcpNoDelay() + ", flush = " + config.getFlushWindowUs() + " us");
 		
 		/* Init Comms thread state */
 		this.setName("SrvrMsgRcv");
-		mSrvrState= new SrvrState();;
+		mSrvrState= new SrvrState();
 
 		mSocket = sock;
 		InputStream tmpIn = null;
@@ -339,6 +205,7 @@ public class CommsThread extends Thread {
 
 		/* create input and output stream objects to read and write socket. */
 		try {
+			mSocket.setTcpNoDelay(config.getTcpNoDelay());
 			tmpIn = mSocket.getInputStream();
 			tmpOut = mSocket.getOutputStream();
 		}
@@ -348,166 +215,308 @@ public class CommsThread extends Thread {
 		inputStream = tmpIn;
 		outputStream = tmpOut;
 		
-		/* Start the thread to handle messages from MbusService and send to the server */
+		/* Open the session capture, the connection goes ahead without it if it fails. */
+		SessionCapture capture = null;
+		try {
+			capture = config.newCapture();
+		} catch (IOException e) {
+			Log.d(TAG, "Session capture failed: " + e.getLocalizedMessage());
+		}
+		mCapture = capture;
+		
+		/* Frames are queued until the server has sent its ID. */
+		mTxQueue = new TxQueue(capturing(outputStream), config.getTxWindow(), new TxQueue.Framer() {
+			public void frame(int op, byte[] data, int len, ByteBuffer out) {
+				mFramer.frame(op, data, len, out);
+			}
+		});
+		mLink = config.newLinkMonitor();
+		mTxQueue.setMonitor(mLink);
+		mTxQueue.setMetrics(config.getMetrics());
+		
+		/* Start the send thread */
 		mCommsSendThread = new HandlerThread("SrvrMsgSnd", Process.THREAD_PRIORITY_BACKGROUND);
 		mCommsSendThread.start();
 		mCommsSendLooper = mCommsSendThread.getLooper();
 		mCommsSendHandler = new CommsSendHandler(mCommsSendLooper);
-		mCommsFmSrvcMsgr = new Messenger(mCommsSendHandler);
 
+		/* A held batch is written by a FLUSH message to the send thread. */
+		if (config.getFlushWindowUs() > 0) {
+			mTxQueue.setFlushWindow(TimeUnit.MICROSECONDS.toNanos(config.getFlushWindowUs()), new TxQueue.FlushTimer() {
+				public void schedule(long delayNanos) {
+					mCommsSendHandler.sendEmptyMessageDelayed(CommsCmd.FLUSH.toCode(),
+							(delayNanos + 999999) / 1000000);
+				}
+			});
+		}
 
-		/* Send "START" event to Morbus service with the Comm thread's message handler. */
+		/* Send "START" event to Morbus service. */
 		Message msg = MbusService.mSrvcFmCommsHandler.obtainMessage();
 		msg.what = CommsEvt.START.toCode();
-		msg.replyTo  = mCommsFmSrvcMsgr;
+		msg.obj = this;
         MbusService.mSrvcFmCommsHandler.sendMessage(msg);
 	}
 	
 
 	/**
-	 * Comms Receive Thread: Parses packet from server and generates
-	 * events to the Morbus Service.
+	 * Comms Receive Thread: Reads from the server in bulk and generates
+	 * events to the Morbus Service for each complete response received.
 	 */
 	public void run() {
 		String TAG = "CommsRcv";
-		final byte[] PROT_NAME = {'E','m','C','a','n',':','M','o','r','B','u','s'};
-		int protVersion = 0;
-
-		byte rspCode = 0;					/* Byte read from server. */
-		byte[] rcvBuf = new byte[1024];		/* buffer store for the stream. */
-		int bytes = 0;		                /* number of bytes returned from read. */
+		RspFramer framer = new RspFramer();
+		ByteBuffer rcvBuf = framer.rcvBuf;
+		int frmLen;
 		
 		while(true) {
-			/* Make a blocking call to read response code from input stream. */
+			/* Make a blocking call to read whatever the server has sent. */
 			try {
-				rspCode = (byte)inputStream.read();				
+				if (framer.fill() < 0) {
+					/* Indicates attempt to read a closed socket. */
+					if (L) Log.i(TAG, "Reached EOF");
+					break;
+				}
+				mLink.received(System.nanoTime());
 			}
 			catch (IOException e) {
 				Log.d(TAG, e.getLocalizedMessage());
-				//TODO Send message to service that read on socket failed.
-			}
-			
-
-			/* Dispatch received server response. */
-			switch (EmCanRsp.fromCode(rspCode)) {
-			
-			case EOF:
-				/* Indicates attempt to read a closed socket. */
-				if (L) Log.i(TAG, "Reached EOF");
 				break;
+			}
 			
-			case NOP:
-				/* We ignore NOP except to log it if logging enabled. */
-				if (L) Log.i(TAG, "Received NOP");
-				break;
+			/* Dispatch every complete response in the buffer. */
+			while ((frmLen = framer.frameLength()) > 0) {
+				dispatchRsp(rcvBuf, rcvBuf.position(), frmLen);
+				rcvBuf.position(rcvBuf.position() + frmLen);
+			}
 			
-			case PONG:
-				/* If server was BUSY, receiving PONG indicates it's now READY. */
-				if (L) Log.i(TAG, "Received PONG");
-				if (mSrvrState.is(SrvrStates.BUSY)) {
-					mSrvrState.set(SrvrStates.READY);
+			/* A response too long for the buffer can never complete, drop it. */
+			if (frmLen < 0) {
+				Log.d(TAG, "Response overflows receive buffer, discarded " + rcvBuf.remaining() + " bytes");
+				rcvBuf.position(rcvBuf.limit());
+			}
+		}	/* end while */
+		
+		/* Stop the send thread and tell the service the connection is down. */
+		mSrvrState.set(SrvrStates.STOP);
+		mCommsSendHandler.removeCallbacks(linkCheck);
+		mCommsSendLooper.quit();
+		cancel();
+		if (mCapture != null) {
+			try {
+				mCapture.close();
+			} catch (IOException e) {
+				Log.d(TAG, "Session capture failed: " + e.getLocalizedMessage());
+			}
+		}
+		
+		Message msg = MbusService.mSrvcFmCommsHandler.obtainMessage();
+		msg.what = CommsEvt.STOP.toCode();
+		msg.obj = this;
+		MbusService.mSrvcFmCommsHandler.sendMessage(msg);
+	}
+	
+	/**
+	 * Close the connection. The receive thread sends STOP once it has ended.
+	 */
+	public void close() {
+		mCommsSendHandler.sendEmptyMessage(CommsCmd.CLOSE.toCode());
+	}
+	
+	/**
+	 * Return the link monitor, for the round trip time and jitter.
+	 */
+	public LinkMonitor linkMonitor() {
+		return mLink;
+	}
+	
+	/**
+	 * Queue a single byte stream command. The command is queued, (and written if
+	 * the window has room), on the calling thread, the transmit queue is thread
+	 * safe, so it doesn't wait for the send thread.
+	 * 
+	 * @param op - Byte Stream Protocol opcode.
+	 * @param lane - priority lane.
+	 */
+	public void sendStream(int op, TxQueue.Lane lane) {
+		byte[] cmd = {(byte) op};
+		write(cmd, lane);
+	}
+	
+	/**
+	 * Queue a broadcast extended EmCAN frame, on the calling thread.
+	 * 
+	 * @param op - broadcast opcode.
+	 * @param data - CAN data bytes.
+	 * @param lane - priority lane.
+	 */
+	public void sendBcst(int op, byte[] data, TxQueue.Lane lane) {
+		write(bcstFrame(op, data), lane);
+	}
+	
+	/**
+	 * Queue a broadcast extended EmCAN frame, on the calling thread, and have
+	 * ack told tag when the server has taken it.
+	 * 
+	 * @param op - broadcast opcode.
+	 * @param data - CAN data bytes.
+	 * @param lane - priority lane.
+	 * @param ack - told tag on the receive thread when the frame's PONG arrives.
+	 * @param tag - passed to ack.
+	 */
+	public void sendBcst(int op, byte[] data, TxQueue.Lane lane, TxQueue.Ack ack, int tag) {
+		try {
+			mTxQueue.put(bcstFrame(op, data), lane, ack, tag);
+		} catch (IOException e) {
+			Log.d(TAG, e.getLocalizedMessage());
+		}
+	}
+	
+	/**
+	 * Queue a send from a throttle slot, on the calling thread. The slot is read
+	 * once there is room in the transmit window so the newest command is the one sent.
+	 * 
+	 * @param slot - throttle slot.
+	 * @param epoch - slot epoch.
+	 * @param op - broadcast opcode.
+	 */
+	public void sendSlot(ThrottleSlot slot, int epoch, int op) {
+		try {
+			mTxQueue.putSlot(slot, epoch, op);
+		} catch (IOException e) {
+			Log.d(TAG, e.getLocalizedMessage());
+		}
+	}
+	
+	/**
+	 * Dispatch one complete server response.
+	 * 
+	 * @param buf - receive buffer holding the response.
+	 * @param pos - index of the response code in buf.
+	 * @param len - length of the response including the response code.
+	 */
+	private void dispatchRsp(ByteBuffer buf, int pos, int len) {
+		String TAG = "CommsRcv";
+		
+		Trace.event(Trace.Stage.RX_RSP, Trace.NO_THROTTLE, buf.get(pos) & 0xFF, len);
+		switch (EmCanRsp.fromCode(buf.get(pos) & 0xFF)) {
+		
+		case NOP:
+			/* We ignore NOP except to trace it. */
+			break;
+		
+		case PONG:
+			/* PONG retires the oldest frame in the transmit window. */
+			try {
+				mTxQueue.pong();
+			} catch (IOException e) {
+				Log.d(TAG, e.getLocalizedMessage());
+			}
+			break;
+		
+		case ID:
+			/* If state is INIT, ID says server connected. Otherwise, ignored. */
+			if (mSrvrState.is(SrvrStates.INIT)) {
+				/* Verify the name is EmCan:Morbus and read the protocol version. */
+				int protVersion = EmCanParser.idVersion(buf, pos, len);
+				
+				if (protVersion >= 0) {
+					/* Send "Connect" event to Morbus service. Attach the server's message handler. */
+					Message msg = MbusService.mSrvcFmCommsHandler.obtainMessage();
+					msg.what = CommsEvt.CONNECT.toCode();
+					msg.arg1 = protVersion; // Report protocol version.
+					msg.obj = CommsThread.this;
+	                MbusService.mSrvcFmCommsHandler.sendMessage(msg);
+	                
+	                /* Update server state to "Connected, ready for commands" and start sending. */
+		            mSrvrState.set(SrvrStates.READY);
+		            try {
+		            	mTxQueue.open();
+		            } catch (IOException e) {
+		            	Log.d(TAG, e.getLocalizedMessage());
+		            }
+
+	                /* Start checking the link, on the send thread. */
+					mCommsSendHandler.post(linkCheck);
+				} else {
+					/* ID returned did not match. */
+					//TODO Respond with a Stop and shutdown.
 				}
-				break;
+			}
+			break;
+		
+		/* Not acted on yet, they are in the trace. */
+		case FWINFO:
+		case CMDS:
+		case CANFR:
+		case RESET:
+		case ADR:
+		case UNADR:
+		case STROUT:
+		case STRINRES:
+		case STRIN:
+			break;
+
+		default:
+			Log.d(TAG,"Unknown EMCan response");
+			break;
 			
-			case ID:
-				/* If state is INIT, ID says server connected. Otherwise, ignored. */
-				if (L) Log.i(TAG, "Received ID");
-				if (mSrvrState.is(SrvrStates.INIT)) {
-					/*Read rest of the ID response... */
-					for (bytes = 0; bytes < 1024; bytes++) {
-						try {
-							rcvBuf[bytes] = (byte)inputStream.read();
-						} catch (IOException e) {
-							Log.d(TAG, e.getLocalizedMessage());
-						}
-						if (rcvBuf[bytes] == 0) break;
-					}
-					
-					/*  ...and verify isequal EmCan:Morbus */
-					byte[] rcvdId = Arrays.copyOf(rcvBuf,bytes);
-					if (Arrays.equals(rcvdId, PROT_NAME)) {
-							
-						/* Read the protocol version. */
-						try {
-							protVersion = inputStream.read();
-						} catch (IOException e) {
-							Log.d(TAG, e.getLocalizedMessage());
-						}
+		}	/* end switch */
+	}
 	
-						/* Send "Connect" event to Morbus service. Attach the server's message handler. */
-						Message msg = MbusService.mSrvcFmCommsHandler.obtainMessage();
-						msg.what = CommsEvt.CONNECT.toCode();
-						msg.arg1 = protVersion; // Report protocol version.
-		                MbusService.mSrvcFmCommsHandler.sendMessage(msg);
-		                
-		                /* Update server state to "Connected, ready for commands" */
-			            mSrvrState.set(SrvrStates.READY);
-
-		                //Start a thread to send keep alive commands every 50 seconds
-						KeepAliveThread();
-					} else {
-						/* ID returned did not match. */
-						//TODO Respond with a Stop and shutdown.
-					}
+	/**
+	 * Receive framer. Reads the socket in bulk into a buffer and finds the
+	 * boundaries of the responses in it from the known length of each response
+	 * type. Bytes between the buffer's position and limit have been read but not
+	 * yet dispatched.
+	 */
+	private final class RspFramer {
+		
+		private static final int RCV_BUF_SIZE = 4096;
+		private final ByteBuffer rcvBuf;
+		
+		/* Constructor */
+		public RspFramer() {
+			rcvBuf = ByteBuffer.allocate(RCV_BUF_SIZE);
+			rcvBuf.limit(0);
+		}
+		
+		/**
+		 * Move any partial response to the front of the buffer and read as many
+		 * bytes as the socket has available behind it. Blocks until at least one
+		 * byte is read.
+		 * 
+		 * @return number of bytes read, or -1 at end of stream.
+		 */
+		private int fill() throws IOException {
+			rcvBuf.compact();
+			int bytes = inputStream.read(rcvBuf.array(), rcvBuf.position(), rcvBuf.remaining());
+			if (bytes > 0) {
+				if (mCapture != null) {
+					mCapture.received(rcvBuf.array(), rcvBuf.position(), bytes);
 				}
-				break;
-			
-			case FWINFO:
-				if (L) Log.i(TAG, "Received FWINFO");
-				break;
-			
-			case CMDS:
-				if (L) Log.i(TAG, "Received CMDS");
-				break;
-			
-			case CANFR:
-				if (L) Log.i(TAG, "Received CANFR");
-				break;
-			
-			case RESET:
-				if (L) Log.i(TAG, "Received RESET");
-				break;
-			
-			case ADR:
-				if (L) Log.i(TAG, "Received ADR");
-				break;
-			
-			case UNADR:
-				if (L) Log.i(TAG, "Received UNADR");
-				break;
-			
-			case STROUT:
-				if (L) Log.i(TAG, "Received STROUT");
-				break;
-			
-			case STRINRES:
-				if (L) Log.i(TAG, "Received STRINRES");
-				break;
-
-			case STRIN:
-				if (L) Log.i(TAG, "Received STRIN");
-				break;
-
-			default:
-				Log.d(TAG,"Unknown EMCan response");
-				break;
-				
-			}	/* end switch */
-			
-			//TODO If we get to here with a state of STOP end the thread.
-		}	/* end while */
+				rcvBuf.position(rcvBuf.position() + bytes);
+			}
+			rcvBuf.flip();
+			return bytes;
+		}
+		
+		/**
+		 * Return the length of the response at the head of the buffer.
+		 * 
+		 * @return length of the response, 0 if it is not complete yet, or -1 if it
+		 * can't fit in the buffer.
+		 */
+		private int frameLength() {
+			return EmCanParser.frameLength(rcvBuf);
+		}
 	}
 
 	/**
-	 *  Comms Send Thread: Parses command from service and generates a
-	 *  packet to send to the server.
-	 *  @param msg - Message from Main containing an MBus event.
+	 *  Comms Send Thread: Writes held batches and closes the socket.
+	 *  @param msg - FLUSH or CLOSE.
 	 */
 	private final class CommsSendHandler extends Handler {
 		
-		private ByteBuffer sndBuf;
-		private byte[] datBuf;
-		
 		/* Constructor */
 		public CommsSendHandler(Looper looper) {
 			super(looper);
@@ -516,40 +525,23 @@ public class CommsThread extends Thread {
 		/* Message handler */
 		@Override
 		public void handleMessage(Message msg) {
-			if (L) Log.i("CommsSendHandler", "Message type " + msg.what);
-			
 			/* Dispatch this send command */
 			switch (CommsCmd.fromCode(msg.what)) {
 			
-			case SND_STREAM:
-				/* Send the Byte Stream Protocol opcode byte passed in ARG1. */
-				sndBuf = ByteBuffer.allocate(1);
-				sndBuf.put((byte)msg.arg1);
-				write(sndBuf.array());
-				break;
-
-			case SND_BCST:
-				/* Send a broadcast extended EmCAN frame with ARG1 = opcode, OBJ = data. */
-				datBuf = (byte[]) msg.obj;
-				// TODO add check on length of datBuf.
-				sndBuf = ByteBuffer.allocate(6 + datBuf.length);
-				
-				/* Build the EmCAN frame. */
-				sndBuf.put(EmCanCmd.SENDE.toCode());	/* stream command */
-				sndBuf.put((byte) datBuf.length);		/* # of CAN data bytes */
-				sndBuf.putInt(getExID(msg.arg1, 0));		/* generate EmCAN ID */
-				sndBuf.put(datBuf);						/* CAN data */
-
-				write(sndBuf.array());
-
-				break;
-			
-			/* Send a port specific EmCAN frame with ARG1 = opcode, ARG2 = node, OBJ = data. */
-			case SND_PORT:
+			/* Write frames held for the flush window. */
+			case FLUSH:
+				try {
+					mTxQueue.flushIfDue();
+				} catch (IOException e) {
+					Log.d(TAG, e.getLocalizedMessage());
+				}
 				break;
 				
 			/* Close the socket. */
 			case CLOSE:
+				if (L) Log.i("CommsSendHandler", "E-stop queue latency " + mTxQueue.latency(TxQueue.Lane.SAFETY));
+				if (L) Log.i("CommsSendHandler", "Writes: " + mTxQueue.metrics());
+				if (L) Log.i("CommsSendHandler", "Link: " + mLink);
 				cancel();
 				break;
 				
@@ -563,35 +555,59 @@ public class CommsThread extends Thread {
 
 	/**
 	 * CommsThread Write Method
-	 * Write a string of bytes to the output stream.
+	 * Queue a string of bytes to be written to the output stream. Returns
+	 * without waiting for the transmit window.
 	 * 
 	 * @param bytes - byte array to send
+	 * @param lane - priority lane, SAFETY goes ahead of everything else queued.
 	 */
-	private void write(byte[] bytes)
+	private void write(byte[] bytes, TxQueue.Lane lane)
 	{
-		/* Wait for server state to be READY then set state to BUSY. */
 		try {
-			mSrvrState.setBusy();
-		} catch (InterruptedException e) {
-			Log.d(TAG, e.getLocalizedMessage());
-		}
-
-		try {
-			outputStream.write(bytes);
+			mTxQueue.put(bytes, lane);
 		} catch (IOException e) {
 			Log.d(TAG, e.getLocalizedMessage());
 			//TODO Send message to service that write on socket failed.
 		}
-		
-		/* Send PING. Server is ready for next command when it replies PONG. */
-		try {
-			outputStream.write(EmCanCmd.PING.toCode());
-		} catch (IOException e) {
-			Log.d(TAG, e.getLocalizedMessage());
+	}
+	
+	/**
+	 * Return the socket's stream, with every write recorded in the session
+	 * capture if there is one.
+	 */
+	private OutputStream capturing(OutputStream out) {
+		if (mCapture == null) {
+			return out;
 		}
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+				mCapture.sent(new byte[] {(byte) b}, 0, 1);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				mCapture.sent(b, off, len);
+			}
+		};
 	}
-
-
+	
+	/**
+	 * Wrap DCC data in a broadcast extended EmCAN frame.
+	 * 
+	 * @param op - broadcast opcode.
+	 * @param data - CAN data bytes.
+	 * @return the frame.
+	 */
+	private byte[] bcstFrame(int op, byte[] data) {
+		// TODO add check on length of data.
+		ByteBuffer sndBuf = ByteBuffer.allocate(EmCanFramer.HDR_LEN + data.length);
+		mFramer.frame(op, data, data.length, sndBuf);
+		return sndBuf.array();
+	}
+	
 	/**
 	 * CommsThread Cancel Method
 	 * Close the socket
@@ -607,35 +623,28 @@ public class CommsThread extends Thread {
 	}
 	
 	/**
-	 * Return a 32 bit integer containing the 32 bit extended ID
-	 * for an EmCAN external stream frame.
-	 */
-	private int getExID(int op, int node) {
-		int emcanId = 0;
-		// TODO right now, only supports broadcast.
-		
-		if (node == 0) {
-			emcanId |= (op << 19);
-			emcanId |= ExtdFrmFlg.NEW_DATA.toCode();
-		}
-		
-		return emcanId;
-	}
-
-	/**
-	 * Keep Alive Thread. Sends a keep-alive frame to the server every 50 seconds.
+	 * Link check, on the send thread. Sends a keep alive when the link has been
+	 * quiet for the heartbeat interval, closes the socket if the server stopped
+	 * answering, and runs again when the next of those could be due.
 	 */
-	private void KeepAliveThread () {
-		keepLiveTimer.scheduleAtFixedRate(new TimerTask() {
-			public void run() {
-				if (L) Log.i("CommsSendHandler", "Sending Keep_alive");
-				Message msg = mCommsSendHandler.obtainMessage();
-				msg.what = CommsCmd.SND_STREAM.toCode();
-				msg.arg1 = EmCanCmd.KEEPALIVE.toCode();
-		        mCommsSendHandler.sendMessage(msg);
+	private final Runnable linkCheck = new Runnable() {
+		public void run() {
+			switch (mLink.poll(System.nanoTime())) {
+			case HEARTBEAT:
+				Trace.event(Trace.Stage.KEEPALIVE, Trace.NO_THROTTLE, 0, KEEPALIVE.length);
+				write(KEEPALIVE, TxQueue.Lane.NORMAL);
+				break;
+			case DEAD:
+				Log.d("CommsSendHandler", "No response from server in " + mLink.deadlineMs() + " ms, closing");
+				cancel();
+				return;
+			default:
+				break;
 			}
-		}, 0, UPDATE_INTERVAL);
-	}
+			long wait = TimeUnit.NANOSECONDS.toMillis(mLink.untilDue(System.nanoTime()) + 999999);
+			mCommsSendHandler.postDelayed(this, Math.max(1, wait));
+		}
+	};
 	
 	/**
 	 * Bytes to Hex String: Utility function
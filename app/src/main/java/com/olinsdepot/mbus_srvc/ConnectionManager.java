@@ -0,0 +1,336 @@
+package com.olinsdepot.mbus_srvc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+
+import android.os.Handler;
+import android.util.Log;
+
+
+/**
+ * Connection manager for the MorBus service. Connects to the server without
+ * blocking the service's thread, and keeps reconnecting while the connection
+ * is wanted.
+ *
+ * Resolving the server's name and the TCP connect are done on a short lived
+ * connect thread and must finish within the connect timeout, (a thread stuck
+ * in a name lookup is abandoned), and the server must send its ID within the
+ * handshake timeout after the transport starts.
+ *
+ * A failed attempt, or a connection that drops, is retried after a delay that
+ * doubles from the minimum up to the maximum, with a random part so clients
+ * that lost the same server don't all retry together. A successful connection
+ * resets the delay.
+ *
+ * All methods, and the listener, run on the thread of the handler passed to the
+ * constructor, (the service's client thread). Events from a transport that has
+ * been replaced are ignored.
+ *
+ * @author mhughes
+ *
+ */
+public class ConnectionManager {
+	private final String TAG = getClass().getSimpleName();
+	private static final boolean L = true;
+
+	/**
+	 * A transport the manager starts and stops, (the Comms thread or the NIO one).
+	 */
+	public interface Transport {
+		/* Start the transport's threads. */
+		void start();
+
+		/* Close the connection, the transport sends STOP once it is down. */
+		void close();
+
+		/* Return the transport's link monitor. */
+		LinkMonitor linkMonitor();
+
+		/* Queue commands directly, on the calling thread, without a message to the transport. */
+		void sendStream(int op, TxQueue.Lane lane);
+		void sendBcst(int op, byte[] data, TxQueue.Lane lane);
+		void sendBcst(int op, byte[] data, TxQueue.Lane lane, TxQueue.Ack ack, int tag);
+		void sendSlot(ThrottleSlot slot, int epoch, int op);
+	}
+
+	/**
+	 * Connection events, called on the handler's thread.
+	 */
+	public interface Listener {
+		/* The server identified itself. restored is true if an earlier connection was lost. */
+		void linkUp(int protVersion, boolean restored);
+
+		/* A connection attempt failed or the connection dropped, the next attempt is in retryMs. */
+		void linkDown(String reason, long retryMs);
+	}
+
+	/* Connection states. */
+	private static enum LinkStates {
+		IDLE,		/* Not wanted. */
+		CONNECTING,	/* Connect thread is resolving and connecting. */
+		HANDSHAKE,	/* Transport started, waiting for the server's ID. */
+		UP,			/* Server identified. */
+		WAITING		/* Waiting to retry. */
+	}
+
+	private final Handler handler;
+	private final Listener listener;
+	private final Random jitter = new Random();
+
+	private LinkStates state = LinkStates.IDLE;
+	private String host;
+	private int port;
+	private CommsConfig config;
+	private Transport transport;
+	private int attempt = 0;
+	private int failures = 0;
+	private boolean wasUp = false;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param handler - handler of the thread the manager runs on.
+	 * @param listener - receives the connection events.
+	 */
+	public ConnectionManager(Handler handler, Listener listener) {
+		this.handler = handler;
+		this.listener = listener;
+	}
+
+	/**
+	 * Connect to a server, replacing any connection there is.
+	 *
+	 * @param host - name or address of the server.
+	 * @param port - server's port.
+	 * @param config - transport settings, timeouts and retry delays.
+	 */
+	public void connect(String host, int port, CommsConfig config) {
+		disconnect();
+		this.host = host;
+		this.port = port;
+		this.config = config;
+		this.failures = 0;
+		this.wasUp = false;
+		startAttempt();
+	}
+
+	/**
+	 * Close the connection and stop retrying.
+	 */
+	public void disconnect() {
+		attempt++;
+		handler.removeCallbacks(retryTask);
+		handler.removeCallbacks(connectTimeout);
+		handler.removeCallbacks(handshakeTimeout);
+		closeTransport();
+		state = LinkStates.IDLE;
+	}
+
+	/**
+	 * Return true if an event is from the current transport.
+	 */
+	public boolean isCurrent(Object from) {
+		return from != null && from == transport;
+	}
+
+	/**
+	 * Return the link monitor of the current connection, for its round trip
+	 * time and jitter, or null if there is no transport.
+	 */
+	public LinkMonitor linkMonitor() {
+		return (transport != null) ? transport.linkMonitor() : null;
+	}
+
+	/**
+	 * Return the current transport, (starting, connected or closing), to send
+	 * commands to, or null if there is none.
+	 */
+	public Transport transport() {
+		return transport;
+	}
+
+	/**
+	 * Return true if the server has identified itself on the current connection.
+	 */
+	public boolean isUp() {
+		return state == LinkStates.UP;
+	}
+
+	/**
+	 * The transport sent its CONNECT event.
+	 *
+	 * @param from - transport that sent it.
+	 * @param protVersion - server's protocol version.
+	 */
+	public void connected(Object from, int protVersion) {
+		if (from != transport || state != LinkStates.HANDSHAKE) {
+			return;
+		}
+		handler.removeCallbacks(handshakeTimeout);
+		state = LinkStates.UP;
+		failures = 0;
+		if (L) Log.i(TAG, "Connected to " + host + ":" + port + (wasUp ? ", session restored" : ""));
+		listener.linkUp(protVersion, wasUp);
+		wasUp = true;
+	}
+
+	/**
+	 * The transport sent its STOP event.
+	 *
+	 * @param from - transport that sent it.
+	 */
+	public void stopped(Object from) {
+		if (from != transport) {
+			return;
+		}
+		transport = null;
+		if (state == LinkStates.HANDSHAKE || state == LinkStates.UP) {
+			failed("Connection closed");
+		}
+	}
+
+
+	/* Resolve and connect on a connect thread, then start the transport here. */
+	private void startAttempt() {
+		final int myAttempt = ++attempt;
+		final String myHost = host;
+		final int myPort = port;
+		final CommsConfig myConfig = config;
+
+		state = LinkStates.CONNECTING;
+		if (L) Log.i(TAG, "Connecting to " + myHost + ":" + myPort + ", attempt " + (failures + 1));
+
+		Thread connector = new Thread(new Runnable() {
+			public void run() {
+				try {
+					final InetSocketAddress addr = new InetSocketAddress(InetAddress.getByName(myHost), myPort);
+					if (myConfig.getNioTransport()) {
+						/* The NIO transport connects in its own loop. */
+						handler.post(new Runnable() {
+							public void run() {
+								startTransport(myAttempt, addr, null);
+							}
+						});
+					} else {
+						final Socket sock = new Socket();
+						sock.connect(addr, myConfig.getConnectTimeoutMs());
+						handler.post(new Runnable() {
+							public void run() {
+								startTransport(myAttempt, addr, sock);
+							}
+						});
+					}
+				} catch (final IOException e) {
+					handler.post(new Runnable() {
+						public void run() {
+							if (myAttempt == attempt) {
+								failed((e.getLocalizedMessage() != null) ? e.getLocalizedMessage() : e.toString());
+							}
+						}
+					});
+				}
+			}
+		}, "SrvrConnect");
+		connector.setDaemon(true);
+		connector.start();
+		handler.postDelayed(connectTimeout, myConfig.getConnectTimeoutMs());
+	}
+
+	/* Start the transport on a connected socket, or an NIO transport on the address. */
+	private void startTransport(int myAttempt, InetSocketAddress addr, Socket sock) {
+		if (myAttempt != attempt || state != LinkStates.CONNECTING) {
+			/* Attempt was abandoned while connecting. */
+			if (sock != null) {
+				try {
+					sock.close();
+				} catch (IOException e) {
+					/* Closing anyway. */
+				}
+			}
+			return;
+		}
+		handler.removeCallbacks(connectTimeout);
+
+		try {
+			if (sock == null) {
+				transport = new NioCommsThread(addr, config);
+			} else {
+				transport = new CommsThread(sock, config);
+			}
+		} catch (IOException e) {
+			failed(e.getLocalizedMessage());
+			return;
+		}
+		state = LinkStates.HANDSHAKE;
+		transport.start();
+
+		/* The NIO transport's connect is part of its handshake time. */
+		long deadline = config.getHandshakeTimeoutMs();
+		if (sock == null) {
+			deadline += config.getConnectTimeoutMs();
+		}
+		handler.postDelayed(handshakeTimeout, deadline);
+	}
+
+	/* An attempt failed or the connection dropped, schedule the next attempt. */
+	private void failed(String reason) {
+		attempt++;
+		handler.removeCallbacks(connectTimeout);
+		handler.removeCallbacks(handshakeTimeout);
+		closeTransport();
+
+		long retryMs = retryDelay(failures++);
+		state = LinkStates.WAITING;
+		Log.d(TAG, "Connection to " + host + ":" + port + " failed: " + reason + ", retry in " + retryMs + " ms");
+		listener.linkDown(reason, retryMs);
+		handler.postDelayed(retryTask, retryMs);
+	}
+
+	/*
+	 * Delay before the next attempt: min doubled for each failure so far, up to
+	 * max, then a random amount off of up to half of it.
+	 */
+	private long retryDelay(int failed) {
+		long delay = config.getRetryMinMs();
+		for (int i = 0; i < failed && delay < config.getRetryMaxMs(); i++) {
+			delay <<= 1;
+		}
+		delay = Math.min(delay, config.getRetryMaxMs());
+		return delay - (long) (jitter.nextDouble() * delay / 2);
+	}
+
+	private void closeTransport() {
+		if (transport != null) {
+			transport.close();
+			transport = null;
+		}
+	}
+
+	private final Runnable retryTask = new Runnable() {
+		public void run() {
+			if (state == LinkStates.WAITING) {
+				startAttempt();
+			}
+		}
+	};
+
+	private final Runnable connectTimeout = new Runnable() {
+		public void run() {
+			if (state == LinkStates.CONNECTING) {
+				failed("No connection within " + config.getConnectTimeoutMs() + " ms");
+			}
+		}
+	};
+
+	private final Runnable handshakeTimeout = new Runnable() {
+		public void run() {
+			if (state == LinkStates.HANDSHAKE) {
+				failed("Server did not identify within " + config.getHandshakeTimeoutMs() + " ms");
+			}
+		}
+	};
+}
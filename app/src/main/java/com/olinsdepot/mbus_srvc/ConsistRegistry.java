@@ -0,0 +1,220 @@
+package com.olinsdepot.mbus_srvc;
+
+/**
+ * Advanced consists the service has made up. Each unit of a consist is
+ * programmed with the consist address and its direction in the consist, (see
+ * DCCencoder.DCCconsist), after which one speed command to the consist
+ * address moves every unit. The throttle driving a consist is assigned the
+ * consist address in the DecoderRegistry like any decoder, (a consist address
+ * is a short address on the track, but has its own entry apart from the loco
+ * with that short address), so its speed steps, stops, refresh and restore
+ * after a reconnect are one packet for the whole consist instead of one per
+ * unit.
+ *
+ * Function keys aren't taken from the consist address unless the units have
+ * been set up for it, so they go to the consist's lead unit, (the first one
+ * added).
+ *
+ * Consists are found by address through an array, and the consist a unit is
+ * in through its registry entry. The registry is only used from the service's
+ * client message thread and is not synchronized.
+ *
+ * @author mhughes
+ *
+ */
+public class ConsistRegistry {
+
+	/* Highest consist address. */
+	public static final int MAX_ADDRESS = 127;
+
+	/**
+	 * One consist: its address, the registry entry its throttle drives and its
+	 * units in the order they were added.
+	 */
+	public static final class Consist {
+		private final int address;
+		private DecoderRegistry.Entry entry;
+		private DecoderRegistry.Entry[] units = new DecoderRegistry.Entry[4];
+		private boolean[] reversed = new boolean[4];
+		private int size = 0;
+
+		private Consist(int address) {
+			this.address = address;
+		}
+
+		/* Returns the consist address. */
+		public int address() {
+			return this.address;
+		}
+
+		/* Returns the registry entry for the consist address, null until a throttle drives it. */
+		public DecoderRegistry.Entry entry() {
+			return this.entry;
+		}
+
+		/* Returns the number of units in the consist. */
+		public int size() {
+			return this.size;
+		}
+
+		/* Returns unit i, 0 is the lead. */
+		public DecoderRegistry.Entry unit(int i) {
+			return this.units[i];
+		}
+
+		/* Returns true if unit i runs reversed in the consist. */
+		public boolean isReversed(int i) {
+			return this.reversed[i];
+		}
+
+		/*
+		 * Returns the speed step format to drive the consist with, the lowest of
+		 * its units, (a decoder that takes 126 steps also takes 28 and 14).
+		 */
+		public int spdSteps() {
+			int steps = 126;
+			for (int i = 0; i < size; i++) {
+				steps = Math.min(steps, units[i].encoder().getSpdSteps());
+			}
+			return steps;
+		}
+
+		private void add(DecoderRegistry.Entry unit, boolean rev) {
+			if (size == units.length) {
+				DecoderRegistry.Entry[] grownUnits = new DecoderRegistry.Entry[2 * size];
+				boolean[] grownRev = new boolean[2 * size];
+				System.arraycopy(units, 0, grownUnits, 0, size);
+				System.arraycopy(reversed, 0, grownRev, 0, size);
+				units = grownUnits;
+				reversed = grownRev;
+			}
+			units[size] = unit;
+			reversed[size] = rev;
+			size++;
+		}
+
+		private void setReversed(DecoderRegistry.Entry unit, boolean rev) {
+			for (int i = 0; i < size; i++) {
+				if (units[i] == unit) {
+					reversed[i] = rev;
+				}
+			}
+		}
+
+		private void remove(DecoderRegistry.Entry unit) {
+			for (int i = 0; i < size; i++) {
+				if (units[i] == unit) {
+					System.arraycopy(units, i + 1, units, i, size - i - 1);
+					System.arraycopy(reversed, i + 1, reversed, i, size - i - 1);
+					units[--size] = null;
+					return;
+				}
+			}
+		}
+	}
+
+	private final DecoderRegistry decoders;
+	private final Consist[] byAddress = new Consist[MAX_ADDRESS + 1];
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param decoders - the service's decoder registry, consist throttles are assigned there.
+	 */
+	public ConsistRegistry(DecoderRegistry decoders) {
+		this.decoders = decoders;
+	}
+
+	/**
+	 * Add a unit to a consist, making the consist if it is new, and assign the
+	 * consist address to a throttle. A unit already in another consist is
+	 * taken out of it first, one already in this consist just takes the new
+	 * direction. The caller sends the unit its consist command.
+	 *
+	 * @param throttle - throttle ID that drives the consist.
+	 * @param cnstAdr - consist address, 1 to MAX_ADDRESS.
+	 * @param unit - the unit's registry entry.
+	 * @param rev - true if the unit runs reversed in the consist.
+	 * @return the consist.
+	 * @throws IllegalArgumentException if the consist address is invalid.
+	 */
+	public Consist add(int throttle, int cnstAdr, DecoderRegistry.Entry unit, boolean rev) {
+		if (cnstAdr < 1 || cnstAdr > MAX_ADDRESS) {
+			throw new IllegalArgumentException("Invalid consist address " + cnstAdr);
+		}
+		Consist cnst = byAddress[cnstAdr];
+		if (cnst != null && unit.consist == cnstAdr) {
+			cnst.setReversed(unit, rev);
+		} else {
+			remove(unit);
+			if (cnst == null) {
+				cnst = new Consist(cnstAdr);
+				byAddress[cnstAdr] = cnst;
+			}
+			cnst.add(unit, rev);
+			unit.consist = cnstAdr;
+		}
+
+		/* The throttle drives the consist address, in a format every unit takes. */
+		DecoderRegistry.Entry thtl = decoders.forThrottle(throttle);
+		if (thtl != cnst.entry || thtl == null || thtl.encoder().getSpdSteps() != cnst.spdSteps()) {
+			cnst.entry = decoders.acquireConsist(throttle, cnstAdr, cnst.spdSteps());
+		}
+		return cnst;
+	}
+
+	/**
+	 * Take a unit out of its consist. A consist left with no units is dropped
+	 * and its throttle, if any, released. The caller sends the unit a consist
+	 * command with address 0.
+	 *
+	 * @param unit - the unit's registry entry.
+	 * @return the consist the unit was in, or null if it wasn't in one.
+	 */
+	public Consist remove(DecoderRegistry.Entry unit) {
+		if (unit.consist == 0) {
+			return null;
+		}
+		Consist cnst = byAddress[unit.consist];
+		unit.consist = 0;
+		if (cnst == null) {
+			return null;
+		}
+		cnst.remove(unit);
+		if (cnst.size == 0) {
+			byAddress[cnst.address] = null;
+			if (cnst.entry != null && cnst.entry.throttle() >= 0) {
+				decoders.release(cnst.entry.throttle());
+			}
+		}
+		return cnst;
+	}
+
+	/**
+	 * Return a consist.
+	 *
+	 * @param cnstAdr - consist address.
+	 * @return the consist, or null if there is none at the address.
+	 */
+	public Consist get(int cnstAdr) {
+		if (cnstAdr < 1 || cnstAdr > MAX_ADDRESS) {
+			return null;
+		}
+		return byAddress[cnstAdr];
+	}
+
+	/**
+	 * Return the decoder a throttle's function keys go to: the lead unit if the
+	 * throttle drives a consist, otherwise the throttle's own decoder.
+	 *
+	 * @param thtl - the registry entry assigned to the throttle.
+	 */
+	public DecoderRegistry.Entry functionsFor(DecoderRegistry.Entry thtl) {
+		Consist cnst = get(thtl.address());
+		if (cnst != null && cnst.entry == thtl && cnst.size > 0) {
+			return cnst.units[0];
+		}
+		return thtl;
+	}
+}
@@ -0,0 +1,256 @@
+package com.olinsdepot.mbus_srvc;
+
+import com.olinsdepot.mbus_proto.DCCencoder;
+
+/**
+ * Programming on the main: CV writes to decoders on the layout, (operations
+ * mode), one CV at a time or whole profiles such as a speed table, momentum
+ * or sound volumes for a fleet of decoders.
+ *
+ * Writes are pipelined. Up to a window of them are out to the command station
+ * at once, each sent as a frame with an ack and retired when its PONG arrives,
+ * (the command station has taken it for the track), so the next write goes out
+ * as soon as one is taken instead of after a fixed delay. A write that isn't
+ * acknowledged within the timeout, or is lost with the connection, is sent
+ * again, and counted as failed after maxTries sends. MorBus has no read back on
+ * the main, so an acknowledged write is one the command station sent, not one
+ * the decoder confirmed.
+ *
+ * Writes are added to a batch, which ends once every write in it is done or
+ * has failed; the next add starts a new batch. The tag sent with a write's
+ * frame holds its index in the batch and the batch number, so a late ack for a
+ * batch already ended is ignored.
+ *
+ * The programmer is only used from the service's client message thread and is
+ * not synchronized.
+ *
+ * @author mhughes
+ *
+ */
+public class CvProgrammer {
+
+	/* Write states. */
+	private static final byte WAITING = 0;
+	private static final byte SENT = 1;
+	private static final byte DONE = 2;
+	private static final byte FAILED = 3;
+
+	/* Tag layout: batch number above the write's index. */
+	private static final int INDEX_BITS = 20;
+	private static final int INDEX_MASK = (1 << INDEX_BITS) - 1;
+	private static final int BATCH_MASK = 0x7FF;
+
+	private final int window;
+	private final int maxTries;
+	private final long timeoutNanos;
+
+	/* The writes of the batch, in the order they were added. */
+	private DCCencoder[] encoders = new DCCencoder[64];
+	private int[] cvs = new int[64];
+	private int[] values = new int[64];
+	private byte[] states = new byte[64];
+	private byte[] tries = new byte[64];
+	private long[] sentAt = new long[64];
+	private int count = 0;
+
+	/* Writes before oldest are done or failed, writes from nextNew on have never been sent. */
+	private int oldest = 0;
+	private int nextNew = 0;
+	private int outstanding = 0;
+	private int done = 0;
+	private int failed = 0;
+	private int batch = 0;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param window - writes out to the command station at once.
+	 * @param maxTries - sends of a write before it is counted as failed.
+	 * @param timeoutMs - time a write may wait for its ack before it is sent again.
+	 */
+	public CvProgrammer(int window, int maxTries, int timeoutMs) {
+		this.window = Math.max(1, window);
+		this.maxTries = Math.max(1, Math.min(Byte.MAX_VALUE, maxTries));
+		this.timeoutNanos = timeoutMs * 1000000L;
+	}
+
+	/**
+	 * Add a CV write to the batch, starting a new batch if the last one ended.
+	 *
+	 * @param encoder - the decoder's encoder.
+	 * @param cv - CV number, 1 to DCCencoder.MAX_CV.
+	 * @param value - value to write, 0 to 255.
+	 * @throws IllegalArgumentException if the CV or value is invalid or the batch is full.
+	 */
+	public void add(DCCencoder encoder, int cv, int value) {
+		if (cv < 1 || cv > DCCencoder.MAX_CV || value < 0 || value > 0xFF) {
+			throw new IllegalArgumentException("Invalid CV " + cv + " = " + value);
+		}
+		if (count > 0 && !isBusy()) {
+			reset();
+		}
+		if (count > INDEX_MASK) {
+			throw new IllegalArgumentException("Too many CV writes");
+		}
+		if (count == cvs.length) {
+			grow();
+		}
+		encoders[count] = encoder;
+		cvs[count] = cv;
+		values[count] = value;
+		states[count] = WAITING;
+		tries[count] = 0;
+		count++;
+	}
+
+	/**
+	 * Pick the writes to send now: writes whose ack timed out, (or that failed
+	 * after their last try), then writes not sent yet, while the window has room.
+	 *
+	 * @param now - System.nanoTime().
+	 * @param tags - filled with the tags of the writes to send, see encode().
+	 * @return number of tags filled in.
+	 */
+	public int take(long now, int[] tags) {
+		int n = 0;
+
+		while (oldest < nextNew && states[oldest] >= DONE) {
+			oldest++;
+		}
+		for (int i = oldest; i < nextNew; i++) {
+			if (states[i] == SENT && now - sentAt[i] >= timeoutNanos) {
+				states[i] = WAITING;
+				outstanding--;
+			}
+			if (states[i] == WAITING && tries[i] >= maxTries) {
+				states[i] = FAILED;
+				failed++;
+			}
+		}
+		for (int i = oldest; i < nextNew && outstanding < window && n < tags.length; i++) {
+			if (states[i] == WAITING) {
+				tags[n++] = send(i, now);
+			}
+		}
+		while (nextNew < count && outstanding < window && n < tags.length) {
+			tags[n++] = send(nextNew++, now);
+		}
+		return n;
+	}
+
+	/**
+	 * Encode the CV write for a tag from take().
+	 *
+	 * @param tag - the write's tag.
+	 * @param buf - buffer to encode into, DCCencoder.MAX_CMD_LEN bytes from off.
+	 * @param off - index in buf of the first byte of the command.
+	 * @return number of bytes encoded.
+	 */
+	public int encode(int tag, byte[] buf, int off) {
+		int i = tag & INDEX_MASK;
+		return encoders[i].DCCcvWrite(cvs[i], values[i], buf, off);
+	}
+
+	/**
+	 * The command station took the frame of a write.
+	 *
+	 * @param tag - the write's tag.
+	 * @return true if the ack was for a write of this batch not already done.
+	 */
+	public boolean acked(int tag) {
+		int i = tag & INDEX_MASK;
+		if ((tag >>> INDEX_BITS) != batch || i >= nextNew || states[i] >= DONE) {
+			return false;
+		}
+		if (states[i] == SENT) {
+			outstanding--;
+		}
+		states[i] = DONE;
+		encoders[i] = null;
+		done++;
+		return true;
+	}
+
+	/**
+	 * The connection dropped. Writes out to the command station are sent again
+	 * once it is back, without counting the lost send as a try.
+	 */
+	public void linkLost() {
+		for (int i = oldest; i < nextNew; i++) {
+			if (states[i] == SENT) {
+				states[i] = WAITING;
+				tries[i]--;
+			}
+		}
+		outstanding = 0;
+	}
+
+	/**
+	 * Return true while the batch has writes that are neither done nor failed.
+	 */
+	public boolean isBusy() {
+		return done + failed < count;
+	}
+
+	/* Return the number of writes in the batch. */
+	public int total() {
+		return count;
+	}
+
+	/* Return the number of writes the command station took. */
+	public int done() {
+		return done;
+	}
+
+	/* Return the number of writes that failed every try. */
+	public int failed() {
+		return failed;
+	}
+
+
+	/* Mark a write sent and return its tag. */
+	private int send(int i, long now) {
+		states[i] = SENT;
+		tries[i]++;
+		sentAt[i] = now;
+		outstanding++;
+		return (batch << INDEX_BITS) | i;
+	}
+
+	/* Start a new batch. */
+	private void reset() {
+		for (int i = 0; i < count; i++) {
+			encoders[i] = null;
+		}
+		count = 0;
+		oldest = 0;
+		nextNew = 0;
+		outstanding = 0;
+		done = 0;
+		failed = 0;
+		batch = (batch + 1) & BATCH_MASK;
+	}
+
+	private void grow() {
+		int size = 2 * cvs.length;
+		DCCencoder[] grownEncoders = new DCCencoder[size];
+		System.arraycopy(encoders, 0, grownEncoders, 0, count);
+		encoders = grownEncoders;
+		int[] grownCvs = new int[size];
+		System.arraycopy(cvs, 0, grownCvs, 0, count);
+		cvs = grownCvs;
+		int[] grownValues = new int[size];
+		System.arraycopy(values, 0, grownValues, 0, count);
+		values = grownValues;
+		byte[] grownStates = new byte[size];
+		System.arraycopy(states, 0, grownStates, 0, count);
+		states = grownStates;
+		byte[] grownTries = new byte[size];
+		System.arraycopy(tries, 0, grownTries, 0, count);
+		tries = grownTries;
+		long[] grownSentAt = new long[size];
+		System.arraycopy(sentAt, 0, grownSentAt, 0, count);
+		sentAt = grownSentAt;
+	}
+}
@@ -0,0 +1,382 @@
+package com.olinsdepot.mbus_srvc;
+
+import com.olinsdepot.mbus_proto.DCCencoder;
+
+/**
+ * Registry of the decoders the service has encoders for, keyed by DCC address.
+ * A decoder stays registered after its throttle releases it, so acquiring it
+ * again reuses its encoder, (and speed step table), instead of building a new
+ * one. Each registered decoder has its own throttle slot for speed commands.
+ *
+ * Advanced consist addresses have their own entries, apart from decoders with
+ * the same short address, so driving a consist never takes a loco's throttle
+ * or encoder and releasing the loco never stops the consist.
+ *
+ * Decoders are found by address through an open addressing table of int keys,
+ * and by throttle through an array indexed by throttle ID, so neither lookup
+ * boxes or allocates. The registry is only used from the service's client
+ * message thread and is not synchronized.
+ *
+ * @author mhughes
+ *
+ */
+public class DecoderRegistry {
+
+	private static final int DEFAULT_CAPACITY = 64;
+	private static final int NO_THROTTLE = -1;
+
+	/*
+	 * Key type of consist addresses. A consist address is sent as a short
+	 * address, but is kept apart from the decoder at the same short address.
+	 */
+	private static final int CNST_KEY_TYPE = 0xFF;
+	private static final int SHORT_ADR_TYPE = 0;
+
+	/**
+	 * A registered decoder: its encoder, speed command slot and the throttle it
+	 * is assigned to, if any.
+	 */
+	public static final class Entry {
+		private final int key;
+		private DCCencoder encoder;
+		private final ThrottleSlot slot = new ThrottleSlot();
+		private int throttle = NO_THROTTLE;
+
+		/* Last speed step the throttle set, restored after a reconnect. */
+		int lastSpeed;
+
+		/* Consist address the decoder is in, 0 if none. Kept by the ConsistRegistry. */
+		int consist;
+
+		/* Refresh state, kept by the RefreshScheduler. */
+		int speed;
+		int boost;
+		int ringIndex = -1;
+		long pickedAt = -1;
+
+		private Entry(int key, DCCencoder encoder) {
+			this.key = key;
+			this.encoder = encoder;
+		}
+
+		/* Returns the encoder for this decoder. */
+		public DCCencoder encoder() {
+			return this.encoder;
+		}
+
+		/* Returns the speed command slot for this decoder. */
+		public ThrottleSlot slot() {
+			return this.slot;
+		}
+
+		/* Returns the DCC address of this decoder. */
+		public int address() {
+			return this.key & 0xFFFF;
+		}
+
+		/* Returns the throttle this decoder is assigned to, or -1 if none. */
+		public int throttle() {
+			return this.throttle;
+		}
+
+		/* Returns the last speed step set for this decoder, 0 after a stop. */
+		public int lastSpeed() {
+			return this.lastSpeed;
+		}
+
+		/* Returns the speed step being refreshed for this decoder, 0 if stopped. */
+		public int speed() {
+			return this.speed;
+		}
+	}
+
+	/* Open addressing table, keys are address type and address, see keyOf. */
+	private int[] keys;
+	private Entry[] entries;
+	private int size;
+
+	/* Decoder assigned to each throttle. */
+	private Entry[] byThrottle = new Entry[4];
+
+	/* Client side refresh schedule, if the service refreshes speeds. */
+	private RefreshScheduler refresh = null;
+
+	/* Command station repetition applied to every encoder. */
+	private int repCnt = DCCencoder.DEFAULT_REP_CNT;
+	private boolean repForever = true;
+
+
+	/**
+	 * Constructor: empty registry sized for the default number of decoders.
+	 */
+	public DecoderRegistry() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param capacity - number of decoders expected, the registry grows past it if needed.
+	 */
+	public DecoderRegistry(int capacity) {
+		int tableSize = 8;
+		while (tableSize < 2 * capacity) {
+			tableSize <<= 1;
+		}
+		this.keys = new int[tableSize];
+		this.entries = new Entry[tableSize];
+		this.size = 0;
+	}
+
+	/**
+	 * Assign a decoder to a throttle, registering it if it is new. A decoder
+	 * already registered keeps its encoder unless its speed step format changed,
+	 * its function keys are set to the state passed. Any decoder the throttle
+	 * had is released first.
+	 *
+	 * @param throttle - throttle ID, 0 or more.
+	 * @param adr - DCC address.
+	 * @param adrType - address type, see DCCencoder.
+	 * @param spdSteps - speed step format, 14, 28 or 126.
+	 * @param keyStates - function key states.
+	 * @return the decoder's entry.
+	 * @throws IllegalArgumentException if the address type or speed step format is unknown.
+	 */
+	public Entry acquire(int throttle, int adr, int adrType, int spdSteps, int keyStates) {
+		return assign(throttle, register(adr, adrType, spdSteps, keyStates));
+	}
+
+	/**
+	 * Assign an advanced consist address to a throttle, registering it if it is
+	 * new. Kept apart from the decoder at the same short address. Any decoder
+	 * the throttle had is released first.
+	 *
+	 * @param throttle - throttle ID, 0 or more.
+	 * @param cnstAdr - consist address.
+	 * @param spdSteps - speed step format, 14, 28 or 126.
+	 * @return the consist address's entry.
+	 * @throws IllegalArgumentException if the speed step format is unknown.
+	 */
+	public Entry acquireConsist(int throttle, int cnstAdr, int spdSteps) {
+		return assign(throttle, register(keyOf(cnstAdr, CNST_KEY_TYPE), cnstAdr, SHORT_ADR_TYPE, spdSteps, 0));
+	}
+
+	/**
+	 * Register a decoder without assigning it to a throttle, (e.g. a unit of a
+	 * consist, which is driven through the consist address). A decoder already
+	 * registered keeps its encoder unless its speed step format changed, its
+	 * function keys are set to the state passed.
+	 *
+	 * @param adr - DCC address.
+	 * @param adrType - address type, see DCCencoder.
+	 * @param spdSteps - speed step format, 14, 28 or 126.
+	 * @param keyStates - function key states.
+	 * @return the decoder's entry.
+	 * @throws IllegalArgumentException if the address type or speed step format is unknown.
+	 */
+	public Entry register(int adr, int adrType, int spdSteps, int keyStates) {
+		return register(keyOf(adr, adrType), adr, adrType, spdSteps, keyStates);
+	}
+
+	/**
+	 * Release the decoder assigned to a throttle. The decoder stays registered,
+	 * any speed command waiting in its slot is discarded and it is taken out of
+	 * the refresh schedule. This is also how a decoder is released when another
+	 * throttle acquires it or its consist is dropped.
+	 *
+	 * @param throttle - throttle ID.
+	 */
+	public void release(int throttle) {
+		Entry entry = forThrottle(throttle);
+		if (entry != null) {
+			entry.slot.clear();
+			if (refresh != null) {
+				refresh.stopped(entry);
+			}
+			entry.throttle = NO_THROTTLE;
+			byThrottle[throttle] = null;
+		}
+	}
+
+	/**
+	 * Return the decoder assigned to a throttle.
+	 *
+	 * @param throttle - throttle ID.
+	 * @return the decoder's entry, or null if the throttle has none.
+	 */
+	public Entry forThrottle(int throttle) {
+		if (throttle < 0 || throttle >= byThrottle.length) {
+			return null;
+		}
+		return byThrottle[throttle];
+	}
+
+	/**
+	 * Return one more than the highest throttle ID that may have a decoder, for
+	 * walking the assigned decoders with forThrottle.
+	 */
+	public int throttles() {
+		return byThrottle.length;
+	}
+
+	/**
+	 * Return a registered decoder.
+	 *
+	 * @param adr - DCC address.
+	 * @param adrType - address type.
+	 * @return the decoder's entry, or null if it isn't registered.
+	 */
+	public Entry get(int adr, int adrType) {
+		return find(keyOf(adr, adrType));
+	}
+
+	/**
+	 * Return the number of registered decoders.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Set how the command station repeats the commands of every decoder,
+	 * registered now or later. See DCCencoder.setRepeat.
+	 *
+	 * @param count - number of times each command is sent.
+	 * @param forever - true to have moving speed steps repeated until replaced.
+	 */
+	public void setRepeat(int count, boolean forever) {
+		if (count == this.repCnt && forever == this.repForever) {
+			return;
+		}
+		this.repCnt = count;
+		this.repForever = forever;
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i] != null) {
+				entries[i].encoder.setRepeat(count, forever);
+			}
+		}
+	}
+
+	/**
+	 * Set the refresh schedule released decoders are taken out of. Every
+	 * decoder's refresh state is reset, so nothing carries over from the
+	 * schedule being replaced.
+	 *
+	 * @param refresh - the schedule, or null if the command station refreshes speeds.
+	 */
+	public void setRefresh(RefreshScheduler refresh) {
+		if (this.refresh != null) {
+			this.refresh.clear();
+		}
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i] != null) {
+				entries[i].speed = 0;
+				entries[i].boost = 0;
+				entries[i].ringIndex = -1;
+			}
+		}
+		this.refresh = refresh;
+	}
+
+	/**
+	 * Discard the speed commands waiting in every decoder's slot, (e.g. an
+	 * emergency stop or a new connection to the server).
+	 */
+	public void clearSlots() {
+		for (int i = 0; i < entries.length; i++) {
+			if (entries[i] != null) {
+				entries[i].slot.clear();
+			}
+		}
+	}
+
+
+	/* Assign a registered entry to a throttle, a decoder is driven by one throttle at a time. */
+	private Entry assign(int throttle, Entry entry) {
+		if (entry.throttle != NO_THROTTLE && entry.throttle != throttle) {
+			release(entry.throttle);
+		}
+		release(throttle);
+
+		if (throttle >= byThrottle.length) {
+			Entry[] grown = new Entry[Math.max(throttle + 1, 2 * byThrottle.length)];
+			System.arraycopy(byThrottle, 0, grown, 0, byThrottle.length);
+			byThrottle = grown;
+		}
+		byThrottle[throttle] = entry;
+		entry.throttle = throttle;
+		return entry;
+	}
+
+	/* Find or add the entry for a key, with an encoder for the address and type given. */
+	private Entry register(int key, int adr, int adrType, int spdSteps, int keyStates) {
+		Entry entry = find(key);
+
+		if (entry == null) {
+			entry = new Entry(key, newEncoder(adr, adrType, spdSteps, keyStates));
+			insert(entry);
+		} else if (entry.encoder.getSpdSteps() != spdSteps) {
+			entry.encoder = newEncoder(adr, adrType, spdSteps, keyStates);
+		} else {
+			entry.encoder.setKeyStates(keyStates);
+		}
+		return entry;
+	}
+
+	/* Build an encoder with the registry's repetition setting. */
+	private DCCencoder newEncoder(int adr, int adrType, int spdSteps, int keyStates) {
+		DCCencoder encoder = new DCCencoder(adr, adrType, spdSteps, keyStates);
+		if (repCnt != DCCencoder.DEFAULT_REP_CNT || !repForever) {
+			encoder.setRepeat(repCnt, repForever);
+		}
+		return encoder;
+	}
+
+	/* Short and long address 3 are different decoders, so the type is part of the key. */
+	private static int keyOf(int adr, int adrType) {
+		return (adrType << 16) | (adr & 0xFFFF);
+	}
+
+	/* Spread keys over the table, addresses are often consecutive. */
+	private int indexOf(int key) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (keys.length - 1);
+	}
+
+	private Entry find(int key) {
+		int i = indexOf(key);
+		while (entries[i] != null) {
+			if (keys[i] == key) {
+				return entries[i];
+			}
+			i = (i + 1) & (keys.length - 1);
+		}
+		return null;
+	}
+
+	private void insert(Entry entry) {
+		if (2 * (size + 1) > keys.length) {
+			grow();
+		}
+		int i = indexOf(entry.key);
+		while (entries[i] != null) {
+			i = (i + 1) & (keys.length - 1);
+		}
+		keys[i] = entry.key;
+		entries[i] = entry;
+		size++;
+	}
+
+	/* Double the table, keeping the load under one half. */
+	private void grow() {
+		Entry[] old = entries;
+		keys = new int[2 * old.length];
+		entries = new Entry[2 * old.length];
+		size = 0;
+		for (int i = 0; i < old.length; i++) {
+			if (old[i] != null) {
+				insert(old[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package com.olinsdepot.mbus_srvc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with microsecond buckets laid out the way HdrHistogram does
+ * it. Each power of two is split into SUB_BUCKETS equal buckets, so a bucket is
+ * never wider than an eighth of the values in it and percentiles are within
+ * 12.5% of the true value whether they are 50 us or 5 s. Samples under
+ * SUB_BUCKETS us are counted exactly. The last bucket collects everything over
+ * 2^MAX_EXP us, (about 1 minute).
+ * Recording is lock free so it can be done on the send and receive threads
+ * while another thread reads the results.
+ *
+ * @author mhughes
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_EXP = 26;
+	private static final int BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * Record one sample.
+	 *
+	 * @param nanos - latency in nanoseconds.
+	 */
+	public void record(long nanos) {
+		buckets.incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+		count.incrementAndGet();
+
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	/**
+	 * Return the number of samples recorded.
+	 */
+	public long count() {
+		return count.get();
+	}
+
+	/**
+	 * Return the largest sample recorded, in nanoseconds.
+	 */
+	public long max() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * Return the highest value in the bucket holding the given percentile,
+	 * limited to the largest sample.
+	 *
+	 * @param pct - percentile from 0 to 100.
+	 * @return latency in microseconds, or 0 if nothing was recorded.
+	 */
+	public long percentile(double pct) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(total * pct / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= target) {
+				return Math.min(upperBound(i), max() / 1000);
+			}
+		}
+		return max() / 1000;
+	}
+
+	/**
+	 * Discard all samples.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		maxNanos.set(0);
+	}
+
+	/* Return the bucket for a value in microseconds. */
+	private static int bucket(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(micros);
+		if (exp > MAX_EXP) {
+			return BUCKETS - 1;
+		}
+		int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/* Return the highest value in microseconds that falls in a bucket. */
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		} else if (bucket == BUCKETS - 1) {
+			/* Everything over 2^MAX_EXP us. */
+			return Long.MAX_VALUE;
+		}
+		int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		int sub = bucket % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * Summary of the histogram for logging.
+	 */
+	@Override
+	public String toString() {
+		return "n=" + count() +
+				" p50<=" + percentile(50) + "us" +
+				" p99<=" + percentile(99) + "us" +
+				" max=" + (max() / 1000) + "us";
+	}
+}
@@ -0,0 +1,214 @@
+package com.olinsdepot.mbus_srvc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Liveness and round trip time of the connection to the server.
+ *
+ * Every frame is followed by a PING, the transmit queue reports the time from
+ * writing each PING to its PONG, so the round trip time is measured all the
+ * time traffic flows. The smoothed time and its jitter, (mean deviation), are
+ * kept the way TCP keeps its retransmit estimate, (RFC 6298), so one slow PONG
+ * moves them by an eighth and a quarter of the difference.
+ *
+ * When nothing has been sent for the heartbeat interval the transport sends a
+ * keep alive, whose PING both keeps the server's session alive and gives a
+ * sample on a quiet link. If a PING is waiting for its PONG and nothing at all
+ * has been received for the liveness deadline, the connection is half open,
+ * (e.g. the server lost power or the WiFi dropped without a reset), and the
+ * transport closes it so it can be reconnected.
+ *
+ * With a metrics registry every round trip time is recorded in link.rtt and
+ * the smoothed time and jitter are kept in the link.srtt and link.jitter
+ * gauges, in microseconds.
+ *
+ * The transport's threads all use the monitor, its methods are synchronized.
+ *
+ * @author mhughes
+ *
+ */
+public class LinkMonitor {
+
+	/**
+	 * What the transport should do, from poll.
+	 */
+	public static enum Action {
+		NONE,		/* Nothing due. */
+		HEARTBEAT,	/* Link quiet, send a keep alive. */
+		DEAD		/* No response within the deadline, close the connection. */
+	}
+
+	private final long heartbeat;
+	private final long deadline;
+
+	private long lastSent;
+	private long lastRcvd;
+	private boolean awaiting = false;
+
+	/* Round trip estimate, nanoseconds, valid once samples > 0. */
+	private long srtt;
+	private long rttVar;
+	private long lastRtt;
+	private long minRtt = Long.MAX_VALUE;
+	private long maxRtt;
+	private long samples;
+
+	private LatencyHistogram rttHistogram;
+	private MetricsRegistry.Gauge srttGauge;
+	private MetricsRegistry.Gauge jitterGauge;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param heartbeatMs - quiet time before a keep alive is sent.
+	 * @param livenessMs - time without any response, while a PING is waiting, before the link is dead.
+	 */
+	public LinkMonitor(int heartbeatMs, int livenessMs) {
+		this.deadline = TimeUnit.MILLISECONDS.toNanos(Math.max(1, livenessMs));
+
+		/* A quiet link must have a PING out well before the deadline passes. */
+		this.heartbeat = Math.min(TimeUnit.MILLISECONDS.toNanos(Math.max(1, heartbeatMs)), deadline / 2);
+
+		long now = System.nanoTime();
+		this.lastSent = now;
+		this.lastRcvd = now;
+	}
+
+	/**
+	 * Report round trip times to a metrics registry.
+	 *
+	 * @param registry - metrics registry, or null for none.
+	 */
+	public synchronized void setMetrics(MetricsRegistry registry) {
+		if (registry != null) {
+			rttHistogram = registry.histogram("link.rtt");
+			srttGauge = registry.gauge("link.srtt");
+			jitterGauge = registry.gauge("link.jitter");
+		}
+	}
+
+	/**
+	 * Frames were written to the server.
+	 *
+	 * @param now - System.nanoTime() of the write.
+	 */
+	public synchronized void sent(long now) {
+		lastSent = now;
+	}
+
+	/**
+	 * Bytes were received from the server.
+	 *
+	 * @param now - System.nanoTime() of the read.
+	 */
+	public synchronized void received(long now) {
+		lastRcvd = now;
+	}
+
+	/**
+	 * A PONG arrived.
+	 *
+	 * @param rtt - time from writing its PING, nanoseconds.
+	 * @param stillAwaiting - true if other PINGs are still waiting for their PONG.
+	 */
+	public synchronized void pong(long rtt, boolean stillAwaiting) {
+		awaiting = stillAwaiting;
+		lastRtt = rtt;
+		minRtt = Math.min(minRtt, rtt);
+		maxRtt = Math.max(maxRtt, rtt);
+		if (samples++ == 0) {
+			srtt = rtt;
+			rttVar = rtt / 2;
+		} else {
+			rttVar += (Math.abs(srtt - rtt) - rttVar) / 4;
+			srtt += (rtt - srtt) / 8;
+		}
+		if (rttHistogram != null) {
+			rttHistogram.record(rtt);
+			srttGauge.set(srtt / 1000);
+			jitterGauge.set(rttVar / 1000);
+		}
+	}
+
+	/**
+	 * A PING was written and is waiting for its PONG.
+	 */
+	public synchronized void pinged() {
+		awaiting = true;
+	}
+
+	/**
+	 * Return what is due now.
+	 *
+	 * @param now - System.nanoTime().
+	 */
+	public synchronized Action poll(long now) {
+		if (awaiting && now - lastRcvd >= deadline) {
+			return Action.DEAD;
+		}
+		if (now - lastSent >= heartbeat) {
+			/* Counts as sent so one keep alive goes out per quiet interval. */
+			lastSent = now;
+			return Action.HEARTBEAT;
+		}
+		return Action.NONE;
+	}
+
+	/**
+	 * Return the nanoseconds until poll could next return something other than NONE.
+	 *
+	 * @param now - System.nanoTime().
+	 */
+	public synchronized long untilDue(long now) {
+		long due = lastSent + heartbeat;
+		if (awaiting && lastRcvd + deadline - due < 0) {
+			due = lastRcvd + deadline;
+		}
+		return Math.max(0, due - now);
+	}
+
+	/**
+	 * Return the liveness deadline in milliseconds.
+	 */
+	public long deadlineMs() {
+		return TimeUnit.NANOSECONDS.toMillis(deadline);
+	}
+
+	/**
+	 * Return the smoothed round trip time in nanoseconds, 0 before the first sample.
+	 */
+	public synchronized long srtt() {
+		return srtt;
+	}
+
+	/**
+	 * Return the round trip time's mean deviation in nanoseconds.
+	 */
+	public synchronized long jitter() {
+		return rttVar;
+	}
+
+	/**
+	 * Return the latest round trip time in nanoseconds.
+	 */
+	public synchronized long lastRtt() {
+		return lastRtt;
+	}
+
+	/**
+	 * Return the number of round trip samples.
+	 */
+	public synchronized long samples() {
+		return samples;
+	}
+
+	@Override
+	public synchronized String toString() {
+		if (samples == 0) {
+			return "no RTT samples";
+		}
+		return String.format("rtt %.0f us, jitter %.0f us, min %.0f us, max %.0f us, %d samples",
+				srtt / 1e3, rttVar / 1e3, minRtt / 1e3, maxRtt / 1e3, samples);
+	}
+}
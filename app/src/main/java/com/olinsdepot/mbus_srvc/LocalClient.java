@@ -0,0 +1,111 @@
+package com.olinsdepot.mbus_srvc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+
+
+/**
+ * Fast path to the MorBus service for a client in the service's process. The
+ * client's commands go through a CommandRing to the service's client thread
+ * instead of a Messenger, so a throttle move costs no Message, and at most one
+ * hand off to the service's thread for a burst of them. The service queues
+ * them straight to the transport from there.
+ *
+ * Commands are the same MbusSrvcCmd codes and arguments as on the Messenger,
+ * except for SRVR_CNCT, which needs the client's Messenger for the replies and
+ * is only taken from the Messenger. Remote clients use the Messenger as before.
+ *
+ * All commands must be sent from one thread, (the client's main thread). A
+ * command that doesn't fit in the ring is posted to the service's thread
+ * instead, behind the commands already in the ring, and every command after
+ * it is posted too until the posted ones have all run. So a command never
+ * overtakes an earlier one, (e.g. a stop is never run before a speed step
+ * sent ahead of it).
+ *
+ * @author mhughes
+ *
+ */
+public class LocalClient {
+
+	private final CommandRing ring;
+	private final Handler handler;
+	private final CommandRing.Consumer consumer;
+
+	/* Commands posted to the service's thread that haven't run yet. */
+	private final AtomicInteger posted = new AtomicInteger();
+
+	/* Drains the ring on the service's thread until it stays empty. */
+	private final Runnable drainTask = new Runnable() {
+		public void run() {
+			do {
+				ring.drain(consumer);
+			} while (!ring.park());
+		}
+	};
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param handler - handler of the service thread commands are run on.
+	 * @param consumer - runs each command on that thread.
+	 * @param capacity - number of commands the ring holds.
+	 */
+	public LocalClient(Handler handler, CommandRing.Consumer consumer, int capacity) {
+		this.ring = new CommandRing(capacity);
+		this.handler = handler;
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Send a command to the service.
+	 *
+	 * @param what - MbusSrvcCmd code.
+	 * @param arg1 - ARG1 of the command.
+	 * @param arg2 - ARG2 of the command.
+	 * @param obj - OBJ of the command, or null.
+	 */
+	public void send(int what, int arg1, int arg2, Object obj) {
+		if (posted.get() == 0) {
+			switch (ring.offer(what, arg1, arg2, obj)) {
+			case 1:
+				handler.post(drainTask);
+				return;
+			case 0:
+				return;
+			default:
+				break;
+			}
+		}
+
+		/* Ring full, or commands already posted that this one must follow. */
+		posted.incrementAndGet();
+		handler.post(new Posted(what, arg1, arg2, obj));
+	}
+
+
+	/*
+	 * A command that went round the ring. Whatever is still in the ring was
+	 * sent before it, so is run first.
+	 */
+	private final class Posted implements Runnable {
+		private final int what;
+		private final int arg1;
+		private final int arg2;
+		private final Object obj;
+
+		Posted(int what, int arg1, int arg2, Object obj) {
+			this.what = what;
+			this.arg1 = arg1;
+			this.arg2 = arg2;
+			this.obj = obj;
+		}
+
+		public void run() {
+			ring.drain(consumer);
+			consumer.command(what, arg1, arg2, obj);
+			posted.decrementAndGet();
+		}
+	}
+}
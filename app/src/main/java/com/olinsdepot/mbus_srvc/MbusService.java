@@ -14,13 +14,17 @@ import android.os.RemoteException;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.Socket;
-import java.net.UnknownHostException;
 
+import com.olinsdepot.mbus_proto.DCCencoder;
+import com.olinsdepot.mbus_proto.DCCfunctionkeys;
+import com.olinsdepot.mbus_proto.MorBus.*;
 import com.olinsdepot.mbus_srvc.CommsThread.*;
 import com.olinsdepot.od_traction.MainActivity.*;
 
@@ -59,6 +63,12 @@ public class MbusService extends Service {
 		DCC_THTL_STEP,
 		DCC_HARD_STOP,
 		DCC_FUNC_KEY,
+		SRVR_METRICS,
+		SRVR_TRACE,
+		DCC_CNST_ADD,
+		DCC_CNST_RMV,
+		DCC_FUNC_SET,
+		DCC_CV_WRITE,
 		UNKNOWN;
 		
 		/* Returns the code for this MorBus Service command */
@@ -85,6 +95,9 @@ public class MbusService extends Service {
 		SRVR_PWR_IS,
 		DCC_DCDR_ACQD,
 		DCC_DCDR_RLSD,
+		SRVR_METRICS,
+		SRVR_TRACE_DUMP,
+		DCC_CV_PROGRESS,
 		UNKNOWN;
 
 		/* Return the code for this MorBus Service event. */
@@ -103,91 +116,6 @@ public class MbusService extends Service {
 		
 	}
 	
-	/**
-	 * Morbus byte stream commands
-	 */
-	private static enum MbusStrCmd {
-		OFF		(64),
-		STOP	(65),
-		ON		(66),
-		ONOFF	(67),
-		MVAL	(68),
-		DCC		(69);
-		/* Constructor */
-		private final int strop;
-		private MbusStrCmd(int op) {
-			this.strop = op;
-		}
-		
-		/* Returns the code for this Mbus stream command. */
-		public int toCode() {
-			return this.strop;
-		}
-	}
-	
-	/**
-	 * Morbus byte stream responses
-	 */
-	private static enum MbusStrRsp {
-		ONOFF	(64),
-		MVAL	(65),
-		SHORT	(66);
-		
-		/* Constructor */
-		private final int strrsp;
-		private MbusStrRsp(int rsp) {
-			this.strrsp = rsp;
-		}
-		
-		/* Returns the code for this Mbus stream response. */
-		public int toCode() {
-			return this.strrsp;
-		}
-	}
-	
-	/**
-	 * MorBUS broadcast frames
-	 */
-	private static enum MbusBcstOp {
-		OFF		(0),
-		STOP	(1),
-		ON		(2),
-		DCC		(3),
-		DCCRES	(4);
-		
-		/* Constructor */
-		private final int bcstop;
-		private MbusBcstOp(int op) {
-			this.bcstop = op;
-		}
-		
-		/* Returns the code for this Mbus broadcast operation. */
-		public int toCode() {
-			return this.bcstop;
-		}
-	}
-	
-	/**
-	 * MorBUS node-specific extended frames
-	 */
-	private static enum MbusNodeOp {
-		DCCINIT	(0),
-		DCC		(1),
-		DCCRES	(2);
-		
-		/* Constructor */
-		private final int  nodeop;
-		private MbusNodeOp(int op) {
-			this.nodeop = op;
-		}
-		
-		/* Returns the code for this Mbus node-specific operation. */
-		public int toCode() {
-			return this.nodeop;
-		}
-	}
-
-
 	/*
 	 * Thread to handle the upward interface to Main thread. It receives commands
 	 * on the SrvcFmClient messenger queue and sends responses to the SrvcToClient
@@ -199,18 +127,60 @@ public class MbusService extends Service {
 	private static Messenger mSrvcFmClientMsgr;
 	private static Messenger mSrvcToClientMsgr;
 	
+	/*
+	 * Fast path for a client in this process. Its commands come through a ring
+	 * to the client message thread instead of the SrvcFmClient messenger.
+	 */
+	private static LocalClient mLocalClient;
+	private static final int LOCAL_RING_SIZE = 64;
+	
+	// SRVR_TRACE arguments.
+	public static final int TRACE_OFF = 0;
+	public static final int TRACE_ON = 1;
+	public static final int TRACE_DUMP = 2;
+	
 	/* 
 	 * Thread to handle the downward interface to the EmCAN Comms. Responses from
 	 * the Comms thread are received on the CommsToSrvc message queue. EmCAN transactions
-	 * are sent to the Comms thread via the SrvcToComms messenger queue. 
+	 * are queued to the current transport directly, (its transmit queue is thread safe).
 	 */
-	private CommsThread mCommsThread;
-	protected static Handler mSrvcFmCommsHandler = new CommsMsgHandler();
-	private static Messenger mSrvcToCommsMsgr;
+	protected static Handler mSrvcFmCommsHandler;
+	
+	// Connects to the server and reconnects when the connection drops. Its link
+	// monitor has the round trip time and jitter of the current connection.
+	private ConnectionManager mConnMgr;
 
 	
-	// Registered decoders for throttle commands
-	private DCCencoder regDecoders[];
+	// Counters, gauges and latency histograms of the service and its transport,
+	// published to the client every mMetricsMs while it asks for them.
+	private final MetricsRegistry mMetrics = new MetricsRegistry();
+	private int mMetricsMs;
+	
+	// Registered decoders, by DCC address and by throttle. Kept across reconnects.
+	private final DecoderRegistry mDecoders = new DecoderRegistry();
+	
+	// Advanced consists, each driven by one throttle through its consist address.
+	private final ConsistRegistry mConsists = new ConsistRegistry(mDecoders);
+	
+	// Client side speed refresh, null when the command station refreshes.
+	private RefreshScheduler mRefresh;
+	private int mRefreshMs;
+	private static final int REFRESH_PER_TICK = 2;
+	private static final int REFRESH_BOOST_TICKS = 3;
+	
+	// Programming on the main, CV writes pipelined through the transport.
+	private static final int CV_WINDOW = 2;
+	private static final int CV_TRIES = 3;
+	private static final int CV_TIMEOUT_MS = 2000;
+	private static final int CV_TICK_MS = 200;
+	
+	/*
+	 * What of the message a CV write's ack is handed to the client message thread
+	 * in. Outside the range of client commands, so a client can't send it and it
+	 * isn't counted as one.
+	 */
+	private static final int CV_ACKED = 0x10000;
+	private final CvProgrammer mCvProg = new CvProgrammer(CV_WINDOW, CV_TRIES, CV_TIMEOUT_MS);
 
 
 	/*
@@ -227,8 +197,14 @@ public class MbusService extends Service {
 		mClientMsgHandlerThread = new HandlerThread("MBusSrvcMgr", Process.THREAD_PRIORITY_BACKGROUND);
 		mClientMsgHandlerThread.start();
 		mClientMsgHandlerLooper = mClientMsgHandlerThread.getLooper();
-		mClientMsgHandler = new ClientMsgHandler(mClientMsgHandlerLooper);
+		ClientMsgHandler clientHandler = new ClientMsgHandler(mClientMsgHandlerLooper);
+		mClientMsgHandler = clientHandler;
 		mSrvcFmClientMsgr = new Messenger(mClientMsgHandler);
+		mLocalClient = new LocalClient(mClientMsgHandler, clientHandler, LOCAL_RING_SIZE);
+		
+		/* Comms events and the connection manager run on the same thread as client commands. */
+		mSrvcFmCommsHandler = new CommsMsgHandler(mClientMsgHandlerLooper);
+		mConnMgr = new ConnectionManager(mClientMsgHandler, clientHandler);
 		
 	}
 	
@@ -245,6 +221,16 @@ public class MbusService extends Service {
 	}
 	
 	
+	/**
+	 * Return the fast path for a client running in the service's process, or
+	 * null if the service hasn't been created in this process. Remote clients
+	 * use the Messenger from the binder.
+	 */
+	public static LocalClient localClient() {
+		return mLocalClient;
+	}
+	
+	
 	/**
 	 *  MorBus service unexpectedly shutdown.
 	 */
@@ -255,6 +241,7 @@ public class MbusService extends Service {
 		msg.what = MbusSrvcEvt.SRVR_DSCNCTD.toCode();
 		mClientMsgHandler.sendMessage(msg);
 
+		mLocalClient = null;
 		super.onDestroy();
 	}
 
@@ -270,9 +257,34 @@ public class MbusService extends Service {
 	 *  
 	 *  @param msg - Message containing request type and ip address of server.
 	 */
-	private final class ClientMsgHandler extends Handler {
+	private final class ClientMsgHandler extends Handler
+			implements ConnectionManager.Listener, CommandRing.Consumer, TxQueue.Ack {
 		private final String TAG = this.getClass().getSimpleName();
 		private static final boolean L = true;
+		
+		/* Scratch buffer speed steps are encoded into. */
+		private final byte[] dccBuf = new byte[DCCencoder.MAX_CMD_LEN];
+		
+		/* Decoders picked for each refresh tick. */
+		private DecoderRegistry.Entry[] refreshBatch;
+		
+		/* CV writes picked to send, and the progress last reported to the client. */
+		private final int[] cvTags = new int[CV_WINDOW];
+		private int cvReported = -1;
+		private boolean cvTicking = false;
+		
+		/* True while the server connection is up. */
+		private boolean linkUp = false;
+		
+		/* Service metrics. */
+		private final MetricsRegistry.Counter cmdsIn = mMetrics.counter("srvc.cmds");
+		private final MetricsRegistry.Counter cmdsDropped = mMetrics.counter("srvc.dropped");
+		private final MetricsRegistry.Counter linksLost = mMetrics.counter("link.lost");
+		private final MetricsRegistry.Gauge linkGauge = mMetrics.gauge("link.up");
+		
+		/* Counter values at the last publish, for rates. */
+		private final HashMap<String, Long> lastCounts = new HashMap<String, Long>();
+		private long lastPublish;
 	
 		public ClientMsgHandler(Looper looper) {
 			super(looper);
@@ -280,104 +292,128 @@ public class MbusService extends Service {
 		
 		@Override
 		public void handleMessage(Message msg) {
-			if (L) Log.i(TAG,"MBUS Client Msg Hdlr msg = " + msg.what);
+			if (msg.what == CV_ACKED) {
+				cvAcked(msg.arg1);
+			} else {
+				command(msg.what, msg.arg1, msg.arg2, msg.obj, msg.replyTo);
+			}
+		}
+		
+		/**
+		 * A command from the client's fast path, see LocalClient. Runs on this
+		 * handler's thread, the same as the Messenger's commands.
+		 */
+		public void command(int what, int arg1, int arg2, Object obj) {
+			command(what, arg1, arg2, obj, null);
+		}
+		
+		/* Run a client command, from the Messenger or the fast path, (replyTo null). */
+		private void command(int what, int arg1, int arg2, Object obj, Messenger replyTo) {
+			Trace.event(Trace.Stage.SRVC_CMD, arg1, what, arg2);
+			cmdsIn.inc();
 			
-			Message mCommsMsg;
+			DecoderRegistry.Entry thtlDcdr;
 		
 			/* Dispatch the incoming message based on 'what'. */
-			switch (MbusSrvcCmd.fromCode(msg.what)) {
+			switch (MbusSrvcCmd.fromCode(what)) {
 			
 			/* Connect to the server. */
 			case SRVR_CNCT:
 				/* Get IP information for the target server. */
-				Bundle mSrvrIP = (Bundle)msg.obj;
+				Bundle mSrvrIP = (Bundle)obj;
 				
-				/* Register the Client's handler for messages from the service. */
-				mSrvcToClientMsgr = msg.replyTo;
+				/* Register the Client's handler for messages from the service, (only the Messenger has one). */
+				if (replyTo != null) {
+					mSrvcToClientMsgr = replyTo;
+				}
 	
-				/* Extract IP info and create a socket. Start Comms Thread on new Socket. */
+				/*
+				 * Extract IP info and the transport settings and have the connection
+				 * manager connect, (off this thread), and keep the connection up.
+				 */
 				String mAddr = mSrvrIP.getString("IP_ADR");
 				int mPort = Integer.parseInt(mSrvrIP.getString("IP_PORT"));
+				CommsConfig mConfig = new CommsConfig()
+						.setTxWindow(mSrvrIP.getInt("TX_WINDOW", CommsConfig.DEFAULT_TX_WINDOW))
+						.setTcpNoDelay(mSrvrIP.getBoolean("TCP_NODELAY", true))
+						.setFlushWindowUs(mSrvrIP.getInt("FLUSH_US", 0))
+						.setNioTransport(mSrvrIP.getBoolean("NIO_TRANSPORT", false))
+						.setConnectTimeoutMs(mSrvrIP.getInt("CONNECT_TIMEOUT_MS", CommsConfig.DEFAULT_CONNECT_TIMEOUT_MS))
+						.setHandshakeTimeoutMs(mSrvrIP.getInt("HANDSHAKE_TIMEOUT_MS", CommsConfig.DEFAULT_HANDSHAKE_TIMEOUT_MS))
+						.setRetryMs(mSrvrIP.getInt("RETRY_MIN_MS", CommsConfig.DEFAULT_RETRY_MIN_MS),
+								mSrvrIP.getInt("RETRY_MAX_MS", CommsConfig.DEFAULT_RETRY_MAX_MS))
+						.setHeartbeatMs(mSrvrIP.getInt("HEARTBEAT_MS", CommsConfig.DEFAULT_HEARTBEAT_MS),
+								mSrvrIP.getInt("LIVENESS_MS", CommsConfig.DEFAULT_LIVENESS_MS))
+						.setCaptureDir(mSrvrIP.getBoolean("CAPTURE", false) ? filesDir() : null)
+						.setMetrics(mMetrics);
+				linkUp = false;
+				mConnMgr.connect(mAddr, mPort, mConfig);
 				
-				/* Start the Comms thread on the socket. */
-				try {
-					Socket MbusSrvSocket = new Socket(InetAddress.getByName(mAddr), mPort);
-					mCommsThread = new CommsThread(MbusSrvSocket);
-					mCommsThread.start();				
-				}
-				catch (UnknownHostException e) {
-					Log.d(TAG, e.getLocalizedMessage());
-					//TODO notify user and Main that socket open failed.
-				}
-				catch (IOException e) {
-					Log.d(TAG, e.getLocalizedMessage());
-				}
+				/* Speed commands queued to an earlier connection will never be sent. */
+				mDecoders.clearSlots();
 				
-				/*Create array to hold DCC encoders registered to each throttle. (4 max); */
-				regDecoders = new DCCencoder[4];
+				/*
+				 * Set the command station repetition count. With a refresh period the
+				 * service refreshes moving speeds itself instead of having the
+				 * command station repeat them forever.
+				 */
+				mRefreshMs = mSrvrIP.getInt("REFRESH_MS", 0);
+				mDecoders.setRepeat(mSrvrIP.getInt("REP_CNT", DCCencoder.DEFAULT_REP_CNT), mRefreshMs <= 0);
+				removeCallbacks(refreshTask);
+				if (mRefreshMs > 0) {
+					mRefresh = new RefreshScheduler(mSrvrIP.getInt("REFRESH_PER_TICK", REFRESH_PER_TICK), REFRESH_BOOST_TICKS);
+					refreshBatch = new DecoderRegistry.Entry[mRefresh.perTick()];
+					postDelayed(refreshTask, mRefreshMs);
+				} else {
+					mRefresh = null;
+				}
+				mDecoders.setRefresh(mRefresh);
 
 				break;
 			
 			/* Disconnect the server and shut down the service. */
 			case SRVR_DSCNCT:
-				//TODO Close socket and cancel related tasks, then shutdown the service.
+				//TODO Cancel related tasks, then shutdown the service.
 				if (L) Log.i(TAG,"Disconnect command");
+				mConnMgr.disconnect();
+				linkUp = false;
+				linkGauge.set(0);
 
 				Toast.makeText(getApplicationContext(), "Mbus Server Shutdown Requested", Toast.LENGTH_SHORT).show();
 				break;
 			
 			/* Turn layout power on. */
 			case SRVR_PWR_ON:
-				mCommsMsg = Message.obtain();
-				mCommsMsg.what = CommsCmd.SND_STREAM.toCode();
-				mCommsMsg.arg1 = MbusStrCmd.ON.toCode();
-
-				try {
-					mSrvcToCommsMsgr.send(mCommsMsg);
-	    		} catch (RemoteException e) {
-	    			e.printStackTrace();
-	    		}
+				toStream(MbusStrCmd.ON.toCode(), TxQueue.Lane.NORMAL);
 				
 				break;
 				
 			/* Turn layout power off. */
 			case SRVR_PWR_OFF:
-				mCommsMsg = Message.obtain();
-				mCommsMsg.what = CommsCmd.SND_STREAM.toCode();
-				mCommsMsg.arg1 = MbusStrCmd.OFF.toCode();
-
-				try {
-					mSrvcToCommsMsgr.send(mCommsMsg);
-	    		} catch (RemoteException e) {
-	    			e.printStackTrace();
-	    		}
+				toStream(MbusStrCmd.OFF.toCode(), TxQueue.Lane.SAFETY);
 				
 				break;
 				
 			/* Ask the server to report the layout power state. */
 			case SRVR_PWR_IS:
-				mCommsMsg = Message.obtain();
-				mCommsMsg.what = CommsCmd.SND_STREAM.toCode();
-				mCommsMsg.arg1 = MbusStrCmd.ONOFF.toCode();
-
-				try {
-					mSrvcToCommsMsgr.send(mCommsMsg);
-	    		} catch (RemoteException e) {
-	    			e.printStackTrace();
-	    		}
+				toStream(MbusStrCmd.ONOFF.toCode(), TxQueue.Lane.NORMAL);
 				
 				break;
 				
 			case SRVR_EMRG_STOP:
-				mCommsMsg = Message.obtain();
-				mCommsMsg.what = CommsCmd.SND_STREAM.toCode();
-				mCommsMsg.arg1 = MbusStrCmd.STOP.toCode();
-
-				try {
-					mSrvcToCommsMsgr.send(mCommsMsg);
-	    		} catch (RemoteException e) {
-	    			e.printStackTrace();
-	    		}
+				/* Speed commands still waiting to be sent are overridden by the stop. */
+				mDecoders.clearSlots();
+				if (mRefresh != null) {
+					mRefresh.clear();
+				}
+				for (int t = 0; t < mDecoders.throttles(); t++) {
+					thtlDcdr = mDecoders.forThrottle(t);
+					if (thtlDcdr != null) {
+						thtlDcdr.lastSpeed = 0;
+					}
+				}
+				
+				toStream(MbusStrCmd.STOP.toCode(), TxQueue.Lane.SAFETY);
 				
 				break;
 				
@@ -386,15 +422,24 @@ public class MbusService extends Service {
 
 			/* 
 			 * Register a decoder to throttle in ARG1. OBJ = decoder characteristics
+			 * The decoder is sent the function groups whose keys differ from what it was last sent.
 			 * Notify main that decoder was acquired for throttle in ARG1.
 			 * */
 			case DCC_ACQ_DCDR:
 				
 				//TODO Check settings to see if we need to send a RESET message to the decoder before acquisition.
-				regDecoders[msg.arg1] = new DCCencoder((Bundle)msg.obj);
+				Bundle dcdrInfo = (Bundle)obj;
+				try {
+					thtlDcdr = mDecoders.acquire(arg1, dcdrInfo.getInt("DCDR_ADR"), dcdrInfo.getInt("ADR_TYP"),
+							dcdrInfo.getInt("SPD_STEPS"), dcdrInfo.getInt("KEY_STATES"));
+					sendFuncGroups(thtlDcdr, thtlDcdr.encoder().funcGroupsChanged());
+				} catch (IllegalArgumentException e) {
+					Log.d(TAG, e.getLocalizedMessage());
+					mDecoders.release(arg1);
+				}
 /*				
 	    		try {
-	    			mSrvcToClientMsgr.send(Message.obtain(null, MbusSrvcEvt.DCC_DCDR_ACQD.toCode(), msg.arg1));
+	    			mSrvcToClientMsgr.send(Message.obtain(null, MbusSrvcEvt.DCC_DCDR_ACQD.toCode(), arg1));
 	    		} catch (RemoteException e) {
 	    			e.printStackTrace();
 	    		}
@@ -406,12 +451,12 @@ public class MbusService extends Service {
 			 * Notify main that decoder was released for throttle in ARG1.
 			 * */
 			case DCC_RLS_DCDR:
-				regDecoders[msg.arg1] =  null;
+				mDecoders.release(arg1);
 				
 				//TODO Check settings to see if we need to send a STOP message to the decoder before release.
 /*				
 	    		try {
-	    			mSrvcToClientMsgr.send(Message.obtain(null, MbusSrvcEvt.DCC_DCDR_RLSD.toCode(), msg.arg1));
+	    			mSrvcToClientMsgr.send(Message.obtain(null, MbusSrvcEvt.DCC_DCDR_RLSD.toCode(), arg1));
 	    		} catch (RemoteException e) {
 	    			e.printStackTrace();
 	    		}
@@ -420,121 +465,538 @@ public class MbusService extends Service {
 			
 			/* Send a reset to the decoder assigned to the throttle specified by ARG1. */
 			case DCC_RST_DCDR:
-				if(regDecoders[msg.arg1] != null) {
-					mCommsMsg = Message.obtain();
-					mCommsMsg.what = CommsCmd.SND_BCST.toCode();
-					mCommsMsg.arg1 = MbusBcstOp.DCC.toCode();
-					mCommsMsg.obj = regDecoders[msg.arg1].DCCreset();
-	
-					try {
-						mSrvcToCommsMsgr.send(mCommsMsg);
-		    		} catch (RemoteException e) {
-		    			e.printStackTrace();
-		    		}
+				thtlDcdr = mDecoders.forThrottle(arg1);
+				if(thtlDcdr != null) {
+					thtlDcdr.slot().clear();
+					thtlDcdr.lastSpeed = 0;
+					if (mRefresh != null) {
+						mRefresh.stopped(thtlDcdr);
+					}
+					
+					toBcst(MbusBcstOp.DCC.toCode(), thtlDcdr.encoder().DCCreset(), TxQueue.Lane.NORMAL);
 				}
 				break;
 				
-			/* Send throttle step in ARG2 to the decoder registered to the throttle in ARG1. */
+			/*
+			 * Send throttle step in ARG2 to the decoder registered to the throttle in ARG1.
+			 * The step replaces any step still waiting in the throttle's slot. A send message
+			 * is queued to Comms only if the slot doesn't already have one waiting.
+			 */
 			case DCC_THTL_STEP:
-				if(regDecoders[msg.arg1] != null) {
-					mCommsMsg = Message.obtain();
-					mCommsMsg.what = CommsCmd.SND_BCST.toCode();
-					mCommsMsg.arg1 = MbusBcstOp.DCC.toCode();
-					mCommsMsg.obj = regDecoders[msg.arg1].DCCspeed(msg.arg2);
-	
-					try {
-						mSrvcToCommsMsgr.send(mCommsMsg);
-		    		} catch (RemoteException e) {
-		    			e.printStackTrace();
-		    		}
+				thtlDcdr = mDecoders.forThrottle(arg1);
+				if(thtlDcdr != null) {
+					thtlDcdr.lastSpeed = arg2;
+					sendSpeed(thtlDcdr, arg2);
+					if (mRefresh != null) {
+						mRefresh.changed(thtlDcdr, arg2);
+					}
 				}
 				
 				break;
 
 			/* Send a hard stop command to the decoder registered to the throttle in Arg1. */
 			case DCC_HARD_STOP:
-				if(regDecoders[msg.arg1] != null) {
-					mCommsMsg = Message.obtain();
-					mCommsMsg.what = CommsCmd.SND_BCST.toCode();
-					mCommsMsg.arg1 = MbusBcstOp.DCC.toCode();
-					mCommsMsg.obj = regDecoders[msg.arg1].DCCestop();
-	
-					try {
-						mSrvcToCommsMsgr.send(mCommsMsg);
-		    		} catch (RemoteException e) {
-		    			e.printStackTrace();
-		    		}
+				thtlDcdr = mDecoders.forThrottle(arg1);
+				if(thtlDcdr != null) {
+					/* A waiting speed step must not follow the stop. */
+					thtlDcdr.slot().clear();
+					thtlDcdr.lastSpeed = 0;
+					if (mRefresh != null) {
+						mRefresh.stopped(thtlDcdr);
+					}
+					
+					toBcst(MbusBcstOp.DCC.toCode(), thtlDcdr.encoder().DCCestop(), TxQueue.Lane.SAFETY);
 				}
 				break;
 			
-			/* Send the function key specified by ARG2 to the decoder registered to the throttle in ARG1. */
+			/*
+			 * Send the function key specified by ARG2 to the decoder registered to the throttle in ARG1,
+			 * (the lead unit if the throttle drives a consist).
+			 */
 			case DCC_FUNC_KEY:
-				if(regDecoders[msg.arg1] != null) {
-					mCommsMsg = Message.obtain();
-					mCommsMsg.what = CommsCmd.SND_BCST.toCode();
-					mCommsMsg.arg1 = MbusBcstOp.DCC.toCode();
-					mCommsMsg.obj = regDecoders[msg.arg1].DCCfunc(msg.arg2);
-	
-					try {
-						mSrvcToCommsMsgr.send(mCommsMsg);
-		    		} catch (RemoteException e) {
-		    			e.printStackTrace();
-		    		}
+				if (arg2 < 0 || arg2 > DCCfunctionkeys.MAX_KEY) {
+					Log.d(TAG, "Function key " + arg2 + " out of range, dropped");
+					break;
+				}
+				thtlDcdr = mDecoders.forThrottle(arg1);
+				if(thtlDcdr != null) {
+					thtlDcdr = mConsists.functionsFor(thtlDcdr);
+					toBcst(MbusBcstOp.DCC.toCode(), thtlDcdr.encoder().DCCfunc(arg2), TxQueue.Lane.NORMAL);
+				}
+				break;
+				
+			/*
+			 * Set every function key of the decoder registered to the throttle in ARG1, (the lead
+			 * unit if the throttle drives a consist), to the states in ARG2, bit 0 = FL and bit
+			 * 28 = F28, and OBJ, a Long with bit 0 = F29 and bit 39 = F68. Without OBJ, F29 - F68
+			 * are left as they are. Only the function groups that change are sent.
+			 */
+			case DCC_FUNC_SET:
+				thtlDcdr = mDecoders.forThrottle(arg1);
+				if(thtlDcdr != null) {
+					thtlDcdr = mConsists.functionsFor(thtlDcdr);
+					long extKeys = (obj instanceof Long) ? (Long)obj : thtlDcdr.encoder().getExtKeyStates();
+					sendFuncGroups(thtlDcdr, thtlDcdr.encoder().setFuncTarget(new DCCfunctionkeys(arg2, extKeys)));
+				}
+				break;
+				
+			/*
+			 * Add a decoder to the advanced consist driven by the throttle in ARG1. OBJ = decoder
+			 * characteristics, CNST_ADR = consist address and CNST_REV = true if the unit runs
+			 * reversed in the consist. The unit is programmed with the consist address and the
+			 * throttle is assigned the consist address, so each step is one packet for the consist.
+			 */
+			case DCC_CNST_ADD:
+				Bundle unitInfo = (Bundle)obj;
+				try {
+					DecoderRegistry.Entry unit = mDecoders.register(unitInfo.getInt("DCDR_ADR"),
+							unitInfo.getInt("ADR_TYP"), unitInfo.getInt("SPD_STEPS"), unitInfo.getInt("KEY_STATES"));
+					int cnstAdr = unitInfo.getInt("CNST_ADR");
+					boolean reversed = unitInfo.getBoolean("CNST_REV", false);
+					mConsists.add(arg1, cnstAdr, unit, reversed);
+					toBcst(MbusBcstOp.DCC.toCode(), unit.encoder().DCCconsist(cnstAdr, reversed), TxQueue.Lane.NORMAL);
+				} catch (IllegalArgumentException e) {
+					Log.d(TAG, e.getLocalizedMessage());
+				}
+				break;
+				
+			/*
+			 * Take the decoder in OBJ out of its consist and stop it, it would otherwise carry on
+			 * at the consist's speed. The consist's throttle is released once it has no units.
+			 */
+			case DCC_CNST_RMV:
+				Bundle rmvInfo = (Bundle)obj;
+				DecoderRegistry.Entry unit = mDecoders.get(rmvInfo.getInt("DCDR_ADR"), rmvInfo.getInt("ADR_TYP"));
+				if (unit != null) {
+					ConsistRegistry.Consist cnst = mConsists.remove(unit);
+					if (cnst != null) {
+						toBcst(MbusBcstOp.DCC.toCode(), unit.encoder().DCCconsist(0, false), TxQueue.Lane.NORMAL);
+						sendSpeed(unit, 0);
+					}
+				}
+				break;
+				
+			/*
+			 * Write CVs of a decoder on the main. OBJ = decoder characteristics with CV_NUMS
+			 * and CV_VALS, the CV numbers and their values. The writes join those already
+			 * queued, progress is reported in DCC_CV_PROGRESS events.
+			 */
+			case DCC_CV_WRITE:
+				Bundle cvInfo = (Bundle)obj;
+				int[] cvNums = (cvInfo != null) ? cvInfo.getIntArray("CV_NUMS") : null;
+				int[] cvVals = (cvInfo != null) ? cvInfo.getIntArray("CV_VALS") : null;
+				if (cvNums == null || cvVals == null) {
+					Log.d(TAG, "CV write without CV_NUMS and CV_VALS, dropped");
+					break;
+				}
+				try {
+					thtlDcdr = mDecoders.get(cvInfo.getInt("DCDR_ADR"), cvInfo.getInt("ADR_TYP"));
+					if (thtlDcdr == null) {
+						thtlDcdr = mDecoders.register(cvInfo.getInt("DCDR_ADR"), cvInfo.getInt("ADR_TYP"),
+								cvInfo.getInt("SPD_STEPS", 28), cvInfo.getInt("KEY_STATES", 0));
+					}
+					for (int i = 0; i < cvNums.length && i < cvVals.length; i++) {
+						mCvProg.add(thtlDcdr.encoder(), cvNums[i], cvVals[i]);
+					}
+				} catch (IllegalArgumentException e) {
+					Log.d(TAG, e.getLocalizedMessage());
+				}
+				sendCvWrites();
+				break;
+				
+			/*
+			 * Publish the metrics to the client every ARG1 ms as SRVR_METRICS events,
+			 * ARG1 = 0 stops them.
+			 */
+			case SRVR_METRICS:
+				mMetricsMs = arg1;
+				removeCallbacks(metricsTask);
+				if (mMetricsMs > 0) {
+					post(metricsTask);
+				}
+				break;
+				
+			/*
+			 * Binary trace, ARG1 = 1 to turn it on, 0 to turn it off, 2 to dump it
+			 * to a file. The file's path is sent back in a SRVR_TRACE_DUMP event.
+			 */
+			case SRVR_TRACE:
+				if (arg1 == TRACE_DUMP) {
+					dumpTrace();
+				} else {
+					Trace.enable(arg1 == TRACE_ON);
 				}
 				break;
 				
 			/* Unknown command in message */
 			default:
-				Log.d("MsgFromClient", "Unknown command type = " + msg.what);
+				Log.d("MsgFromClient", "Unknown command type = " + what);
 				break;				
 			} /* switch(mbusSrvcCmd) */			
-		} /* handler method */
+		} /* command method */
+		
+		/**
+		 * Put a speed step in the decoder's slot. A send is queued to the transport
+		 * only if the slot doesn't already have one waiting.
+		 */
+		private void sendSpeed(DecoderRegistry.Entry dcdr, int speed) {
+			int len = dcdr.encoder().DCCspeed(speed, dccBuf, 0);
+			Trace.event(Trace.Stage.ENCODE, dcdr.throttle(), MbusBcstOp.DCC.toCode(), len);
+			int epoch = dcdr.slot().put(dccBuf, len);
+			if (epoch < 0) {
+				return;
+			}
+			
+			toSlot(dcdr.slot(), epoch, MbusBcstOp.DCC.toCode());
+		}
+		
+		/*
+		 * Queue a command to the transport. The transport's queue is thread safe
+		 * so commands are queued from this thread without a message to the Comms
+		 * thread. With no connection the command is lost, it's counted in srvc.dropped.
+		 */
+		private void toStream(int op, TxQueue.Lane lane) {
+			ConnectionManager.Transport transport = mConnMgr.transport();
+			if (transport == null) {
+				cmdsDropped.inc();
+				return;
+			}
+			Trace.event(Trace.Stage.TX_QUEUE, Trace.NO_THROTTLE, op, 1);
+			transport.sendStream(op, lane);
+		}
+		
+		private void toBcst(int op, byte[] data, TxQueue.Lane lane) {
+			ConnectionManager.Transport transport = mConnMgr.transport();
+			if (transport == null) {
+				cmdsDropped.inc();
+				return;
+			}
+			Trace.event(Trace.Stage.TX_QUEUE, Trace.NO_THROTTLE, op, data.length);
+			transport.sendBcst(op, data, lane);
+		}
+		
+		private void toBcst(int op, byte[] data, TxQueue.Lane lane, TxQueue.Ack ack, int tag) {
+			ConnectionManager.Transport transport = mConnMgr.transport();
+			if (transport == null) {
+				cmdsDropped.inc();
+				return;
+			}
+			Trace.event(Trace.Stage.TX_QUEUE, Trace.NO_THROTTLE, op, data.length);
+			transport.sendBcst(op, data, lane, ack, tag);
+		}
+		
+		/*
+		 * Queue a slot's send message to the transport. With no connection the step
+		 * is lost and the slot cleared, so the throttle's next step queues a new send.
+		 */
+		private void toSlot(ThrottleSlot slot, int epoch, int op) {
+			ConnectionManager.Transport transport = mConnMgr.transport();
+			if (transport == null) {
+				slot.clear();
+				cmdsDropped.inc();
+				return;
+			}
+			Trace.event(Trace.Stage.TX_QUEUE, Trace.NO_THROTTLE, op, 0);
+			transport.sendSlot(slot, epoch, op);
+		}
+		
+		/**
+		 * The server connection is up. If it replaces one that dropped, the
+		 * decoders assigned to throttles get their last speed and function state
+		 * again, (the command station may have restarted), before the client is
+		 * told. Speed steps left in the slots were queued to no connection or to
+		 * the old one, so the slots are cleared either way.
+		 */
+		public void linkUp(int protVersion, boolean restored) {
+			linkUp = true;
+			linkGauge.set(1);
+			Trace.event(Trace.Stage.LINK_UP, Trace.NO_THROTTLE, protVersion, 0);
+			mDecoders.clearSlots();
+			if (restored) {
+				restoreSession();
+			}
+			sendCvWrites();
+			
+			Message mClientMsg = Message.obtain();
+			mClientMsg.what = MbusSrvcEvt.SRVR_CNCTD.toCode();
+			mClientMsg.arg1 = restored ? 1 : 0;
+			try {
+    			mSrvcToClientMsgr.send(mClientMsg);
+    		} catch (RemoteException e) {
+    			e.printStackTrace();
+    		}
+		}
+		
+		/**
+		 * The server connection dropped or an attempt failed. The client is told
+		 * once per lost connection, the manager keeps retrying.
+		 */
+		public void linkDown(String reason, long retryMs) {
+			Trace.event(Trace.Stage.LINK_DOWN, Trace.NO_THROTTLE, 0, 0);
+			if (!linkUp) {
+				return;
+			}
+			linkUp = false;
+			linkGauge.set(0);
+			linksLost.inc();
+			mCvProg.linkLost();
+			
+			Message mClientMsg = Message.obtain();
+			mClientMsg.what = MbusSrvcEvt.SRVR_DSCNCTD.toCode();
+			mClientMsg.arg1 = (int) retryMs;
+			try {
+    			mSrvcToClientMsgr.send(mClientMsg);
+    		} catch (RemoteException e) {
+    			e.printStackTrace();
+    		}
+		}
+		
+		/* Write the trace to a file in the app's files and tell the client where it is. */
+		private void dumpTrace() {
+			File file = new File(filesDir(), "mbus-trace-" + System.currentTimeMillis() + ".bin");
+			String path = null;
+			
+			FileOutputStream out = null;
+			try {
+				out = new FileOutputStream(file);
+				int n = Trace.dump(out);
+				path = file.getAbsolutePath();
+				if (L) Log.i(TAG, "Dumped " + n + " trace events to " + path);
+			} catch (IOException e) {
+				Log.d(TAG, "Trace dump failed: " + e.getLocalizedMessage());
+			} finally {
+				if (out != null) {
+					try {
+						out.close();
+					} catch (IOException e) {
+						/* Closing anyway. */
+					}
+				}
+			}
+			
+			if (mSrvcToClientMsgr != null) {
+				Message mClientMsg = Message.obtain();
+				mClientMsg.what = MbusSrvcEvt.SRVR_TRACE_DUMP.toCode();
+				mClientMsg.obj = path;
+				try {
+	    			mSrvcToClientMsgr.send(mClientMsg);
+	    		} catch (RemoteException e) {
+	    			e.printStackTrace();
+	    		}
+			}
+		}
+		
+		/* Directory for trace dumps and session captures, external storage if there is any. */
+		private File filesDir() {
+			File dir = getExternalFilesDir(null);
+			return (dir != null) ? dir : getFilesDir();
+		}
+		
+		/**
+		 * The command station took a frame sent with an ack, (a CV write). Called
+		 * on the transport's receive thread, the write is retired on this one.
+		 */
+		public void acked(int tag) {
+			sendMessage(obtainMessage(CV_ACKED, tag, 0));
+		}
+		
+		/* The command station took the CV write with tag, (from acked() on the receive thread). */
+		private void cvAcked(int tag) {
+			if (mCvProg.acked(tag)) {
+				sendCvWrites();
+			}
+		}
+		
+		/*
+		 * Send the CV writes the programmer has room for, (new ones and retries),
+		 * and keep the CV tick going while any are left.
+		 */
+		private void sendCvWrites() {
+			if (!linkUp || !mCvProg.isBusy()) {
+				return;
+			}
+			int n = mCvProg.take(System.nanoTime(), cvTags);
+			for (int i = 0; i < n; i++) {
+				int len = mCvProg.encode(cvTags[i], dccBuf, 0);
+				
+				toBcst(MbusBcstOp.DCC.toCode(), Arrays.copyOf(dccBuf, len), TxQueue.Lane.NORMAL, this, cvTags[i]);
+			}
+			if (!cvTicking) {
+				cvTicking = true;
+				postDelayed(cvTask, CV_TICK_MS);
+			}
+		}
+		
+		/* Tell the client how far the CV writes have got, if it changed. */
+		private void reportCvProgress() {
+			int progress = mCvProg.done() + mCvProg.failed();
+			if (progress == cvReported || mSrvcToClientMsgr == null) {
+				return;
+			}
+			cvReported = mCvProg.isBusy() ? progress : -1;
+			
+			Bundle cvProgress = new Bundle();
+			cvProgress.putInt("CV_DONE", mCvProg.done());
+			cvProgress.putInt("CV_FAILED", mCvProg.failed());
+			cvProgress.putInt("CV_TOTAL", mCvProg.total());
+			Message mClientMsg = Message.obtain();
+			mClientMsg.what = MbusSrvcEvt.DCC_CV_PROGRESS.toCode();
+			mClientMsg.arg1 = progress;
+			mClientMsg.arg2 = mCvProg.total();
+			mClientMsg.obj = cvProgress;
+			try {
+    			mSrvcToClientMsgr.send(mClientMsg);
+    		} catch (RemoteException e) {
+    			e.printStackTrace();
+    		}
+		}
+		
+		/* Resend timed out CV writes and report progress, until the writes are all done or failed. */
+		private final Runnable cvTask = new Runnable() {
+			public void run() {
+				cvTicking = false;
+				sendCvWrites();
+				reportCvProgress();
+			}
+		};
+		
+		/* Send a decoder the function groups set in groups, bit g for group g, one after the other. */
+		private void sendFuncGroups(DecoderRegistry.Entry dcdr, int groups) {
+			for (int g = 0; g < DCCencoder.FUNC_GROUPS; g++) {
+				if ((groups & (1 << g)) != 0) {
+					int len = dcdr.encoder().DCCfuncGroup(g, dccBuf, 0);
+					
+					toBcst(MbusBcstOp.DCC.toCode(), Arrays.copyOf(dccBuf, len), TxQueue.Lane.NORMAL);
+				}
+			}
+		}
+		
+		/* Send every assigned decoder its last speed step and the function groups that have keys on. */
+		private void restoreSession() {
+			DecoderRegistry.Entry dcdr;
+			int restored = 0;
+			
+			for (int t = 0; t < mDecoders.throttles(); t++) {
+				dcdr = mDecoders.forThrottle(t);
+				if (dcdr == null) {
+					continue;
+				}
+				sendSpeed(dcdr, dcdr.lastSpeed());
+				
+				/* FL and F1 - F4 always, the head light is often the only key on. */
+				int groups = 1;
+				for (int g = 1; g < DCCencoder.FUNC_GROUPS; g++) {
+					if (dcdr.encoder().isFuncGroupOn(g)) {
+						groups |= 1 << g;
+					}
+				}
+				sendFuncGroups(dcdr, groups);
+				restored++;
+			}
+			if (L) Log.i(TAG, "Restored " + restored + " decoders");
+		}
+		
+		/*
+		 * Publish the metrics to the client and schedule the next publish. Each
+		 * counter also gets its rate per second since the last publish, (name:rate),
+		 * and each histogram its count, median, 99th percentile and max in us,
+		 * (name:n, name:p50, name:p99, name:max).
+		 */
+		private final Runnable metricsTask = new Runnable() {
+			public void run() {
+				if (mMetricsMs <= 0 || mSrvcToClientMsgr == null) {
+					return;
+				}
+				final Bundle snapshot = new Bundle();
+				final long now = System.nanoTime();
+				final long elapsed = now - lastPublish;
+				
+				mMetrics.snapshot(new MetricsRegistry.Visitor() {
+					public void counter(String name, long value) {
+						Long last = lastCounts.put(name, value);
+						snapshot.putLong(name, value);
+						if (last != null && elapsed > 0) {
+							snapshot.putLong(name + ":rate", (value - last) * 1000000000L / elapsed);
+						}
+					}
+					
+					public void gauge(String name, long value) {
+						snapshot.putLong(name, value);
+					}
+					
+					public void histogram(String name, LatencyHistogram histogram) {
+						snapshot.putLong(name + ":n", histogram.count());
+						snapshot.putLong(name + ":p50", histogram.percentile(50));
+						snapshot.putLong(name + ":p99", histogram.percentile(99));
+						snapshot.putLong(name + ":max", histogram.max() / 1000);
+					}
+				});
+				lastPublish = now;
+				
+				Message mClientMsg = Message.obtain();
+				mClientMsg.what = MbusSrvcEvt.SRVR_METRICS.toCode();
+				mClientMsg.arg1 = mMetricsMs;
+				mClientMsg.obj = snapshot;
+				try {
+	    			mSrvcToClientMsgr.send(mClientMsg);
+	    		} catch (RemoteException e) {
+	    			e.printStackTrace();
+	    		}
+				postDelayed(this, mMetricsMs);
+			}
+		};
+		
+		/* Refresh the next moving decoders and schedule the next tick. */
+		private final Runnable refreshTask = new Runnable() {
+			public void run() {
+				if (mRefresh == null) {
+					return;
+				}
+				int n = mRefresh.next(refreshBatch);
+				for (int i = 0; i < n; i++) {
+					sendSpeed(refreshBatch[i], refreshBatch[i].speed());
+				}
+				postDelayed(this, mRefreshMs);
+			}
+		};
 	} /* handler class */
 
 	
 	/**
 	 * Handle messages from CommsThread. Parses server message and generates events
-	 * to be sent to the client.
+	 * to be sent to the client. Runs on the client message thread, connection
+	 * events go to the connection manager.
 	 * 
 	 * @param msg - Message containing byte count and byte data sent from server.
 	 */
-	static class CommsMsgHandler extends Handler {
+	private final class CommsMsgHandler extends Handler {
 		private final String TAG = this.getClass().getSimpleName();
 		private static final boolean L = true;
 
+		public CommsMsgHandler(Looper looper) {
+			super(looper);
+		}
+
 		@Override
 		public void handleMessage(Message msg)
 		{
 			if(L) Log.i(TAG, "Msg from Comms = " + msg.what);
-			Message mClientMsg;
 			
-			/* Dispatch event received from CommsThread. */
+			/* Dispatch event received from CommsThread. OBJ = the transport that sent it. */
 			switch (CommsEvt.fromCode(msg.what)) {
 			
-			/* CommsThread has started, save the messenger thread to send to. */
+			/* CommsThread has started. Commands are queued to it directly, see ClientMsgHandler.toStream. */
 			case START:
-				
-				// TODO add state to prevent sending messages to CommsThread before it's connected.
-				
-				mSrvcToCommsMsgr = msg.replyTo;
 				break;
 			
-			/* CommsThread has received a disconnect command and has stopped. */
+			/* CommsThread has stopped, the connection manager reconnects if it is still wanted. */
 			case STOP:
-				// TODO think about what to do here.
+				mConnMgr.stopped(msg.obj);
 				break;
 
-			/* CommsThread received ID from server, verifying connection. Notify main. */ 
+			/* CommsThread received ID from server, verifying connection. */ 
 			case CONNECT:
-				
-				// TODO CommsThread will send remaining string from ID. Verify == MorBus.
-				mClientMsg = Message.obtain();
-				mClientMsg.what = MbusSrvcEvt.SRVR_CNCTD.toCode();
-				try {
-	    			mSrvcToClientMsgr.send(mClientMsg);
-	    		} catch (RemoteException e) {
-	    			e.printStackTrace();
-	    		}
+				mConnMgr.connected(msg.obj, msg.arg1);
 				break;
 				
 			/* All other events. */
@@ -553,4 +1015,4 @@ public class MbusService extends Service {
 
 	};  /* CommsToSrvcHandler */
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,155 @@
+package com.olinsdepot.mbus_srvc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters, gauges and latency histograms for the service and its
+ * transport, read by the service to publish to the client.
+ *
+ * A metric is looked up by name once, by whoever updates it, and the handle is
+ * kept. Updating a counter, gauge or histogram is a single atomic operation, so
+ * the send, receive and service threads never take a lock or allocate to
+ * record. Asking for a name that is already registered returns the same
+ * metric, so a new transport after a reconnect carries on the same counts.
+ *
+ * Names are dotted, (tx.cmds, link.rtt), the part before the first dot says
+ * what reports it.
+ *
+ * @author mhughes
+ *
+ */
+public class MetricsRegistry {
+
+	/**
+	 * A count that only goes up.
+	 */
+	public static final class Counter {
+		private final AtomicLong value = new AtomicLong();
+
+		/* Count one. */
+		public void inc() {
+			value.incrementAndGet();
+		}
+
+		/* Count n. */
+		public void add(long n) {
+			value.addAndGet(n);
+		}
+
+		/* Return the count. */
+		public long get() {
+			return value.get();
+		}
+	}
+
+	/**
+	 * A value that is set to the latest reading.
+	 */
+	public static final class Gauge {
+		private volatile long value;
+
+		/* Set the reading. */
+		public void set(long value) {
+			this.value = value;
+		}
+
+		/* Return the latest reading. */
+		public long get() {
+			return value;
+		}
+	}
+
+	/**
+	 * Receives each metric from snapshot(), in the order they were registered.
+	 */
+	public interface Visitor {
+		void counter(String name, long value);
+		void gauge(String name, long value);
+		void histogram(String name, LatencyHistogram histogram);
+	}
+
+	/* A registered metric, one of the three kinds. */
+	private static final class Metric {
+		private final String name;
+		private final Object metric;
+
+		private Metric(String name, Object metric) {
+			this.name = name;
+			this.metric = metric;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Metric> byName = new ConcurrentHashMap<String, Metric>();
+	private final CopyOnWriteArrayList<Metric> metrics = new CopyOnWriteArrayList<Metric>();
+
+
+	/**
+	 * Return the counter with this name, registering it the first time.
+	 */
+	public Counter counter(String name) {
+		return (Counter) register(name, Counter.class);
+	}
+
+	/**
+	 * Return the gauge with this name, registering it the first time.
+	 */
+	public Gauge gauge(String name) {
+		return (Gauge) register(name, Gauge.class);
+	}
+
+	/**
+	 * Return the latency histogram with this name, registering it the first time.
+	 */
+	public LatencyHistogram histogram(String name) {
+		return (LatencyHistogram) register(name, LatencyHistogram.class);
+	}
+
+	/**
+	 * Pass every metric's current value to a visitor. Values are read one at a
+	 * time while they may still be changing, so counts taken together may be a
+	 * record or two apart.
+	 */
+	public void snapshot(Visitor visitor) {
+		for (Metric m : metrics) {
+			if (m.metric instanceof Counter) {
+				visitor.counter(m.name, ((Counter) m.metric).get());
+			} else if (m.metric instanceof Gauge) {
+				visitor.gauge(m.name, ((Gauge) m.metric).get());
+			} else {
+				visitor.histogram(m.name, (LatencyHistogram) m.metric);
+			}
+		}
+	}
+
+
+	/* Return the metric registered under name, making one of the given kind if there is none. */
+	private Object register(String name, Class<?> kind) {
+		Metric m = byName.get(name);
+		if (m == null) {
+			synchronized (this) {
+				m = byName.get(name);
+				if (m == null) {
+					m = new Metric(name, newMetric(kind));
+					byName.put(name, m);
+					metrics.add(m);
+				}
+			}
+		}
+		if (!kind.isInstance(m.metric)) {
+			throw new IllegalArgumentException("Metric " + name + " is not a " + kind.getSimpleName());
+		}
+		return m.metric;
+	}
+
+	private static Object newMetric(Class<?> kind) {
+		if (kind == Counter.class) {
+			return new Counter();
+		} else if (kind == Gauge.class) {
+			return new Gauge();
+		} else {
+			return new LatencyHistogram();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.olinsdepot.mbus_srvc;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+import android.os.Message;
+import android.util.Log;
+
+import com.olinsdepot.mbus_srvc.CommsThread.*;
+
+
+/**
+ * Runs an NioTransport for the MorBus service. It takes the same commands and
+ * sends the same events as the CommsThread, but a single thread does all the
+ * socket work. The service selects it at connect time.
+ *
+ * The service passes commands straight to the transport's loop, so there is
+ * no separate send thread.
+ *
+ * @author mhughes
+ *
+ */
+public class NioCommsThread extends Thread implements ConnectionManager.Transport {
+	private final String TAG = getClass().getSimpleName();
+	private static final boolean L = true;
+
+	private final NioTransport mTransport;
+
+
+	/**
+	 * Constructor: Sets up the transport and tells the service it has started.
+	 * The connection is made when the thread starts.
+	 *
+	 * @param server - address of the MorBus server.
+	 * @param config - transmit window, TCP_NODELAY and flush window settings.
+	 * @throws IOException if the transport can't be created.
+	 */
+	public NioCommsThread(SocketAddress server, CommsConfig config) throws IOException {
+		if (L) Log.i(TAG, "Starting NIO Comms Thread, window = " + config.getTxWindow() +
+				", no delay = " + config.getTcpNoDelay() + ", flush = " + config.getFlushWindowUs() + " us");
+		this.setName("SrvrNio");
+
+		mTransport = new NioTransport(server, config, new NioTransport.Listener() {
+			public void connected(int protVersion) {
+				/* Send "Connect" event to Morbus service with the protocol version. */
+				Message msg = MbusService.mSrvcFmCommsHandler.obtainMessage();
+				msg.what = CommsEvt.CONNECT.toCode();
+				msg.arg1 = protVersion;
+				msg.obj = NioCommsThread.this;
+				MbusService.mSrvcFmCommsHandler.sendMessage(msg);
+			}
+
+			public void closed(String reason) {
+				Log.d(TAG, "Connection closed: " + reason);
+				Message msg = MbusService.mSrvcFmCommsHandler.obtainMessage();
+				msg.what = CommsEvt.STOP.toCode();
+				msg.obj = NioCommsThread.this;
+				MbusService.mSrvcFmCommsHandler.sendMessage(msg);
+			}
+		});
+
+		/* Send "START" event to Morbus service. */
+		Message msg = MbusService.mSrvcFmCommsHandler.obtainMessage();
+		msg.what = CommsEvt.START.toCode();
+		msg.obj = this;
+		MbusService.mSrvcFmCommsHandler.sendMessage(msg);
+	}
+
+	/**
+	 * Transport loop.
+	 */
+	@Override
+	public void run() {
+		mTransport.run();
+	}
+
+	/**
+	 * Close the connection. The transport sends STOP once it is down.
+	 */
+	public void close() {
+		if (L) Log.i(TAG, "E-stop queue latency " + mTransport.latency(TxQueue.Lane.SAFETY));
+		if (L) Log.i(TAG, "Writes: " + mTransport.metrics());
+		if (L) Log.i(TAG, "Link: " + mTransport.linkMonitor());
+		mTransport.close();
+	}
+
+	/**
+	 * Return the transport's link monitor.
+	 */
+	public LinkMonitor linkMonitor() {
+		return mTransport.linkMonitor();
+	}
+
+	/**
+	 * Queue a single byte stream command, see NioTransport.
+	 */
+	public void sendStream(int op, TxQueue.Lane lane) {
+		mTransport.sendStream(op, lane);
+	}
+
+	/**
+	 * Queue a broadcast extended frame, see NioTransport.
+	 */
+	public void sendBcst(int op, byte[] data, TxQueue.Lane lane) {
+		mTransport.sendBcst(op, data, lane);
+	}
+
+	/**
+	 * Queue a broadcast extended frame with an ack, see NioTransport.
+	 */
+	public void sendBcst(int op, byte[] data, TxQueue.Lane lane, TxQueue.Ack ack, int tag) {
+		mTransport.sendBcst(op, data, lane, ack, tag);
+	}
+
+	/**
+	 * Queue a send from a throttle slot, see NioTransport.
+	 */
+	public void sendSlot(ThrottleSlot slot, int epoch, int op) {
+		mTransport.sendSlot(slot, epoch, op);
+	}
+
+}
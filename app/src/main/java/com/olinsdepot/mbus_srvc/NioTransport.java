@@ -0,0 +1,495 @@
+package com.olinsdepot.mbus_srvc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.olinsdepot.mbus_proto.EmCanFramer;
+import com.olinsdepot.mbus_proto.EmCanParser;
+import com.olinsdepot.mbus_proto.EmCan.*;
+
+
+/**
+ * Single threaded EmCAN transport. One loop on a Selector connects to the
+ * server, reads and parses its responses, writes queued frames as the transmit
+ * window allows and sends the keep alives, so a frame doesn't cross a thread
+ * or take a contended lock between the service and the socket.
+ *
+ * Frames go through a TxQueue as in the Comms thread, its output stream puts
+ * them in a buffer that the loop writes to the non-blocking channel. The queue's
+ * window bounds the bytes waiting in that buffer, and when the socket can't take
+ * them all the loop waits for it to become writable before writing more. The
+ * buffer is written once per pass of the loop, so batches the queue writes in
+ * the same pass share a channel write, and the queue's metrics count its
+ * batches rather than channel writes.
+ *
+ * Other threads pass commands in through a lock free queue and wake the
+ * selector. The transport has no Android dependencies, NioCommsThread
+ * connects it to the service.
+ *
+ * @author mhughes
+ *
+ */
+public class NioTransport implements Runnable {
+
+	/**
+	 * Events from the transport, called on the loop thread.
+	 */
+	public interface Listener {
+		/* The server identified itself as a MorBus server. */
+		void connected(int protVersion);
+
+		/* The connection closed or could not be made. */
+		void closed(String reason);
+	}
+
+	private static final int RCV_BUF_SIZE = 4096;
+	private static final int OUT_BUF_SIZE = 1024;
+
+	/* Command types passed to the loop. */
+	private static final int CMD_STREAM = 0;
+	private static final int CMD_BCST = 1;
+	private static final int CMD_SLOT = 2;
+	private static final int CMD_CLOSE = 3;
+
+	/* A command for the loop, recycled through spareCmds. */
+	private static final class Cmd {
+		private int type;
+		private int op;
+		private TxQueue.Lane lane;
+		private byte[] data;
+		private ThrottleSlot slot;
+		private int epoch;
+		private TxQueue.Ack ack;
+		private int tag;
+	}
+
+	private final SocketAddress server;
+	private final Listener listener;
+	private final Selector selector;
+	private final TxQueue txQueue;
+	private final EmCanFramer framer = new EmCanFramer();
+
+	private final ConcurrentLinkedQueue<Cmd> cmds = new ConcurrentLinkedQueue<Cmd>();
+	private final ConcurrentLinkedQueue<Cmd> spareCmds = new ConcurrentLinkedQueue<Cmd>();
+
+	/* Single byte stream commands, made once per opcode. */
+	private final byte[][] streamCmds = new byte[256][];
+
+	private final ByteBuffer rcvBuf = ByteBuffer.allocate(RCV_BUF_SIZE);
+	private ByteBuffer outBuf = ByteBuffer.allocate(OUT_BUF_SIZE);
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private volatile boolean closing = false;
+	private boolean identified = false;
+	private final LinkMonitor link;
+	private final SessionCapture capture;
+	private final boolean tcpNoDelay;
+	private final long connectTimeout;
+	private long connectBy;
+
+	/* The server must send its ID by identifyBy, handshakeTimeout after the connect completes. */
+	private final long handshakeTimeout;
+	private long identifyBy;
+
+	/* When the queue's held batch is due, if flushPending. */
+	private boolean flushPending = false;
+	private long flushAt;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param server - address of the MorBus server.
+	 * @param config - transmit window, TCP_NODELAY and flush window settings.
+	 * @param listener - receives the transport's events.
+	 * @throws IOException if the selector can't be opened.
+	 */
+	public NioTransport(SocketAddress server, CommsConfig config, Listener listener) throws IOException {
+		this.server = server;
+		this.listener = listener;
+		this.tcpNoDelay = config.getTcpNoDelay();
+		this.connectTimeout = TimeUnit.MILLISECONDS.toNanos(config.getConnectTimeoutMs());
+		this.handshakeTimeout = TimeUnit.MILLISECONDS.toNanos(config.getHandshakeTimeoutMs());
+		this.link = config.newLinkMonitor();
+		this.capture = newCapture(config);
+		this.selector = Selector.open();
+		this.rcvBuf.limit(0);
+
+		this.txQueue = new TxQueue(new OutputStream() {
+			@Override
+			public void write(int b) {
+				reserve(1).put((byte) b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				reserve(len).put(b, off, len);
+			}
+		}, config.getTxWindow(), new TxQueue.Framer() {
+			public void frame(int op, byte[] data, int len, ByteBuffer out) {
+				framer.frame(op, data, len, out);
+			}
+		});
+		this.txQueue.setMonitor(link);
+		this.txQueue.setMetrics(config.getMetrics());
+
+		/* The timer is only called on the loop thread, the loop checks the deadline each pass. */
+		if (config.getFlushWindowUs() > 0) {
+			this.txQueue.setFlushWindow(TimeUnit.MICROSECONDS.toNanos(config.getFlushWindowUs()), new TxQueue.FlushTimer() {
+				public void schedule(long delayNanos) {
+					flushPending = true;
+					flushAt = System.nanoTime() + delayNanos;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queue a single byte stream command.
+	 *
+	 * @param op - stream command.
+	 * @param lane - priority lane.
+	 */
+	public void sendStream(int op, TxQueue.Lane lane) {
+		Cmd cmd = obtainCmd(CMD_STREAM);
+		cmd.op = op & 0xFF;
+		cmd.lane = lane;
+		submit(cmd);
+	}
+
+	/**
+	 * Queue a broadcast extended frame.
+	 *
+	 * @param op - broadcast opcode.
+	 * @param data - CAN data bytes.
+	 * @param lane - priority lane.
+	 */
+	public void sendBcst(int op, byte[] data, TxQueue.Lane lane) {
+		sendBcst(op, data, lane, null, 0);
+	}
+
+	/**
+	 * Queue a broadcast extended frame and have ack told tag when the server
+	 * has taken it.
+	 *
+	 * @param op - broadcast opcode.
+	 * @param data - CAN data bytes.
+	 * @param lane - priority lane.
+	 * @param ack - told tag on the transport's thread when the frame's PONG arrives, may be null.
+	 * @param tag - passed to ack.
+	 */
+	public void sendBcst(int op, byte[] data, TxQueue.Lane lane, TxQueue.Ack ack, int tag) {
+		Cmd cmd = obtainCmd(CMD_BCST);
+		cmd.op = op;
+		cmd.data = data;
+		cmd.lane = lane;
+		cmd.ack = ack;
+		cmd.tag = tag;
+		submit(cmd);
+	}
+
+	/**
+	 * Queue a send from a throttle slot.
+	 *
+	 * @param slot - throttle slot.
+	 * @param epoch - slot epoch.
+	 * @param op - broadcast opcode.
+	 */
+	public void sendSlot(ThrottleSlot slot, int epoch, int op) {
+		Cmd cmd = obtainCmd(CMD_SLOT);
+		cmd.slot = slot;
+		cmd.epoch = epoch;
+		cmd.op = op;
+		submit(cmd);
+	}
+
+	/**
+	 * Close the connection once the commands already queued have been handled.
+	 */
+	public void close() {
+		submit(obtainCmd(CMD_CLOSE));
+	}
+
+	/**
+	 * Return the queue to socket latency histogram for a lane.
+	 */
+	public LatencyHistogram latency(TxQueue.Lane lane) {
+		return txQueue.latency(lane);
+	}
+
+	/**
+	 * Return the link monitor, for the round trip time and jitter.
+	 */
+	public LinkMonitor linkMonitor() {
+		return link;
+	}
+
+	/**
+	 * Return a copy of the queue's write counts.
+	 */
+	public TxMetrics metrics() {
+		return txQueue.metrics();
+	}
+
+	/**
+	 * Event loop. Runs until the transport is closed or the connection fails.
+	 */
+	public void run() {
+		String reason = "closed";
+
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(tcpNoDelay);
+			connectBy = System.nanoTime() + connectTimeout;
+			if (channel.connect(server)) {
+				key = channel.register(selector, SelectionKey.OP_READ);
+				identifyBy = System.nanoTime() + handshakeTimeout;
+			} else {
+				key = channel.register(selector, SelectionKey.OP_CONNECT);
+			}
+
+			while (!closing) {
+				selector.select(timeout());
+
+				Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+				while (ready.hasNext()) {
+					SelectionKey k = ready.next();
+					ready.remove();
+					if (k.isConnectable() && channel.finishConnect()) {
+						key.interestOps(SelectionKey.OP_READ);
+						identifyBy = System.nanoTime() + handshakeTimeout;
+					}
+					if (k.isValid() && k.isReadable()) {
+						read();
+					}
+				}
+				if (!channel.isConnected() && System.nanoTime() - connectBy >= 0) {
+					throw new SocketTimeoutException("Connect timed out");
+				}
+				if (channel.isConnected() && !identified && System.nanoTime() - identifyBy >= 0) {
+					throw new SocketTimeoutException("Server did not identify within "
+							+ TimeUnit.NANOSECONDS.toMillis(handshakeTimeout) + " ms");
+				}
+
+				drainCmds();
+				keepAlive();
+				if (flushPending && System.nanoTime() - flushAt >= 0) {
+					flushPending = false;
+					txQueue.flushIfDue();
+				}
+				flush();
+			}
+		} catch (IOException e) {
+			reason = (e.getLocalizedMessage() != null) ? e.getLocalizedMessage() : e.toString();
+		} finally {
+			try {
+				if (channel != null) {
+					channel.close();
+				}
+				selector.close();
+			} catch (IOException e) {
+				/* Closing anyway. */
+			}
+			if (capture != null) {
+				try {
+					capture.close();
+				} catch (IOException e) {
+					/* The capture is cut off, the reader reports it. */
+				}
+			}
+			listener.closed(reason);
+		}
+	}
+
+
+	/* Hand a command to the loop. */
+	private void submit(Cmd cmd) {
+		cmds.add(cmd);
+		selector.wakeup();
+	}
+
+	private Cmd obtainCmd(int type) {
+		Cmd cmd = spareCmds.poll();
+		if (cmd == null) {
+			cmd = new Cmd();
+		}
+		cmd.type = type;
+		return cmd;
+	}
+
+	/* Milliseconds the selector may wait, until the next deadline or the link's next keep alive or flush. */
+	private long timeout() {
+		if (!channel.isConnected()) {
+			return Math.max(1, TimeUnit.NANOSECONDS.toMillis(connectBy - System.nanoTime() + 999999));
+		}
+		if (!identified) {
+			return Math.max(1, TimeUnit.NANOSECONDS.toMillis(identifyBy - System.nanoTime() + 999999));
+		}
+		long due = System.nanoTime() + link.untilDue(System.nanoTime());
+		if (flushPending && flushAt - due < 0) {
+			due = flushAt;
+		}
+		long ms = TimeUnit.NANOSECONDS.toMillis(due - System.nanoTime() + 999999);
+		return Math.max(1, ms);
+	}
+
+	/* Handle every command passed in since the last pass. */
+	private void drainCmds() throws IOException {
+		Cmd cmd;
+
+		while ((cmd = cmds.poll()) != null) {
+			switch (cmd.type) {
+			case CMD_STREAM:
+				txQueue.put(streamCmd(cmd.op), cmd.lane);
+				break;
+			case CMD_BCST:
+				ByteBuffer frame = ByteBuffer.allocate(EmCanFramer.HDR_LEN + cmd.data.length);
+				framer.frame(cmd.op, cmd.data, cmd.data.length, frame);
+				txQueue.put(frame.array(), cmd.lane, cmd.ack, cmd.tag);
+				break;
+			case CMD_SLOT:
+				txQueue.putSlot(cmd.slot, cmd.epoch, cmd.op);
+				break;
+			default:
+				closing = true;
+				break;
+			}
+			cmd.data = null;
+			cmd.slot = null;
+			cmd.lane = null;
+			cmd.ack = null;
+			spareCmds.add(cmd);
+		}
+	}
+
+	private byte[] streamCmd(int op) {
+		if (streamCmds[op] == null) {
+			streamCmds[op] = new byte[] {(byte) op};
+		}
+		return streamCmds[op];
+	}
+
+	/* Queue a keep alive when the link is quiet, and give up on a server that stopped answering. */
+	private void keepAlive() throws IOException {
+		if (!identified) {
+			return;
+		}
+		switch (link.poll(System.nanoTime())) {
+		case HEARTBEAT:
+			Trace.event(Trace.Stage.KEEPALIVE, Trace.NO_THROTTLE, 0, 1);
+			txQueue.put(streamCmd(EmCanCmd.KEEPALIVE.toCode()), TxQueue.Lane.NORMAL);
+			break;
+		case DEAD:
+			throw new IOException("No response from server in " + link.deadlineMs() + " ms");
+		default:
+			break;
+		}
+	}
+
+	/* Read what the server has sent and handle each complete response. */
+	private void read() throws IOException {
+		int frmLen;
+
+		rcvBuf.compact();
+		int bytes = channel.read(rcvBuf);
+		rcvBuf.flip();
+		if (bytes < 0) {
+			throw new EOFException("Server closed the connection");
+		}
+		if (capture != null && bytes > 0) {
+			capture.received(rcvBuf.array(), rcvBuf.limit() - bytes, bytes);
+		}
+		link.received(System.nanoTime());
+
+		while ((frmLen = EmCanParser.frameLength(rcvBuf)) > 0) {
+			dispatchRsp(rcvBuf.position(), frmLen);
+			rcvBuf.position(rcvBuf.position() + frmLen);
+		}
+
+		/* A response too long for the buffer can never complete, drop it. */
+		if (frmLen < 0) {
+			rcvBuf.position(rcvBuf.limit());
+		}
+	}
+
+	/* Handle one complete response. */
+	private void dispatchRsp(int pos, int len) throws IOException {
+
+		Trace.event(Trace.Stage.RX_RSP, Trace.NO_THROTTLE, rcvBuf.get(pos) & 0xFF, len);
+		switch (EmCanRsp.fromCode(rcvBuf.get(pos) & 0xFF)) {
+
+		case PONG:
+			txQueue.pong();
+			break;
+
+		case ID:
+			if (!identified) {
+				int protVersion = EmCanParser.idVersion(rcvBuf, pos, len);
+				if (protVersion < 0) {
+					throw new IOException("Server is not a MorBus server");
+				}
+				identified = true;
+				txQueue.open();
+				listener.connected(protVersion);
+			}
+			break;
+
+		default:
+			/* Nothing else is acted on yet. */
+			break;
+		}
+	}
+
+	/* Write as much of the output buffer as the socket takes, and wait for it to take the rest. */
+	private void flush() throws IOException {
+		if (!channel.isConnected()) {
+			return;
+		}
+		if (outBuf.position() > 0) {
+			outBuf.flip();
+			int from = outBuf.position();
+			channel.write(outBuf);
+			if (capture != null) {
+				capture.sent(outBuf.array(), from, outBuf.position() - from);
+			}
+			outBuf.compact();
+		}
+		int ops = (outBuf.position() > 0) ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+		if (key.interestOps() != ops) {
+			key.interestOps(ops);
+		}
+	}
+
+	/* Open the session capture, the transport goes ahead without it if it fails. */
+	private static SessionCapture newCapture(CommsConfig config) {
+		try {
+			return config.newCapture();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/* Return the output buffer with room for len more bytes. */
+	private ByteBuffer reserve(int len) {
+		if (outBuf.remaining() < len) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * outBuf.capacity(), outBuf.position() + len));
+			outBuf.flip();
+			grown.put(outBuf);
+			outBuf = grown;
+		}
+		return outBuf;
+	}
+}
@@ -0,0 +1,167 @@
+package com.olinsdepot.mbus_srvc;
+
+import java.util.ArrayDeque;
+
+import com.olinsdepot.mbus_srvc.DecoderRegistry.Entry;
+
+/**
+ * Client side refresh of speed commands. When it is used the command station
+ * sends each speed step its repetition count and no more, and the service
+ * resends the speeds of the moving decoders from this schedule, so track
+ * bandwidth goes to the locos that are actually moving.
+ *
+ * Each tick picks a fixed number of decoders. Decoders whose speed changed
+ * recently are picked first for a few ticks so a new speed is repeated quickly,
+ * the rest of the tick goes round robin over every moving decoder. Stopped
+ * decoders drop out of the schedule, their stop command has already been
+ * repeated by the command station.
+ *
+ * The scheduler is only used from the service's client message thread and is
+ * not synchronized.
+ *
+ * @author mhughes
+ *
+ */
+public class RefreshScheduler {
+
+	private final int perTick;
+	private final int boostTicks;
+
+	/* Moving decoders, refreshed round robin. */
+	private Entry[] ring = new Entry[16];
+	private int ringSize = 0;
+	private int cursor = 0;
+
+	/* Decoders with a recent speed change, ahead of the round robin. */
+	private final ArrayDeque<Entry> recent = new ArrayDeque<Entry>();
+
+	private long tick = 0;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param perTick - decoders refreshed each tick.
+	 * @param boostTicks - ticks a changed speed goes ahead of the round robin.
+	 */
+	public RefreshScheduler(int perTick, int boostTicks) {
+		this.perTick = Math.max(1, perTick);
+		this.boostTicks = Math.max(0, boostTicks);
+	}
+
+	/**
+	 * Return the number of decoders refreshed each tick.
+	 */
+	public int perTick() {
+		return perTick;
+	}
+
+	/**
+	 * A new speed step was sent to a decoder.
+	 *
+	 * @param entry - the decoder.
+	 * @param speed - speed step sent, 0 takes the decoder out of the schedule.
+	 */
+	public void changed(Entry entry, int speed) {
+		if (speed == 0) {
+			stopped(entry);
+			return;
+		}
+		entry.speed = speed;
+		if (!inRing(entry)) {
+			if (ringSize == ring.length) {
+				Entry[] grown = new Entry[2 * ring.length];
+				System.arraycopy(ring, 0, grown, 0, ringSize);
+				ring = grown;
+			}
+			entry.ringIndex = ringSize;
+			ring[ringSize++] = entry;
+		}
+		if (entry.boost == 0 && boostTicks > 0) {
+			recent.addLast(entry);
+		}
+		entry.boost = boostTicks;
+	}
+
+	/**
+	 * A decoder was stopped, reset or released, take it out of the schedule.
+	 *
+	 * @param entry - the decoder.
+	 */
+	public void stopped(Entry entry) {
+		entry.speed = 0;
+		entry.boost = 0;
+		if (inRing(entry)) {
+			/* Fill the gap with the last decoder in the ring. */
+			Entry last = ring[--ringSize];
+			ring[entry.ringIndex] = last;
+			last.ringIndex = entry.ringIndex;
+			ring[ringSize] = null;
+		}
+		entry.ringIndex = -1;
+		recent.remove(entry);
+	}
+
+	/**
+	 * Take every decoder out of the schedule, (emergency stop).
+	 */
+	public void clear() {
+		while (ringSize > 0) {
+			stopped(ring[ringSize - 1]);
+		}
+		recent.clear();
+		cursor = 0;
+	}
+
+	/**
+	 * Return the number of decoders in the schedule.
+	 */
+	public int size() {
+		return ringSize;
+	}
+
+	/**
+	 * Pick the decoders to refresh this tick.
+	 *
+	 * @param out - array to put them in, at least perTick long.
+	 * @return number of decoders picked.
+	 */
+	public int next(Entry[] out) {
+		int n = 0;
+		tick++;
+
+		/* Recently changed speeds first. */
+		int pending = recent.size();
+		while (n < perTick && pending-- > 0) {
+			Entry entry = recent.pollFirst();
+			out[n++] = entry;
+			entry.pickedAt = tick;
+			if (--entry.boost > 0) {
+				recent.addLast(entry);
+			}
+		}
+
+		/* Then round robin over the moving decoders not already picked. */
+		for (int seen = 0; n < perTick && seen < ringSize; seen++) {
+			if (cursor >= ringSize) {
+				cursor = 0;
+			}
+			Entry entry = ring[cursor++];
+			if (entry.pickedAt != tick) {
+				out[n++] = entry;
+				entry.pickedAt = tick;
+			}
+		}
+		return n;
+	}
+
+
+	/*
+	 * Return true if a decoder is in this schedule's ring. A ring index left
+	 * by an earlier schedule, (the service makes a new one on each connect),
+	 * doesn't count.
+	 */
+	private boolean inRing(Entry entry) {
+		return entry.ringIndex >= 0 && entry.ringIndex < ringSize && ring[entry.ringIndex] == entry;
+	}
+}
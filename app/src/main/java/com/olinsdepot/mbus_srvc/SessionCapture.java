@@ -0,0 +1,219 @@
+package com.olinsdepot.mbus_srvc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Capture of everything a transport sends to and receives from the server,
+ * for replaying an operating session against the stand-in server, (see the
+ * SessionReplay tool in mbus_sim).
+ *
+ * Each socket write and each socket read is a record: the direction, the time
+ * since the previous record in microseconds, the byte count and the bytes. The
+ * time and count are written as variable length integers, so a record costs a
+ * few bytes more than the data it holds. Records are written to a buffered
+ * stream, the send and receive threads only take the capture's lock for the
+ * copy.
+ *
+ * If the capture can't be written it stops, the transport carries on without
+ * it.
+ *
+ * File format, big endian: MAGIC, VERSION, wall clock ms at the start, then the
+ * records.
+ *
+ * @author mhughes
+ *
+ */
+public class SessionCapture {
+
+	public static final int MAGIC = 0x4D424350;	/* "MBCP" */
+	public static final int VERSION = 1;
+
+	/* Record directions. */
+	public static final int SENT = 0;
+	public static final int RECEIVED = 1;
+
+	private static final int BUF_SIZE = 64 * 1024;
+
+	private final DataOutputStream out;
+	private long lastNanos;
+	private boolean failed = false;
+
+
+	/**
+	 * Constructor: writes the capture header.
+	 *
+	 * @param stream - where the capture is written, closed by close().
+	 * @throws IOException if the header can't be written.
+	 */
+	public SessionCapture(OutputStream stream) throws IOException {
+		this.out = new DataOutputStream(new BufferedOutputStream(stream, BUF_SIZE));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(System.currentTimeMillis());
+		lastNanos = System.nanoTime();
+	}
+
+	/**
+	 * Record bytes written to the socket.
+	 */
+	public void sent(byte[] b, int off, int len) {
+		record(SENT, b, off, len);
+	}
+
+	/**
+	 * Record bytes read from the socket.
+	 */
+	public void received(byte[] b, int off, int len) {
+		record(RECEIVED, b, off, len);
+	}
+
+	/**
+	 * Return false once a record couldn't be written and the capture stopped.
+	 */
+	public synchronized boolean isOk() {
+		return !failed;
+	}
+
+	/**
+	 * Write out what is buffered and close the stream.
+	 */
+	public synchronized void close() throws IOException {
+		failed = true;
+		out.close();
+	}
+
+
+	/* Write one record, unless the capture has stopped. */
+	private synchronized void record(int dir, byte[] b, int off, int len) {
+		if (failed || len <= 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		try {
+			out.writeByte(dir);
+			writeVarint((now - lastNanos) / 1000);
+			writeVarint(len);
+			out.write(b, off, len);
+		} catch (IOException e) {
+			failed = true;
+		}
+
+		/* Keep the sub microsecond remainder, so the times don't drift. */
+		lastNanos = now - (now - lastNanos) % 1000;
+	}
+
+	/* Seven bits a byte, low bits first, high bit set on all but the last. */
+	private void writeVarint(long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int) (v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+
+	/**
+	 * Reads a capture back one record at a time. The record's bytes are in a
+	 * buffer that is reused for the next record.
+	 */
+	public static final class Reader {
+
+		private final DataInputStream in;
+		private final long startMs;
+		private byte[] data = new byte[256];
+		private int dir;
+		private int length;
+		private long timeUs = 0;
+
+		/**
+		 * Constructor: reads the capture header.
+		 *
+		 * @param stream - capture written by SessionCapture.
+		 * @throws IOException if the stream isn't a capture.
+		 */
+		public Reader(InputStream stream) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(stream));
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a MorBus session capture");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unknown session capture version " + version);
+			}
+			this.startMs = in.readLong();
+		}
+
+		/**
+		 * Read the next record.
+		 *
+		 * @return false at the end of the capture.
+		 * @throws IOException if the capture is cut off in the middle of a record.
+		 */
+		public boolean next() throws IOException {
+			int d = in.read();
+			if (d < 0) {
+				return false;
+			}
+			dir = d;
+			timeUs += readVarint();
+			length = (int) readVarint();
+			if (length > data.length) {
+				data = new byte[Math.max(length, 2 * data.length)];
+			}
+			in.readFully(data, 0, length);
+			return true;
+		}
+
+		/* Return the wall clock ms the capture started at. */
+		public long startMs() {
+			return startMs;
+		}
+
+		/* Return SENT or RECEIVED. */
+		public int direction() {
+			return dir;
+		}
+
+		/* Return the record's time since the capture started, in microseconds. */
+		public long timeUs() {
+			return timeUs;
+		}
+
+		/* Return the number of bytes in the record. */
+		public int length() {
+			return length;
+		}
+
+		/* Return the buffer holding the record's bytes, from index 0. */
+		public byte[] data() {
+			return data;
+		}
+
+		/* Close the stream. */
+		public void close() throws IOException {
+			in.close();
+		}
+
+		private long readVarint() throws IOException {
+			long v = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = in.read();
+				if (b < 0) {
+					throw new EOFException("Session capture cut off");
+				}
+				v |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return v;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.olinsdepot.mbus_srvc;
+
+/**
+ * Throttle slot holds the latest speed command for one throttle. The service
+ * puts each new speed command in the slot and the Comms thread takes it when
+ * there is room in the transmit window, so speed commands that were superseded
+ * while waiting are never sent. Only one send message is queued to the Comms
+ * thread per slot at a time. The message carries the slot's epoch, clearing the
+ * slot starts a new epoch so messages already queued for it are ignored.
+ * 
+ * The command is copied into the slot's own buffer and copied out of it into
+ * the frame being sent, so a speed change doesn't allocate.
+ *
+ * @author mhughes
+ *
+ */
+public class ThrottleSlot {
+
+	private final byte[] dccCmd = new byte[TxQueue.MAX_DATA_LEN];
+	private int cmdLen;
+	private boolean queued;
+	private int epoch;
+
+	/**
+	 * Constructor: empty slot.
+	 */
+	public ThrottleSlot() {
+		this.cmdLen = 0;
+		this.queued = false;
+		this.epoch = 0;
+	}
+
+	/**
+	 * Replace the command in the slot.
+	 *
+	 * @param cmd - buffer holding the DCC command to send.
+	 * @param len - length of the command, up to MAX_DATA_LEN.
+	 * @return epoch to put in a new send message, or -1 if one is already queued.
+	 */
+	public synchronized int put(byte[] cmd, int len) {
+		System.arraycopy(cmd, 0, this.dccCmd, 0, len);
+		this.cmdLen = len;
+		if (this.queued) {
+			return -1;
+		}
+		this.queued = true;
+		return this.epoch;
+	}
+
+	/**
+	 * Take the command from the slot.
+	 *
+	 * @param msgEpoch - epoch from the send message.
+	 * @param buf - buffer to copy the command to, MAX_DATA_LEN bytes from off.
+	 * @param off - index in buf to copy to.
+	 * @return length of the latest command, or 0 if the slot was cleared since the message was queued.
+	 */
+	public synchronized int take(int msgEpoch, byte[] buf, int off) {
+		if (msgEpoch != this.epoch) {
+			return 0;
+		}
+		int len = this.cmdLen;
+		System.arraycopy(this.dccCmd, 0, buf, off, len);
+		this.cmdLen = 0;
+		this.queued = false;
+		return len;
+	}
+
+	/**
+	 * Discard any pending command, (e.g. it has been overridden by a stop).
+	 */
+	public synchronized void clear() {
+		this.cmdLen = 0;
+		this.queued = false;
+		this.epoch = (this.epoch + 1) & 0x7FFFFFFF;
+	}
+}
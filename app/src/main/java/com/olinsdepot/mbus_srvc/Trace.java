@@ -0,0 +1,209 @@
+package com.olinsdepot.mbus_srvc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Binary trace of the command pipeline. Each stage a command passes through,
+ * (client input, service, encoder, transmit queue, socket write, server
+ * response), records a fixed size event in a ring allocated when the class is
+ * loaded: a time stamp, the stage, the throttle, an opcode and a length. The
+ * ring keeps the latest EVENTS events.
+ *
+ * Recording takes a slot with one atomic increment and writes two longs, it
+ * doesn't build strings or allocate, so it can be left on at an operating
+ * session. While tracing is off an event costs one volatile read.
+ *
+ * The ring is dumped to a file on demand and decoded offline, (see decode and
+ * the TraceDecode tool in mbus_sim). Events being recorded during a dump may
+ * be dumped half written.
+ *
+ * Dump format, big endian: MAGIC, VERSION, event count, wall clock ms and
+ * System.nanoTime() at the dump, then per event, oldest first, its nanoTime()
+ * and the packed stage, throttle, opcode, length and sequence number.
+ *
+ * @author mhughes
+ *
+ */
+public final class Trace {
+
+	/**
+	 * Pipeline stages. Opcode and length hold what is noted for each, the
+	 * throttle of client commands is their ARG1.
+	 */
+	public static enum Stage {
+		CLIENT_CMD,		/* Client sent a command. op = MbusSrvcCmd, len = ARG2. */
+		SRVC_CMD,		/* Service took a command. op = MbusSrvcCmd, len = ARG2. */
+		ENCODE,			/* Service encoded a DCC command. op = broadcast op, len = bytes. */
+		TX_QUEUE,		/* Command queued to the transport. op = stream or broadcast op, len = bytes. */
+		TX_WRITE,		/* Batch written to the socket. op = commands, len = bytes. */
+		RX_RSP,			/* Response from the server. op = EmCanRsp, len = bytes. */
+		KEEPALIVE,		/* Link quiet, keep alive sent. */
+		LINK_UP,		/* Server identified. op = protocol version. */
+		LINK_DOWN,		/* Connection lost or attempt failed. */
+		CLIENT_EVT,		/* Client received an event. op = MbusSrvcEvt, len = ARG1. */
+		UNKNOWN;
+
+		/* Returns the code for this stage. */
+		public int toCode() {
+			return this.ordinal();
+		}
+
+		/* Returns the stage for the code passed. */
+		public static Stage fromCode(int code) {
+			if (code >= 0 && code < UNKNOWN.ordinal()) {
+				return Stage.values()[code];
+			} else {
+				return UNKNOWN;
+			}
+		}
+	}
+
+	/* Throttle field of events that aren't for one throttle. */
+	public static final int NO_THROTTLE = 0xFF;
+
+	public static final int MAGIC = 0x4D425452;	/* "MBTR" */
+	public static final int VERSION = 1;
+
+	/* Events kept, a power of two, 16 bytes each. */
+	private static final int EVENTS = 1 << 14;
+	private static final int MASK = EVENTS - 1;
+
+	private static final long[] ring = new long[2 * EVENTS];
+	private static final AtomicLong next = new AtomicLong();
+	private static volatile boolean enabled = false;
+
+
+	private Trace() {
+	}
+
+	/**
+	 * Record an event, if tracing is on.
+	 *
+	 * @param stage - pipeline stage.
+	 * @param throttle - throttle ID, or NO_THROTTLE.
+	 * @param op - opcode, see Stage.
+	 * @param len - length, see Stage.
+	 */
+	public static void event(Stage stage, int throttle, int op, int len) {
+		if (!enabled) {
+			return;
+		}
+		long seq = next.getAndIncrement();
+		int i = 2 * ((int) seq & MASK);
+		ring[i] = System.nanoTime();
+		ring[i + 1] = ((long) stage.ordinal() << 56) |
+				((long) (throttle & 0xFF) << 48) |
+				((long) (op & 0xFFFF) << 32) |
+				((long) (len & 0xFFFF) << 16) |
+				(seq & 0xFFFF);
+	}
+
+	/**
+	 * Turn tracing on or off. Events already recorded are kept.
+	 */
+	public static void enable(boolean on) {
+		enabled = on;
+	}
+
+	/**
+	 * Return true while tracing is on.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Return the number of events recorded since the trace was cleared, (the
+	 * ring holds the latest EVENTS of them).
+	 */
+	public static long recorded() {
+		return next.get();
+	}
+
+	/**
+	 * Discard the events recorded.
+	 */
+	public static void clear() {
+		next.set(0);
+	}
+
+	/**
+	 * Write the events in the ring to a stream, oldest first.
+	 *
+	 * @param out - stream to write to, it is flushed but not closed.
+	 * @return the number of events written.
+	 */
+	public static int dump(OutputStream out) throws IOException {
+		long end = next.get();
+		long start = Math.max(0, end - EVENTS);
+		DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		data.writeInt((int) (end - start));
+		data.writeLong(System.currentTimeMillis());
+		data.writeLong(System.nanoTime());
+		for (long seq = start; seq < end; seq++) {
+			int i = 2 * ((int) seq & MASK);
+			data.writeLong(ring[i]);
+			data.writeLong(ring[i + 1]);
+		}
+		data.flush();
+		return (int) (end - start);
+	}
+
+	/**
+	 * Print a dump as text, one event per line: microseconds since the first
+	 * event, the stage, throttle, opcode and length. Events whose sequence
+	 * number doesn't follow on were overwritten while the dump was written, and
+	 * are marked.
+	 *
+	 * @param in - dump written by dump().
+	 * @param out - where to print.
+	 * @throws IOException if the stream isn't a trace dump.
+	 */
+	public static void decode(InputStream in, PrintStream out) throws IOException {
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+
+		if (data.readInt() != MAGIC) {
+			throw new IOException("Not a MorBus trace dump");
+		}
+		int version = data.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unknown trace dump version " + version);
+		}
+		int count = data.readInt();
+		long wallMs = data.readLong();
+		long dumpNanos = data.readLong();
+		out.println(count + " events, dumped at " + new Date(wallMs));
+
+		long first = 0;
+		int lastSeq = -1;
+		for (int n = 0; n < count; n++) {
+			long time = data.readLong();
+			long packed = data.readLong();
+			int seq = (int) (packed & 0xFFFF);
+			if (n == 0) {
+				first = time;
+				out.println("first event " + (dumpNanos - time) / 1000000 + " ms before the dump");
+			}
+			out.println(String.format("%12.1f  %-10s  %3s  %5d  %5d%s",
+					(time - first) / 1e3,
+					Stage.fromCode((int) (packed >>> 56)),
+					((packed >>> 48) & 0xFF) == NO_THROTTLE ? "-" : Long.toString((packed >>> 48) & 0xFF),
+					(packed >>> 32) & 0xFFFF,
+					(packed >>> 16) & 0xFFFF,
+					(lastSeq >= 0 && seq != ((lastSeq + 1) & 0xFFFF)) ? "  (torn)" : ""));
+			lastSeq = seq;
+		}
+	}
+}
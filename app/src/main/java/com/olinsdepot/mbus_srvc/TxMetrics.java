@@ -0,0 +1,92 @@
+package com.olinsdepot.mbus_srvc;
+
+/**
+ * Write counts for a TxQueue. A segment is one write to the socket, with
+ * TCP_NODELAY on each one normally goes out as one TCP segment. A command is
+ * one frame with its PING.
+ *
+ * The queue updates its counts holding its lock, the copies it hands out are
+ * not changed after that.
+ *
+ * @author mhughes
+ *
+ */
+public class TxMetrics {
+
+	private final long startedAt;
+	private long elapsed;
+	private long segments;
+	private long bytes;
+	private long commands;
+
+
+	/* Constructor, counting from now. */
+	TxMetrics() {
+		this.startedAt = System.nanoTime();
+	}
+
+	/* Count one write of len bytes holding cmds commands. */
+	void record(int len, int cmds) {
+		segments++;
+		bytes += len;
+		commands += cmds;
+	}
+
+	/* Return a copy of the counts so far. */
+	TxMetrics snapshot() {
+		TxMetrics copy = new TxMetrics();
+		copy.elapsed = System.nanoTime() - startedAt;
+		copy.segments = segments;
+		copy.bytes = bytes;
+		copy.commands = commands;
+		return copy;
+	}
+
+	/**
+	 * Return the number of writes to the socket.
+	 */
+	public long segments() {
+		return segments;
+	}
+
+	/**
+	 * Return the number of bytes written.
+	 */
+	public long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Return the number of commands written.
+	 */
+	public long commands() {
+		return commands;
+	}
+
+	/**
+	 * Return the average writes per second since the queue was made.
+	 */
+	public double segmentsPerSec() {
+		return (elapsed > 0) ? segments * 1e9 / elapsed : 0;
+	}
+
+	/**
+	 * Return the average bytes written per command, PINGs included.
+	 */
+	public double bytesPerCmd() {
+		return (commands > 0) ? (double) bytes / commands : 0;
+	}
+
+	/**
+	 * Return the average commands carried by each write.
+	 */
+	public double cmdsPerSegment() {
+		return (segments > 0) ? (double) commands / segments : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d cmds in %d segments, %.1f segments/s, %.2f bytes/cmd, %.2f cmds/segment",
+				commands, segments, segmentsPerSec(), bytesPerCmd(), cmdsPerSegment());
+	}
+}
@@ -0,0 +1,548 @@
+package com.olinsdepot.mbus_srvc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import com.olinsdepot.mbus_proto.EmCan;
+
+/**
+ * Outbound frame queue for the Comms thread. Frames wait in one of two lanes
+ * and are written to the server as the transmit window allows. The safety lane,
+ * (emergency stop, power off), is always drained first and has one slot in the
+ * window reserved for it, so a safety frame never waits behind normal traffic
+ * for either queue position or window credit.
+ *
+ * Every frame is followed by a PING, the server's PONG frees the frame's slot in
+ * the window. The queue is pumped by whichever thread changes its state, the
+ * send thread when a frame is queued and the receive thread when a PONG arrives,
+ * so neither thread ever blocks waiting for the window. The time from writing
+ * each PING to its PONG is passed to the link monitor, if there is one.
+ * 
+ * Frames and their PINGs are gathered into a batch that is written to the
+ * stream in one write, so a frame and its PING, and every frame ready in the
+ * same pass, go out in one TCP segment instead of one each. By default the
+ * batch is written at the end of each pass. With a flush window it is held for
+ * up to that long for more frames to join it, unless it holds a safety frame,
+ * it is full or the transmit window is.
+ *
+ * Queue entries are recycled and throttle slot frames are built in a buffer
+ * owned by the queue, so sending a speed step doesn't allocate.
+ *
+ * A frame can be queued with an Ack, which is told when the frame's PONG
+ * arrives, (the command station has taken it).
+ *
+ * With a metrics registry the queue counts what it writes and what it loses to
+ * a failed write there, keeps its depth and window gauges up to date and
+ * records the lane latencies in the registry's histograms.
+ *
+ * @author mhughes
+ *
+ */
+public class TxQueue {
+
+	/**
+	 * Priority lanes.
+	 */
+	public static enum Lane {
+		NORMAL,
+		SAFETY
+	}
+
+	/**
+	 * Wraps DCC data taken from a throttle slot into a complete frame.
+	 */
+	public interface Framer {
+		/* Put the frame for len bytes of data with broadcast opcode op into out. */
+		void frame(int op, byte[] data, int len, ByteBuffer out);
+	}
+
+	/**
+	 * Told when the server has taken a frame queued with it.
+	 */
+	public interface Ack {
+		/*
+		 * The PONG for the frame queued with tag arrived. Called on the thread
+		 * that passed the PONG in, holding the queue's lock, so it should only
+		 * hand the tag on. Frames lost with the connection are never acked.
+		 */
+		void acked(int tag);
+	}
+
+	/**
+	 * Arranges for flushIfDue() to be called once a flush window has passed.
+	 */
+	public interface FlushTimer {
+		/* Call flushIfDue() on the queue after delayNanos. */
+		void schedule(long delayNanos);
+	}
+
+	/* Longest data field of a frame, (one CAN frame). */
+	public static final int MAX_DATA_LEN = EmCan.MAX_DATA_LEN;
+	
+	/* Window slots only the safety lane may use. */
+	private static final int SAFETY_RESERVE = 1;
+	private static final byte PING = 1;
+	private static final int MAX_FRAME_LEN = 32;
+	private static final int BATCH_SIZE = 1024;
+
+	/* A queued frame, either complete or to be taken from a throttle slot when sent. */
+	private static final class Entry {
+		private byte[] frame;
+		private ThrottleSlot slot;
+		private int epoch;
+		private int op;
+		private long queuedAt;
+		private Ack ack;
+		private int tag;
+
+		private Entry set(byte[] frame, ThrottleSlot slot, int epoch, int op) {
+			this.frame = frame;
+			this.slot = slot;
+			this.epoch = epoch;
+			this.op = op;
+			this.queuedAt = System.nanoTime();
+			this.ack = null;
+			return this;
+		}
+	}
+
+	private final OutputStream outputStream;
+	private final Framer framer;
+	private final int txWindow;
+	private final ArrayDeque<Entry> safetyLane = new ArrayDeque<Entry>();
+	private final ArrayDeque<Entry> normalLane = new ArrayDeque<Entry>();
+	private final ArrayDeque<Entry> spareEntries = new ArrayDeque<Entry>();
+	private final byte[] slotData = new byte[MAX_DATA_LEN];
+	private final byte[] txFrame = new byte[MAX_FRAME_LEN];
+	private final ByteBuffer txBuf = ByteBuffer.wrap(txFrame);
+	private int inFlight = 0;
+	private boolean open = false;
+
+	/* Time from queueing to socket write, per lane. */
+	private LatencyHistogram safetyLatency = new LatencyHistogram();
+	private LatencyHistogram normalLatency = new LatencyHistogram();
+
+	/* Registry counts and gauges, null without a registry. */
+	private MetricsRegistry.Counter cmdsOut;
+	private MetricsRegistry.Counter bytesOut;
+	private MetricsRegistry.Counter segmentsOut;
+	private MetricsRegistry.Counter cmdsDropped;
+	private MetricsRegistry.Gauge depthGauge;
+	private MetricsRegistry.Gauge inFlightGauge;
+
+	/*
+	 * Frames and PINGs waiting to be written together. The queue times and lane
+	 * histograms of the frames in it are kept so their latency is recorded when
+	 * the batch is actually written. Every frame in the batch is in the window,
+	 * so the window bounds how many there are.
+	 */
+	private final byte[] batch = new byte[BATCH_SIZE];
+	private final long[] batchQueuedAt;
+	private final LatencyHistogram[] batchLatency;
+	private final Ack[] batchAck;
+	private final int[] batchTag;
+	private int batchLen = 0;
+	private int batchCmds = 0;
+	private boolean batchUrgent = false;
+	private long batchStartedAt;
+
+	/* How long a batch may wait for more frames, 0 = written at the end of each pass. */
+	private long flushWindow = 0;
+	private FlushTimer flushTimer;
+	private boolean flushScheduled = false;
+
+	private final TxMetrics metrics = new TxMetrics();
+
+	/*
+	 * Write times of the PINGs waiting for their PONG, oldest at pingHead, for
+	 * round trip times, and the acks of their frames.
+	 */
+	private final long[] pingSentAt;
+	private final Ack[] pingAck;
+	private final int[] pingTag;
+	private int pingHead = 0;
+	private int pingCount = 0;
+	private LinkMonitor monitor;
+
+
+	/**
+	 * Constructor
+	 *
+	 * @param out - stream to the server.
+	 * @param window - max frames sent ahead of their PONG, not counting the safety reserve.
+	 * @param framer - builds frames for throttle slot entries.
+	 */
+	public TxQueue(OutputStream out, int window, Framer framer) {
+		this.outputStream = out;
+		this.txWindow = window;
+		this.framer = framer;
+		this.batchQueuedAt = new long[window + SAFETY_RESERVE];
+		this.batchLatency = new LatencyHistogram[window + SAFETY_RESERVE];
+		this.batchAck = new Ack[window + SAFETY_RESERVE];
+		this.batchTag = new int[window + SAFETY_RESERVE];
+		this.pingSentAt = new long[window + SAFETY_RESERVE];
+		this.pingAck = new Ack[window + SAFETY_RESERVE];
+		this.pingTag = new int[window + SAFETY_RESERVE];
+	}
+
+	/**
+	 * Report writes and round trip times to a link monitor.
+	 *
+	 * @param monitor - link monitor, or null for none.
+	 */
+	public synchronized void setMonitor(LinkMonitor monitor) {
+		this.monitor = monitor;
+	}
+
+	/**
+	 * Report to a metrics registry, (tx.cmds, tx.bytes, tx.segments, tx.dropped,
+	 * tx.depth, tx.inflight and the tx.safety and tx.normal latencies). Set before
+	 * the queue is opened.
+	 *
+	 * @param registry - metrics registry, or null for none.
+	 */
+	public synchronized void setMetrics(MetricsRegistry registry) {
+		if (registry == null) {
+			return;
+		}
+		safetyLatency = registry.histogram("tx.safety");
+		normalLatency = registry.histogram("tx.normal");
+		cmdsOut = registry.counter("tx.cmds");
+		bytesOut = registry.counter("tx.bytes");
+		segmentsOut = registry.counter("tx.segments");
+		cmdsDropped = registry.counter("tx.dropped");
+		depthGauge = registry.gauge("tx.depth");
+		inFlightGauge = registry.gauge("tx.inflight");
+	}
+
+	/**
+	 * Set the flush window. Frames are held for up to this long so that frames
+	 * queued soon after them go out in the same write. Safety frames are always
+	 * written at once.
+	 *
+	 * @param nanos - flush window, 0 to write each pass's frames as soon as they are built.
+	 * @param timer - calls flushIfDue() when a held batch is due, may be null if nanos is 0.
+	 */
+	public synchronized void setFlushWindow(long nanos, FlushTimer timer) {
+		if (nanos > 0 && timer == null) {
+			throw new IllegalArgumentException("Flush window needs a timer");
+		}
+		this.flushWindow = Math.max(0, nanos);
+		this.flushTimer = timer;
+	}
+
+	/**
+	 * Start sending. Frames queued before the server is connected are held until then.
+	 */
+	public synchronized void open() throws IOException {
+		this.open = true;
+		pump();
+	}
+
+	/**
+	 * Queue a complete frame.
+	 *
+	 * @param frame - bytes to send.
+	 * @param lane - priority lane.
+	 */
+	public synchronized void put(byte[] frame, Lane lane) throws IOException {
+		put(frame, lane, null, 0);
+	}
+
+	/**
+	 * Queue a complete frame and have ack told when the server has taken it.
+	 *
+	 * @param frame - bytes to send.
+	 * @param lane - priority lane.
+	 * @param ack - told the tag when the frame's PONG arrives, may be null.
+	 * @param tag - passed to ack.
+	 */
+	public synchronized void put(byte[] frame, Lane lane, Ack ack, int tag) throws IOException {
+		Entry entry = obtainEntry().set(frame, null, 0, 0);
+		entry.ack = ack;
+		entry.tag = tag;
+		laneFor(lane).addLast(entry);
+		pump();
+		updateGauges();
+	}
+
+	/**
+	 * Queue a send from a throttle slot. The slot is read when the frame is
+	 * written so the latest command in it is the one sent.
+	 *
+	 * @param slot - throttle slot.
+	 * @param epoch - slot epoch from the send message.
+	 * @param op - broadcast opcode for the frame.
+	 */
+	public synchronized void putSlot(ThrottleSlot slot, int epoch, int op) throws IOException {
+		normalLane.addLast(obtainEntry().set(null, slot, epoch, op));
+		pump();
+		updateGauges();
+	}
+
+	/**
+	 * A PONG was received, retire the oldest frame in the window.
+	 */
+	public synchronized void pong() throws IOException {
+		if (inFlight > 0) {
+			inFlight--;
+		}
+		if (pingCount > 0) {
+			long rtt = System.nanoTime() - pingSentAt[pingHead];
+			Ack ack = pingAck[pingHead];
+			pingAck[pingHead] = null;
+			if (ack != null) {
+				ack.acked(pingTag[pingHead]);
+			}
+			pingHead = (pingHead + 1) % pingSentAt.length;
+			pingCount--;
+			if (monitor != null) {
+				monitor.pong(rtt, pingCount > 0);
+			}
+		}
+		pump();
+		updateGauges();
+	}
+
+	/**
+	 * Write the frames held in the batch now.
+	 */
+	public synchronized void flush() throws IOException {
+		flushBatch();
+	}
+
+	/**
+	 * Write the frames held in the batch if their flush window has passed,
+	 * otherwise schedule another call for when it will have.
+	 */
+	public synchronized void flushIfDue() throws IOException {
+		flushScheduled = false;
+		if (batchLen == 0) {
+			return;
+		}
+		long wait = batchStartedAt + flushWindow - System.nanoTime();
+		if (wait <= 0) {
+			flushBatch();
+		} else {
+			flushScheduled = true;
+			flushTimer.schedule(wait);
+		}
+	}
+
+	/**
+	 * Return the number of frames sent and not yet acknowledged.
+	 */
+	public synchronized int inFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Return the number of frames waiting to be sent.
+	 */
+	public synchronized int depth() {
+		return safetyLane.size() + normalLane.size();
+	}
+
+	/**
+	 * Return the queue to socket latency histogram for a lane.
+	 */
+	public LatencyHistogram latency(Lane lane) {
+		return (lane == Lane.SAFETY) ? safetyLatency : normalLatency;
+	}
+
+	/**
+	 * Return a copy of the write counts so far.
+	 */
+	public synchronized TxMetrics metrics() {
+		return metrics.snapshot();
+	}
+
+
+	/* Return a recycled entry, or a new one if none are spare. */
+	private Entry obtainEntry() {
+		Entry entry = spareEntries.pollFirst();
+		return (entry != null) ? entry : new Entry();
+	}
+
+	/* Return the deque for a lane. */
+	private ArrayDeque<Entry> laneFor(Lane lane) {
+		return (lane == Lane.SAFETY) ? safetyLane : normalLane;
+	}
+
+	/* Send queued frames while the window has room. Called holding the lock. */
+	private void pump() throws IOException {
+		Entry next;
+
+		while (open) {
+			if (!safetyLane.isEmpty() && inFlight < txWindow + SAFETY_RESERVE) {
+				next = safetyLane.pollFirst();
+				send(next, safetyLatency);
+				batchUrgent = true;
+			} else if (!normalLane.isEmpty() && inFlight < txWindow) {
+				next = normalLane.pollFirst();
+				send(next, normalLatency);
+			} else {
+				break;
+			}
+			next.set(null, null, 0, 0);
+			spareEntries.addLast(next);
+		}
+
+		/*
+		 * Write the batch now, or make sure it is written when its flush window
+		 * ends. Once the transmit window is full no more frames can join it until
+		 * PONGs arrive for frames already written, so it is written at once.
+		 */
+		if (batchLen > 0) {
+			long wait = batchStartedAt + flushWindow - System.nanoTime();
+			if (flushWindow == 0 || batchUrgent || inFlight >= txWindow || wait <= 0) {
+				flushBatch();
+			} else if (!flushScheduled) {
+				flushScheduled = true;
+				flushTimer.schedule(wait);
+			}
+		}
+	}
+
+	/* Add one frame followed by a PING to the batch. */
+	private void send(Entry entry, LatencyHistogram latency) throws IOException {
+
+		if (entry.slot != null) {
+			/* Build the frame and its PING from the slot's latest command. */
+			int len = entry.slot.take(entry.epoch, slotData, 0);
+			if (len == 0) {
+				/* Slot was cleared after this send was queued. */
+				return;
+			}
+			txBuf.clear();
+			framer.frame(entry.op, slotData, len, txBuf);
+			txBuf.put(PING);
+			append(txFrame, 0, txBuf.position());
+		} else if (entry.frame.length < BATCH_SIZE) {
+			reserve(entry.frame.length + 1);
+			System.arraycopy(entry.frame, 0, batch, batchLen, entry.frame.length);
+			batchLen += entry.frame.length;
+			batch[batchLen++] = PING;
+		} else {
+			/* Too long to batch, write it on its own. */
+			flushBatch();
+			try {
+				outputStream.write(entry.frame);
+				outputStream.write(PING);
+			} catch (IOException e) {
+				dropped(1);
+				throw e;
+			}
+			metrics.record(entry.frame.length + 1, 1);
+			counted(entry.frame.length + 1, 1);
+			Trace.event(Trace.Stage.TX_WRITE, Trace.NO_THROTTLE, 1, entry.frame.length + 1);
+			inFlight++;
+			long now = System.nanoTime();
+			latency.record(now - entry.queuedAt);
+			batchAck[0] = entry.ack;
+			batchTag[0] = entry.tag;
+			pinged(now, 1);
+			return;
+		}
+		batchQueuedAt[batchCmds] = entry.queuedAt;
+		batchLatency[batchCmds] = latency;
+		batchAck[batchCmds] = entry.ack;
+		batchTag[batchCmds] = entry.tag;
+		batchCmds++;
+		inFlight++;
+	}
+
+	/* Copy bytes into the batch. */
+	private void append(byte[] src, int off, int len) throws IOException {
+		reserve(len);
+		System.arraycopy(src, off, batch, batchLen, len);
+		batchLen += len;
+	}
+
+	/* Make room in the batch for len bytes and one more frame, writing it out if it is full. */
+	private void reserve(int len) throws IOException {
+		if (batchLen + len > BATCH_SIZE || batchCmds == batchQueuedAt.length) {
+			flushBatch();
+		}
+		if (batchLen == 0) {
+			batchStartedAt = System.nanoTime();
+		}
+	}
+
+	/* Write the batch in one write and record the latency of the frames in it. */
+	private void flushBatch() throws IOException {
+		if (batchLen == 0) {
+			return;
+		}
+		try {
+			outputStream.write(batch, 0, batchLen);
+		} catch (IOException e) {
+			/* The batch is lost with the connection. */
+			dropped(batchCmds);
+			for (int i = 0; i < batchCmds; i++) {
+				batchAck[i] = null;
+			}
+			batchLen = 0;
+			batchCmds = 0;
+			batchUrgent = false;
+			throw e;
+		}
+
+		long now = System.nanoTime();
+		for (int i = 0; i < batchCmds; i++) {
+			batchLatency[i].record(now - batchQueuedAt[i]);
+			batchLatency[i] = null;
+		}
+		metrics.record(batchLen, batchCmds);
+		counted(batchLen, batchCmds);
+		Trace.event(Trace.Stage.TX_WRITE, Trace.NO_THROTTLE, batchCmds, batchLen);
+		pinged(now, batchCmds);
+		batchLen = 0;
+		batchCmds = 0;
+		batchUrgent = false;
+	}
+
+	/* Count a write in the registry. */
+	private void counted(int len, int cmds) {
+		if (cmdsOut != null) {
+			cmdsOut.add(cmds);
+			bytesOut.add(len);
+			segmentsOut.inc();
+		}
+	}
+
+	/* Count commands lost to a failed write in the registry. */
+	private void dropped(int cmds) {
+		if (cmdsDropped != null) {
+			cmdsDropped.add(cmds);
+		}
+	}
+
+	/* Publish the queue depth and window use. Called holding the lock. */
+	private void updateGauges() {
+		if (depthGauge != null) {
+			depthGauge.set(safetyLane.size() + normalLane.size());
+			inFlightGauge.set(inFlight);
+		}
+	}
+
+	/* Note the write time of PINGs just written, and move their frames' acks from the batch. */
+	private void pinged(long now, int count) {
+		for (int i = 0; i < count && pingCount < pingSentAt.length; i++) {
+			int tail = (pingHead + pingCount) % pingSentAt.length;
+			pingSentAt[tail] = now;
+			pingAck[tail] = batchAck[i];
+			pingTag[tail] = batchTag[i];
+			batchAck[i] = null;
+			pingCount++;
+		}
+		if (monitor != null) {
+			monitor.sent(now);
+			if (count > 0) {
+				monitor.pinged();
+			}
+		}
+	}
+}
@@ -8,6 +8,7 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.TextView;
 import android.util.Log;
 
 
@@ -33,6 +34,8 @@ public class CabFragment extends Fragment {
 	 */
 	private int tNum;	/* Number of throttle views assigned to the cab. */
  	private static String rosterUnit[] = new String[T_NUM_MAX]; /* The locos assigned to the throttles. */
+ 	private static boolean metricsShown = false; /* Link stats overlay is on. */
+ 	private TextView metricsView;
 
 	/**
 	 * Keys for argument and instance state bundles.
@@ -80,6 +83,29 @@ public class CabFragment extends Fragment {
     }
     
     
+    /**
+     * Turn the link stats overlay on or off.
+     */
+    public static void showMetrics(boolean show) {
+    	metricsShown = show;
+    }
+    
+    /**
+     * Show the latest metrics from the service in the overlay, if it's on.
+     * 
+     * @param metrics - SRVR_METRICS snapshot, null to only show or hide the overlay.
+     */
+    public void metricsUpdate(Bundle metrics) {
+    	if (metricsView == null) {
+    		return;
+    	}
+    	metricsView.setVisibility(metricsShown ? View.VISIBLE : View.GONE);
+    	if (metricsShown && metrics != null) {
+    		metricsView.setText(metricsText(metrics));
+    	}
+    }
+    
+    
     //////////////////////////////////////////////////////////////////////
     // Life cycle methods for the CAB fragment
     //////////////////////////////////////////////////////////////////////
@@ -117,6 +143,8 @@ public class CabFragment extends Fragment {
         if (L) Log.i(TAG, "onCreateView" + (null == savedInstanceState ? " No saved state" : " Restored state") + " tNUM = " + tNum);
 
         final View rootView = inflater.inflate(R.layout.fragment_cab, container, false);
+        metricsView = (TextView) rootView.findViewById(R.id.METRICS_OVERLAY);
+        metricsUpdate(null);
 
         FragmentManager fragMgr = getChildFragmentManager();
         FragmentTransaction ft = fragMgr.beginTransaction();
@@ -197,4 +225,37 @@ public class CabFragment extends Fragment {
     	super.onSaveInstanceState(toSave);
     	if (L) Log.i(TAG, "onSaveInstanceState");
     }
+    
+    /**
+     * Destroy view notification
+     */
+    @Override
+    public void onDestroyView() {
+    	super.onDestroyView();
+    	if (L) Log.i(TAG, "onDestroyView");
+    	metricsView = null;
+    }
+    
+    
+    //////////////////////////////////////////////////////////////////////
+    // Private Methods
+    //////////////////////////////////////////////////////////////////////
+    
+    /* Format a metrics snapshot for the overlay, times in us. */
+    private static String metricsText(Bundle m) {
+    	return String.format(
+    			"link %s  lost %d  rtt %d us  jitter %d us%n" +
+    			"rtt  p50 %d  p99 %d  max %d us%n" +
+    			"tx   %d cmd/s  %d B/s  %d seg/s%n" +
+    			"q    depth %d  in flight %d%n" +
+    			"lat  safety p99 %d us  normal p99 %d us%n" +
+    			"drop tx %d  srvc %d",
+    			m.getLong("link.up") != 0 ? "up" : "down", m.getLong("link.lost"),
+    			m.getLong("link.srtt"), m.getLong("link.jitter"),
+    			m.getLong("link.rtt:p50"), m.getLong("link.rtt:p99"), m.getLong("link.rtt:max"),
+    			m.getLong("tx.cmds:rate"), m.getLong("tx.bytes:rate"), m.getLong("tx.segments:rate"),
+    			m.getLong("tx.depth"), m.getLong("tx.inflight"),
+    			m.getLong("tx.safety:p99"), m.getLong("tx.normal:p99"),
+    			m.getLong("tx.dropped"), m.getLong("srvc.dropped"));
+    }
 }
\ No newline at end of file
@@ -4,14 +4,17 @@
 package com.olinsdepot.od_traction;
 
 /**
- * An object modeling this loco unit
+ * An object modeling this loco unit. Its address and speed steps are fixed,
+ * its function key states follow the throttle and are kept with it in the
+ * roster, (see RosterStore). The key states are set on the UI thread and
+ * written to the roster on its I/O thread, so they are read and set holding
+ * the unit's lock.
  * 
  * @author mhughes
  *
  */
 public class LocoUnit {
 	
-	//TODO add handling for function keys.
 	//TODO make parcelable so can be passed.
 	
 	/* Loco unit characteristics */
@@ -20,6 +23,10 @@ public class LocoUnit {
 	private final int dccAddr;
 	private final int spdSteps;
 	
+	/* Function key states, FL - F28 and F29 - F68. */
+	private int keyStates = 0;
+	private long extKeyStates = 0;
+	
 	/* Constructors */
 	public LocoUnit(String name) {
 		this(name, 0, 3, 126);
@@ -53,4 +60,29 @@ public class LocoUnit {
 	public int getSpdSteps() {
 		return spdSteps;
 	}
+	
+	/* Function key states, bit 0 = FL and bit 28 = F28. */
+	public synchronized int getKeyStates() {
+		return keyStates;
+	}
+	
+	/* Function key states, bit 0 = F29 and bit 39 = F68. */
+	public synchronized long getExtKeyStates() {
+		return extKeyStates;
+	}
+	
+	/* Setter functions */
+	public synchronized void setKeyStates(int keys, long extKeys) {
+		keyStates = keys;
+		extKeyStates = extKeys;
+	}
+	
+	/* Toggle function key 0 - 68. */
+	public synchronized void toggleKey(int key) {
+		if (key < 29) {
+			keyStates ^= 1 << key;
+		} else {
+			extKeyStates ^= 1L << (key - 29);
+		}
+	}
 }
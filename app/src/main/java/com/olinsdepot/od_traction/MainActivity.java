@@ -14,9 +14,11 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Process;
 import android.os.RemoteException;
 
 import android.util.Log;
@@ -29,8 +31,16 @@ import android.widget.PopupWindow;
 import android.widget.Toast;
 import android.support.v4.widget.DrawerLayout;
 
+import java.io.File;
+import java.io.IOException;
+
+import com.olinsdepot.mbus_proto.DCCfunctionkeys;
+import com.olinsdepot.mbus_srvc.LocalClient;
+import com.olinsdepot.mbus_srvc.MbusService;
 import com.olinsdepot.mbus_srvc.MbusService.*;
+import com.olinsdepot.mbus_srvc.Trace;
 import com.olinsdepot.od_traction.LocoUnit;
+import com.olinsdepot.od_traction.RosterStore;
 
 
 /**
@@ -52,6 +62,8 @@ public class MainActivity extends Activity implements
 	// Constants
 	//////////////////////////////////////////////////////////////////////
 	private static final int tNum = 2; /* Number of throttles fixed at 2 for now */
+	private static final int METRICS_MS = 1000; /* Link stats overlay update period */
+	private static final String ROSTER_FILE = "roster.bin"; /* Roster store, in the app's files */
 	
 	//////////////////////////////////////////////////////////////////////
 	// Local variables
@@ -70,8 +82,21 @@ public class MainActivity extends Activity implements
     private ServiceConnection mRailSrvcConnection = null;
     private boolean mSrvcBound = false;
     private Messenger mClientToSrvcMsgr = null;
+    private LocalClient mLocalClient = null; /* Fast path when the service is in this process */
+    private boolean mMetricsOn = false;
+    private boolean mTraceOn = false;
  	final Messenger mClientFmSrvcMsgr = new Messenger(new SrvcMsgHandler());
  	
+ 	/**
+ 	 * Roster - Loco units the user has set up and the unit on each throttle.
+ 	 * The roster is loaded, changed and closed on its own I/O thread, so file
+ 	 * writes and syncs never hold up the UI. It is null until it has loaded.
+ 	 */
+ 	private volatile RosterStore mRoster = null;
+ 	private final LocoUnit[] mThtlUnits = new LocoUnit[tNum];
+ 	private HandlerThread mRosterThread;
+ 	private Handler mRosterHandler;
+ 	
 
 
 	//////////////////////////////////////////////////////////////////////
@@ -100,6 +125,22 @@ public class MainActivity extends Activity implements
 		if (networkInfo == null) {
 			Toast.makeText(getApplicationContext(), "No Network Connection", Toast.LENGTH_SHORT).show();
 		}
+		
+		// Load the roster on its I/O thread. Without it decoders can still be run, their key states just aren't kept.
+		mRosterThread = new HandlerThread("RosterIO", Process.THREAD_PRIORITY_BACKGROUND);
+		mRosterThread.start();
+		mRosterHandler = new Handler(mRosterThread.getLooper());
+		final File rosterFile = new File(getFilesDir(), ROSTER_FILE);
+		mRosterHandler.post(new Runnable() {
+			public void run() {
+				try {
+					mRoster = new RosterStore(rosterFile);
+					if (L) Log.i(TAG, "Roster loaded, " + mRoster.size() + " units");
+				} catch (IOException e) {
+					Log.d(TAG, "Roster not loaded: " + e.getMessage());
+				}
+			}
+		});
     }
 
 	@Override
@@ -138,6 +179,21 @@ public class MainActivity extends Activity implements
 	public void onDestroy() {
 		super.onDestroy();
 		if (L) Log.i(TAG, "onDestroy");
+		
+		// Close the roster once the changes queued before it are written.
+		mRosterHandler.post(new Runnable() {
+			public void run() {
+				if (mRoster != null) {
+					try {
+						mRoster.close();
+					} catch (IOException e) {
+						Log.d(TAG, "Roster not closed: " + e.getMessage());
+					}
+					mRoster = null;
+				}
+			}
+		});
+		mRosterThread.quitSafely();
 	}
 
 	@Override
@@ -246,6 +302,8 @@ public class MainActivity extends Activity implements
             // if the drawer is not showing. Otherwise, let the drawer
             // decide what to show in the action bar.
             getMenuInflater().inflate(R.menu.main, menu);
+            menu.findItem(R.id.action_metrics).setChecked(mMetricsOn);
+            menu.findItem(R.id.action_trace).setChecked(mTraceOn);
             restoreActionBar();
             return true;
         }
@@ -271,6 +329,33 @@ public class MainActivity extends Activity implements
         // automatically handle clicks on the Home/Up button, so long
         // as you specify a parent activity in AndroidManifest.xml.
         switch (item.getItemId()) {
+            case R.id.action_metrics:
+                /* Toggle the link stats overlay on the cab and the service's reports. */
+                mMetricsOn = !mMetricsOn;
+                item.setChecked(mMetricsOn);
+                CabFragment.showMetrics(mMetricsOn);
+                CabFragment cFrag = (CabFragment) getFragmentManager().findFragmentByTag("CAB");
+                if (cFrag != null) {
+                    cFrag.metricsUpdate(null);
+                }
+                requestMetrics();
+                return true;
+            case R.id.action_trace:
+                /* Record the command pipeline trace, or stop. */
+                mTraceOn = !mTraceOn;
+                item.setChecked(mTraceOn);
+                if (mSrvcBound) {
+                    toService(MbusSrvcCmd.SRVR_TRACE.toCode(), mTraceOn ? MbusService.TRACE_ON : MbusService.TRACE_OFF, 0, null);
+                } else {
+                    Trace.enable(mTraceOn);
+                }
+                return true;
+            case R.id.action_trace_dump:
+                /* The service writes the trace to a file and sends back its path. */
+                if (mSrvcBound) {
+                    toService(MbusSrvcCmd.SRVR_TRACE.toCode(), MbusService.TRACE_DUMP, 0, null);
+                }
+                return true;
             case R.id.action_settings:
                 Toast.makeText(getApplicationContext(), "Settings Dialog TBD", Toast.LENGTH_SHORT).show();
                 return true;
@@ -293,6 +378,33 @@ public class MainActivity extends Activity implements
     }
 
     
+    /**
+     * Ask the service for metrics every METRICS_MS while the overlay is on, or to stop.
+     */
+    private void requestMetrics() {
+        if (!mSrvcBound) return;
+        toService(MbusSrvcCmd.SRVR_METRICS.toCode(), mMetricsOn ? METRICS_MS : 0, 0, null);
+    }
+    
+    /**
+     * Send a command to the MBus service. A service in this process takes it on
+     * the fast path, without a Message, otherwise it goes on the Messenger.
+     */
+    private void toService(int what, int arg1, int arg2, Object obj) {
+        Trace.event(Trace.Stage.CLIENT_CMD, arg1, what, arg2);
+        if (mLocalClient != null) {
+            mLocalClient.send(what, arg1, arg2, obj);
+            return;
+        }
+        Message msg = Message.obtain(null, what, arg1, arg2, obj);
+        try {
+            mClientToSrvcMsgr.send(msg);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    
     //
     // Application page interfaces
     //
@@ -321,13 +433,7 @@ public class MainActivity extends Activity implements
     	} else {
     		/* Start process to shut down the service if it's running. */
     		if (mSrvcBound) {
-    			Message msg = Message.obtain();
-    			msg.what = MbusSrvcCmd.SRVR_DSCNCT.toCode();
-    			try {
-    				mClientToSrvcMsgr.send(msg);
-    			} catch (RemoteException e) {
-    				e.printStackTrace();
-    			}
+    			toService(MbusSrvcCmd.SRVR_DSCNCT.toCode(), 0, 0, null);
     		}
     	}
     }
@@ -344,22 +450,66 @@ public class MainActivity extends Activity implements
         /* Send message to the service to acquire or release the decoder 
          * passed in the bundle. Assign loco to a throttle in the Cab.
          */
-        //TODO Re-write roster and Morbus service to use LocoUnit class.
-        Message msg = Message.obtain();
         if (dcdrState.getBoolean("DCDR_CNCT")) {
-            msg.what = MbusSrvcCmd.DCC_ACQ_DCDR.toCode();
+            LocoUnit unit = rosterUnit(dcdrState);
+            mThtlUnits[tID] = unit;
+            dcdrState.putInt("KEY_STATES", unit.getKeyStates());
             CabFragment.cabAssign(tID, dcdrState.getString("DCDR_NAME"));
+            toService(MbusSrvcCmd.DCC_ACQ_DCDR.toCode(), tID, 0, dcdrState);
+            if (unit.getExtKeyStates() != 0) {
+            	toService(MbusSrvcCmd.DCC_FUNC_SET.toCode(), tID, unit.getKeyStates(), unit.getExtKeyStates());
+            }
         } else {
-            msg.what = MbusSrvcCmd.DCC_RLS_DCDR.toCode();
+            mThtlUnits[tID] = null;
             CabFragment.cabRelease(tID);
+            toService(MbusSrvcCmd.DCC_RLS_DCDR.toCode(), tID, 0, dcdrState);
         }
-        msg.arg1 = tID;
-        msg.obj = dcdrState;
-        try {
-            mClientToSrvcMsgr.send(msg);
-        } catch (RemoteException e) {
-            e.printStackTrace();
-        }
+	}
+	
+	/**
+	 * Return the loco unit in the roster for a decoder being acquired. A unit
+	 * with the decoder's address, road name and speed steps keeps the key states
+	 * it had when last run, any other decoder is added to the roster with the key
+	 * states in the bundle, (on the roster's I/O thread).
+	 */
+	private LocoUnit rosterUnit(Bundle dcdrState) {
+		String name = dcdrState.getString("DCDR_NAME");
+		int type = dcdrState.getInt("ADR_TYP");
+		int addr = dcdrState.getInt("DCDR_ADR");
+		int steps = dcdrState.getInt("SPD_STEPS");
+		
+		RosterStore roster = mRoster;
+		if (roster != null) {
+			LocoUnit unit = roster.get(type, addr);
+			if (unit != null && unit.getRoadName().equals(name) && unit.getSpdSteps() == steps) {
+				return unit;
+			}
+		}
+		
+		final LocoUnit unit = new LocoUnit(name, type, addr, steps);
+		unit.setKeyStates(dcdrState.getInt("KEY_STATES"), 0);
+		mRosterHandler.post(new Runnable() {
+			public void run() {
+				if (mRoster != null) {
+					try {
+						mRoster.put(unit);
+					} catch (IOException e) {
+						Log.d(TAG, "Roster not updated: " + e.getMessage());
+					} catch (IllegalArgumentException e) {
+						Log.d(TAG, "Roster not updated: " + e.getMessage());
+					}
+				}
+			}
+		});
+		return unit;
+	}
+	
+	/**
+	 * Return the roster, or null if it hasn't loaded or couldn't be. Lookups
+	 * may be made on the UI thread, changes are made on the roster's I/O thread.
+	 */
+	public RosterStore getRoster() {
+		return mRoster;
 	}
 
     /**
@@ -372,22 +522,28 @@ public class MainActivity extends Activity implements
         if (!mSrvcBound) return;
         if(tCmd == 0) {
 //            Toast.makeText(getApplicationContext(), "ID="+tID+" Speed="+arg, Toast.LENGTH_SHORT).show();
-	        // Create and send a message to the service, using a supported 'what' value
-	        Message msg = Message.obtain(null, MbusSrvcCmd.DCC_THTL_STEP.toCode(), tID, arg);
-	        try {
-	            mClientToSrvcMsgr.send(msg);
-	        } catch (RemoteException e) {
-	            e.printStackTrace();
-	        }
+	        // Send the step to the service, on the fast path if it's in this process
+	        toService(MbusSrvcCmd.DCC_THTL_STEP.toCode(), tID, arg, null);
         } else if(tCmd == 1) {
-	        // Create and send a message to the service, using a supported 'what' value
-	        Message msg = Message.obtain(null, MbusSrvcCmd.DCC_FUNC_KEY.toCode(), tID, arg);
-	        try {
-	            mClientToSrvcMsgr.send(msg);
-	        } catch (RemoteException e) {
-	            e.printStackTrace();
+	        // Send the key to the service, on the fast path if it's in this process
+	        toService(MbusSrvcCmd.DCC_FUNC_KEY.toCode(), tID, arg, null);
+	        
+	        // Keep the key's new state in the roster, written on the roster's I/O thread
+	        final LocoUnit unit = mThtlUnits[tID];
+	        if (unit != null && arg >= 0 && arg <= DCCfunctionkeys.MAX_KEY) {
+	        	unit.toggleKey(arg);
+	        	mRosterHandler.post(new Runnable() {
+	        		public void run() {
+	        			if (mRoster != null) {
+	        				try {
+	        					mRoster.saveKeyStates(unit);
+	        				} catch (IOException e) {
+	        					Log.d(TAG, "Roster not updated: " + e.getMessage());
+	        				}
+	        			}
+	        		}
+	        	});
 	        }
-        	
         }
 	}
     
@@ -408,6 +564,9 @@ public class MainActivity extends Activity implements
     		mClientToSrvcMsgr = new Messenger(service);
     		mSrvcBound = true;
     		
+    		/* The service runs in this process, so throttle commands can skip the Messenger. */
+    		mLocalClient = MbusService.localClient();
+    		
     		/* Send the service the connect command. Include saved server info
     		 * and the handler for messages from the service.
     		 */
@@ -420,12 +579,18 @@ public class MainActivity extends Activity implements
             } catch (RemoteException e) {
                e.printStackTrace();
             }
+            
+            /* Restart the overlay's reports if it was left on. */
+            if (mMetricsOn) {
+            	requestMetrics();
+            }
     	}
     	
     	/* Called when service disconnects unexpectedly. */
     	public void onServiceDisconnected(ComponentName className) {
     		Log.d(TAG, "onServiceDisconnected - " + className);
     		mClientToSrvcMsgr = null;
+    		mLocalClient = null;
     		mSrvcBound = false;
     	}
     };
@@ -440,16 +605,22 @@ public class MainActivity extends Activity implements
 		
 		@Override
 		public void handleMessage(Message msg) {
-			if (L) Log.i("MsgToClient", "Event Received = " + msg.what);
+			Trace.event(Trace.Stage.CLIENT_EVT, Trace.NO_THROTTLE, msg.what, msg.arg1);
 			
 			switch (MbusSrvcEvt.fromCode(msg.what)) {
 			
 			case SRVR_CNCTD:
-				/* Announce service startup */
-				Toast.makeText(getApplicationContext(), "Mbus Service Started", Toast.LENGTH_SHORT).show();
+				/* Announce service startup, ARG1 = 1 if a lost connection was restored. */
+				if (msg.arg1 != 0) {
+					Toast.makeText(getApplicationContext(), "Mbus Server Reconnected", Toast.LENGTH_SHORT).show();
+				} else {
+					Toast.makeText(getApplicationContext(), "Mbus Service Started", Toast.LENGTH_SHORT).show();
+				}
 				break;
 				
 			case SRVR_DSCNCTD:
+				/* Connection lost, the service is reconnecting. */
+				Toast.makeText(getApplicationContext(), "Mbus Server Connection Lost", Toast.LENGTH_SHORT).show();
 				break;
 				
 			case SRVR_PWR_IS:
@@ -460,6 +631,33 @@ public class MainActivity extends Activity implements
 				
 			case DCC_DCDR_RLSD:
 				break;
+				
+			case SRVR_TRACE_DUMP:
+				/* OBJ = path of the trace file, null if it couldn't be written. */
+				if (msg.obj != null) {
+					Toast.makeText(getApplicationContext(), "Trace saved to " + msg.obj, Toast.LENGTH_LONG).show();
+				} else {
+					Toast.makeText(getApplicationContext(), "Trace could not be saved", Toast.LENGTH_SHORT).show();
+				}
+				break;
+				
+			case SRVR_METRICS:
+				/* OBJ = metrics snapshot for the cab's overlay. */
+				CabFragment cFrag = (CabFragment) getFragmentManager().findFragmentByTag("CAB");
+				if (cFrag != null) {
+					cFrag.metricsUpdate((Bundle) msg.obj);
+				}
+				break;
+				
+			case DCC_CV_PROGRESS:
+				/* ARG1 = CV writes done or failed, ARG2 = writes in the batch, OBJ = the counts by kind. */
+				if (L) Log.i(TAG, "CV writes " + msg.arg1 + " of " + msg.arg2);
+				if (msg.arg1 == msg.arg2) {
+					int cvFailed = ((Bundle) msg.obj).getInt("CV_FAILED");
+					Toast.makeText(getApplicationContext(), (msg.arg2 - cvFailed) + " CVs written" +
+							((cvFailed > 0) ? ", " + cvFailed + " failed" : ""), Toast.LENGTH_SHORT).show();
+				}
+				break;
 
 			default:
 				super.handleMessage(msg);
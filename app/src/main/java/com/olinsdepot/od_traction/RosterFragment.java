@@ -18,7 +18,8 @@ import android.widget.ToggleButton;
  * defining the target decoder to be passed on to the Morbus service which
  * registers the decoder as connected to the throttle passed in Arg1. When
  * the button is pressed again, a new message is sent to the service and
- * the decoder is released. 
+ * the decoder is released. A decoder in the roster can be picked by its road
+ * name alone, its address and speed steps are filled in from the roster.
  */
 public class RosterFragment extends Fragment {
 	private final String TAG = getClass().getSimpleName();
@@ -148,6 +149,7 @@ public class RosterFragment extends Fragment {
 				     final Bundle dcdrState = new Bundle();
 				     
 				     if (isChecked) {
+				    	 fillFromRoster(mDcdrName1, mDcdrTyp1, mDcdrAddr1, mDcdrStep1);
 				    	 btn1State = true;
 //				    	 dcdrState.putInt(THTL, 0);
 				    	 dcdrState.putBoolean(STATE, btn1State);
@@ -193,6 +195,7 @@ public class RosterFragment extends Fragment {
 				     final Bundle dcdrState = new Bundle();
 
 				     if (isChecked) {
+				    	 fillFromRoster(mDcdrName2, mDcdrTyp2, mDcdrAddr2, mDcdrStep2);
 				    	 btn2State = true;
 //				    	 dcdrState.putInt(THTL, 1);
 				    	 dcdrState.putBoolean(STATE, btn2State);
@@ -222,6 +225,25 @@ public class RosterFragment extends Fragment {
     }
 
     
+	/**
+	 * Fill in a decoder's address and speed steps from the roster unit with
+	 * its road name, when the address is left blank.
+	 */
+	private void fillFromRoster(EditText name, EditText typ, EditText addr, EditText step) {
+		RosterStore roster = mActivity.getRoster();
+		if (roster == null || addr.getText().length() != 0) {
+			return;
+		}
+		LocoUnit unit = roster.find(name.getText().toString().trim());
+		if (unit != null) {
+			name.setText(unit.getRoadName());
+			typ.setText(Integer.toString(unit.getTypeAddr()));
+			addr.setText(Integer.toString(unit.getDccAddr()));
+			step.setText(Integer.toString(unit.getSpdSteps()));
+		}
+	}
+
+
 	/**
      * On activity created
      */
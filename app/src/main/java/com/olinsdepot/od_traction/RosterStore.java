@@ -0,0 +1,450 @@
+package com.olinsdepot.od_traction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The roster: every loco unit the user has set up, kept in a file so it
+ * survives the app being killed, with indexes by DCC address and by road name.
+ *
+ * The file is a log of records, each change appends one record: a unit added
+ * or replaced, a unit's function key states, or a unit removed. Nothing already
+ * written is rewritten, so a function key press costs a 16 byte append however
+ * big the roster is. Loading reads the file in one go and replays the records,
+ * later records for an address replacing earlier ones. Once more than half of
+ * the file is records that have been replaced, it is rewritten with one record
+ * per unit to a new file that then takes the old one's place.
+ *
+ * A record cut off by the app being killed in the middle of a write is
+ * dropped when the roster is next loaded.
+ *
+ * Units are found by address type and DCC address, and by road name ignoring
+ * case. If two units have the same road name the last one added is the one
+ * found by name, and once it is removed or renamed one of the others is.
+ *
+ * Every change writes to the file and compaction syncs it, so the app makes
+ * its changes off the UI thread. The indexes have their own lock, held only
+ * while they are read or updated and never across a write, so a lookup on the
+ * UI thread doesn't wait for the file.
+ *
+ * File format, big endian: MAGIC, VERSION, then the records. Each record
+ * starts with its type, the address type and the DCC address:
+ *
+ * - PUT: speed steps, FL - F28 key states (int), F29 - F68 key states (long),
+ *   road name length and the road name in UTF-8, at most 255 bytes.
+ * - KEYS: FL - F28 key states (int), F29 - F68 key states (long).
+ * - DEL: nothing more.
+ *
+ * @author mhughes
+ *
+ */
+public class RosterStore {
+
+	public static final int MAGIC = 0x4D425253;	/* "MBRS" */
+	public static final int VERSION = 1;
+
+	/* Record types. */
+	private static final int PUT = 1;
+	private static final int KEYS = 2;
+	private static final int DEL = 3;
+
+	private static final int HDR_LEN = 8;
+	private static final int ID_LEN = 4;
+	private static final int PUT_LEN = ID_LEN + 1 + 4 + 8 + 1;
+	private static final int KEYS_LEN = ID_LEN + 4 + 8;
+	private static final int MAX_NAME_LEN = 0xFF;
+
+	/* Don't bother compacting a file smaller than this. */
+	private static final int COMPACT_MIN = 64 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* Held by changes while they write the file, taken before the index lock. */
+	private final Object fileLock = new Object();
+
+	private final File file;
+	private RandomAccessFile out;
+	private long fileLen;
+	private long liveLen;
+	private final ByteBuffer rec = ByteBuffer.allocate(PUT_LEN + MAX_NAME_LEN);
+
+	/* Indexes, guarded by this. */
+	private final HashMap<Integer, LocoUnit> byAddress = new HashMap<Integer, LocoUnit>();
+	private final TreeMap<String, LocoUnit> byName = new TreeMap<String, LocoUnit>(String.CASE_INSENSITIVE_ORDER);
+
+
+	/**
+	 * Constructor: loads the roster, making the file if there isn't one.
+	 *
+	 * @param file - the roster file.
+	 * @throws IOException if the file can't be read or isn't a roster.
+	 */
+	public RosterStore(File file) throws IOException {
+		this.file = file;
+		this.out = new RandomAccessFile(file, "rw");
+		try {
+			load();
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Return the unit with an address.
+	 *
+	 * @param addrType - address type, 0 = short, 1 = long.
+	 * @param dccAddr - DCC address.
+	 * @return the unit, or null if there is none.
+	 */
+	public synchronized LocoUnit get(int addrType, int dccAddr) {
+		return byAddress.get(keyOf(addrType, dccAddr));
+	}
+
+	/**
+	 * Return the unit with a road name, ignoring case.
+	 *
+	 * @return the unit, or null if there is none.
+	 */
+	public synchronized LocoUnit find(String roadName) {
+		return byName.get(roadName);
+	}
+
+	/**
+	 * Return the units whose road names start with a prefix, ignoring case, in
+	 * road name order.
+	 */
+	public synchronized List<LocoUnit> startingWith(String prefix) {
+		List<LocoUnit> units = new ArrayList<LocoUnit>();
+		for (Map.Entry<String, LocoUnit> entry : byName.tailMap(prefix, true).entrySet()) {
+			if (!entry.getKey().regionMatches(true, 0, prefix, 0, prefix.length())) {
+				break;
+			}
+			units.add(entry.getValue());
+		}
+		return units;
+	}
+
+	/**
+	 * Return every unit, in no particular order.
+	 */
+	public synchronized Collection<LocoUnit> units() {
+		return new ArrayList<LocoUnit>(byAddress.values());
+	}
+
+	/**
+	 * Return the number of units.
+	 */
+	public synchronized int size() {
+		return byAddress.size();
+	}
+
+	/**
+	 * Add a unit, replacing any unit with the same address.
+	 *
+	 * @throws IOException if the record can't be written, the roster in memory still has the unit.
+	 * @throws IllegalArgumentException if the road name is longer than 255 bytes in UTF-8.
+	 */
+	public void put(LocoUnit unit) throws IOException {
+		byte[] name = unit.getRoadName().getBytes(UTF8);
+		if (name.length > MAX_NAME_LEN) {
+			throw new IllegalArgumentException("Road name too long: " + unit.getRoadName());
+		}
+		synchronized (fileLock) {
+			LocoUnit old;
+			synchronized (this) {
+				old = index(unit);
+			}
+			if (old != null) {
+				liveLen -= putLen(old);
+			}
+			liveLen += PUT_LEN + name.length;
+
+			rec.clear();
+			putId(PUT, unit);
+			rec.put((byte) unit.getSpdSteps());
+			synchronized (unit) {
+				rec.putInt(unit.getKeyStates());
+				rec.putLong(unit.getExtKeyStates());
+			}
+			rec.put((byte) name.length);
+			rec.put(name);
+			append();
+		}
+	}
+
+	/**
+	 * Record a unit's function key states as they are now.
+	 *
+	 * @param unit - a unit in the roster.
+	 * @throws IOException if the record can't be written.
+	 */
+	public void saveKeyStates(LocoUnit unit) throws IOException {
+		int keys;
+		long extKeys;
+		synchronized (unit) {
+			keys = unit.getKeyStates();
+			extKeys = unit.getExtKeyStates();
+		}
+		appendKeys(unit, keys, extKeys);
+	}
+
+	/**
+	 * Set a unit's function key states and record them.
+	 *
+	 * @param unit - a unit in the roster.
+	 * @param keys - FL - F28 key states.
+	 * @param extKeys - F29 - F68 key states.
+	 * @throws IOException if the record can't be written.
+	 */
+	public void setKeyStates(LocoUnit unit, int keys, long extKeys) throws IOException {
+		unit.setKeyStates(keys, extKeys);
+		appendKeys(unit, keys, extKeys);
+	}
+
+	/**
+	 * Remove the unit with a unit's address.
+	 *
+	 * @throws IOException if the record can't be written.
+	 */
+	public void remove(LocoUnit unit) throws IOException {
+		synchronized (fileLock) {
+			LocoUnit old;
+			synchronized (this) {
+				old = unindex(unit.getTypeAddr(), unit.getDccAddr());
+			}
+			if (old == null) {
+				return;
+			}
+			liveLen -= putLen(old);
+
+			rec.clear();
+			putId(DEL, unit);
+			append();
+		}
+	}
+
+	/**
+	 * Close the file.
+	 */
+	public void close() throws IOException {
+		synchronized (fileLock) {
+			out.close();
+		}
+	}
+
+
+	/* Read the file and replay its records, dropping a record cut off at the end. */
+	private void load() throws IOException {
+		if (out.length() == 0) {
+			rec.clear();
+			rec.putInt(MAGIC);
+			rec.putInt(VERSION);
+			out.write(rec.array(), 0, rec.position());
+			fileLen = HDR_LEN;
+			liveLen = HDR_LEN;
+			return;
+		}
+		if (out.length() > Integer.MAX_VALUE) {
+			throw new IOException("Roster file too big");
+		}
+		byte[] data = new byte[(int) out.length()];
+		out.seek(0);
+		out.readFully(data);
+
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		if (data.length < HDR_LEN || buf.getInt() != MAGIC) {
+			throw new IOException("Not a roster file");
+		}
+		int version = buf.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unknown roster version " + version);
+		}
+
+		liveLen = HDR_LEN;
+		while (buf.remaining() >= ID_LEN) {
+			int start = buf.position();
+			int type = buf.get();
+			int addrType = buf.get();
+			int dccAddr = buf.getShort() & 0xFFFF;
+
+			if (type == PUT && buf.remaining() >= PUT_LEN - ID_LEN) {
+				int steps = buf.get() & 0xFF;
+				int keys = buf.getInt();
+				long extKeys = buf.getLong();
+				int nameLen = buf.get() & 0xFF;
+				if (buf.remaining() < nameLen) {
+					buf.position(start);
+					break;
+				}
+				LocoUnit unit = new LocoUnit(new String(data, buf.position(), nameLen, UTF8), addrType, dccAddr, steps);
+				unit.setKeyStates(keys, extKeys);
+				buf.position(buf.position() + nameLen);
+				LocoUnit old = index(unit);
+				if (old != null) {
+					liveLen -= putLen(old);
+				}
+				liveLen += PUT_LEN + nameLen;
+			} else if (type == KEYS && buf.remaining() >= KEYS_LEN - ID_LEN) {
+				int keys = buf.getInt();
+				long extKeys = buf.getLong();
+				LocoUnit unit = byAddress.get(keyOf(addrType, dccAddr));
+				if (unit != null) {
+					unit.setKeyStates(keys, extKeys);
+				}
+			} else if (type == DEL) {
+				LocoUnit old = unindex(addrType, dccAddr);
+				if (old != null) {
+					liveLen -= putLen(old);
+				}
+			} else {
+				/* Cut off, or not a record. */
+				buf.position(start);
+				break;
+			}
+		}
+
+		fileLen = buf.position();
+		if (fileLen < data.length) {
+			out.setLength(fileLen);
+		}
+		out.seek(fileLen);
+	}
+
+	/* Write a KEYS record for a unit, if it is the one in the roster at its address. */
+	private void appendKeys(LocoUnit unit, int keys, long extKeys) throws IOException {
+		synchronized (fileLock) {
+			synchronized (this) {
+				if (byAddress.get(keyOf(unit.getTypeAddr(), unit.getDccAddr())) != unit) {
+					return;
+				}
+			}
+			rec.clear();
+			putId(KEYS, unit);
+			rec.putInt(keys);
+			rec.putLong(extKeys);
+			append();
+		}
+	}
+
+	/* Write the record built in rec to the end of the file, compacting the file if it's mostly dead records. Holding fileLock. */
+	private void append() throws IOException {
+		out.write(rec.array(), 0, rec.position());
+		fileLen += rec.position();
+		if (fileLen > COMPACT_MIN && fileLen > 2 * liveLen) {
+			compact();
+		}
+	}
+
+	/* Write one record per unit to a new file and put it in place of the old one. Holding fileLock. */
+	private void compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		RandomAccessFile compacted = new RandomAccessFile(tmp, "rw");
+		long len;
+		try {
+			compacted.setLength(0);
+			ByteBuffer buf = ByteBuffer.allocate((int) liveLen);
+			buf.putInt(MAGIC);
+			buf.putInt(VERSION);
+			synchronized (this) {
+				for (LocoUnit unit : byAddress.values()) {
+					byte[] name = unit.getRoadName().getBytes(UTF8);
+					buf.put((byte) PUT);
+					buf.put((byte) unit.getTypeAddr());
+					buf.putShort((short) unit.getDccAddr());
+					buf.put((byte) unit.getSpdSteps());
+					synchronized (unit) {
+						buf.putInt(unit.getKeyStates());
+						buf.putLong(unit.getExtKeyStates());
+					}
+					buf.put((byte) name.length);
+					buf.put(name);
+				}
+			}
+			compacted.write(buf.array(), 0, buf.position());
+			compacted.getFD().sync();
+			len = buf.position();
+		} finally {
+			compacted.close();
+		}
+
+		out.close();
+		if (!tmp.renameTo(file)) {
+			/* Carry on appending to the old file. */
+			tmp.delete();
+			out = new RandomAccessFile(file, "rw");
+			out.seek(fileLen);
+			return;
+		}
+		out = new RandomAccessFile(file, "rw");
+		out.seek(len);
+		fileLen = len;
+		liveLen = len;
+	}
+
+	/* Put a unit in both indexes and return the unit it replaced, if any. */
+	private LocoUnit index(LocoUnit unit) {
+		LocoUnit old = byAddress.put(keyOf(unit.getTypeAddr(), unit.getDccAddr()), unit);
+		if (old != null && byName.comparator().compare(old.getRoadName(), unit.getRoadName()) != 0) {
+			unindexName(old);
+		}
+		byName.put(unit.getRoadName(), unit);
+		return old;
+	}
+
+	/* Take the unit with an address out of both indexes and return it, if any. */
+	private LocoUnit unindex(int addrType, int dccAddr) {
+		LocoUnit old = byAddress.remove(keyOf(addrType, dccAddr));
+		if (old != null) {
+			unindexName(old);
+		}
+		return old;
+	}
+
+	/*
+	 * Take a unit that has left the address index out of the name index. If it
+	 * was the one found by its road name, another unit with that name, if any,
+	 * is found by it instead. Only a shared road name costs a look through the
+	 * roster.
+	 */
+	private void unindexName(LocoUnit old) {
+		String name = old.getRoadName();
+		if (byName.get(name) != old) {
+			return;
+		}
+		byName.remove(name);
+		for (LocoUnit unit : byAddress.values()) {
+			if (byName.comparator().compare(unit.getRoadName(), name) == 0) {
+				byName.put(unit.getRoadName(), unit);
+				return;
+			}
+		}
+	}
+
+	/* Start a record in rec: its type and the unit's address. */
+	private void putId(int type, LocoUnit unit) {
+		rec.put((byte) type);
+		rec.put((byte) unit.getTypeAddr());
+		rec.putShort((short) unit.getDccAddr());
+	}
+
+	/* Length of a unit's PUT record. */
+	private static int putLen(LocoUnit unit) {
+		return PUT_LEN + unit.getRoadName().getBytes(UTF8).length;
+	}
+
+	private static int keyOf(int addrType, int dccAddr) {
+		return (addrType << 16) | (dccAddr & 0xFFFF);
+	}
+}
@@ -0,0 +1,186 @@
+package com.olinsdepot.mbus_bench;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.olinsdepot.mbus_proto.DCCencoder;
+import com.olinsdepot.mbus_proto.EmCanFramer;
+import com.olinsdepot.mbus_proto.MorBus.MbusBcstOp;
+import com.olinsdepot.mbus_srvc.ThrottleSlot;
+import com.olinsdepot.mbus_srvc.TxQueue;
+
+
+/**
+ * Operating session scenarios run through the same path a throttle command
+ * takes in the service: encode the DCC command into the service's buffer, pass
+ * speed steps through the throttle slot, then build the EmCAN frame the Comms
+ * thread writes. Each command counts as one operation, so the scores are
+ * commands per second. Run with the gc profiler, (the jmh task's default), to
+ * get the allocation rate per command alongside.
+ *
+ * <ul>
+ * <li>dragSweep126 - one long address 126 step loco notched from stop to full
+ * forward, back through stop to full reverse and back to stop.</li>
+ * <li>toggleStorm - F0 to F28 each toggled on then off on one decoder.</li>
+ * <li>mixedSession - four throttles, (short and long addresses, 28 and 126
+ * steps), with a fixed random script of speed changes, function toggles and
+ * the occasional e-stop.</li>
+ * </ul>
+ *
+ * @author mhughes
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScenarioBench {
+
+	/* Broadcast opcode for DCC frames. */
+	private static final int DCC_OP = MbusBcstOp.DCC.toCode();
+
+	private static final int SWEEP_OPS = 4 * 126;
+	private static final int STORM_OPS = 2 * 29;
+	private static final int SESSION_OPS = 1000;
+
+	/* Session script command types. */
+	private static final int CMD_SPEED = 0;
+	private static final int CMD_FUNC = 1;
+	private static final int CMD_ESTOP = 2;
+
+	private DCCencoder drag;
+	private DCCencoder storm;
+	private final DCCencoder[] throttles = new DCCencoder[4];
+	private final ThrottleSlot[] slots = new ThrottleSlot[4];
+
+	/* Session script, one entry per command. */
+	private final int[] scriptThtl = new int[SESSION_OPS];
+	private final int[] scriptCmd = new int[SESSION_OPS];
+	private final int[] scriptArg = new int[SESSION_OPS];
+
+	/* The service's encode buffer, the queue's slot buffer and its frame buffer. */
+	private final byte[] dccBuf = new byte[DCCencoder.MAX_CMD_LEN];
+	private final byte[] slotData = new byte[TxQueue.MAX_DATA_LEN];
+	private final ByteBuffer txBuf = ByteBuffer.allocate(EmCanFramer.HDR_LEN + TxQueue.MAX_DATA_LEN);
+	private final EmCanFramer framer = new EmCanFramer();
+
+	@Setup
+	public void setup() {
+		drag = newEncoder(1234, 1, 126);
+		storm = newEncoder(3, 0, 28);
+
+		throttles[0] = newEncoder(3, 0, 28);
+		throttles[1] = newEncoder(44, 0, 126);
+		throttles[2] = newEncoder(1234, 1, 28);
+		throttles[3] = newEncoder(4014, 1, 126);
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = new ThrottleSlot();
+		}
+
+		/* Mostly speed changes, some function keys and one e-stop in fifty. */
+		Random rnd = new Random(42);
+		int[] speed = new int[4];
+		for (int i = 0; i < SESSION_OPS; i++) {
+			int thtl = rnd.nextInt(4);
+			int pick = rnd.nextInt(50);
+			scriptThtl[i] = thtl;
+			if (pick == 0) {
+				scriptCmd[i] = CMD_ESTOP;
+				speed[thtl] = 0;
+			} else if (pick < 10) {
+				scriptCmd[i] = CMD_FUNC;
+				scriptArg[i] = rnd.nextInt(29);
+			} else {
+				scriptCmd[i] = CMD_SPEED;
+				speed[thtl] = Math.max(-126, Math.min(126, speed[thtl] + rnd.nextInt(11) - 5));
+				scriptArg[i] = speed[thtl];
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SWEEP_OPS)
+	public int dragSweep126() {
+		int sum = 0;
+		for (int speed = 0; speed < 126; speed++) {
+			sum += speedStep(drag, slots[0], speed);
+		}
+		for (int speed = 126; speed > -126; speed--) {
+			sum += speedStep(drag, slots[0], speed);
+		}
+		for (int speed = -126; speed < 0; speed++) {
+			sum += speedStep(drag, slots[0], speed);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(STORM_OPS)
+	public int toggleStorm() {
+		int sum = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			for (int key = 0; key <= 28; key++) {
+				sum += send(storm.DCCfunc(key, dccBuf, 0));
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SESSION_OPS)
+	public int mixedSession() {
+		int sum = 0;
+		for (int i = 0; i < SESSION_OPS; i++) {
+			int thtl = scriptThtl[i];
+			switch (scriptCmd[i]) {
+			case CMD_SPEED:
+				sum += speedStep(throttles[thtl], slots[thtl], scriptArg[i]);
+				break;
+			case CMD_FUNC:
+				sum += send(throttles[thtl].DCCfunc(scriptArg[i], dccBuf, 0));
+				break;
+			default:
+				slots[thtl].clear();
+				sum += send(throttles[thtl].DCCestop(dccBuf, 0));
+				break;
+			}
+		}
+		return sum;
+	}
+
+	/* Encode a speed step, pass it through the throttle slot and frame it. */
+	private int speedStep(DCCencoder enc, ThrottleSlot slot, int speed) {
+		int epoch = slot.put(dccBuf, enc.DCCspeed(speed, dccBuf, 0));
+		return frame(slot.take(epoch, slotData, 0), slotData);
+	}
+
+	/* Frame a command straight from the encode buffer. */
+	private int send(int len) {
+		return frame(len, dccBuf);
+	}
+
+	private int frame(int len, byte[] data) {
+		txBuf.clear();
+		framer.frame(DCC_OP, data, len, txBuf);
+		return txBuf.position();
+	}
+
+	private static DCCencoder newEncoder(int adr, int adrType, int steps) {
+		return new DCCencoder(adr, adrType, steps, 0);
+	}
+}
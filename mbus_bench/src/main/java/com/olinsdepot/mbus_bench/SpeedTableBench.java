@@ -0,0 +1,67 @@
+package com.olinsdepot.mbus_bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.olinsdepot.mbus_proto.DCCencoder;
+
+
+/**
+ * Speed step encoding: the precomputed table in DCCspeed against the switch
+ * based calculation in DCCspeedCalc it is built from. Each invocation encodes
+ * one full sweep of the throttle from -126 to 126.
+ *
+ * @author mhughes
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpeedTableBench {
+
+	@Param({"14", "28", "126"})
+	public int steps;
+
+	@Param({"0", "1"})
+	public int adrType;
+
+	private DCCencoder encoder;
+	private final byte[] buf = new byte[DCCencoder.MAX_CMD_LEN];
+
+	@Setup
+	public void setup() {
+		encoder = new DCCencoder((adrType == 0) ? 3 : 1234, adrType, steps, 0);
+	}
+
+	@Benchmark
+	public int tableSweep() {
+		int sum = 0;
+		for (int speed = -126; speed <= 126; speed++) {
+			sum += encoder.DCCspeed(speed, buf, 0) + buf[0];
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public int switchSweep() {
+		int sum = 0;
+		for (int speed = -126; speed <= 126; speed++) {
+			sum += encoder.DCCspeedCalc(speed, buf, 0) + buf[0];
+		}
+		return sum;
+	}
+}
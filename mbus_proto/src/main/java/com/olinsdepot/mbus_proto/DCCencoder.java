@@ -0,0 +1,847 @@
+package com.olinsdepot.mbus_proto;
+
+import java.util.Arrays;
+
+/**
+ * The DCC encoder object is created with the characteristics, (address etc.)
+ * of a specific target decoder. It's methods translate general commands to set speed
+ * or functions into DCC command strings specific to this decoder.
+ * 
+ * @author mhughes
+ *
+ */
+public class DCCencoder {
+	
+	/* Longest command an encoder produces, (the data field of one CAN frame). */
+	public static final int MAX_CMD_LEN = EmCan.MAX_DATA_LEN;
+	
+	/* Function groups, and the first key of each with one past the last. */
+	public static final int FUNC_GROUPS = 10;
+	private static final int[] FUNC_GRP_FIRST = {0, 5, 9, 13, 21, 29, 37, 45, 53, 61, 69};
+	
+	/* Highest binary state, (the long form of Binary State Control). */
+	public static final int MAX_BIN_STATE = 0x7FFF;
+	
+	/* Highest CV number, and the fewest times a CV write is sent, (a decoder acts on the second). */
+	public static final int MAX_CV = 1024;
+	private static final int CV_REP_CNT = 2;
+	
+	/* Encoder parameters */
+	private byte[] dcdrAdr;
+	private int dcdrNumSteps;
+	private DCCfunctionkeys fkState;
+	
+	/* Key states the decoder was last sent. It starts with every key off. */
+	private final DCCfunctionkeys sentKeys = new DCCfunctionkeys();
+	
+	/* Scratch buffer for the methods that return a new byte string. */
+	private final byte[] cmdBuf = new byte[MAX_CMD_LEN];
+	
+	/*
+	 * Speed step table. Built once from DCCspeedCalc, it holds SPD_ENT_LEN bytes
+	 * for each speed from -SPD_MAX to SPD_MAX: the control byte followed by the
+	 * spdInsLen instruction bytes. The headlight bit of 14 step commands is left
+	 * clear and filled in from the function key state when encoding.
+	 */
+	private static final int SPD_MAX = 126;
+	private static final int SPD_ENT_LEN = 3;
+	private static final byte FL_BIT_14 = (byte) 0x10;
+	private byte[] spdTable;
+	private int spdInsLen;
+	
+	/*
+	 * Morbus Stream DCC control byte. Commands are repeated repCnt times by the
+	 * command station. Moving speed steps are repeated forever unless the client
+	 * refreshes them itself, then they get the repetition count too.
+	 */
+	public static final int DEFAULT_REP_CNT = 5;
+	public static final int MAX_REP_CNT = 0x7F;
+	private static final byte REP_FVR = (byte) 0x80;
+	private byte repCnt = (byte) DEFAULT_REP_CNT;
+	private byte spdRep = REP_FVR;
+	
+	/* Configuration Variable Access type instructions, (long form) */
+	private static enum CV_ACCS_INS {
+		VERIFY_BYTE		(0b0100),
+		BIT_MANIP		(0b1000),
+		WRITE_BYTE		(0b1100);
+		
+		/* Constructor */
+		private final int insCode;		
+		CV_ACCS_INS (int theInsCode) {
+			this.insCode = theInsCode;
+		}
+		
+		/* Return code for this instruction */
+		public byte toCode() {
+			return (byte) this.insCode;
+		}
+	}
+	
+	/* Address Partition Code */
+	private static enum ADR_TYP {
+		MF_DCDR_SHORT	(0b00000000),
+		ACC_DCDR		(0b10000000),
+		MF_DCDR_LONG	(0b11000000);
+
+		/* Constructor */
+		private final int insType;		
+		ADR_TYP (int theInsType) {
+			this.insType = theInsType;
+		}
+		
+		/* Return code for this instruction */
+		public byte toCode() {
+			return (byte) this.insType;
+		}
+	}
+	
+	/* Decoder Instruction groups */
+	private static enum DCC_INS {
+		DCD_CTL		(0b00000000),
+		ADV_OPS		(0b00100000),
+		RVS_SPD		(0b01000000),
+		FWD_SPD		(0b01100000),
+		F_GRP_1		(0b10000000),
+		F_GRP_2		(0b10100000),
+		FTR_EXP		(0b11000000),
+		CV_ACCS		(0b11100000);
+		
+		/* Constructor */
+		private final int insType;		
+		DCC_INS (int theInsType) {
+			this.insType = theInsType;
+		}
+		
+		/* Return code for this instruction */
+		public byte toCode() {
+			return (byte) this.insType;
+		}
+	}
+	
+	/* Decoder Control type instructions */
+	private static enum DCD_CTL_INS {
+		RESET 			(0b00000),
+		HRD_RST			(0b00001),
+		SET_FLG			(0b00110),
+		SET_ADV_ADR		(0b01010),
+		DCD_ACQ_REQ		(0b01111),
+		CNST_NORM		(0b10010),
+		CNST_REV		(0b10011);
+		
+		/* Constructor */
+		private final int insCode;		
+		DCD_CTL_INS (int theInsCode) {
+			this.insCode = theInsCode;
+		}
+		
+		/* Return code for this instruction */
+		public byte toCode() {
+			return (byte) this.insCode;
+		}
+	}
+	
+	/* Advanced Ops type instructions */
+	private static enum ADV_OPS_INS {
+		EXTD_SPD_STEP	(0b11111),
+		RSTD_SPD_STEP	(0b11110),
+		ANALOG_FUNC		(0b11101);
+		
+		/* Constructor */
+		private final int insCode;		
+		ADV_OPS_INS (int theInsCode) {
+			this.insCode = theInsCode;
+		}
+		
+		/* Return code for this instruction */
+		public byte toCode() {
+			return (byte) this.insCode;
+		}
+	}
+	
+	/* Feature Expansion type instructions */
+	private static enum FTR_EXP_INS {
+		BIN_CTL_LONG	(0b00000),
+		F_GRP_5			(0b11000),
+		F_GRP_6			(0b11001),
+		F_GRP_7			(0b11010),
+		F_GRP_8			(0b11011),
+		F_GRP_9			(0b11100),
+		BIN_CTL_SHORT	(0b11101),
+		F_GRP_3			(0b11110),
+		F_GRP_4			(0b11111);
+		
+		/* Constructor */
+		private final int insCode;		
+		FTR_EXP_INS (int theInsCode) {
+			this.insCode = theInsCode;
+		}
+		
+		/* Return code for this instruction */
+		public byte toCode() {
+			return (byte) this.insCode;
+		}
+	}
+
+	
+	/**
+	 * Constructor
+	 * 
+	 * sets this encoder's characteristics.
+	 * 
+	 * @param theAddr  decoder address.
+	 * @param theDcdrTyp  address type, 0 = mobile short, 1 = mobile long, 2 = accessory.
+	 * @param theNumSteps  speed step format, 14, 28 or 126.
+	 * @param theFkeyStates  initial function key states, bit 0 = FL.
+	 * @throws IllegalArgumentException if the address type or speed step format is unknown.
+	 */
+	public DCCencoder (int theAddr, int theDcdrTyp, int theNumSteps, int theFkeyStates) {
+		
+		/* Create byte array containing the address for target decoder in correct format. */
+		switch (theDcdrTyp) {
+		/* Address type 0 - Mobile decoder, short address */
+		case 0:
+			this.dcdrAdr = new byte[1];
+			this.dcdrAdr[0] = (byte)(theAddr & 0x7F);
+			break;
+		/* Address type 1 - Mobile decoder, long address */
+		case 1:
+			this.dcdrAdr = new byte[2];
+			this.dcdrAdr[0] = (byte)(ADR_TYP.MF_DCDR_LONG.toCode() | ((theAddr >> 8) & 0x3F));
+			this.dcdrAdr[1] = (byte)(theAddr & 0xFF);
+			break;
+		/* Address type 2 - Accessory decoder, 9 and 11 bit address */
+		case 2:
+			this.dcdrAdr = new byte[2];
+			this.dcdrAdr[0] = (byte)(ADR_TYP.ACC_DCDR.toCode() | ((theAddr >> 8) & 0x3F));
+			this.dcdrAdr[1] = (byte)(theAddr & 0x1F);
+			break;
+		/* Unexpected decoder address type */
+		default:
+			throw new IllegalArgumentException("Unknown decoder type = " + theDcdrTyp);
+		}
+		
+		/* Save speed step format */
+		if (theNumSteps != 14 && theNumSteps != 28 && theNumSteps != 126) {
+			throw new IllegalArgumentException("Unknown speed step type " + theNumSteps);
+		}
+		this.dcdrNumSteps = theNumSteps;
+		
+		/* Init function key states. */
+		this.fkState = new DCCfunctionkeys(theFkeyStates);
+		
+		/* Precompute the speed step commands for this decoder. */
+		buildSpeedTable();
+	
+	}
+	
+	/**
+	 * Return this decoder's speed step format.
+	 */
+	public int getSpdSteps() {
+		return this.dcdrNumSteps;
+	}
+	
+	/**
+	 * Return the state of this decoder's function keys FL to F28.
+	 * @return Integer where bit 0 = FL and bit 28 = F28.
+	 */
+	public int getKeyStates() {
+		return this.fkState.get();
+	}
+	
+	/**
+	 * Return the state of this decoder's function keys F29 to F68.
+	 * @return Long where bit 0 = F29 and bit 39 = F68.
+	 */
+	public long getExtKeyStates() {
+		return this.fkState.getExt();
+	}
+	
+	/**
+	 * Replace the state of this decoder's function keys FL to F28, (e.g. with
+	 * the state saved in the roster when the decoder is acquired again). F29 to
+	 * F68 keep their state. Nothing is sent, funcGroupsChanged() says which
+	 * groups now differ from the decoder's.
+	 * @param theFkeyStates Integer where bit 0 = FL and bit 28 = F28.
+	 */
+	public void setKeyStates(int theFkeyStates) {
+		this.fkState.set(0, DCCfunctionkeys.EXT_KEY - 1, theFkeyStates);
+	}
+	
+	/**
+	 * Set the function keys to a target state and return the groups that have
+	 * to be sent to reach it: those whose keys differ from the state the decoder
+	 * was last sent. Send each with DCCfuncGroup, so setting every key of a
+	 * decoder takes at most FUNC_GROUPS commands instead of one per key.
+	 * 
+	 * @param target  function key states wanted.
+	 * @return bit g set for each function group to send, see DCCfuncGroup.
+	 */
+	public int setFuncTarget(DCCfunctionkeys target) {
+		this.fkState = new DCCfunctionkeys(target.get(), target.getExt());
+		return funcGroupsChanged();
+	}
+	
+	/**
+	 * Return the function groups whose keys differ from the state the decoder
+	 * was last sent.
+	 * 
+	 * @return bit g set for each function group that differs, see DCCfuncGroup.
+	 */
+	public int funcGroupsChanged() {
+		int groups = 0;
+		for (int g = 0; g < FUNC_GROUPS; g++) {
+			int last = FUNC_GRP_FIRST[g + 1] - 1;
+			if (this.fkState.get(FUNC_GRP_FIRST[g], last) != this.sentKeys.get(FUNC_GRP_FIRST[g], last)) {
+				groups |= 1 << g;
+			}
+		}
+		return groups;
+	}
+	
+	/**
+	 * Set how the command station repeats this decoder's commands.
+	 * 
+	 * @param count  number of times each command is sent, 1 to MAX_REP_CNT.
+	 * @param forever  true to have moving speed steps repeated until replaced,
+	 * false if the client refreshes them.
+	 */
+	public void setRepeat(int count, boolean forever) {
+		this.repCnt = (byte) Math.max(1, Math.min(MAX_REP_CNT, count));
+		this.spdRep = forever ? REP_FVR : this.repCnt;
+		buildSpeedTable();
+	}
+	
+	/**
+	 * Build the speed step table for this decoder's address, speed step format
+	 * and repetition.
+	 */
+	private void buildSpeedTable() {
+		
+		if (this.spdTable == null) {
+			this.spdTable = new byte[(2 * SPD_MAX + 1) * SPD_ENT_LEN];
+		}
+		for (int speed = -SPD_MAX; speed <= SPD_MAX; speed++) {
+			int len = DCCspeedCalc(speed, this.cmdBuf, 0);
+			int ent = (speed + SPD_MAX) * SPD_ENT_LEN;
+			
+			/* Save the control byte and the instruction bytes that follow the address. */
+			this.spdInsLen = len - 1 - this.dcdrAdr.length;
+			this.spdTable[ent] = this.cmdBuf[0];
+			System.arraycopy(this.cmdBuf, 1 + this.dcdrAdr.length, this.spdTable, ent + 1, this.spdInsLen);
+			
+			if (this.dcdrNumSteps == 14) {
+				this.spdTable[ent + 1] &= ~FL_BIT_14;
+			}
+		}
+	}
+	
+	
+	/**
+	 * DCCreset:
+	 * 
+	 * Encode a "soft" reset command for this decoder.
+	 * 
+	 * @return DCC encoded byte string.
+	 */
+	public byte[] DCCreset () {
+		return Arrays.copyOf(this.cmdBuf, DCCreset(this.cmdBuf, 0));
+	}
+	
+	/**
+	 * DCCreset:
+	 * 
+	 * Encode a "soft" reset command for this decoder into the buffer passed.
+	 * 
+	 * @param buf  buffer to encode into, MAX_CMD_LEN bytes from off.
+	 * @param off  index in buf of the first byte of the command.
+	 * @return number of bytes encoded.
+	 */
+	public int DCCreset (byte[] buf, int off) {
+		
+		/* This is a one byte command */
+		int pos = off;
+		buf[pos++] = this.repCnt;		/* Stream command with repetition count. */
+		pos = putAdr(buf, pos);		/* The decoder's address */
+		buf[pos++] = (byte)(DCC_INS.DCD_CTL.toCode() | DCD_CTL_INS.RESET.toCode());
+		
+		return pos - off;
+	}
+	
+	/**
+	 * DCCspeed:
+	 * 
+	 * Encode speed and direction command in the format for this decoder
+	 * 
+	 * @param speed  integer from -126 to 126
+	 * @return DCC encoded byte string.
+	 */
+	public byte[] DCCspeed (int speed) {
+		return Arrays.copyOf(this.cmdBuf, DCCspeed(speed, this.cmdBuf, 0));
+	}
+	
+	/**
+	 * DCCspeed:
+	 * 
+	 * Encode speed and direction command in the format for this decoder into
+	 * the buffer passed, from the speed step table.
+	 * 
+	 * @param speed  integer from -126 to 126, values outside are limited to that range.
+	 * @param buf  buffer to encode into, MAX_CMD_LEN bytes from off.
+	 * @param off  index in buf of the first byte of the command.
+	 * @return number of bytes encoded.
+	 */
+	public int DCCspeed (int speed, byte[] buf, int off) {
+		
+		if (speed > SPD_MAX) {
+			speed = SPD_MAX;
+		} else if (speed < -SPD_MAX) {
+			speed = -SPD_MAX;
+		}
+		
+		int ent = (speed + SPD_MAX) * SPD_ENT_LEN;
+		int pos = off;
+		
+		/* Control byte, this decoder's address and the instruction bytes. */
+		buf[pos++] = this.spdTable[ent];
+		pos = putAdr(buf, pos);
+		for (int i = 1; i <= this.spdInsLen; i++) {
+			buf[pos++] = this.spdTable[ent + i];
+		}
+		
+		/* 14 step commands carry the head light state. */
+		if (this.dcdrNumSteps == 14) {
+			buf[pos - 1] |= (byte)(this.fkState.get(0) << 4);
+		}
+		
+		return pos - off;
+	}
+	
+	/**
+	 * DCCspeedCalc:
+	 * 
+	 * Calculate the speed and direction command in the format for this decoder
+	 * into the buffer passed. This is the reference encoder the speed step table
+	 * is built from.
+	 * 
+	 * @param speed  integer from -126 to 126
+	 * @param buf  buffer to encode into, MAX_CMD_LEN bytes from off.
+	 * @param off  index in buf of the first byte of the command.
+	 * @return number of bytes encoded.
+	 */
+	public int DCCspeedCalc (int speed, byte[] buf, int off) {
+		
+		int pos = off;
+		int throttleStep = 0;
+		int direction = 0;
+		
+		/* Set direction and scale speed for this decoders speed step format */
+		if (speed < 0) {
+			direction = 0;
+			throttleStep = (-speed * this.dcdrNumSteps)/126;
+		} else {
+			direction = 1;
+			throttleStep = (speed * this.dcdrNumSteps)/126;
+		}
+
+		/* Format the speed step command as required by this decoder. */
+		switch (this.dcdrNumSteps) {
+		/* 14 step format */
+		case 14:
+			/* If Step is not 0 (STOP), command uses the moving repetition and step is adjusted to skip Stop commands. */
+			if (throttleStep > 0) {
+				buf[pos++] = this.spdRep;
+				throttleStep += 1;
+			} else {
+				buf[pos++] = this.repCnt;
+			}
+			
+			/* Put this decoder's address into the command. */
+			pos = putAdr(buf, pos);
+			
+			/* Add direction, head light state and throttle step to create speed command. */
+			if (direction == 1) {
+				buf[pos++] = (byte)(DCC_INS.FWD_SPD.toCode() | (this.fkState.get(0) << 4) | (throttleStep & 0x0F));
+			} else {
+				buf[pos++] = (byte)(DCC_INS.RVS_SPD.toCode() | (this.fkState.get(0) << 4) | (throttleStep & 0x0F));
+			}
+			break;
+
+		/* 28 step format */
+		case 28:
+			/* If Step is not 0 (STOP), command uses the moving repetition and step is adjusted to skip Stop commands. */
+			/* If it is Stop, it is repeated for the standard number of times. */
+			if (throttleStep > 0) {
+				buf[pos++] = this.spdRep;
+				throttleStep += 4;
+			} else {
+				buf[pos++] = this.repCnt;
+			}
+			
+			/* Put this decoder's address into the command. */
+			pos = putAdr(buf, pos);
+			
+			/* Add direction and throttle step to create speed command. */
+			if (direction == 1) {
+				buf[pos++] = (byte)(DCC_INS.FWD_SPD.toCode() | ((throttleStep & 0x01) << 4) | ((throttleStep >> 1) & 0x0F));
+			} else {
+				buf[pos++] = (byte)(DCC_INS.RVS_SPD.toCode() | ((throttleStep & 0x01) << 4) | ((throttleStep >> 1) & 0x0F));
+			}
+			break;
+		
+		/* 126 step format */
+		case 126:
+			/* If Step is not 0 (STOP), command uses the moving repetition and step is adjusted to skip Stop commands. */
+			/* If it is Stop, it is repeated for the standard number of times. */
+			if (throttleStep > 0) {
+				buf[pos++] = this.spdRep;
+				throttleStep += 1;
+			} else {
+				buf[pos++] = this.repCnt;
+			}
+			
+			/* Put this decoder's address into the command. */
+			pos = putAdr(buf, pos);
+			
+			/* Create first byte of command from ADV_OPS command + Extended Speed step subcommand.  */
+			buf[pos++] = (byte)(DCC_INS.ADV_OPS.toCode() | ADV_OPS_INS.EXTD_SPD_STEP.toCode());
+
+			/* Add direction and throttle step in the second byte. */
+			buf[pos++] = (byte)((direction << 7) | (throttleStep & 0x7F));
+			break;
+			
+			/* unexpected speed step format, rejected by the constructor */
+			default:
+				break;
+			
+		}  /* switch(spdFmt) */
+		
+		return pos - off;
+	}
+	
+	/**
+	 * DCCestop:
+	 * 
+	 * Encode an Emergency Stop command for this decoder.
+	 * 
+	 * @return DCC encoded byte string.
+	 */
+	public byte[] DCCestop () {
+		return Arrays.copyOf(this.cmdBuf, DCCestop(this.cmdBuf, 0));
+	}
+	
+	/**
+	 * DCCestop:
+	 * 
+	 * Encode an Emergency Stop command for this decoder into the buffer passed.
+	 * 
+	 * @param buf  buffer to encode into, MAX_CMD_LEN bytes from off.
+	 * @param off  index in buf of the first byte of the command.
+	 * @return number of bytes encoded.
+	 */
+	public int DCCestop (byte[] buf, int off) {
+
+		int pos = off;
+		final int ESTOP_CMD = 1;
+		
+		/* Format command for this decoder's speed type */
+		switch (this.dcdrNumSteps) {
+		/* estop for 14 and 28 step format */		
+		case 14:
+		case 28:
+			buf[pos++] = this.repCnt;
+			pos = putAdr(buf, pos);
+			buf[pos++] = (byte)(DCC_INS.RVS_SPD.toCode() | ESTOP_CMD);
+			break;
+		/* estop for 126 step format */
+		case 126:
+			buf[pos++] = this.repCnt;
+			pos = putAdr(buf, pos);
+			buf[pos++] = (byte)(DCC_INS.ADV_OPS.toCode() | ADV_OPS_INS.EXTD_SPD_STEP.toCode());
+			buf[pos++] = (byte)ESTOP_CMD;
+			break;
+			
+			/* unexpected speed step format, rejected by the constructor */
+		default:
+			break;
+		}
+
+		return pos - off;
+	}
+		
+	/**
+	 * DCCfunc
+	 * 
+	 * Encode a Function command
+	 * 
+	 * @param funcKey =  # (from 0 to 68) of function key activated
+	 * @return Byte string for function command for this decoder.
+	 */
+	public byte[] DCCfunc (int funcKey) {
+		return Arrays.copyOf(this.cmdBuf, DCCfunc(funcKey, this.cmdBuf, 0));
+	}
+	
+	/**
+	 * DCCfunc
+	 * 
+	 * Encode a Function command into the buffer passed. The key is sent as its
+	 * function group, the same instruction used to restore a decoder's keys, so
+	 * a key press and a restore reach the same decoder function.
+	 * 
+	 * @param funcKey =  # (from 0 to 68) of function key activated
+	 * @param buf  buffer to encode into, MAX_CMD_LEN bytes from off.
+	 * @param off  index in buf of the first byte of the command.
+	 * @return number of bytes encoded, 0 if the key is invalid.
+	 */
+	public int DCCfunc (int funcKey, byte[] buf, int off) {
+
+		/* Reject invalid keys before touching the key state. */
+		if (funcKey < 0 || funcKey > DCCfunctionkeys.MAX_KEY) {
+			return 0;
+		}
+		
+		/* Update function key state and send the key. */
+		this.fkState.tog(funcKey);
+		
+		int group = 0;
+		while (funcKey >= FUNC_GRP_FIRST[group + 1]) {
+			group++;
+		}
+		return DCCfuncGroup(group, buf, off);
+	}
+	
+	/**
+	 * DCCfuncGroup
+	 * 
+	 * Encode the current state of one function group into the buffer passed,
+	 * without changing it, (e.g. to restore a decoder's functions), and note it
+	 * as the state the decoder was sent. The groups are 0 = FL and F1 - F4,
+	 * 1 = F5 - F8, 2 = F9 - F12, 3 = F13 - F20, 4 = F21 - F28, then groups of
+	 * eight keys up to 9 = F61 - F68.
+	 * 
+	 * @param group  function group, 0 to FUNC_GROUPS - 1.
+	 * @param buf  buffer to encode into, MAX_CMD_LEN bytes from off.
+	 * @param off  index in buf of the first byte of the command.
+	 * @return number of bytes encoded, 0 if the group is invalid.
+	 */
+	public int DCCfuncGroup (int group, byte[] buf, int off) {
+
+		int pos = off;
+		
+		if (group < 0 || group >= FUNC_GROUPS) {
+			return 0;
+		}
+		
+		buf[pos++] = this.repCnt;
+		pos = putAdr(buf, pos);
+		
+		switch (group) {
+		case 0:
+			buf[pos++] = (byte)(DCC_INS.F_GRP_1.toCode() | ((this.fkState.get(0)) << 4) | fkState.get(1, 4));
+			break;
+		case 1:
+			/* Group two with the select bit set is F5 - F8. */
+			buf[pos++] = (byte)(DCC_INS.F_GRP_2.toCode() | 0x10 | this.fkState.get(5, 8));
+			break;
+		case 2:
+			buf[pos++] = (byte)(DCC_INS.F_GRP_2.toCode() | this.fkState.get(9, 12));
+			break;
+		case 3:
+			buf[pos++] = (byte)(DCC_INS.FTR_EXP.toCode() | FTR_EXP_INS.F_GRP_3.toCode());
+			buf[pos++] = (byte)fkState.get(13, 20);
+			break;
+		case 4:
+			buf[pos++] = (byte)(DCC_INS.FTR_EXP.toCode() | FTR_EXP_INS.F_GRP_4.toCode());
+			buf[pos++] = (byte)fkState.get(21, 28);
+			break;
+		default:
+			/* F29 - F68, the group instructions follow each other from F_GRP_5. */
+			buf[pos++] = (byte)(DCC_INS.FTR_EXP.toCode() | (FTR_EXP_INS.F_GRP_5.toCode() + group - 5));
+			buf[pos++] = (byte)fkState.get(FUNC_GRP_FIRST[group], FUNC_GRP_FIRST[group + 1] - 1);
+			break;
+		}
+		int last = FUNC_GRP_FIRST[group + 1] - 1;
+		this.sentKeys.set(FUNC_GRP_FIRST[group], last, this.fkState.get(FUNC_GRP_FIRST[group], last));
+		
+		return pos - off;
+	}
+	
+	/**
+	 * DCCbinState
+	 * 
+	 * Encode a Binary State Control command. States 1 to 127 take the short
+	 * form, higher ones the long form. State 0 sets or clears every binary
+	 * state 1 to 127 of the decoder. Binary states are a decoder feature of
+	 * their own, separate from the function keys, so the encoder keeps no
+	 * state for them.
+	 * 
+	 * @param state  binary state, 0 to MAX_BIN_STATE.
+	 * @param on  true to set the state, false to clear it.
+	 * @return Byte string for the binary state command for this decoder, empty if the state is invalid.
+	 */
+	public byte[] DCCbinState (int state, boolean on) {
+		return Arrays.copyOf(this.cmdBuf, DCCbinState(state, on, this.cmdBuf, 0));
+	}
+	
+	/**
+	 * DCCbinState
+	 * 
+	 * Encode a Binary State Control command into the buffer passed, see DCCbinState(int, boolean).
+	 * 
+	 * @param state  binary state, 0 to MAX_BIN_STATE.
+	 * @param on  true to set the state, false to clear it.
+	 * @param buf  buffer to encode into, MAX_CMD_LEN bytes from off.
+	 * @param off  index in buf of the first byte of the command.
+	 * @return number of bytes encoded, 0 if the state is invalid.
+	 */
+	public int DCCbinState (int state, boolean on, byte[] buf, int off) {
+
+		int pos = off;
+		
+		if (state < 0 || state > MAX_BIN_STATE) {
+			return 0;
+		}
+		
+		buf[pos++] = this.repCnt;
+		pos = putAdr(buf, pos);
+		
+		if (state <= 0x7F) {
+			buf[pos++] = (byte)(DCC_INS.FTR_EXP.toCode() | FTR_EXP_INS.BIN_CTL_SHORT.toCode());
+			buf[pos++] = (byte)((on ? 0x80 : 0) | state);
+		} else {
+			buf[pos++] = (byte)(DCC_INS.FTR_EXP.toCode() | FTR_EXP_INS.BIN_CTL_LONG.toCode());
+			buf[pos++] = (byte)((on ? 0x80 : 0) | (state & 0x7F));
+			buf[pos++] = (byte)(state >> 7);
+		}
+		
+		return pos - off;
+	}
+	
+	/**
+	 * Return true if any key in a function group is on.
+	 * 
+	 * @param group  function group, see DCCfuncGroup.
+	 */
+	public boolean isFuncGroupOn (int group) {
+		if (group < 0 || group >= FUNC_GROUPS) {
+			return false;
+		}
+		return fkState.get(FUNC_GRP_FIRST[group], FUNC_GRP_FIRST[group + 1] - 1) != 0;
+	}
+	
+	/**
+	 * DCCconsist
+	 * 
+	 * Encode a Consist Control command that puts this decoder in an advanced
+	 * consist. The decoder then takes speed and direction from commands to the
+	 * consist address, reversing the direction if it runs backwards in the
+	 * consist. Consist address 0 takes it out of its consist.
+	 * 
+	 * @param cnstAdr  consist address, 1 to 127, or 0 to remove.
+	 * @param reversed  true if the decoder runs reversed in the consist.
+	 * @return Byte string for the consist command for this decoder, empty if the address is invalid.
+	 */
+	public byte[] DCCconsist (int cnstAdr, boolean reversed) {
+		return Arrays.copyOf(this.cmdBuf, DCCconsist(cnstAdr, reversed, this.cmdBuf, 0));
+	}
+	
+	/**
+	 * DCCconsist
+	 * 
+	 * Encode a Consist Control command into the buffer passed, see DCCconsist(int, boolean).
+	 * 
+	 * @param cnstAdr  consist address, 1 to 127, or 0 to remove.
+	 * @param reversed  true if the decoder runs reversed in the consist.
+	 * @param buf  buffer to encode into, MAX_CMD_LEN bytes from off.
+	 * @param off  index in buf of the first byte of the command.
+	 * @return number of bytes encoded, 0 if the address is invalid.
+	 */
+	public int DCCconsist (int cnstAdr, boolean reversed, byte[] buf, int off) {
+
+		int pos = off;
+		
+		if (cnstAdr < 0 || cnstAdr > 127) {
+			return 0;
+		}
+		
+		buf[pos++] = this.repCnt;
+		pos = putAdr(buf, pos);
+		buf[pos++] = (byte)(DCC_INS.DCD_CTL.toCode() |
+				(reversed ? DCD_CTL_INS.CNST_REV.toCode() : DCD_CTL_INS.CNST_NORM.toCode()));
+		buf[pos++] = (byte) cnstAdr;
+		
+		return pos - off;
+	}
+	
+	/**
+	 * DCCcvWrite
+	 * 
+	 * Encode a Configuration Variable Access command that writes a CV while the
+	 * decoder is on the main track, (operations mode). The command station sends
+	 * it at least twice, a decoder only acts on a CV write it received twice.
+	 * 
+	 * @param cv  CV number, 1 to MAX_CV.
+	 * @param value  value to write, 0 to 255.
+	 * @return Byte string for the CV write for this decoder, empty if the CV or value is invalid.
+	 */
+	public byte[] DCCcvWrite (int cv, int value) {
+		return Arrays.copyOf(this.cmdBuf, DCCcvWrite(cv, value, this.cmdBuf, 0));
+	}
+	
+	/**
+	 * DCCcvWrite
+	 * 
+	 * Encode a CV write into the buffer passed, see DCCcvWrite(int, int).
+	 * 
+	 * @param cv  CV number, 1 to MAX_CV.
+	 * @param value  value to write, 0 to 255.
+	 * @param buf  buffer to encode into, MAX_CMD_LEN bytes from off.
+	 * @param off  index in buf of the first byte of the command.
+	 * @return number of bytes encoded, 0 if the CV or value is invalid.
+	 */
+	public int DCCcvWrite (int cv, int value, byte[] buf, int off) {
+		return cvAccess(CV_ACCS_INS.WRITE_BYTE, cv, value, buf, off);
+	}
+	
+	/**
+	 * DCCcvVerify
+	 * 
+	 * Encode a Configuration Variable Access command that asks an operations
+	 * mode decoder whether a CV holds a value. Only a command station that reads
+	 * RailCom gets the decoder's answer.
+	 * 
+	 * @param cv  CV number, 1 to MAX_CV.
+	 * @param value  value to compare with, 0 to 255.
+	 * @return Byte string for the CV verify for this decoder, empty if the CV or value is invalid.
+	 */
+	public byte[] DCCcvVerify (int cv, int value) {
+		return Arrays.copyOf(this.cmdBuf, cvAccess(CV_ACCS_INS.VERIFY_BYTE, cv, value, this.cmdBuf, 0));
+	}
+	
+	/* Encode a long form CV access: instruction and the top two bits of CV - 1, its low byte, then the value. */
+	private int cvAccess(CV_ACCS_INS ins, int cv, int value, byte[] buf, int off) {
+
+		int pos = off;
+		
+		if (cv < 1 || cv > MAX_CV || value < 0 || value > 0xFF) {
+			return 0;
+		}
+		
+		buf[pos++] = (byte) Math.max(this.repCnt, CV_REP_CNT);
+		pos = putAdr(buf, pos);
+		buf[pos++] = (byte)(DCC_INS.CV_ACCS.toCode() | ins.toCode() | ((cv - 1) >> 8));
+		buf[pos++] = (byte)(cv - 1);
+		buf[pos++] = (byte) value;
+		
+		return pos - off;
+	}
+	
+	/* Copy this decoder's address into buf at pos and return the index after it. */
+	private int putAdr(byte[] buf, int pos) {
+		for (int i = 0; i < this.dcdrAdr.length; i++) {
+			buf[pos++] = this.dcdrAdr[i];
+		}
+		return pos;
+	}
+}
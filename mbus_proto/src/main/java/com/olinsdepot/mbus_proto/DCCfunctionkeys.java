@@ -0,0 +1,174 @@
+package com.olinsdepot.mbus_proto;
+
+/**
+ * DCCfunction keys class
+ * 
+ * Maintains a mapping of the state of the 69 function keys for a decoder, FL
+ * and F1 - F68, to a pair of longs. Key n is bit n % 64 of word n / 64, so a
+ * key or a range of keys is read and written with shifts and one mask, without
+ * a loop over the keys.
+ * 
+ * The state is passed in and out as an int for FL to F28, (what the roster
+ * keeps), and a long for F29 - F68.
+ * 
+ * @author mhughes
+ *
+ */
+public class DCCfunctionkeys {
+	
+	/* Highest function key. */
+	public static final int MAX_KEY = 68;
+	
+	/* First key of the extended range, (F29 - F68). */
+	public static final int EXT_KEY = 29;
+	
+	private static final int LOW_MASK = (1 << EXT_KEY) - 1;
+	private static final long HIGH_MASK = (1L << (MAX_KEY + 1 - EXT_KEY)) - 1;
+	
+	private final long[] fkeyState = new long[2];
+	
+	/**
+	 * Constructor
+	 * 
+	 * arg = none  Constructor returns with all functions off
+	 * arg = int   Constructor returns with FL - F28 initialized to values in int.
+	 * arg = int, long  Constructor returns with FL - F28 initialized to values in int
+	 *                  and F29 - F68 to values in long, bit 0 = F29.
+	 */
+	
+	public DCCfunctionkeys() {
+	}
+	
+	public DCCfunctionkeys(int theState) {
+		this(theState, 0);
+	}
+	
+	public DCCfunctionkeys(int theState, long theExtState) {
+		this.fkeyState[0] = (theState & LOW_MASK) | ((theExtState & HIGH_MASK) << EXT_KEY);
+		this.fkeyState[1] = (theExtState & HIGH_MASK) >>> (64 - EXT_KEY);
+	}
+	
+	/*
+	 * Methods
+	 */
+	
+	/**
+	 * Initialize all function keys to 0 = OFF
+	 */
+	public void clear() {
+		this.fkeyState[0] = 0;
+		this.fkeyState[1] = 0;
+	}
+	
+	/**
+	 * Set specified function key state to 0 = OFF
+	 * 
+	 * @param fkey
+	 */
+	public void clear(int fkey) {
+		this.fkeyState[fkey >>> 6] &= ~(1L << fkey);
+	}
+	
+	/**
+	 * Set function key state
+	 * 
+	 * @param fkey Set key state to 1 = ON
+	 */
+	public void set(int fkey) {
+		this.fkeyState[fkey >>> 6] |= 1L << fkey;
+	}
+	
+	/**
+	 * Set specified function key state to specified value
+	 * @param fkey
+	 * @param fval
+	 */
+	public void set(int fkey, boolean fval) {
+		if (fval) {
+			this.set(fkey);
+		} else {
+			this.clear(fkey);
+		}
+	}
+	
+	/**
+	 * Set the states of the specified range of keys, at most 32 keys.
+	 * @param skey Integer specifying the starting key
+	 * @param nkey Integer specifying the ending key
+	 * @param fvals Integer where bit 0 = skey state and bit n = end key state
+	 */
+	public void set(int skey, int nkey, int fvals) {
+		long keyMask = rangeMask(skey, nkey);
+		long vals = fvals & keyMask;
+		int word = skey >>> 6;
+		int bit = skey & 0x3F;
+		
+		this.fkeyState[word] = (this.fkeyState[word] & ~(keyMask << bit)) | (vals << bit);
+		
+		/* The part of a range that runs into the second word. */
+		if (bit != 0 && word == 0 && (nkey >>> 6) != 0) {
+			this.fkeyState[1] = (this.fkeyState[1] & ~(keyMask >>> (64 - bit))) | (vals >>> (64 - bit));
+		}
+	}
+	
+	/**
+	 * Return the state of function keys FL to F28
+	 * @return Integer where bit 0 = FL and bit 28 = F28.
+	 */
+	public int get() {
+		return (int) this.fkeyState[0] & LOW_MASK;
+	}
+	
+	/**
+	 * Return the state of function keys F29 to F68
+	 * @return Long where bit 0 = F29 and bit 39 = F68.
+	 */
+	public long getExt() {
+		return ((this.fkeyState[0] >>> EXT_KEY) | (this.fkeyState[1] << (64 - EXT_KEY))) & HIGH_MASK;
+	}
+	
+	/**
+	 * Return the state of the specified function key.
+	 * @param fkey  Integer that specifies function key
+	 * @return Integer where bit 0 has requested state.
+	 */
+	public int get(int fkey) {
+		return (int) (this.fkeyState[fkey >>> 6] >>> fkey) & 0x01;
+	}
+	
+	/**
+	 * Return the state of the specified range of keys, at most 32 keys.
+	 * @param skey Integer specifying the starting key
+	 * @param nkey Integer specifying the ending key
+	 * @return Integer where bit 0 = skey state and bit n = end key state
+	 */
+	public int get(int skey, int nkey) {
+		int word = skey >>> 6;
+		int bit = skey & 0x3F;
+		long keys = this.fkeyState[word] >>> bit;
+		
+		/* The part of a range that runs into the second word. */
+		if (bit != 0 && word == 0) {
+			keys |= this.fkeyState[1] << (64 - bit);
+		}
+		return (int) (keys & rangeMask(skey, nkey));
+	}
+	
+	/**
+	 * Toggle the specified function key
+	 * @param fkey
+	 * @return the key's state before the toggle.
+	 */
+	public int tog(int fkey) {
+		int fval = this.get(fkey);
+		this.fkeyState[fkey >>> 6] ^= 1L << fkey;
+		
+		return fval;
+	}
+	
+	/* Mask with a bit for each key from skey to nkey, bit 0 for skey. */
+	private static long rangeMask(int skey, int nkey) {
+		return -1L >>> (63 - (nkey - skey));
+	}
+	
+}
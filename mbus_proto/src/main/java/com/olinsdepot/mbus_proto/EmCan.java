@@ -0,0 +1,182 @@
+package com.olinsdepot.mbus_proto;
+
+/**
+ * EmCAN stream protocol definitions: the stream commands sent to the server,
+ * the responses it returns and the fields of the CAN frames carried in them.
+ *
+ * @author mhughes
+ *
+ */
+public final class EmCan {
+
+	/* Longest data field of a frame, (one CAN frame). */
+	public static final int MAX_DATA_LEN = 8;
+
+	/* Protocol name the server returns in the ID response. */
+	static final byte[] PROT_NAME = {'E','m','C','a','n',':','M','o','r','B','u','s'};
+
+	private EmCan() {
+	}
+
+	/**
+	 * EMCAN stream op codes.
+	 */
+	public static enum EmCanCmd {
+		NOP 		(0),
+		PING 		(1),
+		ID 			(2),
+		FWINFO		(3),
+		CMDS		(4),
+		RESET		(5),
+		SENDS		(6),
+		SENDE		(7),
+		SENDSR		(8),
+		SENDER		(9),
+		ENUM		(10),
+		KEEPALIVE	(11),
+		STROUT		(12);
+
+		/* Constructor */
+		private final int opcode;
+		private EmCanCmd(int op) {
+			this.opcode = op;
+		}
+
+		/* Returns the code for this EmCAN command */
+		public byte toCode() {
+			return (byte) this.opcode;
+		}
+	}
+
+	/**
+	 * EMCAN Stream response codes
+	 */
+	public static enum EmCanRsp {
+		EOF			(-1),
+		NOP			(0),
+		PONG		(1),
+		ID			(2),
+		FWINFO		(3),
+		CMDS		(4),
+		CANFR		(5),
+		RESET		(6),
+		ADR			(7),
+		UNADR		(8),
+		STROUT		(9),
+		STRINRES	(10),
+		STRIN		(11),
+		UNKNOWN		(255);
+
+		/* Constructor */
+		private final int rspcode;
+		private EmCanRsp(int rsp) {
+			this.rspcode = rsp;
+		}
+
+		/* Map of response byte values to Enum, unassigned values map to UNKNOWN. */
+		private static final EmCanRsp[] codeToEnum = new EmCanRsp[256];
+		static {
+			for (int i = 0; i < codeToEnum.length; i++) {
+				codeToEnum[i] = UNKNOWN;
+			}
+			for (EmCanRsp rsp : values()) {
+				if (rsp.toCode() >= 0) {
+					codeToEnum[rsp.toCode()] = rsp;
+				}
+			}
+		}
+
+		/* Returns the code for this EmCAN response. */
+		public int toCode() {
+			return this.rspcode;
+		}
+
+		/* Returns EmCAN response for the code passed, or UNKNOWN if code is invalid */
+		public static EmCanRsp fromCode(int rsp) {
+			if (rsp >= 0 && rsp < codeToEnum.length) {
+				return codeToEnum[rsp];
+			} else if (rsp == EOF.toCode()) {
+				return EOF;
+			} else {
+				return UNKNOWN;
+			}
+		}
+	}
+
+	/**
+	 * Standard Frame Opcodes
+	 */
+	public static enum StndFrmOp {
+		RESET		(0),
+		ADRASSIGN	(8),
+		SYNC		(12),
+		ADRELEASE	(13),
+		ADRREQ		(14),
+		ADRREQRES	(15);
+
+		/* Constructor */
+		private final int stdidop;
+		private StndFrmOp(int op) {
+			this.stdidop = op;
+		}
+
+		/* Returns the op code for this EmCAN extended frame operation */
+		public int toCode() {
+			return this.stdidop;
+		}
+	}
+
+	/**
+	 * Extended Frame Opcodes
+	 */
+	public static enum ExtdFrmOp {
+		PORTWR		(992),
+		PORTRD		(993),
+		FWINFO		(1008),
+		APPROLE		(1009),
+		CONFIG		(1011),
+		NPORTS		(1012),
+		PORTYPE		(1013),
+		PORTSCALE	(1014),
+		PORTOFS		(1015),
+		SETROLE		(1018),
+		PORTINIT	(1019),
+		PORTCFG		(1020),
+		PORTROLE	(1021),
+		STROUT		(1022),
+		STRIN		(1023);
+
+		/* Constructor */
+		private final int extidop;
+		private ExtdFrmOp(int op) {
+			this.extidop = op;
+		}
+
+		/* Returns the op code for this EmCAN  extended operation */
+		public int toCode() {
+			return this.extidop;
+		}
+	}
+
+	/**
+	 * EmCAN ID field bit definitions
+	 */
+	public static enum ExtdFrmFlg {
+		NEW_DATA			(1 << 16),
+		UNSOLICITED			(1 << 15),
+		ACK_REQSTD			(1 << 14),
+		CONTINUATION		(1 << 13),
+		TO_BE_CONTINUED		(1 << 12);
+
+		/* Constructor */
+		private final int idflgs;
+		private ExtdFrmFlg(int flg) {
+			this.idflgs = flg;
+		}
+
+		/* Returns the flag */
+		public int toCode() {
+			return this.idflgs;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.olinsdepot.mbus_proto;
+
+import java.nio.ByteBuffer;
+
+import com.olinsdepot.mbus_proto.EmCan.*;
+
+/**
+ * Builds the broadcast extended EmCAN frames that carry DCC commands to the
+ * server.
+ *
+ * @author mhughes
+ *
+ */
+public class EmCanFramer {
+
+	/* Bytes in a frame ahead of the CAN data: command, length and 32 bit ID. */
+	public static final int HDR_LEN = 6;
+
+	/**
+	 * Put a broadcast extended EmCAN frame into the buffer passed.
+	 *
+	 * @param op - broadcast opcode.
+	 * @param data - CAN data bytes.
+	 * @param len - number of CAN data bytes.
+	 * @param out - buffer to put the frame in, HDR_LEN + len bytes.
+	 */
+	public void frame(int op, byte[] data, int len, ByteBuffer out) {
+
+		/* Build the EmCAN frame. */
+		out.put(EmCanCmd.SENDE.toCode());		/* stream command */
+		out.put((byte) len);					/* # of CAN data bytes */
+		out.putInt(getExID(op, 0));				/* generate EmCAN ID */
+		out.put(data, 0, len);					/* CAN data */
+	}
+
+	/**
+	 * Return a 32 bit integer containing the 32 bit extended ID
+	 * for an EmCAN external stream frame.
+	 */
+	public static int getExID(int op, int node) {
+		int emcanId = 0;
+		// TODO right now, only supports broadcast.
+
+		if (node == 0) {
+			emcanId |= (op << 19);
+			emcanId |= ExtdFrmFlg.NEW_DATA.toCode();
+		}
+
+		return emcanId;
+	}
+}
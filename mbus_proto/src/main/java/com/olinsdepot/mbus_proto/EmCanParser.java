@@ -0,0 +1,119 @@
+package com.olinsdepot.mbus_proto;
+
+import java.nio.ByteBuffer;
+
+import com.olinsdepot.mbus_proto.EmCan.*;
+
+/**
+ * Splits the EmCAN response stream into responses. Works on a receive buffer
+ * whose bytes between position and limit have been read but not yet handled,
+ * and finds the boundary of the response at the head of it from the known
+ * length of each response type.
+ *
+ * @author mhughes
+ *
+ */
+public final class EmCanParser {
+
+	private EmCanParser() {
+	}
+
+	/**
+	 * Return the length of the response at the head of the buffer.
+	 *
+	 * @param buf - receive buffer, the response starts at its position.
+	 * @return length of the response, 0 if it is not complete yet, or -1 if it
+	 * can't fit in the buffer.
+	 */
+	public static int frameLength(ByteBuffer buf) {
+		int pos = buf.position();
+		int avail = buf.remaining();
+		int len;
+
+		if (avail == 0) {
+			return 0;
+		}
+
+		switch (EmCanRsp.fromCode(buf.get(pos) & 0xFF)) {
+
+		/* Response code followed by a length byte, 32 bit ID and data. */
+		case CANFR:
+			if (avail < 2) {
+				return 0;
+			}
+			len = 6 + (buf.get(pos + 1) & 0xFF);
+			break;
+
+		/* Response code followed by an address byte. */
+		case ADR:
+			len = 2;
+			break;
+
+		/* Response code followed by a 0 terminated string and a version byte. */
+		case ID:
+			len = stringEnd(buf, pos + 1);
+			if (len == 0) {
+				return atCapacity(buf, avail);
+			}
+			len = len - pos + 1;
+			break;
+
+		/* Response code followed by a 0 terminated string. */
+		case FWINFO:
+		case CMDS:
+		case STROUT:
+		case STRIN:
+			len = stringEnd(buf, pos + 1);
+			if (len == 0) {
+				return atCapacity(buf, avail);
+			}
+			len = len - pos;
+			break;
+
+		/* Single byte responses, including unknown codes. */
+		default:
+			len = 1;
+			break;
+		}
+
+		return (len <= avail) ? len : 0;
+	}
+
+	/**
+	 * Verify an ID response names the MorBus protocol, (EmCan:MorBus followed
+	 * by a 0 and the version).
+	 *
+	 * @param buf - buffer holding the response.
+	 * @param pos - index of the response code in buf.
+	 * @param len - length of the response including the response code.
+	 * @return the protocol version, or -1 if the server is not a MorBus server.
+	 */
+	public static int idVersion(ByteBuffer buf, int pos, int len) {
+		byte[] name = EmCan.PROT_NAME;
+
+		if (len != name.length + 3) {
+			return -1;
+		}
+		for (int i = 0; i < name.length; i++) {
+			if (buf.get(pos + 1 + i) != name[i]) {
+				return -1;
+			}
+		}
+		return buf.get(pos + len - 1) & 0xFF;
+	}
+
+	/* Return the index just past the 0 terminating a string at from, or 0 if not received yet. */
+	private static int stringEnd(ByteBuffer buf, int from) {
+		for (int i = from; i < buf.limit(); i++) {
+			if (buf.get(i) == 0) {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+
+	/* An incomplete response that already fills the buffer will never complete. */
+	private static int atCapacity(ByteBuffer buf, int avail) {
+		return (avail == buf.capacity()) ? -1 : 0;
+	}
+}
@@ -0,0 +1,98 @@
+package com.olinsdepot.mbus_proto;
+
+/**
+ * MorBus protocol definitions: the MorBus commands and responses carried on
+ * the EmCAN byte stream and the opcodes of MorBus CAN frames.
+ *
+ * @author mhughes
+ *
+ */
+public final class MorBus {
+
+	private MorBus() {
+	}
+
+	/**
+	 * Morbus byte stream commands
+	 */
+	public static enum MbusStrCmd {
+		OFF		(64),
+		STOP	(65),
+		ON		(66),
+		ONOFF	(67),
+		MVAL	(68),
+		DCC		(69);
+		/* Constructor */
+		private final int strop;
+		private MbusStrCmd(int op) {
+			this.strop = op;
+		}
+
+		/* Returns the code for this Mbus stream command. */
+		public int toCode() {
+			return this.strop;
+		}
+	}
+
+	/**
+	 * Morbus byte stream responses
+	 */
+	public static enum MbusStrRsp {
+		ONOFF	(64),
+		MVAL	(65),
+		SHORT	(66);
+
+		/* Constructor */
+		private final int strrsp;
+		private MbusStrRsp(int rsp) {
+			this.strrsp = rsp;
+		}
+
+		/* Returns the code for this Mbus stream response. */
+		public int toCode() {
+			return this.strrsp;
+		}
+	}
+
+	/**
+	 * MorBUS broadcast frames
+	 */
+	public static enum MbusBcstOp {
+		OFF		(0),
+		STOP	(1),
+		ON		(2),
+		DCC		(3),
+		DCCRES	(4);
+
+		/* Constructor */
+		private final int bcstop;
+		private MbusBcstOp(int op) {
+			this.bcstop = op;
+		}
+
+		/* Returns the code for this Mbus broadcast operation. */
+		public int toCode() {
+			return this.bcstop;
+		}
+	}
+
+	/**
+	 * MorBUS node-specific extended frames
+	 */
+	public static enum MbusNodeOp {
+		DCCINIT	(0),
+		DCC		(1),
+		DCCRES	(2);
+
+		/* Constructor */
+		private final int  nodeop;
+		private MbusNodeOp(int op) {
+			this.nodeop = op;
+		}
+
+		/* Returns the code for this Mbus node-specific operation. */
+		public int toCode() {
+			return this.nodeop;
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package com.olinsdepot.mbus_proto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * DCC encodings of the encoder, byte for byte. Each command is the stream
+ * control byte, (repetition count, 0x80 for repeat forever), the decoder's
+ * address and the instruction bytes.
+ *
+ * @author mhughes
+ *
+ */
+public class DCCencoderTest {
+
+	private static final int SHORT = 0;
+	private static final int LONG = 1;
+
+	private final byte[] buf = new byte[DCCencoder.MAX_CMD_LEN];
+
+	/*
+	 * Speed steps
+	 */
+
+	@Test
+	public void speedTableMatchesCalculatedEncoding() {
+		int[] steps = {14, 28, 126};
+		int[] types = {SHORT, LONG};
+		int[] keys = {0, 1};
+		byte[] calc = new byte[DCCencoder.MAX_CMD_LEN];
+
+		for (int s : steps) {
+			for (int t : types) {
+				for (int k : keys) {
+					DCCencoder enc = new DCCencoder(t == SHORT ? 3 : 1234, t, s, k);
+					for (int pass = 0; pass < 2; pass++) {
+						for (int speed = -126; speed <= 126; speed++) {
+							int len = enc.DCCspeed(speed, buf, 0);
+							int calcLen = enc.DCCspeedCalc(speed, calc, 0);
+							String what = s + " steps, type " + t + ", keys " + k + ", pass " + pass + ", speed " + speed;
+							assertEquals(what, calcLen, len);
+							assertArrayEquals(what, Arrays.copyOf(calc, calcLen), Arrays.copyOf(buf, len));
+						}
+						/* Again with the client refreshing speeds, which rebuilds the table. */
+						enc.setRepeat(3, false);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void speed126Steps() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 126, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0x3F, 0x80), enc.DCCspeed(0));
+		assertArrayEquals(bytes(0x80, 0x03, 0x3F, 0x82), enc.DCCspeed(1));
+		assertArrayEquals(bytes(0x80, 0x03, 0x3F, 0xFF), enc.DCCspeed(126));
+		assertArrayEquals(bytes(0x80, 0x03, 0x3F, 0x7F), enc.DCCspeed(-126));
+
+		/* Out of range speeds are limited. */
+		assertArrayEquals(enc.DCCspeed(126), enc.DCCspeed(500));
+		assertArrayEquals(enc.DCCspeed(-126), enc.DCCspeed(-500));
+	}
+
+	@Test
+	public void speed126StepsLongAddress() {
+		DCCencoder enc = new DCCencoder(1234, LONG, 126, 0);
+		assertArrayEquals(bytes(0x80, 0xC4, 0xD2, 0x3F, 0x82), enc.DCCspeed(1));
+	}
+
+	@Test
+	public void speed14StepsCarriesHeadLight() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 14, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0x60), enc.DCCspeed(0));
+		assertArrayEquals(bytes(0x80, 0x03, 0x62), enc.DCCspeed(9));
+		assertArrayEquals(bytes(0x80, 0x03, 0x6F), enc.DCCspeed(126));
+		assertArrayEquals(bytes(0x80, 0x03, 0x4F), enc.DCCspeed(-126));
+
+		/* FL on sets bit 4 of every speed command, without rebuilding the table. */
+		enc.DCCfunc(0);
+		assertArrayEquals(bytes(0x80, 0x03, 0x7F), enc.DCCspeed(126));
+		assertArrayEquals(bytes(0x05, 0x03, 0x70), enc.DCCspeed(0));
+	}
+
+	@Test
+	public void speedRepetition() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 126, 0);
+		enc.setRepeat(3, false);
+		assertArrayEquals(bytes(0x03, 0x03, 0x3F, 0x82), enc.DCCspeed(1));
+		assertArrayEquals(bytes(0x03, 0x03, 0x3F, 0x80), enc.DCCspeed(0));
+
+		enc.setRepeat(3, true);
+		assertArrayEquals(bytes(0x80, 0x03, 0x3F, 0x82), enc.DCCspeed(1));
+	}
+
+	@Test
+	public void encodeAtOffset() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 126, 0);
+		byte[] big = new byte[DCCencoder.MAX_CMD_LEN + 4];
+		int len = enc.DCCspeed(1, big, 4);
+		assertArrayEquals(enc.DCCspeed(1), Arrays.copyOfRange(big, 4, 4 + len));
+	}
+
+	@Test
+	public void estop() {
+		assertArrayEquals(bytes(0x05, 0x03, 0x41), new DCCencoder(3, SHORT, 28, 0).DCCestop());
+		assertArrayEquals(bytes(0x05, 0x03, 0x3F, 0x01), new DCCencoder(3, SHORT, 126, 0).DCCestop());
+	}
+
+	/*
+	 * Function groups
+	 */
+
+	@Test
+	public void functionGroupOne() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0x90), enc.DCCfunc(0));
+		assertArrayEquals(bytes(0x05, 0x03, 0x91), enc.DCCfunc(1));
+		assertArrayEquals(bytes(0x05, 0x03, 0x99), enc.DCCfunc(4));
+		assertArrayEquals(bytes(0x05, 0x03, 0x89), enc.DCCfunc(0));
+	}
+
+	@Test
+	public void functionGroupTwoSelectsF5toF8() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0xB1), enc.DCCfunc(5));
+		assertArrayEquals(bytes(0x05, 0x03, 0xB9), enc.DCCfunc(8));
+		assertArrayEquals(bytes(0x05, 0x03, 0xB8), enc.DCCfunc(5));
+	}
+
+	@Test
+	public void functionGroupTwoSelectsF9toF12() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0xA1), enc.DCCfunc(9));
+		assertArrayEquals(bytes(0x05, 0x03, 0xA9), enc.DCCfunc(12));
+
+		/* F5 - F8 state doesn't leak into the F9 - F12 command. */
+		enc.DCCfunc(5);
+		assertArrayEquals(bytes(0x05, 0x03, 0xA8), enc.DCCfunc(9));
+	}
+
+	@Test
+	public void functionGroupsThreeAndFour() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0xDE, 0x01), enc.DCCfunc(13));
+		assertArrayEquals(bytes(0x05, 0x03, 0xDE, 0x81), enc.DCCfunc(20));
+		assertArrayEquals(bytes(0x05, 0x03, 0xDF, 0x01), enc.DCCfunc(21));
+		assertArrayEquals(bytes(0x05, 0x03, 0xDF, 0x81), enc.DCCfunc(28));
+	}
+
+	@Test
+	public void functionGroupsF29toF68() {
+		int[] first = {29, 37, 45, 53, 61};
+		for (int g = 0; g < first.length; g++) {
+			DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+			int ins = 0xD8 + g;
+			assertArrayEquals("F" + first[g], bytes(0x05, 0x03, ins, 0x01), enc.DCCfunc(first[g]));
+			assertArrayEquals("F" + (first[g] + 7), bytes(0x05, 0x03, ins, 0x81), enc.DCCfunc(first[g] + 7));
+			assertArrayEquals("F" + first[g] + " off", bytes(0x05, 0x03, ins, 0x80), enc.DCCfunc(first[g]));
+		}
+	}
+
+	@Test
+	public void functionKeyPressMatchesItsGroup() {
+		for (int key = 0; key <= DCCfunctionkeys.MAX_KEY; key++) {
+			DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+			byte[] press = enc.DCCfunc(key);
+
+			/* A restore of the same state sends the same command. */
+			int group = groupOf(key);
+			int len = enc.DCCfuncGroup(group, buf, 0);
+			assertArrayEquals("F" + key, press, Arrays.copyOf(buf, len));
+			assertEquals("F" + key, 0, enc.funcGroupsChanged());
+		}
+	}
+
+	@Test
+	public void invalidFunctionKey() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		assertEquals(0, enc.DCCfunc(-1, buf, 0));
+		assertEquals(0, enc.DCCfunc(DCCfunctionkeys.MAX_KEY + 1, buf, 0));
+		assertEquals(0, enc.DCCfuncGroup(DCCencoder.FUNC_GROUPS, buf, 0));
+		assertEquals(0, enc.getKeyStates());
+	}
+
+	@Test
+	public void functionGroupsChanged() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		assertEquals(0, enc.funcGroupsChanged());
+
+		/* F5 and F29 on: groups 1 and 5. */
+		int groups = enc.setFuncTarget(new DCCfunctionkeys(1 << 5, 1L));
+		assertEquals((1 << 1) | (1 << 5), groups);
+		assertEquals(1 << 5, enc.getKeyStates());
+		assertEquals(1L, enc.getExtKeyStates());
+
+		enc.DCCfuncGroup(1, buf, 0);
+		assertEquals(1 << 5, enc.funcGroupsChanged());
+		enc.DCCfuncGroup(5, buf, 0);
+		assertEquals(0, enc.funcGroupsChanged());
+
+		/* Replacing FL - F28 leaves F29 - F68 alone. */
+		enc.setKeyStates(1);
+		assertEquals((1 << 0) | (1 << 1), enc.funcGroupsChanged());
+		assertEquals(1L, enc.getExtKeyStates());
+	}
+
+	@Test
+	public void functionGroupRestoreKeepsTheKeyStates() {
+		int keys = (1 << 0) | (1 << 2) | (1 << 6) | (1 << 13);
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, keys);
+		int len = enc.DCCfuncGroup(0, buf, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0x92), Arrays.copyOf(buf, len));
+		len = enc.DCCfuncGroup(1, buf, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0xB2), Arrays.copyOf(buf, len));
+		len = enc.DCCfuncGroup(2, buf, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0xA0), Arrays.copyOf(buf, len));
+		len = enc.DCCfuncGroup(3, buf, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0xDE, 0x01), Arrays.copyOf(buf, len));
+		assertEquals(keys, enc.getKeyStates());
+
+		assertTrue(enc.isFuncGroupOn(1));
+		assertFalse(enc.isFuncGroupOn(2));
+		assertFalse(enc.isFuncGroupOn(4));
+	}
+
+	/*
+	 * Binary state control
+	 */
+
+	@Test
+	public void binaryStateShortForm() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0xDD, 0x85), enc.DCCbinState(5, true));
+		assertArrayEquals(bytes(0x05, 0x03, 0xDD, 0x05), enc.DCCbinState(5, false));
+		assertArrayEquals(bytes(0x05, 0x03, 0xDD, 0xFF), enc.DCCbinState(127, true));
+		assertArrayEquals(bytes(0x05, 0x03, 0xDD, 0x80), enc.DCCbinState(0, true));
+	}
+
+	@Test
+	public void binaryStateLongForm() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0xC0, 0x80, 0x01), enc.DCCbinState(128, true));
+		assertArrayEquals(bytes(0x05, 0x03, 0xC0, 0xAC, 0x02), enc.DCCbinState(300, true));
+		assertArrayEquals(bytes(0x05, 0x03, 0xC0, 0x7F, 0xFF), enc.DCCbinState(DCCencoder.MAX_BIN_STATE, false));
+	}
+
+	@Test
+	public void binaryStateInvalid() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		assertEquals(0, enc.DCCbinState(-1, true, buf, 0));
+		assertEquals(0, enc.DCCbinState(DCCencoder.MAX_BIN_STATE + 1, true, buf, 0));
+	}
+
+	@Test
+	public void binaryStateLeavesFunctionKeys() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		enc.DCCbinState(29, true);
+		assertEquals(0L, enc.getExtKeyStates());
+		assertEquals(0, enc.funcGroupsChanged());
+	}
+
+	/*
+	 * Consist control
+	 */
+
+	@Test
+	public void consistSetAndClear() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0x12, 0x0A), enc.DCCconsist(10, false));
+		assertArrayEquals(bytes(0x05, 0x03, 0x13, 0x0A), enc.DCCconsist(10, true));
+		assertArrayEquals(bytes(0x05, 0x03, 0x12, 0x00), enc.DCCconsist(0, false));
+	}
+
+	@Test
+	public void consistLongAddress() {
+		DCCencoder enc = new DCCencoder(1234, LONG, 28, 0);
+		assertArrayEquals(bytes(0x05, 0xC4, 0xD2, 0x12, 0x7F), enc.DCCconsist(127, false));
+	}
+
+	@Test
+	public void consistInvalid() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		assertEquals(0, enc.DCCconsist(-1, false, buf, 0));
+		assertEquals(0, enc.DCCconsist(128, false, buf, 0));
+	}
+
+	/*
+	 * Operations mode CV access
+	 */
+
+	@Test
+	public void cvWrite() {
+		DCCencoder enc = new DCCencoder(1234, LONG, 28, 0);
+		assertArrayEquals(bytes(0x05, 0xC4, 0xD2, 0xEC, 0x02, 0x14), enc.DCCcvWrite(3, 20));
+		assertArrayEquals(bytes(0x05, 0xC4, 0xD2, 0xEC, 0x00, 0x00), enc.DCCcvWrite(1, 0));
+		assertArrayEquals(bytes(0x05, 0xC4, 0xD2, 0xEF, 0xFF, 0xFF), enc.DCCcvWrite(DCCencoder.MAX_CV, 255));
+	}
+
+	@Test
+	public void cvVerify() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		assertArrayEquals(bytes(0x05, 0x03, 0xE4, 0x1C, 0x80), enc.DCCcvVerify(29, 128));
+		assertArrayEquals(bytes(0x05, 0x03, 0xE5, 0x00, 0x01), enc.DCCcvVerify(257, 1));
+	}
+
+	@Test
+	public void cvWriteSentAtLeastTwice() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		enc.setRepeat(1, false);
+		assertArrayEquals(bytes(0x02, 0x03, 0xEC, 0x02, 0x14), enc.DCCcvWrite(3, 20));
+		enc.setRepeat(9, false);
+		assertArrayEquals(bytes(0x09, 0x03, 0xEC, 0x02, 0x14), enc.DCCcvWrite(3, 20));
+	}
+
+	@Test
+	public void cvInvalid() {
+		DCCencoder enc = new DCCencoder(3, SHORT, 28, 0);
+		assertEquals(0, enc.DCCcvWrite(0, 1, buf, 0));
+		assertEquals(0, enc.DCCcvWrite(DCCencoder.MAX_CV + 1, 1, buf, 0));
+		assertEquals(0, enc.DCCcvWrite(1, -1, buf, 0));
+		assertEquals(0, enc.DCCcvWrite(1, 256, buf, 0));
+		assertEquals(0, enc.DCCcvVerify(0, 1).length);
+	}
+
+	/*
+	 * Construction
+	 */
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownSpeedSteps() {
+		new DCCencoder(3, SHORT, 27, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownAddressType() {
+		new DCCencoder(3, 3, 28, 0);
+	}
+
+
+	/* The function group a key is sent in. */
+	private static int groupOf(int key) {
+		if (key <= 4) {
+			return 0;
+		} else if (key <= 8) {
+			return 1;
+		} else if (key <= 12) {
+			return 2;
+		} else if (key <= 20) {
+			return 3;
+		} else if (key <= 28) {
+			return 4;
+		}
+		return 5 + (key - 29) / 8;
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] b = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			b[i] = (byte) values[i];
+		}
+		return b;
+	}
+}
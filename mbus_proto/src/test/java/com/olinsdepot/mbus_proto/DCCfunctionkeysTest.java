@@ -0,0 +1,121 @@
+package com.olinsdepot.mbus_proto;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Function key state, FL - F68, checked against a plain array of keys.
+ *
+ * @author mhughes
+ *
+ */
+public class DCCfunctionkeysTest {
+
+	@Test
+	public void constructFromIntAndLong() {
+		DCCfunctionkeys keys = new DCCfunctionkeys(0x1FFFFFFF, 0xFFFFFFFFFFL);
+		assertEquals(0x1FFFFFFF, keys.get());
+		assertEquals(0xFFFFFFFFFFL, keys.getExt());
+		for (int k = 0; k <= DCCfunctionkeys.MAX_KEY; k++) {
+			assertEquals("F" + k, 1, keys.get(k));
+		}
+
+		/* Bits past F28 and F68 are ignored. */
+		keys = new DCCfunctionkeys(-1, -1L);
+		assertEquals(0x1FFFFFFF, keys.get());
+		assertEquals(0xFFFFFFFFFFL, keys.getExt());
+	}
+
+	@Test
+	public void singleKeys() {
+		DCCfunctionkeys keys = new DCCfunctionkeys();
+		keys.set(0);
+		keys.set(28);
+		keys.set(29);
+		keys.set(63);
+		keys.set(64);
+		keys.set(68);
+		assertEquals(1 | (1 << 28), keys.get());
+		assertEquals(1L | (1L << 34) | (1L << 35) | (1L << 39), keys.getExt());
+
+		assertEquals(1, keys.tog(64));
+		assertEquals(0, keys.get(64));
+		assertEquals(0, keys.tog(64));
+		assertEquals(1, keys.get(64));
+
+		keys.clear(63);
+		keys.set(28, false);
+		assertEquals(1, keys.get());
+		assertEquals(1L | (1L << 35) | (1L << 39), keys.getExt());
+
+		keys.clear();
+		assertEquals(0, keys.get());
+		assertEquals(0L, keys.getExt());
+	}
+
+	@Test
+	public void rangesAcrossTheWordBoundary() {
+		DCCfunctionkeys keys = new DCCfunctionkeys();
+		keys.set(61, 68, 0xA5);
+		assertEquals(0xA5, keys.get(61, 68));
+		assertEquals(0xA5L << 32, keys.getExt());
+
+		keys.set(61, 68, 0x5A);
+		assertEquals(0x5A, keys.get(61, 68));
+		assertEquals(0, keys.get());
+	}
+
+	@Test
+	public void randomOperationsMatchModel() {
+		Random rand = new Random(68);
+		boolean[] model = new boolean[DCCfunctionkeys.MAX_KEY + 1];
+		DCCfunctionkeys keys = new DCCfunctionkeys();
+
+		for (int op = 0; op < 20000; op++) {
+			int k = rand.nextInt(model.length);
+			switch (rand.nextInt(4)) {
+			case 0:
+				keys.tog(k);
+				model[k] = !model[k];
+				break;
+			case 1:
+				boolean on = rand.nextBoolean();
+				keys.set(k, on);
+				model[k] = on;
+				break;
+			case 2:
+				int n = Math.min(model.length - k, 1 + rand.nextInt(32));
+				int vals = rand.nextInt();
+				keys.set(k, k + n - 1, vals);
+				for (int i = 0; i < n; i++) {
+					model[k + i] = ((vals >>> i) & 1) != 0;
+				}
+				break;
+			default:
+				int m = Math.min(model.length - k, 1 + rand.nextInt(32));
+				int expected = 0;
+				for (int i = 0; i < m; i++) {
+					expected |= (model[k + i] ? 1 : 0) << i;
+				}
+				assertEquals("F" + k + " + " + m, expected, keys.get(k, k + m - 1));
+				break;
+			}
+		}
+
+		int low = 0;
+		long ext = 0;
+		for (int k = 0; k < model.length; k++) {
+			assertEquals("F" + k, model[k] ? 1 : 0, keys.get(k));
+			if (model[k] && k < DCCfunctionkeys.EXT_KEY) {
+				low |= 1 << k;
+			} else if (model[k]) {
+				ext |= 1L << (k - DCCfunctionkeys.EXT_KEY);
+			}
+		}
+		assertEquals(low, keys.get());
+		assertEquals(ext, keys.getExt());
+	}
+}
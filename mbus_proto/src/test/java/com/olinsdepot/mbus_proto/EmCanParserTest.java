@@ -0,0 +1,212 @@
+package com.olinsdepot.mbus_proto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.olinsdepot.mbus_proto.EmCan.*;
+
+/**
+ * Frames built by the framer and split back out of a response stream by the
+ * parser. The server relays a frame as a CANFR response laid out like the
+ * SENDE command that carried it, so a stream of framed DCC commands, with
+ * PONGs and string responses between them, is read back through a receive
+ * buffer the way the transports read it: whole, a byte at a time and in
+ * random pieces.
+ *
+ * @author mhughes
+ *
+ */
+public class EmCanParserTest {
+
+	private static final int DCC_OP = MorBus.MbusBcstOp.DCC.toCode();
+	private static final int RCV_BUF_LEN = 1024;
+
+	@Test
+	public void frameLayout() {
+		DCCencoder enc = new DCCencoder(1234, 1, 126, 0);
+		byte[] cmd = enc.DCCspeed(1);
+		ByteBuffer out = ByteBuffer.allocate(EmCanFramer.HDR_LEN + cmd.length);
+		new EmCanFramer().frame(DCC_OP, cmd, cmd.length, out);
+
+		byte[] frame = out.array();
+		assertEquals(EmCanCmd.SENDE.toCode(), frame[0]);
+		assertEquals(cmd.length, frame[1]);
+		assertEquals(EmCanFramer.getExID(DCC_OP, 0), ByteBuffer.wrap(frame, 2, 4).getInt());
+		assertEquals((DCC_OP << 19) | ExtdFrmFlg.NEW_DATA.toCode(), EmCanFramer.getExID(DCC_OP, 0));
+		assertArrayEquals(cmd, Arrays.copyOfRange(frame, EmCanFramer.HDR_LEN, frame.length));
+	}
+
+	@Test
+	public void singleByteAndAddressResponses() {
+		assertEquals(1, EmCanParser.frameLength(wrap(EmCanRsp.PONG.toCode())));
+		assertEquals(2, EmCanParser.frameLength(wrap(EmCanRsp.ADR.toCode(), 9)));
+		assertEquals(0, EmCanParser.frameLength(wrap(EmCanRsp.ADR.toCode())));
+		assertEquals(0, EmCanParser.frameLength(ByteBuffer.allocate(0)));
+
+		/* Unknown codes are skipped a byte at a time. */
+		assertEquals(1, EmCanParser.frameLength(wrap(0xF0, 0x01)));
+	}
+
+	@Test
+	public void idResponse() {
+		byte[] id = idRsp(3);
+		ByteBuffer buf = ByteBuffer.wrap(id);
+		assertEquals(id.length, EmCanParser.frameLength(buf));
+		assertEquals(3, EmCanParser.idVersion(buf, 0, id.length));
+
+		/* Not complete until the version byte after the name arrives. */
+		assertEquals(0, EmCanParser.frameLength(ByteBuffer.wrap(id, 0, id.length - 1).slice()));
+
+		/* Another protocol's name. */
+		byte[] other = id.clone();
+		other[1] = 'X';
+		assertEquals(-1, EmCanParser.idVersion(ByteBuffer.wrap(other), 0, other.length));
+	}
+
+	@Test
+	public void stringNeverTerminatedFillsBuffer() {
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		buf.put((byte) EmCanRsp.STROUT.toCode());
+		while (buf.hasRemaining()) {
+			buf.put((byte) 'a');
+		}
+		buf.flip();
+		assertEquals(-1, EmCanParser.frameLength(buf));
+
+		/* Room left in the buffer, the rest may still come. */
+		ByteBuffer part = ByteBuffer.allocate(16);
+		part.put(buf.array());
+		part.flip();
+		assertEquals(0, EmCanParser.frameLength(part));
+	}
+
+	@Test
+	public void roundTripCoalesced() {
+		List<byte[]> sent = new ArrayList<byte[]>();
+		byte[] stream = stream(sent);
+		assertResponses(sent, read(stream, new int[] {stream.length}));
+	}
+
+	@Test
+	public void roundTripByteAtATime() {
+		List<byte[]> sent = new ArrayList<byte[]>();
+		byte[] stream = stream(sent);
+		int[] reads = new int[stream.length];
+		Arrays.fill(reads, 1);
+		assertResponses(sent, read(stream, reads));
+	}
+
+	@Test
+	public void roundTripRandomSplits() {
+		List<byte[]> sent = new ArrayList<byte[]>();
+		byte[] stream = stream(sent);
+		Random rand = new Random(5);
+		for (int run = 0; run < 200; run++) {
+			int[] reads = new int[stream.length];
+			int n = 0;
+			for (int left = stream.length; left > 0; n++) {
+				reads[n] = Math.min(left, 1 + rand.nextInt(48));
+				left -= reads[n];
+			}
+			assertResponses(sent, read(stream, Arrays.copyOf(reads, n)));
+		}
+	}
+
+
+	/*
+	 * A response stream: framed speed, function, consist and CV commands relayed
+	 * as CANFR responses, each followed by a PONG, with an ID and an address
+	 * response. The responses expected back are added to sent.
+	 */
+	private static byte[] stream(List<byte[]> sent) {
+		DCCencoder enc = new DCCencoder(1234, 1, 126, 0);
+		List<byte[]> cmds = new ArrayList<byte[]>();
+		for (int speed = -126; speed <= 126; speed += 21) {
+			cmds.add(enc.DCCspeed(speed));
+		}
+		for (int key = 0; key <= DCCfunctionkeys.MAX_KEY; key += 7) {
+			cmds.add(enc.DCCfunc(key));
+		}
+		cmds.add(enc.DCCconsist(10, true));
+		cmds.add(enc.DCCcvWrite(3, 20));
+		cmds.add(new byte[0]);
+
+		EmCanFramer framer = new EmCanFramer();
+		ByteBuffer out = ByteBuffer.allocate(4096);
+		add(sent, out, idRsp(1));
+		for (byte[] cmd : cmds) {
+			int start = out.position();
+			framer.frame(DCC_OP, cmd, cmd.length, out);
+			out.put(start, (byte) EmCanRsp.CANFR.toCode());
+			sent.add(Arrays.copyOfRange(out.array(), start, out.position()));
+			add(sent, out, new byte[] {(byte) EmCanRsp.PONG.toCode()});
+		}
+		add(sent, out, new byte[] {(byte) EmCanRsp.ADR.toCode(), 7});
+		return Arrays.copyOf(out.array(), out.position());
+	}
+
+	private static void add(List<byte[]> sent, ByteBuffer out, byte[] rsp) {
+		out.put(rsp);
+		sent.add(rsp);
+	}
+
+	/*
+	 * Read a stream into a receive buffer in pieces of the sizes given, taking
+	 * every complete response after each piece, as the transports do.
+	 */
+	private static List<byte[]> read(byte[] stream, int[] reads) {
+		List<byte[]> got = new ArrayList<byte[]>();
+		ByteBuffer rcvBuf = ByteBuffer.allocate(RCV_BUF_LEN);
+		rcvBuf.flip();
+		int from = 0;
+		int frmLen;
+
+		for (int n : reads) {
+			rcvBuf.compact();
+			rcvBuf.put(stream, from, n);
+			from += n;
+			rcvBuf.flip();
+
+			while ((frmLen = EmCanParser.frameLength(rcvBuf)) > 0) {
+				got.add(Arrays.copyOfRange(rcvBuf.array(), rcvBuf.position(), rcvBuf.position() + frmLen));
+				rcvBuf.position(rcvBuf.position() + frmLen);
+			}
+			assertEquals(0, frmLen);
+		}
+		assertEquals(0, rcvBuf.remaining());
+		return got;
+	}
+
+	private static void assertResponses(List<byte[]> sent, List<byte[]> got) {
+		assertEquals(sent.size(), got.size());
+		for (int i = 0; i < sent.size(); i++) {
+			assertArrayEquals("response " + i, sent.get(i), got.get(i));
+		}
+	}
+
+	/* ID response: code, EmCan:MorBus, 0 and the version. */
+	private static byte[] idRsp(int version) {
+		byte[] name = EmCan.PROT_NAME;
+		byte[] rsp = new byte[name.length + 3];
+		rsp[0] = (byte) EmCanRsp.ID.toCode();
+		System.arraycopy(name, 0, rsp, 1, name.length);
+		rsp[rsp.length - 1] = (byte) version;
+		return rsp;
+	}
+
+	private static ByteBuffer wrap(int... values) {
+		byte[] b = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			b[i] = (byte) values[i];
+		}
+		return ByteBuffer.wrap(b);
+	}
+}
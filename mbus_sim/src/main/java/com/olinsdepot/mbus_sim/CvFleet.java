@@ -0,0 +1,139 @@
+package com.olinsdepot.mbus_sim;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.olinsdepot.mbus_proto.DCCencoder;
+import com.olinsdepot.mbus_proto.MorBus.MbusBcstOp;
+import com.olinsdepot.mbus_srvc.CommsConfig;
+import com.olinsdepot.mbus_srvc.CvProgrammer;
+import com.olinsdepot.mbus_srvc.NioTransport;
+import com.olinsdepot.mbus_srvc.TxQueue;
+
+
+/**
+ * Times reconfiguring a fleet of decoders on the main through the CV write
+ * pipeline, against a local stand-in server, for a range of pipeline windows.
+ *
+ * Every decoder gets the same profile: start, acceleration, deceleration and
+ * top voltage, (CV 2 - 5), master volume, (CV 63), and a 28 entry speed table,
+ * (CV 67 - 94). The programmer is driven the way the service drives it, acks
+ * from the transport's thread are handed to the thread that owns the
+ * programmer, which sends the next writes at once and resends timed out ones.
+ * Window 1 is stop and wait, one write per round trip.
+ *
+ * Usage: CvFleet [decoders] [latency ms] [windows, e.g. 1,2,4]
+ *
+ * @author mhughes
+ *
+ */
+public class CvFleet {
+
+	private static final int DCC_OP = MbusBcstOp.DCC.toCode();
+	private static final int TRIES = 3;
+	private static final int TIMEOUT_MS = 2000;
+	private static final int CONNECT_MS = 5000;
+
+	/* Hands acks from the transport's thread to the programmer's. */
+	private static final class Acks implements TxQueue.Ack, NioTransport.Listener {
+		private final LinkedBlockingQueue<Integer> tags = new LinkedBlockingQueue<Integer>();
+		private final CountDownLatch connected = new CountDownLatch(1);
+		private volatile boolean closing = false;
+
+		public void acked(int tag) {
+			tags.add(tag);
+		}
+
+		public void connected(int protVersion) {
+			connected.countDown();
+		}
+
+		public void closed(String reason) {
+			if (!closing) {
+				System.out.println("Connection closed: " + reason);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int decoders = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+		int latencyMs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		String windows = args.length > 2 ? args[2] : "1,2,4";
+
+		int[] cvs = new int[33];
+		int[] values = new int[33];
+		profile(cvs, values);
+
+		System.out.println(decoders + " decoders, " + cvs.length + " CVs each, stand-in server latency " +
+				latencyMs + " ms");
+		for (String w : windows.split(",")) {
+			run(decoders, cvs, values, latencyMs, Integer.parseInt(w.trim()));
+		}
+	}
+
+	/* The profile: CV 2 - 5, CV 63, then the speed table. */
+	private static void profile(int[] cvs, int[] values) {
+		int[] head = {2, 3, 4, 5, 63};
+		int[] headValues = {8, 20, 15, 200, 180};
+		System.arraycopy(head, 0, cvs, 0, head.length);
+		System.arraycopy(headValues, 0, values, 0, head.length);
+		for (int i = 0; i < 28; i++) {
+			cvs[head.length + i] = 67 + i;
+			values[head.length + i] = (int) Math.round(255 * Math.pow((i + 1) / 28.0, 1.4));
+		}
+	}
+
+	private static void run(int decoders, int[] cvs, int[] values, int latencyMs, int window) throws Exception {
+		StandInServer server = new StandInServer(0, latencyMs).start();
+		Acks acks = new Acks();
+		NioTransport transport = new NioTransport(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()),
+				new CommsConfig().setTxWindow(Math.max(CommsConfig.DEFAULT_TX_WINDOW, window)), acks);
+		Thread loop = new Thread(transport, "CvFleetNio");
+		loop.setDaemon(true);
+		loop.start();
+		if (!acks.connected.await(CONNECT_MS, TimeUnit.MILLISECONDS)) {
+			System.out.println("No connection");
+			transport.close();
+			server.close();
+			return;
+		}
+
+		CvProgrammer programmer = new CvProgrammer(window, TRIES, TIMEOUT_MS);
+		for (int d = 0; d < decoders; d++) {
+			DCCencoder encoder = new DCCencoder(1000 + d, 1, 28, 0);
+			for (int i = 0; i < cvs.length; i++) {
+				programmer.add(encoder, cvs[i], values[i]);
+			}
+		}
+
+		int[] tags = new int[window];
+		byte[] buf = new byte[DCCencoder.MAX_CMD_LEN];
+		long start = System.nanoTime();
+		while (programmer.isBusy()) {
+			int n = programmer.take(System.nanoTime(), tags);
+			for (int i = 0; i < n; i++) {
+				int len = programmer.encode(tags[i], buf, 0);
+				transport.sendBcst(DCC_OP, Arrays.copyOf(buf, len), TxQueue.Lane.NORMAL, acks, tags[i]);
+			}
+			Integer tag = acks.tags.poll(100, TimeUnit.MILLISECONDS);
+			while (tag != null) {
+				programmer.acked(tag);
+				tag = acks.tags.poll();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		acks.closing = true;
+		transport.close();
+
+		System.out.println(String.format("window %2d: %5d writes in %6d ms, %6.0f writes/s, %d failed, server got %d",
+				window, programmer.total(), TimeUnit.NANOSECONDS.toMillis(elapsed),
+				programmer.total() / (elapsed / 1e9), programmer.failed(), server.getFramesRcvd()));
+		server.close();
+	}
+}
@@ -0,0 +1,138 @@
+package com.olinsdepot.mbus_sim;
+
+import java.io.BufferedInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.olinsdepot.mbus_srvc.LatencyHistogram;
+import com.olinsdepot.mbus_srvc.TxQueue;
+
+
+/**
+ * Safety lane bench. Keeps the Comms transmit queue saturated with speed frames
+ * against a stand-in server with LAN latency, and injects emergency stops at
+ * intervals. The e-stops are sent once on the normal lane, (the old FIFO
+ * behavior), and once on the safety lane. The time from queueing each e-stop
+ * to it being written to the socket is reported for both.
+ *
+ * Usage: EStopBench [latency ms] [e-stops]
+ *
+ * @author mhughes
+ *
+ */
+public class EStopBench {
+
+	private static final int WINDOW = 4;
+	private static final int BACKLOG = 100;
+	private static final int ESTOP_INTERVAL_MS = 20;
+
+	/* SENDE broadcast frame carrying a 126 step speed command for short address 3. */
+	private static final byte[] SPEED_FRAME = {
+		7, 4, 0, 0x19, 0, 0, (byte) 0x80, 3, 0x3F, (byte) 0xC0
+	};
+	/* MorBus stream STOP command. */
+	private static final byte[] ESTOP = {65};
+	private static final int PONG = 1;
+	private static final int ID_LEN = 15;
+
+	public static void main(String[] args) throws Exception {
+		int latencyMs = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int estops = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		StandInServer server = new StandInServer(0, latencyMs).start();
+		System.out.println("Stand-in server latency " + latencyMs + " ms, window " + WINDOW +
+				", backlog " + BACKLOG + " frames, " + estops + " e-stops");
+
+		System.out.println("e-stop on normal lane:  " + run(server.getPort(), TxQueue.Lane.NORMAL, estops));
+		System.out.println("e-stop on safety lane:  " + run(server.getPort(), TxQueue.Lane.SAFETY, estops));
+
+		server.close();
+	}
+
+	/**
+	 * Send e-stops on the given lane while the normal lane is kept full.
+	 *
+	 * @return queue to socket latency of the e-stops.
+	 */
+	private static LatencyHistogram run(int port, TxQueue.Lane lane, int estops) throws IOException, InterruptedException {
+		final LatencyHistogram estopLatency = new LatencyHistogram();
+		final AtomicLong estopQueuedAt = new AtomicLong();
+
+		Socket sock = new Socket(InetAddress.getLoopbackAddress(), port);
+		sock.setTcpNoDelay(true);
+		final InputStream in = new BufferedInputStream(sock.getInputStream());
+
+		/* Time stamp each e-stop as the queue writes the batch holding it to the socket. */
+		OutputStream out = new FilterOutputStream(sock.getOutputStream()) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (holdsEStop(b, off, len)) {
+					estopLatency.record(System.nanoTime() - estopQueuedAt.get());
+				}
+				out.write(b, off, len);
+			}
+		};
+		final TxQueue txQueue = new TxQueue(out, WINDOW, null);
+
+		/* Wait for the server's ID response before sending. */
+		for (int i = 0; i < ID_LEN; i++) {
+			if (in.read() < 0) {
+				throw new IOException("Server closed during ID");
+			}
+		}
+		txQueue.open();
+
+		/* Receive side: each PONG frees one slot in the window. */
+		Thread rcv = new Thread(new Runnable() {
+			public void run() {
+				try {
+					int rsp;
+					while ((rsp = in.read()) >= 0) {
+						if (rsp == PONG) {
+							txQueue.pong();
+						}
+					}
+				} catch (IOException e) {
+					/* Socket closed at end of run. */
+				}
+			}
+		}, "BenchRcv");
+		rcv.setDaemon(true);
+		rcv.start();
+
+		/* Top up the backlog, queue an e-stop and wait for it to reach the socket. */
+		for (int i = 0; i < estops; i++) {
+			while (txQueue.depth() < BACKLOG) {
+				txQueue.put(SPEED_FRAME, TxQueue.Lane.NORMAL);
+			}
+			estopQueuedAt.set(System.nanoTime());
+			txQueue.put(ESTOP, lane);
+			while (estopLatency.count() <= i) {
+				Thread.sleep(1);
+			}
+			Thread.sleep(ESTOP_INTERVAL_MS);
+		}
+
+		sock.close();
+		return estopLatency;
+	}
+
+	/* Return true if a batch of speed frames and e-stops, each followed by a PING, holds an e-stop. */
+	private static boolean holdsEStop(byte[] b, int off, int len) {
+		int i = off;
+		while (i < off + len) {
+			if (b[i] == ESTOP[0]) {
+				return true;
+			}
+			i += (b[i] == SPEED_FRAME[0]) ? SPEED_FRAME.length + 1 : 1;
+		}
+		return false;
+	}
+}
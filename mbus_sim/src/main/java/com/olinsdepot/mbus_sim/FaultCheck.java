@@ -0,0 +1,126 @@
+package com.olinsdepot.mbus_sim;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.olinsdepot.mbus_srvc.CommsConfig;
+import com.olinsdepot.mbus_srvc.NioTransport;
+import com.olinsdepot.mbus_srvc.TxQueue;
+
+
+/**
+ * Runs the NIO transport against the stand-in server with each injected fault
+ * and checks the transport sees it the way it would on a real layout: a
+ * foreign server is refused, a dropped connection and a silent server are
+ * reported closed, and a slow, jittery link still delivers every frame.
+ *
+ * Prints a line per case and exits non zero if any case fails, so it can run
+ * on a build machine without MorBus hardware.
+ *
+ * Usage: FaultCheck
+ *
+ * @author mhughes
+ *
+ */
+public class FaultCheck {
+
+	private static final int DCC_OP = 3;
+	private static final byte[] SPEED_DATA = {(byte) 0x80, 3, 0x3F, (byte) 0x80};
+	private static final int TIMEOUT_MS = 10000;
+
+	/* What the transport reported. */
+	private static final class Result implements NioTransport.Listener {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile boolean connected = false;
+		private volatile String reason;
+
+		public void connected(int protVersion) {
+			connected = true;
+		}
+
+		public void closed(String reason) {
+			this.reason = reason;
+			done.countDown();
+		}
+	}
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+
+		/* A server that isn't MorBus is refused during the handshake. */
+		StandInServer server = new StandInServer(0, 0).setBadId(true).start();
+		Result r = run(server, new CommsConfig(), 10, false);
+		check("bad ID refused", !r.connected && r.reason != null);
+		server.close();
+
+		/* A connection dropped by the server is reported closed. */
+		server = new StandInServer(0, 1).setCloseAfter(50).start();
+		r = run(server, new CommsConfig(), 200, false);
+		check("server close reported", r.connected && r.reason != null);
+		server.close();
+
+		/* A server that stops answering fails the liveness check. */
+		server = new StandInServer(0, 1).setStall(20, 5000).start();
+		r = run(server, new CommsConfig().setHeartbeatMs(100, 300), 40, false);
+		check("stalled server closed", r.connected && r.reason != null && r.reason.contains("No response"));
+		server.close();
+
+		/* Lost PONGs also stall the window, and the link is taken as dead. */
+		server = new StandInServer(0, 1).setPongLoss(0.2).setSeed(7).start();
+		r = run(server, new CommsConfig().setHeartbeatMs(100, 300), 200, false);
+		check("lost PONGs closed", r.connected && r.reason != null && server.getPongsDropped() > 0);
+		server.close();
+
+		/* A slow, jittery link delivers every frame. */
+		server = new StandInServer(0, 2).setJitterMs(3).setBandwidth(20000).setSeed(7).start();
+		r = run(server, new CommsConfig(), 500, true);
+		check("jitter and bandwidth, " + server.getFramesRcvd() + " of 500 frames",
+				r.connected && server.getFramesRcvd() == 500);
+		server.close();
+
+		System.out.println(failures == 0 ? "All cases passed" : failures + " cases failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/*
+	 * Connect, send frames and wait for the transport to close. If close is
+	 * true the transport is closed once the server has every frame.
+	 */
+	private static Result run(StandInServer server, CommsConfig config, int frames, boolean close)
+			throws Exception {
+		Result result = new Result();
+		NioTransport transport = new NioTransport(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()), config, result);
+		Thread loop = new Thread(transport, "FaultCheck");
+		loop.setDaemon(true);
+		loop.start();
+
+		for (int i = 0; i < frames && result.done.getCount() > 0; i++) {
+			byte[] data = SPEED_DATA.clone();
+			data[3] = (byte) (0x80 | (i & 0x7F));
+			transport.sendBcst(DCC_OP, data, TxQueue.Lane.NORMAL);
+		}
+		if (close) {
+			long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+			while (server.getFramesRcvd() < frames && System.nanoTime() < until) {
+				Thread.sleep(10);
+			}
+			transport.close();
+		}
+		if (!result.done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+			transport.close();
+		}
+		return result;
+	}
+
+	private static void check(String name, boolean ok) {
+		System.out.println((ok ? "pass  " : "FAIL  ") + name);
+		if (!ok) {
+			failures++;
+		}
+	}
+}
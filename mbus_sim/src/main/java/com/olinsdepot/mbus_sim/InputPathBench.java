@@ -0,0 +1,215 @@
+package com.olinsdepot.mbus_sim;
+
+import java.io.BufferedInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.olinsdepot.mbus_proto.EmCanFramer;
+import com.olinsdepot.mbus_srvc.CommandRing;
+import com.olinsdepot.mbus_srvc.LatencyHistogram;
+import com.olinsdepot.mbus_srvc.ThrottleSlot;
+import com.olinsdepot.mbus_srvc.TxQueue;
+
+
+/**
+ * Input path bench. Measures the time from a throttle move on the client's
+ * thread to its speed frame being written to the socket, for the two ways a
+ * same process client reaches the transport:
+ *
+ * messenger - the old chain, a message per move to the service's thread, which
+ *             encodes the step, then a message to the Comms send thread, which
+ *             queues it. Two hand offs and two allocations.
+ * ring      - the fast path, the move goes in a CommandRing, the service's
+ *             thread is woken only if it is idle, encodes the step and queues
+ *             it on the transmit queue itself. One hand off, no allocation.
+ *
+ * Each looper is stood in for by a single thread executor. Moves are sent one
+ * at a time, each waiting for the previous one to reach the socket.
+ *
+ * Usage: InputPathBench [moves] [gap us]
+ *
+ * @author mhughes
+ *
+ */
+public class InputPathBench {
+
+	private static final int WINDOW = 4;
+	private static final int WARMUP = 500;
+	private static final int DCC_OP = 3;
+	private static final int PONG = 1;
+	private static final int ID_LEN = 15;
+
+	/* 126 step speed command for short address 3, the step goes in byte 2. */
+	private static final byte[] SPEED_DATA = {(byte) 0x80, 3, 0x3F, (byte) 0x80};
+
+	/* One path from the client's thread to the transmit queue. */
+	private interface Path {
+		void move(int step);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int moves = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int gapUs = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		StandInServer server = new StandInServer(0, 0).start();
+		System.out.println(moves + " moves, " + gapUs + " us apart, input to socket latency");
+		System.out.println("messenger:  " + run(server.getPort(), false, moves, gapUs));
+		System.out.println("ring:       " + run(server.getPort(), true, moves, gapUs));
+		server.close();
+	}
+
+	private static LatencyHistogram run(int port, boolean ring, int moves, int gapUs)
+			throws IOException, InterruptedException {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong movedAt = new AtomicLong();
+		final AtomicLong written = new AtomicLong();
+
+		Socket sock = new Socket(InetAddress.getLoopbackAddress(), port);
+		sock.setTcpNoDelay(true);
+		final InputStream in = new BufferedInputStream(sock.getInputStream());
+
+		/* Time stamp each move as it's written to the socket. */
+		OutputStream out = new FilterOutputStream(sock.getOutputStream()) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				latency.record(System.nanoTime() - movedAt.get());
+				written.incrementAndGet();
+			}
+		};
+		final EmCanFramer framer = new EmCanFramer();
+		final TxQueue txQueue = new TxQueue(out, WINDOW, new TxQueue.Framer() {
+			public void frame(int op, byte[] data, int len, ByteBuffer buf) {
+				framer.frame(op, data, len, buf);
+			}
+		});
+
+		for (int i = 0; i < ID_LEN; i++) {
+			if (in.read() < 0) {
+				throw new IOException("Server closed during ID");
+			}
+		}
+		txQueue.open();
+
+		Thread rcv = new Thread(new Runnable() {
+			public void run() {
+				try {
+					int rsp;
+					while ((rsp = in.read()) >= 0) {
+						if (rsp == PONG) {
+							txQueue.pong();
+						}
+					}
+				} catch (IOException e) {
+					/* Socket closed at end of run. */
+				}
+			}
+		}, "BenchRcv");
+		rcv.setDaemon(true);
+		rcv.start();
+
+		final ExecutorService service = Executors.newSingleThreadExecutor();
+		final ExecutorService send = Executors.newSingleThreadExecutor();
+		final ThrottleSlot slot = new ThrottleSlot();
+		Path path = ring ? ringPath(service, slot, txQueue) : messengerPath(service, send, slot, txQueue);
+
+		for (int i = 0; i < WARMUP + moves; i++) {
+			if (i == WARMUP) {
+				latency.reset();
+			}
+			movedAt.set(System.nanoTime());
+			path.move(i & 0x7F);
+			while (written.get() <= i) {
+				Thread.yield();
+			}
+			long until = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(gapUs);
+			while (System.nanoTime() < until) {
+				Thread.yield();
+			}
+		}
+
+		service.shutdown();
+		send.shutdown();
+		sock.close();
+		return latency;
+	}
+
+	/* Encode a step into the slot, return the epoch to send or -1 if a send is already queued. */
+	private static int encode(ThrottleSlot slot, int step, byte[] buf) {
+		System.arraycopy(SPEED_DATA, 0, buf, 0, SPEED_DATA.length);
+		buf[3] = (byte) (0x80 | step);
+		return slot.put(buf, SPEED_DATA.length);
+	}
+
+	/* Queue a slot send, on whichever thread calls it. */
+	private static void queue(TxQueue txQueue, ThrottleSlot slot, int epoch) {
+		try {
+			txQueue.putSlot(slot, epoch, DCC_OP);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/* Client -> service thread -> send thread, a new task, (message), for each hop. */
+	private static Path messengerPath(final ExecutorService service, final ExecutorService send,
+			final ThrottleSlot slot, final TxQueue txQueue) {
+		final byte[] buf = new byte[SPEED_DATA.length];
+		return new Path() {
+			public void move(final int step) {
+				service.execute(new Runnable() {
+					public void run() {
+						final int epoch = encode(slot, step, buf);
+						if (epoch < 0) {
+							return;
+						}
+						send.execute(new Runnable() {
+							public void run() {
+								queue(txQueue, slot, epoch);
+							}
+						});
+					}
+				});
+			}
+		};
+	}
+
+	/* Client -> ring -> service thread, which queues to the transmit queue itself. */
+	private static Path ringPath(final ExecutorService service, final ThrottleSlot slot, final TxQueue txQueue) {
+		final byte[] buf = new byte[SPEED_DATA.length];
+		final CommandRing cmds = new CommandRing(64);
+		final CommandRing.Consumer consumer = new CommandRing.Consumer() {
+			public void command(int what, int arg1, int arg2, Object obj) {
+				int epoch = encode(slot, arg2, buf);
+				if (epoch >= 0) {
+					queue(txQueue, slot, epoch);
+				}
+			}
+		};
+		final Runnable drain = new Runnable() {
+			public void run() {
+				do {
+					cmds.drain(consumer);
+				} while (!cmds.park());
+			}
+		};
+		return new Path() {
+			public void move(int step) {
+				if (cmds.offer(0, 0, step, null) > 0) {
+					service.execute(drain);
+				}
+			}
+		};
+	}
+}
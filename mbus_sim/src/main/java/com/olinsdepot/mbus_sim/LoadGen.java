@@ -0,0 +1,324 @@
+package com.olinsdepot.mbus_sim;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.olinsdepot.mbus_proto.DCCencoder;
+import com.olinsdepot.mbus_proto.MorBus.MbusBcstOp;
+import com.olinsdepot.mbus_srvc.CommsConfig;
+import com.olinsdepot.mbus_srvc.LatencyHistogram;
+import com.olinsdepot.mbus_srvc.MetricsRegistry;
+import com.olinsdepot.mbus_srvc.NioTransport;
+import com.olinsdepot.mbus_srvc.ThrottleSlot;
+import com.olinsdepot.mbus_srvc.TxQueue;
+
+
+/**
+ * Load generator for a full operating session. Runs a number of virtual
+ * operators against a stand-in server, or a real one, and reports each
+ * operator's latencies and the throughput the server saw.
+ *
+ * Each operator is what one phone running the service puts on the server: its
+ * own connection, one throttle and the service's handling of the throttle
+ * commands, (speed steps through a throttle slot, function keys in the normal
+ * lane, hard stops in the safety lane). Every 50 ms an operator:
+ *
+ * - sweeps the slider a few steps towards a new speed, then lets it run,
+ * - now and then blows a horn burst, (F2 on and off a few times), or rings the bell, (F1),
+ * - very rarely hits the e-stop,
+ * - after a while releases the loco and acquires another, (short address, 28
+ *   steps, or long address, 126 steps), with its headlight on.
+ *
+ * Each operator's script is seeded from its number, so a run can be repeated.
+ *
+ * Per operator it reports the queue to socket latency of the normal and
+ * safety lanes and the PING to PONG round trip. A row of the summary is marked
+ * when an operator lost its connection or the slowest p99 of queue time and
+ * round trip together passes LAG_MS, the point where a throttle feels laggy.
+ *
+ * Usage: LoadGen [operators | min-max/step] [seconds] [latency ms | host:port]
+ *
+ * @author mhughes
+ *
+ */
+public class LoadGen {
+
+	private static final int TICK_MS = 50;
+	private static final int DCC_OP = MbusBcstOp.DCC.toCode();
+	private static final int LAG_MS = 100;
+	private static final int CONNECT_MS = 5000;
+
+	/* Function keys. */
+	private static final int KEY_LIGHT = 0;
+	private static final int KEY_BELL = 1;
+	private static final int KEY_HORN = 2;
+
+
+	/**
+	 * One virtual operator with one throttle on its own connection.
+	 */
+	private static final class Operator implements Runnable, NioTransport.Listener {
+
+		private final int id;
+		private final Random random;
+		private final MetricsRegistry metrics = new MetricsRegistry();
+		private final NioTransport transport;
+		private final CountDownLatch connected = new CountDownLatch(1);
+		private final ThrottleSlot slot = new ThrottleSlot();
+		private final byte[] dccBuf = new byte[DCCencoder.MAX_CMD_LEN];
+		private volatile boolean running = true;
+		private volatile String closedReason;
+
+		/* The loco on the throttle, null between release and acquire. */
+		private DCCencoder loco;
+		private int speed;
+		private int target;
+		private int dwellTicks;
+		private int hornToggles;
+		private int ticksToRelease;
+
+		/* Commands issued, by kind. */
+		private long speeds;
+		private long funcs;
+		private long estops;
+		private long acquires;
+
+		/* Constructor */
+		private Operator(int id, SocketAddress server) throws IOException {
+			this.id = id;
+			this.random = new Random(id);
+			this.transport = new NioTransport(server, new CommsConfig().setMetrics(metrics), this);
+		}
+
+		public void connected(int protVersion) {
+			connected.countDown();
+		}
+
+		public void closed(String reason) {
+			if (running) {
+				closedReason = reason;
+			}
+		}
+
+		/* The operator's hand on the throttle, until stopped. */
+		public void run() {
+			try {
+				/* Operators don't all move on the same tick. */
+				Thread.sleep(random.nextInt(TICK_MS));
+				while (running && closedReason == null) {
+					tick();
+					Thread.sleep(TICK_MS);
+				}
+			} catch (InterruptedException e) {
+				/* Stopped. */
+			}
+		}
+
+		private void tick() {
+			if (loco == null) {
+				acquire();
+				return;
+			}
+			if (--ticksToRelease <= 0) {
+				speed(0);
+				loco = null;
+				return;
+			}
+
+			/* E-stop about every two minutes of operating. */
+			if (random.nextInt(2400) == 0) {
+				slot.clear();
+				transport.sendBcst(DCC_OP, loco.DCCestop(), TxQueue.Lane.SAFETY);
+				estops++;
+				speed = target = 0;
+				dwellTicks = 40;
+				return;
+			}
+
+			/* Horn bursts toggle F2 every third tick. */
+			if (hornToggles > 0) {
+				if (hornToggles-- % 3 == 0) {
+					func(KEY_HORN);
+				}
+			} else if (random.nextInt(200) == 0) {
+				hornToggles = 3 * 2 * (1 + random.nextInt(3));
+			} else if (random.nextInt(400) == 0) {
+				func(KEY_BELL);
+			}
+
+			/* Slider: move towards the target, then let it run for a while. */
+			if (speed != target) {
+				int step = 1 + random.nextInt(3);
+				speed(speed < target ? Math.min(target, speed + step) : Math.max(target, speed - step));
+			} else if (dwellTicks > 0) {
+				dwellTicks--;
+			} else {
+				target = (random.nextInt(5) == 0 ? -1 : 1) * random.nextInt(127);
+				dwellTicks = 40 + random.nextInt(160);
+			}
+		}
+
+		/* Take a loco, short address 28 steps or long address 126 steps, and turn its light on. */
+		private void acquire() {
+			if (random.nextBoolean()) {
+				loco = new DCCencoder(1 + random.nextInt(127), 0, 28, 0);
+			} else {
+				loco = new DCCencoder(1000 + random.nextInt(9000), 1, 126, 0);
+			}
+			acquires++;
+			speed = target = 0;
+			dwellTicks = 20;
+			hornToggles = 0;
+			ticksToRelease = (int) TimeUnit.SECONDS.toMillis(30 + random.nextInt(90)) / TICK_MS;
+			func(KEY_LIGHT);
+		}
+
+		/* A speed step, the way the service sends it, through the throttle slot. */
+		private void speed(int step) {
+			speed = step;
+			speeds++;
+			int epoch = slot.put(dccBuf, loco.DCCspeed(step, dccBuf, 0));
+			if (epoch >= 0) {
+				transport.sendSlot(slot, epoch, DCC_OP);
+			}
+		}
+
+		private void func(int key) {
+			funcs++;
+			transport.sendBcst(DCC_OP, loco.DCCfunc(key), TxQueue.Lane.NORMAL);
+		}
+
+		private long cmds() {
+			return speeds + funcs + estops;
+		}
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		String clients = args.length > 0 ? args[0] : "20";
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+		String target = args.length > 2 ? args[2] : "2";
+
+		/* A single count, or a ramp of them. */
+		int min;
+		int max;
+		int step = 1;
+		int dash = clients.indexOf('-');
+		if (dash > 0) {
+			int slash = clients.indexOf('/');
+			min = Integer.parseInt(clients.substring(0, dash));
+			max = Integer.parseInt(clients.substring(dash + 1, slash > 0 ? slash : clients.length()));
+			step = slash > 0 ? Integer.parseInt(clients.substring(slash + 1)) : 1;
+		} else {
+			min = max = Integer.parseInt(clients);
+		}
+
+		/* A host:port is a real server, a number is the latency of a stand-in one. */
+		StandInServer server = null;
+		SocketAddress addr;
+		int colon = target.lastIndexOf(':');
+		if (colon > 0) {
+			addr = new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+			System.out.println("Server " + target + ", " + seconds + " s per run");
+		} else {
+			server = new StandInServer(0, Integer.parseInt(target)).start();
+			addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+			System.out.println("Stand-in server latency " + target + " ms, " + seconds + " s per run");
+		}
+
+		List<String> summary = new ArrayList<String>();
+		summary.add("operators   cmds/s  frames/s  server/s  worst q p99  worst rtt p99  lost");
+		for (int n = min; n <= max; n += step) {
+			summary.add(run(n, seconds, addr, server, min == max));
+		}
+		for (String row : summary) {
+			System.out.println(row);
+		}
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	/* Run n operators for a time and return the summary row. */
+	private static String run(int n, int seconds, SocketAddress addr, StandInServer server, boolean detail)
+			throws IOException, InterruptedException {
+		List<Operator> ops = new ArrayList<Operator>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < n; i++) {
+			Operator op = new Operator(i, addr);
+			Thread loop = new Thread(op.transport, "LoadNio" + i);
+			loop.setDaemon(true);
+			loop.start();
+			ops.add(op);
+		}
+		for (Operator op : ops) {
+			if (!op.connected.await(CONNECT_MS, TimeUnit.MILLISECONDS)) {
+				op.closedReason = "no connection";
+			}
+		}
+
+		long framesAtStart = (server != null) ? server.getFramesRcvd() : 0;
+		long start = System.nanoTime();
+		for (Operator op : ops) {
+			Thread hand = new Thread(op, "LoadOp" + op.id);
+			hand.setDaemon(true);
+			hand.start();
+			threads.add(hand);
+		}
+		Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+		for (Operator op : ops) {
+			op.running = false;
+		}
+		for (Thread hand : threads) {
+			hand.join();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long serverFrames = (server != null) ? server.getFramesRcvd() - framesAtStart : 0;
+		for (Operator op : ops) {
+			op.transport.close();
+		}
+
+		long cmds = 0;
+		long frames = 0;
+		long worstQueue = 0;
+		long worstRtt = 0;
+		int lost = 0;
+		if (detail) {
+			System.out.println(" op  acquires   speeds  funcs  estops   frames  normal p50/p99 us  safety p99 us  rtt p50/p99 us");
+		}
+		for (Operator op : ops) {
+			LatencyHistogram normal = op.metrics.histogram("tx.normal");
+			LatencyHistogram safety = op.metrics.histogram("tx.safety");
+			LatencyHistogram rtt = op.metrics.histogram("link.rtt");
+			long written = op.metrics.counter("tx.cmds").get();
+			cmds += op.cmds();
+			frames += written;
+			worstQueue = Math.max(worstQueue, Math.max(normal.percentile(99), safety.percentile(99)));
+			worstRtt = Math.max(worstRtt, rtt.percentile(99));
+			if (op.closedReason != null) {
+				lost++;
+			}
+			if (detail) {
+				System.out.println(String.format("%3d  %8d  %7d  %5d  %6d  %7d  %8d/%-8d  %13d  %7d/%-7d%s",
+						op.id, op.acquires, op.speeds, op.funcs, op.estops, written,
+						normal.percentile(50), normal.percentile(99), safety.percentile(99),
+						rtt.percentile(50), rtt.percentile(99),
+						(op.closedReason != null) ? "  lost: " + op.closedReason : ""));
+			}
+		}
+
+		boolean over = lost > 0 || (worstQueue + worstRtt) / 1000 > LAG_MS;
+		return String.format("%9d  %7.0f  %8.0f  %8s  %11d  %13d  %4d%s", n, cmds / elapsed, frames / elapsed,
+				(server != null) ? String.format("%.0f", serverFrames / elapsed) : "-",
+				worstQueue, worstRtt, lost, over ? "  <- over " + LAG_MS + " ms" : "");
+	}
+}
@@ -0,0 +1,114 @@
+package com.olinsdepot.mbus_sim;
+
+import java.io.File;
+import java.util.Random;
+
+import com.olinsdepot.od_traction.LocoUnit;
+import com.olinsdepot.od_traction.RosterStore;
+
+
+/**
+ * Times the roster store: building a roster of a given number of units,
+ * loading it the way the app does at startup, looking units up by address and
+ * by road name, and a run of function key updates, each an append to the
+ * file, then loading the roster again with the updates in it.
+ *
+ * Every load is checked against the units and key states the bench wrote.
+ *
+ * Usage: RosterBench [units] [updates] [roster file]
+ *
+ * @author mhughes
+ *
+ */
+public class RosterBench {
+
+	private static final String[] ROADS = {"ATSF", "BNSF", "CB&Q", "GN", "NP", "PRR", "SP", "UP", "WP", "Olins Depot"};
+
+	public static void main(String[] args) throws Exception {
+		int units = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int updates = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		File file = args.length > 2 ? new File(args[2]) : File.createTempFile("roster", ".bin");
+		file.delete();
+
+		/* Build the roster. */
+		long start = System.nanoTime();
+		RosterStore roster = new RosterStore(file);
+		for (int i = 0; i < units; i++) {
+			roster.put(new LocoUnit(name(i), 1, 1000 + i, i % 3 == 0 ? 28 : 126));
+		}
+		roster.close();
+		report("build", units, start, file);
+
+		/* Load it. */
+		start = System.nanoTime();
+		roster = new RosterStore(file);
+		report("load", roster.size(), start, file);
+		check(roster, units, new int[units], new long[units]);
+
+		/* Look units up. */
+		Random rand = new Random(1);
+		start = System.nanoTime();
+		int found = 0;
+		for (int i = 0; i < units; i++) {
+			int u = rand.nextInt(units);
+			if (roster.get(1, 1000 + u) != null && roster.find(name(u)) != null) {
+				found++;
+			}
+		}
+		report("lookups", found, start, file);
+
+		/* Press function keys. */
+		int[] keys = new int[units];
+		long[] extKeys = new long[units];
+		start = System.nanoTime();
+		for (int i = 0; i < updates; i++) {
+			int u = rand.nextInt(units);
+			int key = rand.nextInt(69);
+			LocoUnit unit = roster.get(1, 1000 + u);
+			unit.toggleKey(key);
+			roster.setKeyStates(unit, unit.getKeyStates(), unit.getExtKeyStates());
+			if (key < 29) {
+				keys[u] ^= 1 << key;
+			} else {
+				extKeys[u] ^= 1L << (key - 29);
+			}
+		}
+		roster.close();
+		report("updates", updates, start, file);
+
+		/* Load it with the updates. */
+		start = System.nanoTime();
+		roster = new RosterStore(file);
+		report("reload", roster.size(), start, file);
+		check(roster, units, keys, extKeys);
+		roster.close();
+
+		if (args.length <= 2) {
+			file.delete();
+		}
+	}
+
+	private static String name(int i) {
+		return ROADS[i % ROADS.length] + " " + (1000 + i);
+	}
+
+	private static void check(RosterStore roster, int units, int[] keys, long[] extKeys) {
+		int bad = 0;
+		for (int i = 0; i < units; i++) {
+			LocoUnit unit = roster.get(1, 1000 + i);
+			if (unit == null || roster.find(name(i)) != unit || unit.getKeyStates() != keys[i] ||
+					unit.getExtKeyStates() != extKeys[i]) {
+				bad++;
+			}
+		}
+		if (roster.size() != units || bad != 0) {
+			System.out.println("MISMATCH: " + roster.size() + " units, " + bad + " wrong");
+		}
+	}
+
+	private static void report(String what, int n, long start, File file) {
+		long elapsed = System.nanoTime() - start;
+		System.out.println(String.format("%-8s %6d in %7.2f ms, %6.2f us each, file %d bytes",
+				what, n, elapsed / 1e6, n == 0 ? 0 : elapsed / 1e3 / n, file.length()));
+	}
+}
@@ -0,0 +1,246 @@
+package com.olinsdepot.mbus_sim;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import java.nio.ByteBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.olinsdepot.mbus_proto.EmCan.*;
+import com.olinsdepot.mbus_proto.EmCanFramer;
+import com.olinsdepot.mbus_proto.EmCanParser;
+import com.olinsdepot.mbus_srvc.SessionCapture;
+import com.olinsdepot.mbus_srvc.TxQueue;
+
+
+/**
+ * Replays a session captured by the service against a local stand-in server.
+ *
+ * The commands the client sent are taken out of the capture, (the PINGs are
+ * left out, the transmit queue adds its own), and put through a TxQueue on a
+ * fresh connection, either at the times they were sent in the session or all
+ * at once. The same capture always gives the same command stream, so a change
+ * to the transport can be measured against the load an operating session
+ * really put on it.
+ *
+ * The responses the server sent in the session are then put through the
+ * receive framer in the chunks they were read in, to measure the parser.
+ *
+ * The capture doesn't say which lane a command went in, track power off and
+ * emergency stop go in the safety lane and everything else in the normal one.
+ *
+ * Usage: SessionReplay <capture> [paced|fast] [latency ms] [window] [parse rounds]
+ *
+ * @author mhughes
+ *
+ */
+public class SessionReplay {
+
+	private static final int ID_LEN = 15;
+	private static final int RCV_BUF_SIZE = 4096;
+
+	/* MorBus track power commands that go in the safety lane. */
+	private static final int MBUS_OFF = 64;
+	private static final int MBUS_STOP = 65;
+
+	/* MorBus track power state response, it has a state byte. */
+	private static final int MBUS_RSP_ONOFF = 64;
+
+	/* A command from the capture and when it was sent. */
+	private static final class Cmd {
+		private final long timeUs;
+		private final byte[] bytes;
+
+		private Cmd(long timeUs, byte[] bytes) {
+			this.timeUs = timeUs;
+			this.bytes = bytes;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: SessionReplay <capture> [paced|fast] [latency ms] [window] [parse rounds]");
+			System.exit(1);
+		}
+		boolean paced = args.length < 2 || !args[1].equals("fast");
+		int latencyMs = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		int window = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+		int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+
+		List<Cmd> cmds = new ArrayList<Cmd>();
+		List<byte[]> reads = new ArrayList<byte[]>();
+		load(args[0], cmds, reads);
+		long spanUs = cmds.isEmpty() ? 0 : cmds.get(cmds.size() - 1).timeUs - cmds.get(0).timeUs;
+		System.out.println(cmds.size() + " commands over " + spanUs / 1000 + " ms, " + reads.size() + " reads");
+
+		StandInServer server = new StandInServer(0, latencyMs).start();
+		replay(server, cmds, paced, window);
+		server.close();
+
+		parse(reads, rounds);
+	}
+
+	/* Split the sent bytes into commands and keep the reads as they were. */
+	private static void load(String path, List<Cmd> cmds, List<byte[]> reads) throws IOException {
+		InputStream in = new FileInputStream(path);
+		SessionCapture.Reader capture = new SessionCapture.Reader(in);
+		byte[] pending = new byte[0];
+		try {
+			while (capture.next()) {
+				byte[] data = Arrays.copyOf(capture.data(), capture.length());
+				if (capture.direction() == SessionCapture.RECEIVED) {
+					reads.add(data);
+					continue;
+				}
+
+				/* A command may be split across writes, keep the part not yet complete. */
+				byte[] sent = new byte[pending.length + data.length];
+				System.arraycopy(pending, 0, sent, 0, pending.length);
+				System.arraycopy(data, 0, sent, pending.length, data.length);
+				int pos = 0;
+				int len;
+				while (pos < sent.length && (len = cmdLength(sent, pos)) <= sent.length - pos) {
+					if ((sent[pos] & 0xFF) != EmCanCmd.PING.toCode()) {
+						cmds.add(new Cmd(capture.timeUs(), Arrays.copyOfRange(sent, pos, pos + len)));
+					}
+					pos += len;
+				}
+				pending = Arrays.copyOfRange(sent, pos, sent.length);
+			}
+		} finally {
+			capture.close();
+		}
+	}
+
+	/* Length of the client command at pos, from its opcode and length byte. */
+	private static int cmdLength(byte[] buf, int pos) {
+		int op = buf[pos] & 0xFF;
+		if (op == EmCanCmd.SENDS.toCode() || op == EmCanCmd.SENDE.toCode()) {
+			if (pos + 1 >= buf.length) {
+				return Integer.MAX_VALUE;
+			}
+			int idLen = (op == EmCanCmd.SENDS.toCode()) ? 2 : 4;
+			return 2 + idLen + (buf[pos + 1] & 0xFF);
+		}
+		return 1;
+	}
+
+	/* Send the commands through a transmit queue and wait for the last PONG. */
+	private static void replay(StandInServer server, List<Cmd> cmds, boolean paced, int window)
+			throws IOException, InterruptedException {
+		Socket sock = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+		sock.setTcpNoDelay(true);
+		final InputStream in = sock.getInputStream();
+		final EmCanFramer framer = new EmCanFramer();
+		final TxQueue txQueue = new TxQueue(sock.getOutputStream(), window, new TxQueue.Framer() {
+			public void frame(int op, byte[] data, int len, ByteBuffer buf) {
+				framer.frame(op, data, len, buf);
+			}
+		});
+		final AtomicLong pongs = new AtomicLong();
+
+		for (int i = 0; i < ID_LEN; i++) {
+			if (in.read() < 0) {
+				throw new IOException("Server closed during ID");
+			}
+		}
+		txQueue.open();
+
+		Thread rcv = new Thread(new Runnable() {
+			public void run() {
+				try {
+					int rsp;
+					while ((rsp = in.read()) >= 0) {
+						if (rsp == EmCanRsp.PONG.toCode()) {
+							txQueue.pong();
+							pongs.incrementAndGet();
+						} else if (rsp == MBUS_RSP_ONOFF) {
+							in.read();
+						}
+					}
+				} catch (IOException e) {
+					/* Socket closed at end of run. */
+				}
+			}
+		}, "ReplayRcv");
+		rcv.setDaemon(true);
+		rcv.start();
+
+		long start = System.nanoTime();
+		long firstUs = cmds.isEmpty() ? 0 : cmds.get(0).timeUs;
+		for (Cmd cmd : cmds) {
+			if (paced) {
+				long due = start + TimeUnit.MICROSECONDS.toNanos(cmd.timeUs - firstUs);
+				long wait;
+				while ((wait = due - System.nanoTime()) > 0) {
+					if (wait > TimeUnit.MILLISECONDS.toNanos(2)) {
+						Thread.sleep(1);
+					} else {
+						Thread.yield();
+					}
+				}
+			}
+			int op = cmd.bytes[0] & 0xFF;
+			txQueue.put(cmd.bytes, (op == MBUS_OFF || op == MBUS_STOP) ? TxQueue.Lane.SAFETY : TxQueue.Lane.NORMAL);
+		}
+		while (pongs.get() < cmds.size()) {
+			Thread.sleep(1);
+		}
+		long elapsed = System.nanoTime() - start;
+		sock.close();
+
+		System.out.println((paced ? "paced" : "fast") + " replay, window " + window + ": " +
+				TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, " +
+				(long) (cmds.size() / (elapsed / 1e9)) + " cmds/s");
+		System.out.println("writes:  " + txQueue.metrics());
+		System.out.println("normal:  " + txQueue.latency(TxQueue.Lane.NORMAL));
+		System.out.println("safety:  " + txQueue.latency(TxQueue.Lane.SAFETY));
+	}
+
+	/* Put the captured reads through the receive framer, the way the Comms thread does. */
+	private static void parse(List<byte[]> reads, int rounds) {
+		ByteBuffer rcvBuf = ByteBuffer.allocate(RCV_BUF_SIZE);
+		long bytes = 0;
+		long rsps = 0;
+		long start = 0;
+
+		/* The first round warms up. */
+		for (int r = -1; r < rounds; r++) {
+			if (r == 0) {
+				start = System.nanoTime();
+				bytes = 0;
+				rsps = 0;
+			}
+			rcvBuf.clear();
+			rcvBuf.limit(0);
+			for (byte[] read : reads) {
+				rcvBuf.compact();
+				rcvBuf.put(read, 0, Math.min(read.length, rcvBuf.remaining()));
+				rcvBuf.flip();
+				bytes += read.length;
+
+				int frmLen;
+				while ((frmLen = EmCanParser.frameLength(rcvBuf)) > 0) {
+					rcvBuf.position(rcvBuf.position() + frmLen);
+					rsps++;
+				}
+				if (frmLen < 0) {
+					rcvBuf.position(rcvBuf.limit());
+				}
+			}
+		}
+		long elapsed = Math.max(1, System.nanoTime() - start);
+
+		System.out.println("parse, " + rounds + " rounds: " + (long) (rsps / (elapsed / 1e9)) + " responses/s, " +
+				(long) (bytes / (elapsed / 1e3)) + " MB/s");
+	}
+}
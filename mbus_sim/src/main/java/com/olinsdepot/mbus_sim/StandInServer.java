@@ -0,0 +1,477 @@
+package com.olinsdepot.mbus_sim;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Stand-in for the EmCAN stream interface of a MorBus server. Each client that
+ * connects is greeted with the ID response the Comms thread waits for, then its
+ * command stream is parsed and PINGs are answered with PONGs. Every response is
+ * delayed by the configured latency to model a LAN round trip, so the effect of
+ * the client's transmit window can be measured on a single machine.
+ *
+ * The link can be made worse than a quiet LAN:
+ *
+ * jitter    - each response is delayed by up to this much more, at random.
+ *             Responses are still sent in order, as TCP would deliver them.
+ * bandwidth - bytes per second each way. Commands are read and responses sent
+ *             no faster, so a burst queues up behind the ones before it.
+ *
+ * and faults injected to exercise the client's recovery:
+ *
+ * PONG loss - a fraction of PINGs go unanswered, the client's window and
+ *             liveness check see a stalled server.
+ * stall     - after a number of frames the server stops responding for a time.
+ * close     - after a number of frames the server drops the connection.
+ * bad ID    - the ID response names another protocol.
+ *
+ * Settings apply to connections accepted after they are made, set them before
+ * start(). The random choices are seeded, so a run can be repeated.
+ *
+ * The server can also be run on its own, for a client on another machine or
+ * an emulator to connect to, see main().
+ *
+ * @author mhughes
+ *
+ */
+public class StandInServer implements Runnable {
+
+	/* EmCAN stream commands, (client to server). */
+	private static final int CMD_NOP = 0;
+	private static final int CMD_PING = 1;
+	private static final int CMD_ID = 2;
+	private static final int CMD_SENDS = 6;
+	private static final int CMD_SENDE = 7;
+	private static final int CMD_KEEPALIVE = 11;
+
+	/* EmCAN stream responses, (server to client). */
+	private static final int RSP_PONG = 1;
+	private static final int RSP_ID = 2;
+
+	/* MorBus stream commands and responses. */
+	private static final int MBUS_OFF = 64;
+	private static final int MBUS_STOP = 65;
+	private static final int MBUS_ON = 66;
+	private static final int MBUS_ONOFF = 67;
+	private static final int MBUS_RSP_ONOFF = 64;
+
+	/* Identification returned in the ID response. */
+	private static final byte[] PROT_NAME = {'E','m','C','a','n',':','M','o','r','B','u','s'};
+	private static final byte[] BAD_PROT_NAME = {'E','m','C','a','n',':','O','t','h','e','r','!'};
+	private static final int PROT_VERSION = 1;
+
+	/* Server configuration and socket. */
+	private final ServerSocket mSrvrSocket;
+	private final long latencyNanos;
+
+	/* Link and fault settings, see the setters. */
+	private volatile long jitterNanos = 0;
+	private volatile long nanosPerByte = 0;
+	private volatile double pongLoss = 0;
+	private volatile long stallAfter = 0;
+	private volatile long stallNanos = 0;
+	private volatile long closeAfter = 0;
+	private volatile boolean badId = false;
+	private volatile long seed = 1;
+
+	/* Counters shared by all connections. */
+	private final AtomicLong connections = new AtomicLong();
+	private final AtomicLong framesRcvd = new AtomicLong();
+	private final AtomicLong pingsRcvd = new AtomicLong();
+	private final AtomicLong pongsDropped = new AtomicLong();
+	private final AtomicLong keepAlivesRcvd = new AtomicLong();
+	private volatile boolean powerOn = false;
+
+
+	/**
+	 * Constructor: Open a server socket on the loop back interface.
+	 *
+	 * @param port - port to listen on, 0 to pick a free port.
+	 * @param latencyMs - delay applied to every response, in milliseconds.
+	 * @throws IOException if the socket can't be opened.
+	 */
+	public StandInServer(int port, int latencyMs) throws IOException {
+		this(InetAddress.getLoopbackAddress(), port, latencyMs);
+	}
+
+	/**
+	 * Constructor: Open a server socket on an interface.
+	 *
+	 * @param addr - address to listen on, null for every interface.
+	 * @param port - port to listen on, 0 to pick a free port.
+	 * @param latencyMs - delay applied to every response, in milliseconds.
+	 * @throws IOException if the socket can't be opened.
+	 */
+	public StandInServer(InetAddress addr, int port, int latencyMs) throws IOException {
+		this.mSrvrSocket = new ServerSocket(port, 50, addr);
+		this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+	}
+
+	/**
+	 * Delay each response by up to this much more than the latency, at random.
+	 */
+	public StandInServer setJitterMs(int ms) {
+		this.jitterNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ms));
+		return this;
+	}
+
+	/**
+	 * Limit each direction of each connection to this many bytes per second, 0 = no limit.
+	 */
+	public StandInServer setBandwidth(int bytesPerSec) {
+		this.nanosPerByte = (bytesPerSec > 0) ? TimeUnit.SECONDS.toNanos(1) / bytesPerSec : 0;
+		return this;
+	}
+
+	/**
+	 * Leave this fraction of PINGs unanswered, 0 to 1.
+	 */
+	public StandInServer setPongLoss(double fraction) {
+		this.pongLoss = Math.max(0, Math.min(1, fraction));
+		return this;
+	}
+
+	/**
+	 * Stop responding for a time once a connection has sent a number of frames.
+	 *
+	 * @param afterFrames - frames received before the stall, 0 = never stall.
+	 * @param ms - how long no responses are sent. They are sent late, not lost.
+	 */
+	public StandInServer setStall(int afterFrames, int ms) {
+		this.stallAfter = Math.max(0, afterFrames);
+		this.stallNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ms));
+		return this;
+	}
+
+	/**
+	 * Drop each connection once it has sent a number of frames, 0 = never.
+	 */
+	public StandInServer setCloseAfter(int frames) {
+		this.closeAfter = Math.max(0, frames);
+		return this;
+	}
+
+	/**
+	 * Send an ID response that doesn't name the MorBus protocol.
+	 */
+	public StandInServer setBadId(boolean bad) {
+		this.badId = bad;
+		return this;
+	}
+
+	/**
+	 * Seed the random jitter and PONG loss. Each connection's choices come
+	 * from the seed and the order the connection was accepted in.
+	 */
+	public StandInServer setSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * Start accepting clients on a daemon thread.
+	 *
+	 * @return this server.
+	 */
+	public StandInServer start() {
+		Thread acceptThread = new Thread(this, "StandInAccept");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+		return this;
+	}
+
+	/**
+	 * Return the port the server is listening on.
+	 */
+	public int getPort() {
+		return mSrvrSocket.getLocalPort();
+	}
+
+	/**
+	 * Return the number of CAN frames received from all clients.
+	 */
+	public long getFramesRcvd() {
+		return framesRcvd.get();
+	}
+
+	/**
+	 * Return the number of PINGs received from all clients.
+	 */
+	public long getPingsRcvd() {
+		return pingsRcvd.get();
+	}
+
+	/**
+	 * Return the number of connections accepted.
+	 */
+	public long getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * Return the number of keep alives received from all clients.
+	 */
+	public long getKeepAlivesRcvd() {
+		return keepAlivesRcvd.get();
+	}
+
+	/**
+	 * Return the number of PINGs left unanswered by the PONG loss setting.
+	 */
+	public long getPongsDropped() {
+		return pongsDropped.get();
+	}
+
+	/**
+	 * Close the server socket. Open connections close when their client does.
+	 */
+	public void close() {
+		try {
+			mSrvrSocket.close();
+		} catch (IOException e) {
+			System.err.println("StandInServer: " + e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Run the server on its own until it is killed, listening on every
+	 * interface, and print the counters every few seconds.
+	 *
+	 * Usage: StandInServer [port] [latency ms] [jitter ms] [bytes/s] [PONG loss]
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+		int latencyMs = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		StandInServer server = new StandInServer(null, port, latencyMs)
+				.setJitterMs(args.length > 2 ? Integer.parseInt(args[2]) : 0)
+				.setBandwidth(args.length > 3 ? Integer.parseInt(args[3]) : 0)
+				.setPongLoss(args.length > 4 ? Double.parseDouble(args[4]) : 0);
+
+		server.start();
+		System.out.println("Stand-in MorBus server on port " + server.getPort());
+		while (true) {
+			Thread.sleep(5000);
+			System.out.println(server.getConnections() + " connections, " + server.getFramesRcvd() + " frames, " +
+					server.getPingsRcvd() + " PINGs, " + server.getKeepAlivesRcvd() + " keep alives, " +
+					server.getPongsDropped() + " PONGs dropped");
+		}
+	}
+
+	/**
+	 * Accept loop: start a connection thread for every client.
+	 */
+	public void run() {
+		while (!mSrvrSocket.isClosed()) {
+			try {
+				Socket client = mSrvrSocket.accept();
+				client.setTcpNoDelay(true);
+				long n = connections.incrementAndGet();
+				Thread conn = new Thread(new Connection(client, seed + n), "StandInConn");
+				conn.setDaemon(true);
+				conn.start();
+			} catch (IOException e) {
+				/* Socket closed. */
+				break;
+			}
+		}
+	}
+
+
+	/**
+	 * One client connection. Parses the client's command stream and queues the
+	 * responses on a single delayed executor so they are sent in order.
+	 */
+	private final class Connection implements Runnable {
+
+		private final Socket mSocket;
+		private final OutputStream outputStream;
+		private final ScheduledExecutorService rspQueue;
+		private final Random random;
+
+		/* Frames from this client, and when the link each way is next free. */
+		private long frames = 0;
+		private long rcvFreeAt;
+		private long sndFreeAt;
+		private long stallUntil = 0;
+
+		/* Constructor */
+		public Connection(Socket sock, long seed) throws IOException {
+			this.mSocket = sock;
+			this.outputStream = sock.getOutputStream();
+			this.rspQueue = Executors.newSingleThreadScheduledExecutor();
+			this.random = new Random(seed);
+			this.rcvFreeAt = System.nanoTime();
+			this.sndFreeAt = rcvFreeAt;
+		}
+
+		/* Read and dispatch client commands until the socket closes. */
+		public void run() {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+				byte[] datBuf = new byte[8];
+
+				/* The server announces itself when the client connects. */
+				sendId();
+
+				while (true) {
+					int cmd = in.read();
+					switch (cmd) {
+
+					case -1:
+						throw new EOFException();
+
+					case CMD_NOP:
+						pace(1);
+						break;
+
+					case CMD_KEEPALIVE:
+						pace(1);
+						keepAlivesRcvd.incrementAndGet();
+						break;
+
+					case CMD_PING:
+						pace(1);
+						pingsRcvd.incrementAndGet();
+						if (pongLoss > 0 && random.nextDouble() < pongLoss) {
+							pongsDropped.incrementAndGet();
+						} else {
+							respond(new byte[] {(byte) RSP_PONG});
+						}
+						break;
+
+					case CMD_ID:
+						pace(1);
+						sendId();
+						break;
+
+					case CMD_SENDS:
+						/* Standard frame: length, 16 bit ID, data */
+						int sLen = in.readUnsignedByte();
+						in.readShort();
+						in.readFully(datBuf, 0, sLen);
+						pace(4 + sLen);
+						frame();
+						break;
+
+					case CMD_SENDE:
+						/* Extended frame: length, 32 bit ID, data */
+						int eLen = in.readUnsignedByte();
+						in.readInt();
+						in.readFully(datBuf, 0, eLen);
+						pace(6 + eLen);
+						frame();
+						break;
+
+					case MBUS_OFF:
+					case MBUS_STOP:
+						pace(1);
+						powerOn = false;
+						break;
+
+					case MBUS_ON:
+						pace(1);
+						powerOn = true;
+						break;
+
+					case MBUS_ONOFF:
+						pace(1);
+						respond(new byte[] {(byte) MBUS_RSP_ONOFF, (byte) (powerOn ? 1 : 0)});
+						break;
+
+					default:
+						System.err.println("StandInServer: unknown command " + cmd);
+						break;
+					}
+				}
+			} catch (IOException e) {
+				/* Client went away. */
+			} finally {
+				rspQueue.shutdownNow();
+				try {
+					mSocket.close();
+				} catch (IOException e) {
+					/* Already closed. */
+				}
+			}
+		}
+
+		/* Count a frame and start any fault due after it. */
+		private void frame() throws IOException {
+			framesRcvd.incrementAndGet();
+			frames++;
+			if (stallAfter > 0 && frames == stallAfter) {
+				stallUntil = System.nanoTime() + stallNanos;
+			}
+			if (closeAfter > 0 && frames >= closeAfter) {
+				throw new EOFException("Fault: closing after " + frames + " frames");
+			}
+		}
+
+		/* Hold the reader until a command of len bytes could have arrived at the bandwidth. */
+		private void pace(int len) {
+			if (nanosPerByte == 0) {
+				return;
+			}
+			long now = System.nanoTime();
+			rcvFreeAt = Math.max(rcvFreeAt, now) + len * nanosPerByte;
+			long wait = rcvFreeAt - now;
+			if (wait > TimeUnit.MILLISECONDS.toNanos(1)) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		/* Queue the ID response: opcode, protocol name, terminator, version. */
+		private void sendId() {
+			byte[] name = badId ? BAD_PROT_NAME : PROT_NAME;
+			byte[] rsp = new byte[name.length + 3];
+			rsp[0] = (byte) RSP_ID;
+			System.arraycopy(name, 0, rsp, 1, name.length);
+			rsp[PROT_NAME.length + 1] = 0;
+			rsp[PROT_NAME.length + 2] = (byte) PROT_VERSION;
+			respond(rsp);
+		}
+
+		/*
+		 * Send a response after the latency and jitter, once the responses ahead
+		 * of it have gone and the bandwidth allows. Only the reader thread calls it.
+		 */
+		private void respond(final byte[] rsp) {
+			long now = System.nanoTime();
+			long due = now + latencyNanos;
+			if (jitterNanos > 0) {
+				due += (long) (random.nextDouble() * jitterNanos);
+			}
+			due = Math.max(due, Math.max(sndFreeAt, stallUntil));
+			sndFreeAt = due + rsp.length * nanosPerByte;
+
+			rspQueue.schedule(new Runnable() {
+				public void run() {
+					try {
+						outputStream.write(rsp);
+					} catch (IOException e) {
+						/* Client went away, the reader will see it. */
+					}
+				}
+			}, due - now, TimeUnit.NANOSECONDS);
+		}
+	}
+
+}
@@ -0,0 +1,191 @@
+package com.olinsdepot.mbus_sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.olinsdepot.mbus_proto.EmCanFramer;
+import com.olinsdepot.mbus_proto.EmCanParser;
+import com.olinsdepot.mbus_proto.EmCan.*;
+import com.olinsdepot.mbus_srvc.CommsConfig;
+import com.olinsdepot.mbus_srvc.NioTransport;
+import com.olinsdepot.mbus_srvc.TxMetrics;
+import com.olinsdepot.mbus_srvc.TxQueue;
+
+
+/**
+ * The Comms thread's three thread design without Android, for comparison with
+ * NioTransport: a blocking receive thread, a single send thread that commands
+ * are handed to, (the HandlerThread), and a Timer for the keep alives, with the
+ * server state shared under a lock.
+ *
+ * @author mhughes
+ *
+ */
+public class ThreadedTransport implements Runnable {
+
+	private static final long KEEPALIVE_MS = 50000;
+	private static final int RCV_BUF_SIZE = 4096;
+
+	private final Socket mSocket;
+	private final InputStream inputStream;
+	private final NioTransport.Listener listener;
+	private final TxQueue txQueue;
+	private final EmCanFramer framer = new EmCanFramer();
+	private final ScheduledExecutorService sendThread = Executors.newSingleThreadScheduledExecutor();
+	private final Timer keepLiveTimer = new Timer("BenchKeepAlive", true);
+
+	/* Server state, shared by the threads like the Comms thread's SrvrState. */
+	private final Object lock = new Object();
+	private boolean ready = false;
+
+
+	/**
+	 * Constructor: connect to the server.
+	 *
+	 * @param server - address of the stand-in server.
+	 * @param config - transmit window, TCP_NODELAY and flush window settings.
+	 * @param listener - receives the transport's events.
+	 */
+	public ThreadedTransport(SocketAddress server, CommsConfig config, NioTransport.Listener listener) throws IOException {
+		this.mSocket = new Socket();
+		this.mSocket.connect(server);
+		this.mSocket.setTcpNoDelay(config.getTcpNoDelay());
+		this.inputStream = mSocket.getInputStream();
+		this.listener = listener;
+		this.txQueue = new TxQueue(mSocket.getOutputStream(), config.getTxWindow(), null);
+
+		/* Held batches are written from the send thread, like the Comms thread's FLUSH message. */
+		if (config.getFlushWindowUs() > 0) {
+			txQueue.setFlushWindow(TimeUnit.MICROSECONDS.toNanos(config.getFlushWindowUs()), new TxQueue.FlushTimer() {
+				public void schedule(long delayNanos) {
+					sendThread.schedule(new Runnable() {
+						public void run() {
+							try {
+								txQueue.flushIfDue();
+							} catch (IOException e) {
+								/* Receive thread reports the failure. */
+							}
+						}
+					}, delayNanos, TimeUnit.NANOSECONDS);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queue a broadcast extended frame, on the send thread.
+	 */
+	public void sendBcst(final int op, final byte[] data, final TxQueue.Lane lane) {
+		sendThread.execute(new Runnable() {
+			public void run() {
+				ByteBuffer frame = ByteBuffer.allocate(EmCanFramer.HDR_LEN + data.length);
+				framer.frame(op, data, data.length, frame);
+				try {
+					txQueue.put(frame.array(), lane);
+				} catch (IOException e) {
+					/* Receive thread reports the failure. */
+				}
+			}
+		});
+	}
+
+	/**
+	 * Return a copy of the queue's write counts.
+	 */
+	public TxMetrics metrics() {
+		return txQueue.metrics();
+	}
+
+	/**
+	 * Close the socket, on the send thread.
+	 */
+	public void close() {
+		sendThread.execute(new Runnable() {
+			public void run() {
+				try {
+					mSocket.close();
+				} catch (IOException e) {
+					/* Closing anyway. */
+				}
+			}
+		});
+		sendThread.shutdown();
+		keepLiveTimer.cancel();
+	}
+
+	/**
+	 * Receive thread: read in bulk and handle each complete response.
+	 */
+	public void run() {
+		ByteBuffer rcvBuf = ByteBuffer.allocate(RCV_BUF_SIZE);
+		String reason = "closed";
+		int frmLen;
+
+		rcvBuf.limit(0);
+		try {
+			while (true) {
+				rcvBuf.compact();
+				int bytes = inputStream.read(rcvBuf.array(), rcvBuf.position(), rcvBuf.remaining());
+				if (bytes < 0) {
+					break;
+				}
+				rcvBuf.position(rcvBuf.position() + bytes);
+				rcvBuf.flip();
+
+				while ((frmLen = EmCanParser.frameLength(rcvBuf)) > 0) {
+					dispatchRsp(rcvBuf, rcvBuf.position(), frmLen);
+					rcvBuf.position(rcvBuf.position() + frmLen);
+				}
+			}
+		} catch (IOException e) {
+			reason = e.getLocalizedMessage();
+		}
+		listener.closed(reason);
+	}
+
+	private void dispatchRsp(ByteBuffer buf, int pos, int len) throws IOException {
+		switch (EmCanRsp.fromCode(buf.get(pos) & 0xFF)) {
+
+		case PONG:
+			txQueue.pong();
+			break;
+
+		case ID:
+			synchronized (lock) {
+				if (ready) {
+					break;
+				}
+				ready = true;
+			}
+			txQueue.open();
+			listener.connected(EmCanParser.idVersion(buf, pos, len));
+			keepLiveTimer.scheduleAtFixedRate(new TimerTask() {
+				public void run() {
+					sendThread.execute(new Runnable() {
+						public void run() {
+							try {
+								txQueue.put(new byte[] {EmCanCmd.KEEPALIVE.toCode()}, TxQueue.Lane.NORMAL);
+							} catch (IOException e) {
+								/* Receive thread reports the failure. */
+							}
+						}
+					});
+				}
+			}, 0, KEEPALIVE_MS);
+			break;
+
+		default:
+			break;
+		}
+	}
+}
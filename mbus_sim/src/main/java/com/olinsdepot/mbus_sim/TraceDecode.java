@@ -0,0 +1,33 @@
+package com.olinsdepot.mbus_sim;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.olinsdepot.mbus_srvc.Trace;
+
+
+/**
+ * Print a command pipeline trace dump as text. The service saves the dump in
+ * its files directory, pull it off the device with adb.
+ *
+ * Usage: TraceDecode <dump file>
+ *
+ * @author mhughes
+ *
+ */
+public class TraceDecode {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: TraceDecode <dump file>");
+			System.exit(1);
+		}
+		InputStream in = new FileInputStream(args[0]);
+		try {
+			Trace.decode(in, System.out);
+		} finally {
+			in.close();
+		}
+	}
+}
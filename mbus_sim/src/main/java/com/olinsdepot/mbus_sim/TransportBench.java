@@ -0,0 +1,166 @@
+package com.olinsdepot.mbus_sim;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.olinsdepot.mbus_proto.MorBus.MbusBcstOp;
+import com.olinsdepot.mbus_srvc.CommsConfig;
+import com.olinsdepot.mbus_srvc.NioTransport;
+import com.olinsdepot.mbus_srvc.TxMetrics;
+import com.olinsdepot.mbus_srvc.TxQueue;
+
+
+/**
+ * Transport bench. Sends a burst of DCC frames through the single threaded NIO
+ * transport and through the Comms thread's three thread design to a loop back
+ * stand-in server, and reports frames/s and the process CPU time per frame for
+ * each, with the transmit queue's segments/s and bytes per command. The server
+ * runs in the same process, so its share of the CPU time is in both figures.
+ *
+ * Usage: TransportBench [latency ms] [frames] [window] [rounds] [flush us] [nodelay]
+ *
+ * @author mhughes
+ *
+ */
+public class TransportBench {
+
+	/* 126 step speed command for short address 3. */
+	private static final byte[] SPEED_DATA = {(byte) 0x80, 3, 0x3F, (byte) 0xC0};
+
+	/* The two transports behind one interface. */
+	private interface Sender {
+		void send();
+		TxMetrics metrics();
+		void close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int latencyMs = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int window = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		CommsConfig config = new CommsConfig()
+				.setTxWindow(window)
+				.setFlushWindowUs(args.length > 4 ? Long.parseLong(args[4]) : 0)
+				.setTcpNoDelay(args.length > 5 ? Boolean.parseBoolean(args[5]) : true);
+
+		StandInServer server = new StandInServer(0, latencyMs).start();
+		SocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+		System.out.println("Stand-in server latency " + latencyMs + " ms, window " + config.getTxWindow() +
+				", flush " + config.getFlushWindowUs() + " us, no delay " + config.getTcpNoDelay() +
+				", " + frames + " frames per round");
+		System.out.println("round  transport   frames/s  cpu us/frame  segments/s  bytes/cmd");
+
+		for (int round = 1; round <= rounds; round++) {
+			for (int nio = 0; nio < 2; nio++) {
+				Result result = run(server, addr, nio == 1, config, frames);
+				System.out.println(String.format("%5d  %-9s  %9.0f  %12.2f  %10.0f  %9.2f", round,
+						(nio == 1) ? "nio" : "threaded", result.rate, result.cpuPerFrame,
+						result.segmentsPerSec, result.bytesPerCmd));
+			}
+		}
+
+		server.close();
+	}
+
+	private static final class Result {
+		private double rate;
+		private double cpuPerFrame;
+		private double segmentsPerSec;
+		private double bytesPerCmd;
+	}
+
+	/**
+	 * Send the frames through one connection.
+	 */
+	private static Result run(StandInServer server, SocketAddress addr, boolean nio, CommsConfig config, int frames)
+			throws IOException, InterruptedException {
+		final CountDownLatch connected = new CountDownLatch(1);
+		final int op = MbusBcstOp.DCC.toCode();
+		NioTransport.Listener listener = new NioTransport.Listener() {
+			public void connected(int protVersion) {
+				connected.countDown();
+			}
+			public void closed(String reason) {
+			}
+		};
+
+		Sender sender;
+		if (nio) {
+			final NioTransport transport = new NioTransport(addr, config, listener);
+			Thread loop = new Thread(transport, "SrvrNio");
+			loop.setDaemon(true);
+			loop.start();
+			sender = new Sender() {
+				public void send() {
+					transport.sendBcst(op, SPEED_DATA, TxQueue.Lane.NORMAL);
+				}
+				public TxMetrics metrics() {
+					return transport.metrics();
+				}
+				public void close() {
+					transport.close();
+				}
+			};
+		} else {
+			final ThreadedTransport transport = new ThreadedTransport(addr, config, listener);
+			Thread rcv = new Thread(transport, "SrvrMsgRcv");
+			rcv.setDaemon(true);
+			rcv.start();
+			sender = new Sender() {
+				public void send() {
+					transport.sendBcst(op, SPEED_DATA, TxQueue.Lane.NORMAL);
+				}
+				public TxMetrics metrics() {
+					return transport.metrics();
+				}
+				public void close() {
+					transport.close();
+				}
+			};
+		}
+		if (!connected.await(5, TimeUnit.SECONDS)) {
+			throw new IOException("Stand-in server did not identify");
+		}
+
+		long target = server.getFramesRcvd() + frames;
+		TxMetrics before = sender.metrics();
+		long cpu0 = processCpuNanos();
+		long t0 = System.nanoTime();
+		for (int i = 0; i < frames; i++) {
+			sender.send();
+		}
+		while (server.getFramesRcvd() < target) {
+			Thread.sleep(1);
+		}
+		long elapsed = System.nanoTime() - t0;
+		long cpu = (cpu0 < 0) ? -1 : processCpuNanos() - cpu0;
+		TxMetrics after = sender.metrics();
+		sender.close();
+
+		Result result = new Result();
+		result.rate = frames * 1e9 / elapsed;
+		result.cpuPerFrame = (cpu < 0) ? Double.NaN : cpu / 1000.0 / frames;
+		long cmds = after.commands() - before.commands();
+		result.segmentsPerSec = (after.segments() - before.segments()) * 1e9 / elapsed;
+		result.bytesPerCmd = (cmds > 0) ? (double) (after.bytes() - before.bytes()) / cmds : 0;
+		return result;
+	}
+
+	/* CPU time used by the process, or -1 if the JVM doesn't report it. */
+	private static long processCpuNanos() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return -1;
+	}
+}
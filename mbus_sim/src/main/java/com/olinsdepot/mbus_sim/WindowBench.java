@@ -0,0 +1,109 @@
+package com.olinsdepot.mbus_sim;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.InetAddress;
+import java.net.Socket;
+
+import com.olinsdepot.mbus_srvc.TxQueue;
+
+
+/**
+ * Transmit window bench. Drives a stand-in server with a stream of DCC speed
+ * frames through the Comms thread's TxQueue: each frame is written with a PING
+ * when there is room in the window, and its slot is freed when the PONG comes back.
+ * Reports frames/s for each window size so the gain over stop-and-wait,
+ * (window = 1), can be measured at a given LAN latency.
+ *
+ * Usage: WindowBench [latency ms] [frames]
+ *
+ * @author mhughes
+ *
+ */
+public class WindowBench {
+
+	private static final int[] WINDOWS = {1, 2, 4, 8, 16};
+
+	/* SENDE broadcast frame carrying a 126 step speed command for short address 3. */
+	private static final byte[] SPEED_FRAME = {
+		7,							/* SENDE */
+		4,							/* # of CAN data bytes */
+		0, 0x19, 0, 0,				/* DCC broadcast op, NEW_DATA flag */
+		(byte) 0x80, 3, 0x3F, (byte) 0xC0	/* repeat, address, 126 step instruction */
+	};
+	private static final int PONG = 1;
+	private static final int ID_LEN = 15;
+
+	public static void main(String[] args) throws Exception {
+		int latencyMs = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+		StandInServer server = new StandInServer(0, latencyMs).start();
+		System.out.println("Stand-in server latency " + latencyMs + " ms, " + frames + " frames per run");
+		System.out.println("window  frames/s  speedup");
+
+		double baseRate = 0;
+		for (int window : WINDOWS) {
+			double rate = run(server.getPort(), window, frames);
+			if (window == 1) {
+				baseRate = rate;
+			}
+			System.out.println(String.format("%6d  %8.1f  %6.2fx", window, rate, rate / baseRate));
+		}
+
+		server.close();
+	}
+
+	/**
+	 * Send the frames through one connection with the given window.
+	 *
+	 * @return frames per second, measured until the last PONG arrives.
+	 */
+	private static double run(int port, int window, final int frames) throws IOException, InterruptedException {
+		Socket sock = new Socket(InetAddress.getLoopbackAddress(), port);
+		sock.setTcpNoDelay(true);
+		final InputStream in = new BufferedInputStream(sock.getInputStream());
+		final TxQueue txQueue = new TxQueue(sock.getOutputStream(), window, null);
+
+		/* Wait for the server's ID response before sending. */
+		for (int i = 0; i < ID_LEN; i++) {
+			if (in.read() < 0) {
+				throw new IOException("Server closed during ID");
+			}
+		}
+
+		/* Receive side: each PONG frees one slot in the window. */
+		Thread rcv = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int pongs = 0; pongs < frames; ) {
+						int rsp = in.read();
+						if (rsp < 0) {
+							break;
+						}
+						if (rsp == PONG) {
+							pongs++;
+							txQueue.pong();
+						}
+					}
+				} catch (IOException e) {
+					System.err.println("WindowBench: " + e.getLocalizedMessage());
+				}
+			}
+		}, "BenchRcv");
+		rcv.start();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < frames; i++) {
+			txQueue.put(SPEED_FRAME, TxQueue.Lane.NORMAL);
+		}
+		txQueue.open();
+		rcv.join();
+		long elapsed = System.nanoTime() - start;
+
+		sock.close();
+		return frames * 1e9 / elapsed;
+	}
+}
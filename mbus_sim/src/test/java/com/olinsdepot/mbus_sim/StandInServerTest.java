@@ -0,0 +1,149 @@
+package com.olinsdepot.mbus_sim;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The stand-in server the transmit window is measured against: it greets a
+ * client with its ID, and answers PINGs with PONGs, one each and in order,
+ * so a client can have a window of frames on the wire ahead of their PONGs.
+ * And the faults it injects: PONGs lost, a dropped connection and an ID that
+ * names another protocol.
+ *
+ * @author mhughes
+ *
+ */
+public class StandInServerTest {
+
+	private static final int LATENCY_MS = 100;
+
+	private static final int PING = 1;
+	private static final int PONG = 1;
+	private static final int ID = 2;
+	private static final byte[] PROT_NAME = {'E','m','C','a','n',':','M','o','r','B','u','s'};
+
+	/* SENDE broadcast frame carrying a 126 step speed command for short address 3. */
+	private static final byte[] SPEED_FRAME = {7, 4, 0, 0x19, 0, 0, (byte) 0x80, 3, 0x3F, (byte) 0xC0};
+
+	private StandInServer server;
+	private Socket sock;
+	private DataInputStream in;
+	private OutputStream out;
+
+	/* Server with a fault set, and the connection to it. */
+	private StandInServer faulty;
+	private Socket faultySock;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new StandInServer(0, LATENCY_MS).start();
+		sock = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+		sock.setTcpNoDelay(true);
+		in = new DataInputStream(sock.getInputStream());
+		out = sock.getOutputStream();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		sock.close();
+		server.close();
+		if (faulty != null) {
+			faultySock.close();
+			faulty.close();
+		}
+	}
+
+	@Test
+	public void greetsTheClientWithItsId() throws IOException {
+		byte[] rsp = new byte[PROT_NAME.length + 3];
+		in.readFully(rsp);
+		assertEquals(ID, rsp[0]);
+		byte[] name = new byte[PROT_NAME.length];
+		System.arraycopy(rsp, 1, name, 0, name.length);
+		assertArrayEquals(PROT_NAME, name);
+		assertEquals(0, rsp[PROT_NAME.length + 1]);
+	}
+
+	@Test
+	public void windowOfFramesSentAheadOfTheirPongs() throws Exception {
+		in.readFully(new byte[PROT_NAME.length + 3]);
+
+		/* Four frames, each followed by its PING, without waiting for a PONG. */
+		for (int i = 0; i < 4; i++) {
+			out.write(SPEED_FRAME);
+			out.write(PING);
+		}
+
+		/* All four were taken before the first PONG came back. */
+		assertEquals(PONG, in.read());
+		assertEquals(4, server.getFramesRcvd());
+		assertEquals(4, server.getPingsRcvd());
+
+		/* And each PING gets its own PONG. */
+		for (int i = 1; i < 4; i++) {
+			assertEquals(PONG, in.read());
+		}
+		assertEquals(0, in.available());
+	}
+
+	@Test
+	public void badIdNamesAnotherProtocol() throws IOException {
+		DataInputStream fin = connect(new StandInServer(0, 0).setBadId(true));
+		byte[] rsp = new byte[PROT_NAME.length + 3];
+		fin.readFully(rsp);
+		assertEquals(ID, rsp[0]);
+		assertFalse(Arrays.equals(PROT_NAME, Arrays.copyOfRange(rsp, 1, 1 + PROT_NAME.length)));
+	}
+
+	@Test
+	public void closeAfterDropsTheConnection() throws IOException {
+		DataInputStream fin = connect(new StandInServer(0, 0).setCloseAfter(2));
+		fin.readFully(new byte[PROT_NAME.length + 3]);
+		OutputStream fout = faultySock.getOutputStream();
+		fout.write(SPEED_FRAME);
+		fout.write(SPEED_FRAME);
+		assertEquals(-1, fin.read());
+		assertEquals(1, faulty.getConnections());
+	}
+
+	@Test
+	public void lostPongsAreCounted() throws Exception {
+		DataInputStream fin = connect(new StandInServer(0, 0).setPongLoss(1.0));
+		fin.readFully(new byte[PROT_NAME.length + 3]);
+		OutputStream fout = faultySock.getOutputStream();
+		for (int i = 0; i < 3; i++) {
+			fout.write(SPEED_FRAME);
+			fout.write(PING);
+		}
+
+		long deadline = System.currentTimeMillis() + 2000;
+		while (faulty.getPongsDropped() < 3) {
+			assertTrue("PINGs not taken", System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+		Thread.sleep(50);
+		assertEquals(0, fin.available());
+	}
+
+
+	/* Start a server with a fault set and connect to it. */
+	private DataInputStream connect(StandInServer fault) throws IOException {
+		faulty = fault.start();
+		faultySock = new Socket(InetAddress.getLoopbackAddress(), faulty.getPort());
+		faultySock.setSoTimeout(2000);
+		return new DataInputStream(faultySock.getInputStream());
+	}
+}
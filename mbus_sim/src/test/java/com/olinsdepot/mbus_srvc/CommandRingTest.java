@@ -0,0 +1,227 @@
+package com.olinsdepot.mbus_srvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+/**
+ * The in process command ring: capacity, wrap around, a full ring, and the
+ * wake up handshake between offer and park, alone and with a producer and
+ * consumer thread.
+ *
+ * @author mhughes
+ *
+ */
+public class CommandRingTest {
+
+	/* Keeps the commands taken, in order. */
+	private static final class Taken implements CommandRing.Consumer {
+		private final List<int[]> cmds = new ArrayList<int[]>();
+		private final List<Object> objs = new ArrayList<Object>();
+
+		public void command(int what, int arg1, int arg2, Object obj) {
+			cmds.add(new int[] {what, arg1, arg2});
+			objs.add(obj);
+		}
+	}
+
+	@Test
+	public void capacityIsAPowerOfTwo() {
+		assertEquals(2, new CommandRing(0).capacity());
+		assertEquals(2, new CommandRing(2).capacity());
+		assertEquals(8, new CommandRing(5).capacity());
+		assertEquals(64, new CommandRing(64).capacity());
+	}
+
+	@Test
+	public void firstCommandWakesTheConsumer() {
+		CommandRing ring = new CommandRing(8);
+		assertTrue(ring.isEmpty());
+
+		/* The consumer starts parked, only the first of a burst wakes it. */
+		assertEquals(1, ring.offer(1, 10, 20, null));
+		assertEquals(0, ring.offer(2, 11, 21, null));
+		assertEquals(0, ring.offer(3, 12, 22, null));
+		assertFalse(ring.isEmpty());
+
+		Taken taken = new Taken();
+		assertEquals(3, ring.drain(taken));
+		assertTrue(ring.isEmpty());
+		assertEquals(3, taken.cmds.get(2)[0]);
+		assertEquals(12, taken.cmds.get(2)[1]);
+		assertEquals(22, taken.cmds.get(2)[2]);
+
+		/* Still awake until it parks. */
+		assertEquals(0, ring.offer(4, 0, 0, null));
+		assertEquals(1, ring.drain(taken));
+		assertTrue(ring.park());
+		assertEquals(1, ring.offer(5, 0, 0, null));
+	}
+
+	@Test
+	public void parkWithACommandWaitingDrainsAgain() {
+		CommandRing ring = new CommandRing(8);
+		Taken taken = new Taken();
+		assertEquals(1, ring.offer(1, 0, 0, null));
+		ring.drain(taken);
+
+		/* Published while the consumer was awake, so no wake up was asked for. */
+		assertEquals(0, ring.offer(2, 0, 0, null));
+		assertFalse(ring.park());
+		assertEquals(1, ring.drain(taken));
+
+		/* Nothing waiting, the next command wakes it. */
+		assertTrue(ring.park());
+		assertEquals(1, ring.offer(3, 0, 0, null));
+	}
+
+	@Test
+	public void fullRingRefusesCommands() {
+		final CommandRing ring = new CommandRing(4);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(ring.offer(i, 0, 0, null) >= 0);
+		}
+		assertEquals(-1, ring.offer(4, 0, 0, null));
+
+		/* Still full while the first command is being taken, free once all are. */
+		Taken taken = new Taken();
+		ring.drain(new CommandRing.Consumer() {
+			private boolean done = false;
+
+			public void command(int what, int arg1, int arg2, Object obj) {
+				if (!done) {
+					done = true;
+					assertEquals(-1, ring.offer(99, 0, 0, null));
+				}
+			}
+		});
+		assertEquals(0, ring.offer(4, 0, 0, null));
+		assertEquals(1, ring.drain(taken));
+		assertEquals(4, taken.cmds.get(0)[0]);
+	}
+
+	@Test
+	public void slotFreedAsEachCommandIsTaken() {
+		final CommandRing ring = new CommandRing(2);
+		ring.offer(1, 0, 0, null);
+		ring.offer(2, 0, 0, null);
+		final List<Integer> offers = new ArrayList<Integer>();
+
+		/* The producer can refill the first slot while the second is taken. */
+		final Taken taken = new Taken();
+		assertEquals(3, ring.drain(new CommandRing.Consumer() {
+			public void command(int what, int arg1, int arg2, Object obj) {
+				taken.command(what, arg1, arg2, obj);
+				if (what == 2) {
+					offers.add(ring.offer(3, 0, 0, null));
+				}
+			}
+		}));
+
+		/* The same drain picks up the command published meanwhile. */
+		assertEquals(0, (int) offers.get(0));
+		assertEquals(3, taken.cmds.get(2)[0]);
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void wrapsInOrder() {
+		CommandRing ring = new CommandRing(4);
+		Taken taken = new Taken();
+		int next = 0;
+
+		/* Uneven bursts so the slots used move round the ring. */
+		for (int cycle = 0; cycle < 1000; cycle++) {
+			int burst = 1 + cycle % 4;
+			for (int i = 0; i < burst; i++, next++) {
+				assertTrue(ring.offer(next, -next, next * 2, Integer.valueOf(next)) >= 0);
+			}
+			assertEquals(burst, ring.drain(taken));
+		}
+		assertEquals(next, taken.cmds.size());
+		for (int i = 0; i < next; i++) {
+			assertEquals(i, taken.cmds.get(i)[0]);
+			assertEquals(-i, taken.cmds.get(i)[1]);
+			assertEquals(i * 2, taken.cmds.get(i)[2]);
+			assertEquals(Integer.valueOf(i), taken.objs.get(i));
+		}
+	}
+
+	@Test
+	public void takenObjectsAreNotHeld() {
+		CommandRing ring = new CommandRing(2);
+		final Object cmdObj = new Object();
+		final Object[] got = new Object[1];
+		ring.offer(1, 0, 0, cmdObj);
+		ring.drain(new CommandRing.Consumer() {
+			public void command(int what, int arg1, int arg2, Object obj) {
+				got[0] = obj;
+			}
+		});
+		assertSame(cmdObj, got[0]);
+
+		/* The slot was cleared when taken, the next command without an object gets none. */
+		ring.offer(2, 0, 0, null);
+		ring.drain(new CommandRing.Consumer() {
+			public void command(int what, int arg1, int arg2, Object obj) {
+				got[0] = obj;
+			}
+		});
+		assertNull(got[0]);
+	}
+
+	@Test
+	public void producerAndConsumerThreads() throws Exception {
+		final CommandRing ring = new CommandRing(16);
+		final int count = 500000;
+		final int[] next = {0};
+		final boolean[] inOrder = {true};
+
+		Thread consumer = new Thread(new Runnable() {
+			public void run() {
+				CommandRing.Consumer check = new CommandRing.Consumer() {
+					public void command(int what, int arg1, int arg2, Object obj) {
+						if (what != next[0] || arg1 != ~what) {
+							inOrder[0] = false;
+						}
+						next[0]++;
+					}
+				};
+				while (next[0] < count) {
+					ring.drain(check);
+					if (next[0] < count && ring.park()) {
+						LockSupport.park(this);
+					}
+				}
+			}
+		});
+		consumer.start();
+
+		/* A lost wake up leaves the consumer parked and the producer spinning on a full ring. */
+		for (int i = 0; i < count; i++) {
+			int rc;
+			long deadline = System.nanoTime() + 10000000000L;
+			while ((rc = ring.offer(i, ~i, 0, null)) < 0) {
+				assertTrue("Consumer stopped taking commands", System.nanoTime() < deadline);
+				Thread.yield();
+			}
+			if (rc == 1) {
+				LockSupport.unpark(consumer);
+			}
+		}
+
+		consumer.join(10000);
+		assertFalse(consumer.isAlive());
+		assertEquals(count, next[0]);
+		assertTrue(inOrder[0]);
+		assertTrue(ring.isEmpty());
+	}
+}
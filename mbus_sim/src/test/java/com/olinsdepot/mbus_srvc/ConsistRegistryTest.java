@@ -0,0 +1,88 @@
+package com.olinsdepot.mbus_srvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.olinsdepot.mbus_srvc.ConsistRegistry.Consist;
+import com.olinsdepot.mbus_srvc.DecoderRegistry.Entry;
+
+/**
+ * The consist registry: the throttle driving a consist address in a format
+ * every unit takes, function keys going to the lead unit, and a consist with
+ * no units left releasing its throttle.
+ *
+ * @author mhughes
+ *
+ */
+public class ConsistRegistryTest {
+
+	private static final int LONG = 1;
+
+	private final DecoderRegistry decoders = new DecoderRegistry();
+	private final ConsistRegistry consists = new ConsistRegistry(decoders);
+
+	@Test
+	public void throttleDrivesTheConsistAddress() {
+		Entry lead = decoders.register(1234, LONG, 126, 0);
+		Entry trail = decoders.register(567, LONG, 28, 0);
+		Consist cnst = consists.add(0, 10, lead, false);
+		assertSame(cnst.entry(), decoders.forThrottle(0));
+		assertEquals(10, cnst.entry().address());
+		assertEquals(126, cnst.entry().encoder().getSpdSteps());
+
+		/* The slower unit sets the format. */
+		assertSame(cnst, consists.add(0, 10, trail, true));
+		assertEquals(28, cnst.spdSteps());
+		assertEquals(28, decoders.forThrottle(0).encoder().getSpdSteps());
+		assertEquals(2, cnst.size());
+		assertFalse(cnst.isReversed(0));
+		assertTrue(cnst.isReversed(1));
+
+		/* Added again, the unit only takes its new direction. */
+		consists.add(0, 10, trail, false);
+		assertEquals(2, cnst.size());
+		assertFalse(cnst.isReversed(1));
+
+		assertSame(lead, consists.functionsFor(cnst.entry()));
+		assertSame(trail, consists.functionsFor(trail));
+	}
+
+	@Test
+	public void emptyConsistReleasesItsThrottle() {
+		Entry lead = decoders.register(1234, LONG, 126, 0);
+		Entry trail = decoders.register(567, LONG, 126, 0);
+		Consist cnst = consists.add(0, 10, lead, false);
+		consists.add(0, 10, trail, false);
+
+		/* The next unit takes the lead. */
+		assertSame(cnst, consists.remove(lead));
+		assertSame(trail, cnst.unit(0));
+		assertSame(cnst.entry(), decoders.forThrottle(0));
+
+		consists.remove(trail);
+		assertNull(decoders.forThrottle(0));
+		assertNull(consists.get(10));
+		assertNull(consists.remove(trail));
+	}
+
+	@Test
+	public void unitMovesToAnotherConsist() {
+		Entry unit = decoders.register(1234, LONG, 126, 0);
+		consists.add(0, 10, unit, false);
+		Consist other = consists.add(1, 11, unit, true);
+		assertNull(consists.get(10));
+		assertNull(decoders.forThrottle(0));
+		assertSame(other, consists.get(11));
+		assertEquals(1, other.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidConsistAddress() {
+		consists.add(0, ConsistRegistry.MAX_ADDRESS + 1, decoders.register(3, 0, 28, 0), false);
+	}
+}
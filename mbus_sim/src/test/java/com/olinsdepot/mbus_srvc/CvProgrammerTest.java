@@ -0,0 +1,92 @@
+package com.olinsdepot.mbus_srvc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.olinsdepot.mbus_proto.DCCencoder;
+
+/**
+ * Pipelined CV writes: the window of writes out at once, resends after a
+ * timeout or a lost connection, and acks for a batch already ended.
+ *
+ * @author mhughes
+ *
+ */
+public class CvProgrammerTest {
+
+	private static final long MS = 1000000L;
+
+	private final DCCencoder encoder = new DCCencoder(3, 0, 28, 0);
+	private final int[] tags = new int[8];
+
+	@Test
+	public void windowLimitsWritesOut() {
+		CvProgrammer prog = new CvProgrammer(2, 3, 100);
+		for (int cv = 1; cv <= 5; cv++) {
+			prog.add(encoder, cv, cv * 10);
+		}
+		assertEquals(2, prog.take(0, tags));
+		assertEquals(0, prog.take(0, tags));
+
+		/* Each ack lets the next write out, in the order added. */
+		assertTrue(prog.acked(tags[0]));
+		assertEquals(1, prog.take(0, tags));
+		byte[] buf = new byte[DCCencoder.MAX_CMD_LEN];
+		int len = prog.encode(tags[0], buf, 0);
+		assertArrayEquals(encoder.DCCcvWrite(3, 30), Arrays.copyOf(buf, len));
+		assertEquals(1, prog.done());
+		assertEquals(5, prog.total());
+		assertTrue(prog.isBusy());
+	}
+
+	@Test
+	public void timedOutWriteIsResentThenFails() {
+		CvProgrammer prog = new CvProgrammer(1, 2, 100);
+		prog.add(encoder, 1, 1);
+		assertEquals(1, prog.take(0, tags));
+		assertEquals(0, prog.take(99 * MS, tags));
+		assertEquals(1, prog.take(100 * MS, tags));
+
+		/* Out of tries, the batch ends. */
+		assertEquals(0, prog.take(200 * MS, tags));
+		assertEquals(1, prog.failed());
+		assertFalse(prog.isBusy());
+	}
+
+	@Test
+	public void linkLostResendsWithoutATry() {
+		CvProgrammer prog = new CvProgrammer(2, 1, 100);
+		prog.add(encoder, 1, 1);
+		prog.add(encoder, 2, 2);
+		assertEquals(2, prog.take(0, tags));
+		prog.linkLost();
+		assertEquals(2, prog.take(0, tags));
+		assertTrue(prog.acked(tags[0]));
+		assertTrue(prog.acked(tags[1]));
+		assertEquals(0, prog.failed());
+		assertFalse(prog.isBusy());
+	}
+
+	@Test
+	public void ackForAnEndedBatchIsIgnored() {
+		CvProgrammer prog = new CvProgrammer(1, 3, 100);
+		prog.add(encoder, 1, 1);
+		assertEquals(1, prog.take(0, tags));
+		int old = tags[0];
+		assertTrue(prog.acked(old));
+		assertFalse(prog.acked(old));
+
+		/* The next add starts a new batch, whose first write has the same index. */
+		prog.add(encoder, 2, 2);
+		assertEquals(1, prog.total());
+		assertFalse(prog.acked(old));
+		assertEquals(1, prog.take(0, tags));
+		assertTrue(prog.acked(tags[0]));
+	}
+}
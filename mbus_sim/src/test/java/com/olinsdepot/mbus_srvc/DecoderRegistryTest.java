@@ -0,0 +1,287 @@
+package com.olinsdepot.mbus_srvc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.olinsdepot.mbus_proto.DCCencoder;
+import com.olinsdepot.mbus_srvc.DecoderRegistry.Entry;
+
+/**
+ * The decoder registry: its open addressing table as it grows, decoders
+ * registered with or without a throttle and moving between throttles,
+ * consist addresses kept apart from short addresses, encoders kept or
+ * rebuilt with the registry's repetition, and speed commands discarded and
+ * decoders taken out of the refresh schedule when they are released.
+ *
+ * @author mhughes
+ *
+ */
+public class DecoderRegistryTest {
+
+	private static final int SHORT = 0;
+	private static final int LONG = 1;
+
+	@Test
+	public void growsKeepingEveryDecoder() {
+		DecoderRegistry registry = new DecoderRegistry(2);
+		Entry[] registered = new Entry[2000];
+
+		/* Consecutive addresses, both types, well past the initial table. */
+		for (int adr = 1; adr < 1000; adr++) {
+			registered[adr] = registry.register(adr, LONG, 126, 0);
+			registered[1000 + adr] = registry.register(adr, SHORT, 28, 0);
+			assertEquals(2 * adr, registry.size());
+		}
+		for (int adr = 1; adr < 1000; adr++) {
+			assertSame(registered[adr], registry.get(adr, LONG));
+			assertSame(registered[1000 + adr], registry.get(adr, SHORT));
+			assertEquals(adr, registry.get(adr, LONG).address());
+		}
+		assertNull(registry.get(1000, LONG));
+		assertNull(registry.get(0, SHORT));
+	}
+
+	@Test
+	public void registeringAgainFindsTheSameDecoder() {
+		DecoderRegistry registry = new DecoderRegistry();
+		Entry entry = registry.register(3, SHORT, 28, 0);
+		DCCencoder encoder = entry.encoder();
+		assertSame(entry, registry.register(3, SHORT, 28, 0x1F));
+		assertSame(encoder, entry.encoder());
+		assertEquals(0x1F, encoder.getKeyStates());
+		assertEquals(1, registry.size());
+	}
+
+	@Test
+	public void shortAndLongAddressesAreDifferentDecoders() {
+		DecoderRegistry registry = new DecoderRegistry();
+		Entry shortAdr = registry.acquire(0, 3, SHORT, 28, 0);
+		Entry longAdr = registry.acquire(1, 3, LONG, 28, 0);
+		assertNotSame(shortAdr, longAdr);
+		assertEquals(2, registry.size());
+		assertSame(shortAdr, registry.forThrottle(0));
+		assertSame(longAdr, registry.forThrottle(1));
+		assertEquals(3, shortAdr.address());
+		assertEquals(3, longAdr.address());
+	}
+
+	@Test
+	public void consistAddressIsApartFromTheShortAddress() {
+		DecoderRegistry registry = new DecoderRegistry();
+		Entry loco = registry.acquire(0, 3, SHORT, 28, 0);
+		Entry cnst = registry.acquireConsist(1, 3, 126);
+		assertNotSame(loco, cnst);
+		assertEquals(2, registry.size());
+
+		/* Neither takes the other's throttle or encoder. */
+		assertSame(loco, registry.forThrottle(0));
+		assertSame(cnst, registry.forThrottle(1));
+		assertEquals(28, loco.encoder().getSpdSteps());
+		assertSame(loco, registry.get(3, SHORT));
+
+		/* Sent as short address 3. */
+		assertArrayEquals(new DCCencoder(3, SHORT, 126, 0).DCCspeed(40), cnst.encoder().DCCspeed(40));
+
+		/* Acquiring the loco again leaves the consist where it is. */
+		registry.acquire(2, 3, SHORT, 28, 0);
+		assertSame(cnst, registry.forThrottle(1));
+		assertSame(cnst, registry.acquireConsist(1, 3, 126));
+	}
+
+	@Test
+	public void acquireTakesTheDecoderFromAnotherThrottle() {
+		DecoderRegistry registry = new DecoderRegistry();
+		Entry entry = registry.acquire(0, 1234, LONG, 126, 0);
+		int epoch = entry.slot().put(new byte[] {1}, 1);
+		assertTrue(epoch >= 0);
+
+		assertSame(entry, registry.acquire(5, 1234, LONG, 126, 0));
+		assertEquals(5, entry.throttle());
+		assertNull(registry.forThrottle(0));
+		assertSame(entry, registry.forThrottle(5));
+		assertTrue(registry.throttles() > 5);
+
+		/* The first throttle's speed command went with it. */
+		assertEquals(0, entry.slot().take(epoch, new byte[TxQueue.MAX_DATA_LEN], 0));
+	}
+
+	@Test
+	public void acquireReleasesTheThrottlesOldDecoder() {
+		DecoderRegistry registry = new DecoderRegistry();
+		Entry first = registry.acquire(2, 10, SHORT, 28, 0);
+		Entry second = registry.acquire(2, 11, SHORT, 28, 0);
+		assertEquals(-1, first.throttle());
+		assertEquals(2, second.throttle());
+		assertSame(second, registry.forThrottle(2));
+	}
+
+	@Test
+	public void releasedDecoderStaysRegistered() {
+		DecoderRegistry registry = new DecoderRegistry();
+		Entry entry = registry.acquire(0, 44, SHORT, 28, 0);
+		DCCencoder encoder = entry.encoder();
+		registry.release(0);
+		assertNull(registry.forThrottle(0));
+		assertEquals(-1, entry.throttle());
+		assertSame(entry, registry.get(44, SHORT));
+		assertEquals(1, registry.size());
+
+		/* Acquired again, the encoder is reused. */
+		assertSame(encoder, registry.acquire(1, 44, SHORT, 28, 0).encoder());
+
+		/* Throttles without a decoder release quietly. */
+		registry.release(3);
+		registry.release(99);
+		registry.release(-1);
+	}
+
+	@Test
+	public void newSpeedStepFormatBuildsANewEncoder() {
+		DecoderRegistry registry = new DecoderRegistry();
+		Entry entry = registry.acquire(0, 44, SHORT, 28, 0);
+		DCCencoder encoder = entry.encoder();
+		assertSame(entry, registry.acquire(0, 44, SHORT, 126, 0));
+		assertNotSame(encoder, entry.encoder());
+		assertEquals(126, entry.encoder().getSpdSteps());
+	}
+
+	@Test
+	public void repeatAppliesToExistingAndNewDecoders() {
+		DecoderRegistry registry = new DecoderRegistry();
+		Entry before = registry.register(3, SHORT, 126, 0);
+		registry.setRepeat(2, false);
+		Entry after = registry.register(4, SHORT, 126, 0);
+
+		assertArrayEquals(speed(3, 2, false, 50), before.encoder().DCCspeed(50));
+		assertArrayEquals(speed(4, 2, false, 50), after.encoder().DCCspeed(50));
+
+		/* And to an encoder rebuilt for a new speed step format. */
+		registry.register(3, SHORT, 28, 0);
+		DCCencoder expected = new DCCencoder(3, SHORT, 28, 0);
+		expected.setRepeat(2, false);
+		assertArrayEquals(expected.DCCspeed(50), registry.get(3, SHORT).encoder().DCCspeed(50));
+	}
+
+	@Test
+	public void releaseTakesTheDecoderOutOfTheRefresh() {
+		DecoderRegistry registry = new DecoderRegistry();
+		RefreshScheduler refresh = new RefreshScheduler(4, 2);
+		registry.setRefresh(refresh);
+
+		Entry a = registry.acquire(0, 3, SHORT, 28, 0);
+		Entry b = registry.acquire(1, 4, SHORT, 28, 0);
+		refresh.changed(a, 10);
+		refresh.changed(b, 20);
+		assertEquals(2, refresh.size());
+
+		registry.release(0);
+		assertEquals(1, refresh.size());
+		assertEquals(0, a.speed());
+		assertPicks(refresh, b);
+	}
+
+	@Test
+	public void stealingADecoderTakesItOutOfTheRefresh() {
+		DecoderRegistry registry = new DecoderRegistry();
+		RefreshScheduler refresh = new RefreshScheduler(4, 0);
+		registry.setRefresh(refresh);
+
+		Entry a = registry.acquire(0, 3, SHORT, 28, 0);
+		Entry b = registry.acquire(1, 4, SHORT, 28, 0);
+		refresh.changed(a, 10);
+		refresh.changed(b, 20);
+
+		/* Throttle 2 takes a, throttle 1 moves to another decoder. */
+		registry.acquire(2, 3, SHORT, 28, 0);
+		registry.acquire(1, 5, SHORT, 28, 0);
+		assertEquals(0, refresh.size());
+	}
+
+	@Test
+	public void newScheduleAfterAReconnect() {
+		DecoderRegistry registry = new DecoderRegistry();
+		RefreshScheduler first = new RefreshScheduler(4, 2);
+		registry.setRefresh(first);
+		Entry a = registry.acquire(0, 3, SHORT, 28, 0);
+		Entry b = registry.acquire(1, 4, SHORT, 28, 0);
+		first.changed(a, 10);
+		first.changed(b, 20);
+
+		/* The service builds a new schedule on each connect. */
+		RefreshScheduler second = new RefreshScheduler(4, 2);
+		registry.setRefresh(second);
+		assertEquals(0, first.size());
+		assertEquals(-1, a.ringIndex);
+		assertEquals(-1, b.ringIndex);
+
+		/* Only b is moving on the new connection. */
+		second.changed(b, 20);
+		assertEquals(1, second.size());
+		second.stopped(a);
+		registry.release(0);
+		assertEquals(1, second.size());
+		assertPicks(second, b);
+
+		registry.release(1);
+		assertEquals(0, second.size());
+		assertEquals(0, second.next(new Entry[4]));
+	}
+
+	@Test
+	public void noScheduleWithoutClientRefresh() {
+		DecoderRegistry registry = new DecoderRegistry();
+		RefreshScheduler refresh = new RefreshScheduler(4, 2);
+		registry.setRefresh(refresh);
+		Entry a = registry.acquire(0, 3, SHORT, 28, 0);
+		refresh.changed(a, 10);
+
+		/* Reconnected to a command station that refreshes speeds itself. */
+		registry.setRefresh(null);
+		assertEquals(0, refresh.size());
+		registry.release(0);
+		assertEquals(-1, a.ringIndex);
+	}
+
+	@Test
+	public void clearSlotsDiscardsWaitingCommands() {
+		DecoderRegistry registry = new DecoderRegistry();
+		Entry a = registry.acquire(0, 3, SHORT, 28, 0);
+		Entry b = registry.register(4, SHORT, 28, 0);
+		int epochA = a.slot().put(new byte[] {1}, 1);
+		int epochB = b.slot().put(new byte[] {2}, 1);
+		registry.clearSlots();
+
+		byte[] out = new byte[TxQueue.MAX_DATA_LEN];
+		assertEquals(0, a.slot().take(epochA, out, 0));
+		assertEquals(0, b.slot().take(epochB, out, 0));
+		assertTrue(a.slot().put(new byte[] {3}, 1) >= 0);
+	}
+
+
+	/* Speed command from an encoder with the repetition given. */
+	private static byte[] speed(int adr, int count, boolean forever, int step) {
+		DCCencoder encoder = new DCCencoder(adr, SHORT, 126, 0);
+		encoder.setRepeat(count, forever);
+		return encoder.DCCspeed(step);
+	}
+
+	/* The next tick picks exactly the decoders given, in any order. */
+	private static void assertPicks(RefreshScheduler refresh, Entry... expected) {
+		Entry[] out = new Entry[refresh.perTick()];
+		int n = refresh.next(out);
+		assertEquals(expected.length, n);
+		for (Entry e : expected) {
+			boolean found = false;
+			for (int i = 0; i < n; i++) {
+				found |= (out[i] == e);
+			}
+			assertTrue(found);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package com.olinsdepot.mbus_srvc;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.olinsdepot.mbus_srvc.LinkMonitor.Action;
+
+/**
+ * The link monitor: its smoothed round trip time, keep alives only on a quiet
+ * link, and a half open link found once the liveness deadline passes.
+ *
+ * @author mhughes
+ *
+ */
+public class LinkMonitorTest {
+
+	@Test
+	public void roundTripIsSmoothedLikeTcp() {
+		LinkMonitor monitor = new LinkMonitor(1000, 5000);
+		assertEquals(0, monitor.samples());
+
+		/* The first sample sets the estimate, its jitter is half of it. */
+		monitor.pong(8000, false);
+		assertEquals(8000, monitor.srtt());
+		assertEquals(4000, monitor.jitter());
+
+		/* Then an eighth and a quarter of each difference. */
+		monitor.pong(16000, false);
+		assertEquals(9000, monitor.srtt());
+		assertEquals(5000, monitor.jitter());
+		assertEquals(16000, monitor.lastRtt());
+		assertEquals(2, monitor.samples());
+	}
+
+	@Test
+	public void heartbeatOnlyOnAQuietLink() {
+		LinkMonitor monitor = new LinkMonitor(100, 1000);
+		long t0 = System.nanoTime();
+		monitor.sent(t0);
+		assertEquals(Action.NONE, monitor.poll(t0 + ms(50)));
+		assertEquals(ms(50), monitor.untilDue(t0 + ms(50)));
+
+		/* One keep alive per quiet interval. */
+		assertEquals(Action.HEARTBEAT, monitor.poll(t0 + ms(100)));
+		assertEquals(Action.NONE, monitor.poll(t0 + ms(150)));
+		assertEquals(Action.HEARTBEAT, monitor.poll(t0 + ms(200)));
+
+		/* Traffic puts it off. */
+		monitor.sent(t0 + ms(250));
+		assertEquals(Action.NONE, monitor.poll(t0 + ms(300)));
+	}
+
+	@Test
+	public void heartbeatIsCappedAtHalfTheDeadline() {
+		LinkMonitor monitor = new LinkMonitor(5000, 400);
+		long t0 = System.nanoTime();
+		monitor.sent(t0);
+		assertEquals(ms(200), monitor.untilDue(t0));
+		assertEquals(Action.HEARTBEAT, monitor.poll(t0 + ms(200)));
+		assertEquals(400, monitor.deadlineMs());
+	}
+
+	@Test
+	public void halfOpenLinkIsDead() {
+		LinkMonitor monitor = new LinkMonitor(100, 400);
+		long t0 = System.nanoTime();
+		monitor.sent(t0);
+		monitor.received(t0);
+		monitor.pinged();
+
+		assertEquals(Action.HEARTBEAT, monitor.poll(t0 + ms(399)));
+		assertEquals(ms(1), monitor.untilDue(t0 + ms(399)));
+		assertEquals(Action.DEAD, monitor.poll(t0 + ms(400)));
+
+		/* Nothing waiting for a PONG, a quiet server is not dead. */
+		monitor.pong(ms(1), false);
+		assertEquals(Action.HEARTBEAT, monitor.poll(t0 + ms(10000)));
+	}
+
+
+	private static long ms(long ms) {
+		return TimeUnit.MILLISECONDS.toNanos(ms);
+	}
+}
@@ -0,0 +1,87 @@
+package com.olinsdepot.mbus_srvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The metrics registry: one metric per name, snapshots in the order the
+ * metrics were registered, and histogram percentiles within an eighth of the
+ * true value.
+ *
+ * @author mhughes
+ *
+ */
+public class MetricsRegistryTest {
+
+	@Test
+	public void sameNameIsTheSameMetric() {
+		MetricsRegistry registry = new MetricsRegistry();
+		MetricsRegistry.Counter cmds = registry.counter("tx.cmds");
+		cmds.inc();
+		cmds.add(2);
+		assertSame(cmds, registry.counter("tx.cmds"));
+		assertEquals(3, registry.counter("tx.cmds").get());
+		assertSame(registry.gauge("tx.depth"), registry.gauge("tx.depth"));
+		assertSame(registry.histogram("link.rtt"), registry.histogram("link.rtt"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nameOfAnotherKind() {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.counter("tx.depth");
+		registry.gauge("tx.depth");
+	}
+
+	@Test
+	public void snapshotInRegistrationOrder() {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.gauge("tx.depth").set(7);
+		registry.counter("tx.cmds").add(5);
+		registry.histogram("link.rtt").record(1000);
+
+		final List<String> seen = new ArrayList<String>();
+		registry.snapshot(new MetricsRegistry.Visitor() {
+			public void counter(String name, long value) {
+				seen.add(name + "=" + value);
+			}
+
+			public void gauge(String name, long value) {
+				seen.add(name + "=" + value);
+			}
+
+			public void histogram(String name, LatencyHistogram histogram) {
+				seen.add(name + "=" + histogram.count());
+			}
+		});
+		assertEquals("[tx.depth=7, tx.cmds=5, link.rtt=1]", seen.toString());
+	}
+
+	@Test
+	public void percentilesWithinAnEighth() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.percentile(50));
+
+		/* 1 us to 100 ms, one sample each 1 us apart. */
+		for (long us = 1; us <= 100000; us++) {
+			histogram.record(us * 1000);
+		}
+		double[] pcts = {1, 10, 50, 90, 99, 99.9};
+		for (double pct : pcts) {
+			long exact = (long) Math.ceil(100000 * pct / 100.0);
+			long p = histogram.percentile(pct);
+			assertTrue(pct + "% " + p + " us", p >= exact && p <= exact + exact / 8);
+		}
+		assertEquals(100000, histogram.percentile(100));
+
+		/* Small values are counted exactly. */
+		histogram.reset();
+		histogram.record(3000);
+		assertEquals(3, histogram.percentile(50));
+	}
+}
@@ -0,0 +1,136 @@
+package com.olinsdepot.mbus_srvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.olinsdepot.mbus_proto.EmCan.EmCanRsp;
+
+/**
+ * The NIO transport's handshake against a local server socket: a server that
+ * sends its ID is connected, one that isn't a MorBus server is closed, and
+ * one that stays silent is given up on once the handshake timeout has passed.
+ *
+ * @author mhughes
+ *
+ */
+public class NioTransportTest {
+
+	private static final int HANDSHAKE_MS = 200;
+
+	/* Identification returned in the ID response. */
+	private static final byte[] PROT_NAME = {'E','m','C','a','n',':','M','o','r','B','u','s'};
+
+	/* Records the transport's events. */
+	private static final class Events implements NioTransport.Listener {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile int version = -1;
+		private volatile String reason;
+
+		public void connected(int protVersion) {
+			version = protVersion;
+			done.countDown();
+		}
+
+		public void closed(String reason) {
+			this.reason = reason;
+			done.countDown();
+		}
+	}
+
+	private ServerSocket server;
+	private Socket accepted;
+	private NioTransport transport;
+	private Thread loop;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (transport != null) {
+			transport.close();
+			loop.join(2000);
+		}
+		if (accepted != null) {
+			accepted.close();
+		}
+		server.close();
+	}
+
+	@Test
+	public void silentServerTimesOut() throws Exception {
+		Events events = start();
+		accepted = server.accept();
+
+		long started = System.nanoTime();
+		assertTrue(events.done.await(10 * HANDSHAKE_MS, TimeUnit.MILLISECONDS));
+		long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+		assertEquals(-1, events.version);
+		assertTrue(events.reason, events.reason.contains("identify"));
+		assertTrue("Gave up after " + waited + " ms", waited >= HANDSHAKE_MS / 2);
+	}
+
+	@Test
+	public void serverThatIdentifiesIsConnected() throws Exception {
+		Events events = start();
+		accepted = server.accept();
+		OutputStream out = accepted.getOutputStream();
+		out.write(idRsp(2));
+		out.flush();
+
+		assertTrue(events.done.await(10 * HANDSHAKE_MS, TimeUnit.MILLISECONDS));
+		assertEquals(2, events.version);
+
+		/* Still up once the handshake timeout has passed. */
+		Thread.sleep(2 * HANDSHAKE_MS);
+		assertEquals(null, events.reason);
+	}
+
+	@Test
+	public void serverWithAnotherNameIsClosed() throws Exception {
+		Events events = start();
+		accepted = server.accept();
+		byte[] rsp = idRsp(2);
+		rsp[1] = 'X';
+		OutputStream out = accepted.getOutputStream();
+		out.write(rsp);
+		out.flush();
+
+		assertTrue(events.done.await(10 * HANDSHAKE_MS, TimeUnit.MILLISECONDS));
+		assertEquals(-1, events.version);
+		assertTrue(events.reason, events.reason.contains("MorBus"));
+	}
+
+
+	private Events start() throws IOException {
+		Events events = new Events();
+		CommsConfig config = new CommsConfig().setHandshakeTimeoutMs(HANDSHAKE_MS);
+		transport = new NioTransport(new InetSocketAddress("127.0.0.1", server.getLocalPort()), config, events);
+		loop = new Thread(transport);
+		loop.start();
+		return events;
+	}
+
+	/* ID response: code, EmCan:MorBus, 0 and the version. */
+	private static byte[] idRsp(int version) {
+		byte[] rsp = new byte[PROT_NAME.length + 3];
+		rsp[0] = (byte) EmCanRsp.ID.toCode();
+		System.arraycopy(PROT_NAME, 0, rsp, 1, PROT_NAME.length);
+		rsp[rsp.length - 1] = (byte) version;
+		return rsp;
+	}
+}
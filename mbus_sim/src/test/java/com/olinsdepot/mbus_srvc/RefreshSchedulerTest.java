@@ -0,0 +1,86 @@
+package com.olinsdepot.mbus_srvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.olinsdepot.mbus_srvc.DecoderRegistry.Entry;
+
+/**
+ * The client side refresh schedule: round robin over the moving decoders,
+ * stopped decoders dropping out, and a changed speed going ahead of the
+ * round robin.
+ *
+ * @author mhughes
+ *
+ */
+public class RefreshSchedulerTest {
+
+	private static final int SHORT = 0;
+
+	private final DecoderRegistry registry = new DecoderRegistry();
+
+	@Test
+	public void roundRobinOverMovingDecoders() {
+		RefreshScheduler refresh = new RefreshScheduler(2, 0);
+		Entry a = registry.acquire(0, 3, SHORT, 28, 0);
+		Entry b = registry.acquire(1, 4, SHORT, 28, 0);
+		Entry c = registry.acquire(2, 5, SHORT, 28, 0);
+		refresh.changed(a, 10);
+		refresh.changed(b, 20);
+		refresh.changed(c, 30);
+		assertEquals(3, refresh.size());
+		assertEquals(30, c.speed());
+
+		assertPicks(refresh, a, b);
+		assertPicks(refresh, c, a);
+		assertPicks(refresh, b, c);
+
+		/* Stopped decoders drop out, however they were stopped. */
+		refresh.stopped(b);
+		assertEquals(2, refresh.size());
+		assertEquals(0, b.speed());
+		assertPicks(refresh, a, c);
+		refresh.changed(a, 0);
+		assertPicks(refresh, c);
+
+		refresh.clear();
+		assertEquals(0, refresh.size());
+		assertEquals(0, refresh.next(new Entry[2]));
+	}
+
+	@Test
+	public void changedSpeedGoesFirst() {
+		RefreshScheduler refresh = new RefreshScheduler(1, 1);
+		Entry a = registry.acquire(0, 3, SHORT, 28, 0);
+		Entry b = registry.acquire(1, 4, SHORT, 28, 0);
+		refresh.changed(a, 10);
+		refresh.changed(b, 20);
+		assertPicks(refresh, a);
+		assertPicks(refresh, b);
+		assertPicks(refresh, a);
+		assertPicks(refresh, b);
+
+		/* a is next round robin, b's new speed is picked ahead of it. */
+		refresh.changed(b, 40);
+		assertEquals(2, refresh.size());
+		assertPicks(refresh, b);
+		assertPicks(refresh, a);
+	}
+
+
+	/* The next tick picks exactly the decoders given, in any order. */
+	private static void assertPicks(RefreshScheduler refresh, Entry... expected) {
+		Entry[] out = new Entry[refresh.perTick()];
+		int n = refresh.next(out);
+		assertEquals(expected.length, n);
+		for (Entry e : expected) {
+			boolean found = false;
+			for (int i = 0; i < n; i++) {
+				found |= (out[i] == e);
+			}
+			assertTrue(found);
+		}
+	}
+}
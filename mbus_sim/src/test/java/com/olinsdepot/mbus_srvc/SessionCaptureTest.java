@@ -0,0 +1,73 @@
+package com.olinsdepot.mbus_srvc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * The session capture file: records read back in order with their direction,
+ * bytes and rising times, and a capture cut off part way through a record.
+ *
+ * @author mhughes
+ *
+ */
+public class SessionCaptureTest {
+
+	@Test
+	public void recordsReadBackInOrder() throws IOException {
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		SessionCapture capture = new SessionCapture(file);
+		byte[] big = new byte[300];
+		Arrays.fill(big, (byte) 7);
+		capture.sent(new byte[] {9, 1, 2, 3}, 1, 2);
+		capture.received(new byte[] {4}, 0, 1);
+		capture.sent(new byte[0], 0, 0);
+		capture.sent(big, 0, big.length);
+		assertTrue(capture.isOk());
+		capture.close();
+
+		SessionCapture.Reader reader = new SessionCapture.Reader(new ByteArrayInputStream(file.toByteArray()));
+		assertTrue(reader.next());
+		assertEquals(SessionCapture.SENT, reader.direction());
+		assertArrayEquals(new byte[] {1, 2}, Arrays.copyOf(reader.data(), reader.length()));
+		long first = reader.timeUs();
+
+		assertTrue(reader.next());
+		assertEquals(SessionCapture.RECEIVED, reader.direction());
+		assertArrayEquals(new byte[] {4}, Arrays.copyOf(reader.data(), reader.length()));
+		assertTrue(reader.timeUs() >= first);
+
+		/* Empty writes aren't recorded, a long one grows the reader's buffer. */
+		assertTrue(reader.next());
+		assertEquals(SessionCapture.SENT, reader.direction());
+		assertArrayEquals(big, Arrays.copyOf(reader.data(), reader.length()));
+		assertFalse(reader.next());
+		reader.close();
+	}
+
+	@Test(expected = EOFException.class)
+	public void captureCutOffInARecord() throws IOException {
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		SessionCapture capture = new SessionCapture(file);
+		capture.sent(new byte[] {1, 2, 3, 4}, 0, 4);
+		capture.close();
+
+		byte[] bytes = file.toByteArray();
+		SessionCapture.Reader reader = new SessionCapture.Reader(new ByteArrayInputStream(bytes, 0, bytes.length - 2));
+		reader.next();
+	}
+
+	@Test(expected = IOException.class)
+	public void notACapture() throws IOException {
+		new SessionCapture.Reader(new ByteArrayInputStream(new byte[] {'M', 'B', 'T', 'R', 0, 0, 0, 1}));
+	}
+}
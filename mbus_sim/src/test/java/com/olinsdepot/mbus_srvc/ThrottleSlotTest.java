@@ -0,0 +1,124 @@
+package com.olinsdepot.mbus_srvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * The latest value slot: one send message per slot at a time, the latest
+ * command taken, and messages queued before a clear ignored.
+ *
+ * @author mhughes
+ *
+ */
+public class ThrottleSlotTest {
+
+	private final byte[] out = new byte[TxQueue.MAX_DATA_LEN];
+
+	@Test
+	public void oneSendQueuedAtATime() {
+		ThrottleSlot slot = new ThrottleSlot();
+		int epoch = slot.put(cmd(1), 3);
+		assertTrue(epoch >= 0);
+		assertEquals(-1, slot.put(cmd(2), 3));
+		assertEquals(-1, slot.put(cmd(3), 3));
+
+		/* The latest command is the one taken. */
+		assertEquals(3, slot.take(epoch, out, 0));
+		assertEquals(3, out[0]);
+
+		/* Taken, so the next put queues a send again. */
+		assertEquals(epoch, slot.put(cmd(4), 3));
+	}
+
+	@Test
+	public void takeAtOffset() {
+		ThrottleSlot slot = new ThrottleSlot();
+		int epoch = slot.put(cmd(9), 2);
+		byte[] buf = new byte[TxQueue.MAX_DATA_LEN + 2];
+		assertEquals(2, slot.take(epoch, buf, 2));
+		assertEquals(9, buf[2]);
+		assertEquals(10, buf[3]);
+	}
+
+	@Test
+	public void clearIgnoresQueuedSend() {
+		ThrottleSlot slot = new ThrottleSlot();
+		int epoch = slot.put(cmd(1), 3);
+		slot.clear();
+		assertEquals(0, slot.take(epoch, out, 0));
+
+		/* A new send is queued in the new epoch. */
+		int next = slot.put(cmd(2), 3);
+		assertTrue(next >= 0 && next != epoch);
+		assertEquals(0, slot.take(epoch, out, 0));
+		assertEquals(3, slot.take(next, out, 0));
+		assertEquals(2, out[0]);
+	}
+
+	@Test
+	public void droppedSendDoesNotBlockTheSlot() {
+		/* The service clears the slot when it has no transport for the send. */
+		ThrottleSlot slot = new ThrottleSlot();
+		assertTrue(slot.put(cmd(1), 3) >= 0);
+		slot.clear();
+		assertTrue(slot.put(cmd(2), 3) >= 0);
+	}
+
+	@Test
+	public void takerNeverSeesAnOlderCommand() throws Exception {
+		final ThrottleSlot slot = new ThrottleSlot();
+		final int puts = 200000;
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final int[] pending = {-1};
+
+		Thread producer = new Thread(new Runnable() {
+			public void run() {
+				byte[] cmd = new byte[4];
+				for (int i = 1; i <= puts; i++) {
+					cmd[0] = (byte) (i >>> 24);
+					cmd[1] = (byte) (i >>> 16);
+					cmd[2] = (byte) (i >>> 8);
+					cmd[3] = (byte) i;
+					int epoch = slot.put(cmd, 4);
+					if (epoch >= 0) {
+						synchronized (pending) {
+							pending[0] = epoch;
+						}
+					}
+				}
+				done.set(true);
+			}
+		});
+		producer.start();
+
+		int last = 0;
+		while (true) {
+			boolean finished = done.get();
+			int epoch;
+			synchronized (pending) {
+				epoch = pending[0];
+				pending[0] = -1;
+			}
+			if (epoch >= 0) {
+				assertEquals(4, slot.take(epoch, out, 0));
+				int value = ((out[0] & 0xFF) << 24) | ((out[1] & 0xFF) << 16) | ((out[2] & 0xFF) << 8) | (out[3] & 0xFF);
+				assertTrue(value > last);
+				last = value;
+			} else if (finished) {
+				break;
+			}
+		}
+		producer.join();
+
+		/* The last put is always sent. */
+		assertEquals(puts, last);
+	}
+
+	private static byte[] cmd(int first) {
+		return new byte[] {(byte) first, (byte) (first + 1), (byte) (first + 2)};
+	}
+}
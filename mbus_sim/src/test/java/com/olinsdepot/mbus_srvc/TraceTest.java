@@ -0,0 +1,76 @@
+package com.olinsdepot.mbus_srvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.olinsdepot.mbus_srvc.Trace.Stage;
+
+/**
+ * The trace recorder: nothing recorded while it is off, and a dump decoded
+ * back to the events recorded, oldest first.
+ *
+ * @author mhughes
+ *
+ */
+public class TraceTest {
+
+	@Before
+	public void setUp() {
+		Trace.clear();
+	}
+
+	@After
+	public void tearDown() {
+		Trace.enable(false);
+		Trace.clear();
+	}
+
+	@Test
+	public void offRecordsNothing() {
+		assertFalse(Trace.isEnabled());
+		Trace.event(Stage.CLIENT_CMD, 1, 2, 3);
+		assertEquals(0, Trace.recorded());
+	}
+
+	@Test
+	public void dumpDecodesToTheEventsRecorded() throws IOException {
+		Trace.enable(true);
+		Trace.event(Stage.CLIENT_CMD, 1, 20, 30);
+		Trace.event(Stage.TX_WRITE, Trace.NO_THROTTLE, 2, 12);
+		Trace.event(Stage.LINK_DOWN, Trace.NO_THROTTLE, 0, 0);
+		assertEquals(3, Trace.recorded());
+
+		ByteArrayOutputStream dump = new ByteArrayOutputStream();
+		assertEquals(3, Trace.dump(dump));
+
+		String[] lines = decode(dump.toByteArray()).split("\n");
+		assertEquals(5, lines.length);
+		assertTrue(lines[0], lines[0].startsWith("3 events"));
+		assertTrue(lines[2], lines[2].matches(" *0\\.0  CLIENT_CMD +1 +20 +30"));
+		assertTrue(lines[3], lines[3].matches(".*TX_WRITE +- +2 +12"));
+		assertTrue(lines[4], lines[4].matches(".*LINK_DOWN +- +0 +0"));
+	}
+
+	@Test(expected = IOException.class)
+	public void notATraceDump() throws IOException {
+		decode(new byte[] {'M', 'B', 'T', 'X', 0, 0, 0, 1});
+	}
+
+
+	/* The decoded dump, with \n line ends. */
+	private static String decode(byte[] dump) throws IOException {
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		Trace.decode(new ByteArrayInputStream(dump), new PrintStream(text, true));
+		return text.toString().replace("\r\n", "\n");
+	}
+}
@@ -0,0 +1,447 @@
+package com.olinsdepot.mbus_srvc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The transmit queue: the window, the safety lane and its reserved slot,
+ * acks retired by PONGs, sends taken from throttle slots, how frames are
+ * batched into writes and what the queue reports to a metrics registry.
+ *
+ * Test frames are two bytes, a lane marker and a sequence number, so the
+ * stream written can be read back as the frames in the order sent, each
+ * followed by its PING.
+ *
+ * @author mhughes
+ *
+ */
+public class TxQueueTest {
+
+	private static final byte PING = 1;
+	private static final byte NORMAL = 'N';
+	private static final byte SAFETY = 'S';
+	private static final byte SLOT = 'T';
+
+	/* Stream that keeps each write apart, and can be made to fail. */
+	private static final class Writes extends OutputStream {
+		private final List<byte[]> writes = new ArrayList<byte[]>();
+		private boolean failing = false;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (failing) {
+				throw new IOException("Broken pipe");
+			}
+			writes.add(Arrays.copyOfRange(b, off, off + len));
+		}
+
+		/* Every byte written so far, in order. */
+		byte[] bytes() {
+			ByteArrayOutputStream all = new ByteArrayOutputStream();
+			for (byte[] w : writes) {
+				all.write(w, 0, w.length);
+			}
+			return all.toByteArray();
+		}
+	}
+
+	/* Records the tags acked, in order. */
+	private static final class Acks implements TxQueue.Ack {
+		private final List<Integer> tags = new ArrayList<Integer>();
+
+		public void acked(int tag) {
+			tags.add(tag);
+		}
+	}
+
+	/* Holds the delay asked for instead of running the flush. */
+	private static final class Timer implements TxQueue.FlushTimer {
+		private int scheduled = 0;
+		private long delayNanos;
+
+		public void schedule(long delayNanos) {
+			this.scheduled++;
+			this.delayNanos = delayNanos;
+		}
+	}
+
+	/* Frames slot data as a one byte header and the data. */
+	private static final TxQueue.Framer FRAMER = new TxQueue.Framer() {
+		public void frame(int op, byte[] data, int len, ByteBuffer out) {
+			out.put(SLOT);
+			out.put(data, 0, len);
+		}
+	};
+
+	private final Writes out = new Writes();
+
+	/*
+	 * Window
+	 */
+
+	@Test
+	public void heldUntilOpen() throws IOException {
+		TxQueue queue = new TxQueue(out, 4, FRAMER);
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		assertEquals(0, out.writes.size());
+		assertEquals(1, queue.depth());
+
+		queue.open();
+		assertArrayEquals(stream(NORMAL, 1), out.bytes());
+		assertEquals(0, queue.depth());
+	}
+
+	@Test
+	public void windowLimitsFramesInFlight() throws IOException {
+		TxQueue queue = open(2);
+		for (int i = 1; i <= 5; i++) {
+			queue.put(frame(NORMAL, i), TxQueue.Lane.NORMAL);
+		}
+		assertArrayEquals(stream(NORMAL, 1, NORMAL, 2), out.bytes());
+		assertEquals(2, queue.inFlight());
+		assertEquals(3, queue.depth());
+
+		/* Each PONG lets one more frame out. */
+		queue.pong();
+		assertArrayEquals(stream(NORMAL, 1, NORMAL, 2, NORMAL, 3), out.bytes());
+		queue.pong();
+		queue.pong();
+		queue.pong();
+		queue.pong();
+		assertArrayEquals(stream(NORMAL, 1, NORMAL, 2, NORMAL, 3, NORMAL, 4, NORMAL, 5), out.bytes());
+		assertEquals(0, queue.inFlight());
+
+		/* A stray PONG doesn't open the window past its size. */
+		queue.pong();
+		assertEquals(0, queue.inFlight());
+	}
+
+	/*
+	 * Safety lane
+	 */
+
+	@Test
+	public void safetyFrameUsesTheReservedSlot() throws IOException {
+		TxQueue queue = open(2);
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		queue.put(frame(NORMAL, 2), TxQueue.Lane.NORMAL);
+		queue.put(frame(NORMAL, 3), TxQueue.Lane.NORMAL);
+		assertEquals(2, queue.inFlight());
+
+		/* The window is full of normal frames, the safety frame goes anyway. */
+		queue.put(frame(SAFETY, 1), TxQueue.Lane.SAFETY);
+		assertArrayEquals(stream(NORMAL, 1, NORMAL, 2, SAFETY, 1), out.bytes());
+		assertEquals(3, queue.inFlight());
+	}
+
+	@Test
+	public void safetyLaneDrainsFirst() throws IOException {
+		TxQueue queue = open(1);
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		queue.put(frame(SAFETY, 1), TxQueue.Lane.SAFETY);
+		queue.put(frame(NORMAL, 2), TxQueue.Lane.NORMAL);
+		queue.put(frame(SAFETY, 2), TxQueue.Lane.SAFETY);
+		queue.put(frame(SAFETY, 3), TxQueue.Lane.SAFETY);
+
+		/* The reserve is used, the rest wait for PONGs, safety frames first. */
+		assertArrayEquals(stream(NORMAL, 1, SAFETY, 1), out.bytes());
+		queue.pong();
+		assertArrayEquals(stream(NORMAL, 1, SAFETY, 1, SAFETY, 2), out.bytes());
+		queue.pong();
+		assertArrayEquals(stream(NORMAL, 1, SAFETY, 1, SAFETY, 2, SAFETY, 3), out.bytes());
+		/* Two more PONGs to bring the normal lane back inside the window. */
+		queue.pong();
+		assertEquals(1, queue.depth());
+		queue.pong();
+		assertArrayEquals(stream(NORMAL, 1, SAFETY, 1, SAFETY, 2, SAFETY, 3, NORMAL, 2), out.bytes());
+	}
+
+	@Test
+	public void normalFramesNeverTakeTheReserve() throws IOException {
+		TxQueue queue = open(1);
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		queue.put(frame(NORMAL, 2), TxQueue.Lane.NORMAL);
+		assertEquals(1, queue.inFlight());
+		assertEquals(1, queue.depth());
+	}
+
+	@Test
+	public void eachLaneRecordsItsLatency() throws IOException {
+		TxQueue queue = open(1);
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		queue.put(frame(SAFETY, 1), TxQueue.Lane.SAFETY);
+		queue.put(frame(SAFETY, 2), TxQueue.Lane.SAFETY);
+		assertEquals(1, queue.latency(TxQueue.Lane.NORMAL).count());
+		assertEquals(1, queue.latency(TxQueue.Lane.SAFETY).count());
+	}
+
+	@Test
+	public void pongsReportRoundTripsToTheMonitor() throws IOException {
+		TxQueue queue = open(2);
+		LinkMonitor monitor = new LinkMonitor(1000, 5000);
+		queue.setMonitor(monitor);
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		queue.put(frame(NORMAL, 2), TxQueue.Lane.NORMAL);
+		queue.pong();
+		assertEquals(1, monitor.samples());
+		queue.pong();
+		assertEquals(2, monitor.samples());
+
+		/* A stray PONG has no PING to time. */
+		queue.pong();
+		assertEquals(2, monitor.samples());
+	}
+
+	/*
+	 * Acks
+	 */
+
+	@Test
+	public void pongsRetireAcksInOrder() throws IOException {
+		TxQueue queue = open(4);
+		Acks acks = new Acks();
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL, acks, 11);
+		queue.put(frame(NORMAL, 2), TxQueue.Lane.NORMAL);
+		queue.put(frame(NORMAL, 3), TxQueue.Lane.NORMAL, acks, 13);
+		assertEquals(0, acks.tags.size());
+
+		queue.pong();
+		assertEquals(Arrays.asList(11), acks.tags);
+		queue.pong();
+		assertEquals(Arrays.asList(11), acks.tags);
+		queue.pong();
+		assertEquals(Arrays.asList(11, 13), acks.tags);
+	}
+
+	@Test
+	public void ackFollowsItsFrameThroughTheWindow() throws IOException {
+		TxQueue queue = open(1);
+		Acks acks = new Acks();
+		for (int i = 1; i <= 6; i++) {
+			queue.put(frame(NORMAL, i), TxQueue.Lane.NORMAL, acks, 100 + i);
+		}
+		for (int i = 1; i <= 6; i++) {
+			queue.pong();
+		}
+		assertEquals(Arrays.asList(101, 102, 103, 104, 105, 106), acks.tags);
+	}
+
+	@Test
+	public void framesLostWithTheConnectionAreNotAcked() throws IOException {
+		TxQueue queue = open(4);
+		Acks acks = new Acks();
+		out.failing = true;
+		try {
+			queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL, acks, 1);
+			fail("Write should have failed");
+		} catch (IOException e) {
+			/* Expected */
+		}
+		out.failing = false;
+		queue.pong();
+		assertEquals(0, acks.tags.size());
+
+		/* The next frame's ack is its own. */
+		queue.put(frame(NORMAL, 2), TxQueue.Lane.NORMAL, acks, 2);
+		queue.pong();
+		assertEquals(Arrays.asList(2), acks.tags);
+	}
+
+	/*
+	 * Throttle slots
+	 */
+
+	@Test
+	public void slotFrameCarriesTheLatestCommand() throws IOException {
+		TxQueue queue = open(4);
+		ThrottleSlot slot = new ThrottleSlot();
+		int epoch = slot.put(new byte[] {5}, 1);
+		assertEquals(-1, slot.put(new byte[] {6}, 1));
+		queue.putSlot(slot, epoch, 0);
+		assertArrayEquals(new byte[] {SLOT, 6, PING}, out.bytes());
+		assertEquals(1, queue.inFlight());
+	}
+
+	@Test
+	public void clearedSlotSendsNothing() throws IOException {
+		TxQueue queue = open(1);
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		ThrottleSlot slot = new ThrottleSlot();
+		int epoch = slot.put(new byte[] {5}, 1);
+		queue.putSlot(slot, epoch, 0);
+		slot.clear();
+
+		queue.pong();
+		assertArrayEquals(stream(NORMAL, 1), out.bytes());
+		assertEquals(0, queue.inFlight());
+	}
+
+	/*
+	 * Batching
+	 */
+
+	@Test
+	public void framesReadyInOnePassShareAWrite() throws IOException {
+		TxQueue queue = new TxQueue(out, 4, FRAMER);
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		queue.put(frame(NORMAL, 2), TxQueue.Lane.NORMAL);
+		queue.put(frame(SAFETY, 1), TxQueue.Lane.SAFETY);
+		queue.open();
+
+		assertEquals(1, out.writes.size());
+		assertArrayEquals(stream(SAFETY, 1, NORMAL, 1, NORMAL, 2), out.bytes());
+		assertEquals(1, queue.metrics().segments());
+		assertEquals(3, queue.metrics().commands());
+	}
+
+	@Test
+	public void withoutFlushWindowEachPutIsWritten() throws IOException {
+		TxQueue queue = open(4);
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		queue.put(frame(NORMAL, 2), TxQueue.Lane.NORMAL);
+		assertEquals(2, out.writes.size());
+	}
+
+	@Test
+	public void flushWindowHoldsFramesForOneWrite() throws IOException {
+		Timer timer = new Timer();
+		TxQueue queue = open(4);
+		queue.setFlushWindow(1000000000L, timer);
+
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		queue.put(frame(NORMAL, 2), TxQueue.Lane.NORMAL);
+		assertEquals(0, out.writes.size());
+		assertEquals(1, timer.scheduled);
+		assertTrue(timer.delayNanos > 0 && timer.delayNanos <= 1000000000L);
+
+		/* Not due yet, the timer is set again. */
+		queue.flushIfDue();
+		assertEquals(0, out.writes.size());
+		assertEquals(2, timer.scheduled);
+
+		queue.flush();
+		assertEquals(1, out.writes.size());
+		assertArrayEquals(stream(NORMAL, 1, NORMAL, 2), out.bytes());
+
+		/* Nothing held, nothing to do. */
+		queue.flushIfDue();
+		assertEquals(1, out.writes.size());
+	}
+
+	@Test
+	public void flushIfDueWritesOnceTheWindowHasPassed() throws Exception {
+		Timer timer = new Timer();
+		TxQueue queue = open(4);
+		queue.setFlushWindow(1000000L, timer);
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		assertEquals(0, out.writes.size());
+
+		Thread.sleep(5);
+		queue.flushIfDue();
+		assertArrayEquals(stream(NORMAL, 1), out.bytes());
+	}
+
+	@Test
+	public void safetyFrameFlushesTheBatch() throws IOException {
+		TxQueue queue = open(4);
+		queue.setFlushWindow(1000000000L, new Timer());
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		assertEquals(0, out.writes.size());
+
+		queue.put(frame(SAFETY, 1), TxQueue.Lane.SAFETY);
+		assertEquals(1, out.writes.size());
+		assertArrayEquals(stream(NORMAL, 1, SAFETY, 1), out.bytes());
+	}
+
+	@Test
+	public void fullWindowFlushesTheBatch() throws IOException {
+		TxQueue queue = open(2);
+		queue.setFlushWindow(1000000000L, new Timer());
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		assertEquals(0, out.writes.size());
+
+		/* No more frames can join until a PONG, so it is written now. */
+		queue.put(frame(NORMAL, 2), TxQueue.Lane.NORMAL);
+		assertEquals(1, out.writes.size());
+		assertArrayEquals(stream(NORMAL, 1, NORMAL, 2), out.bytes());
+	}
+
+	@Test
+	public void flushWindowNeedsATimer() throws IOException {
+		TxQueue queue = open(2);
+		try {
+			queue.setFlushWindow(1000L, null);
+			fail("Flush window without a timer");
+		} catch (IllegalArgumentException e) {
+			/* Expected */
+		}
+	}
+
+	/*
+	 * Metrics
+	 */
+
+	@Test
+	public void registryCountsWritesAndLosses() throws IOException {
+		MetricsRegistry registry = new MetricsRegistry();
+		TxQueue queue = new TxQueue(out, 4, FRAMER);
+		queue.setMetrics(registry);
+		queue.open();
+		queue.put(frame(NORMAL, 1), TxQueue.Lane.NORMAL);
+		queue.put(frame(SAFETY, 1), TxQueue.Lane.SAFETY);
+		assertEquals(2, registry.counter("tx.cmds").get());
+		assertEquals(2, registry.counter("tx.segments").get());
+		assertEquals(6, registry.counter("tx.bytes").get());
+		assertEquals(2, registry.gauge("tx.inflight").get());
+		assertEquals(1, registry.histogram("tx.safety").count());
+
+		out.failing = true;
+		try {
+			queue.put(frame(NORMAL, 2), TxQueue.Lane.NORMAL);
+			fail("Write should have failed");
+		} catch (IOException e) {
+			/* Expected */
+		}
+		assertEquals(1, registry.counter("tx.dropped").get());
+		assertEquals(2, registry.counter("tx.cmds").get());
+	}
+
+
+	private TxQueue open(int window) throws IOException {
+		TxQueue queue = new TxQueue(out, window, FRAMER);
+		queue.open();
+		return queue;
+	}
+
+	private static byte[] frame(byte lane, int seq) {
+		return new byte[] {lane, (byte) seq};
+	}
+
+	/* The stream for frames given as lane, sequence pairs, each followed by a PING. */
+	private static byte[] stream(int... frames) {
+		byte[] bytes = new byte[frames.length / 2 * 3];
+		for (int i = 0, j = 0; i < frames.length; i += 2) {
+			bytes[j++] = (byte) frames[i];
+			bytes[j++] = (byte) frames[i + 1];
+			bytes[j++] = PING;
+		}
+		return bytes;
+	}
+}
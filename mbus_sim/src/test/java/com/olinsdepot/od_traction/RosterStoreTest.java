@@ -0,0 +1,181 @@
+package com.olinsdepot.od_traction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The roster file and its indexes: units and key states kept across a
+ * reload, a record cut off at the end dropped, and the name index when two
+ * units share a road name.
+ *
+ * @author mhughes
+ *
+ */
+public class RosterStoreTest {
+
+	private File file;
+	private RosterStore roster;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("roster", ".bin");
+		file.delete();
+		roster = new RosterStore(file);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		roster.close();
+		file.delete();
+		new File(file.getPath() + ".tmp").delete();
+	}
+
+	@Test
+	public void unitsAndKeysKeptAcrossAReload() throws IOException {
+		LocoUnit gp9 = new LocoUnit("GP9 1750", 1, 1750, 126);
+		LocoUnit rs3 = new LocoUnit("RS3 8", 0, 8, 28);
+		roster.put(gp9);
+		roster.put(rs3);
+		roster.setKeyStates(gp9, 0x11, 1L << 39);
+		rs3.toggleKey(3);
+		roster.saveKeyStates(rs3);
+		roster.remove(new LocoUnit("RS3 8", 0, 8, 28));
+
+		reopen();
+		assertEquals(1, roster.size());
+		LocoUnit unit = roster.get(1, 1750);
+		assertEquals("GP9 1750", unit.getRoadName());
+		assertEquals(126, unit.getSpdSteps());
+		assertEquals(0x11, unit.getKeyStates());
+		assertEquals(1L << 39, unit.getExtKeyStates());
+		assertNull(roster.get(0, 8));
+		assertSame(unit, roster.find("gp9 1750"));
+	}
+
+	@Test
+	public void recordCutOffIsDropped() throws IOException {
+		LocoUnit unit = new LocoUnit("SW1 2", 0, 2, 28);
+		roster.put(unit);
+		roster.setKeyStates(unit, 1, 0);
+		roster.close();
+
+		/* Killed part way through the last KEYS record. */
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 5);
+		raf.close();
+
+		roster = new RosterStore(file);
+		assertEquals(0, roster.get(0, 2).getKeyStates());
+
+		/* And the next record follows the last whole one. */
+		roster.setKeyStates(roster.get(0, 2), 2, 0);
+		reopen();
+		assertEquals(2, roster.get(0, 2).getKeyStates());
+	}
+
+	@Test
+	public void sharedRoadNameFoundAfterRemove() throws IOException {
+		LocoUnit first = new LocoUnit("Switcher", 0, 5, 28);
+		LocoUnit second = new LocoUnit("switcher", 0, 6, 28);
+		roster.put(first);
+		roster.put(second);
+		assertSame(second, roster.find("Switcher"));
+
+		/* The one found by name goes, the other is found instead. */
+		roster.remove(second);
+		assertSame(first, roster.find("Switcher"));
+		assertEquals(1, roster.startingWith("sw").size());
+
+		roster.remove(first);
+		assertNull(roster.find("Switcher"));
+		assertEquals(0, roster.startingWith("sw").size());
+	}
+
+	@Test
+	public void sharedRoadNameFoundAfterRename() throws IOException {
+		LocoUnit first = new LocoUnit("Switcher", 0, 5, 28);
+		LocoUnit second = new LocoUnit("Switcher", 0, 6, 28);
+		roster.put(first);
+		roster.put(second);
+
+		/* A new unit at the second's address with another name. */
+		LocoUnit renamed = new LocoUnit("Yard goat", 0, 6, 28);
+		roster.put(renamed);
+		assertSame(first, roster.find("Switcher"));
+		assertSame(renamed, roster.find("Yard goat"));
+
+		/* Removing the unit not found by name leaves the name index alone. */
+		LocoUnit third = new LocoUnit("Switcher", 0, 7, 28);
+		roster.put(third);
+		roster.remove(first);
+		assertSame(third, roster.find("Switcher"));
+
+		reopen();
+		assertEquals(2, roster.size());
+		assertSame(roster.get(0, 7), roster.find("Switcher"));
+	}
+
+	@Test
+	public void replacedUnitKeepsItsName() throws IOException {
+		LocoUnit first = new LocoUnit("Switcher", 0, 5, 28);
+		roster.put(first);
+		LocoUnit again = new LocoUnit("SWITCHER", 0, 5, 126);
+		roster.put(again);
+		assertSame(again, roster.find("switcher"));
+		assertEquals(1, roster.size());
+	}
+
+	@Test
+	public void keysOfAReplacedUnitAreNotRecorded() throws IOException {
+		LocoUnit old = new LocoUnit("Switcher", 0, 5, 28);
+		roster.put(old);
+		LocoUnit unit = new LocoUnit("Switcher", 0, 5, 28);
+		roster.put(unit);
+		old.toggleKey(0);
+		roster.saveKeyStates(old);
+
+		reopen();
+		assertEquals(0, roster.get(0, 5).getKeyStates());
+	}
+
+	@Test
+	public void compactionKeepsEveryUnit() throws IOException {
+		LocoUnit[] units = new LocoUnit[20];
+		for (int i = 0; i < units.length; i++) {
+			units[i] = new LocoUnit("Unit " + i, 1, 100 + i, 126);
+			roster.put(units[i]);
+		}
+
+		/* Enough key presses for the file to be compacted several times. */
+		for (int press = 0; press < 20000; press++) {
+			LocoUnit unit = units[press % units.length];
+			unit.toggleKey(press % 69);
+			roster.saveKeyStates(unit);
+		}
+		assertTrue(file.length() < 2 * 64 * 1024);
+
+		reopen();
+		assertEquals(units.length, roster.size());
+		for (LocoUnit unit : units) {
+			LocoUnit loaded = roster.get(1, unit.getDccAddr());
+			assertEquals(unit.getKeyStates(), loaded.getKeyStates());
+			assertEquals(unit.getExtKeyStates(), loaded.getExtKeyStates());
+		}
+	}
+
+
+	private void reopen() throws IOException {
+		roster.close();
+		roster = new RosterStore(file);
+	}
+}